@@ -13,6 +13,8 @@ public interface IXoClientConfiguration {
     public String getBsonProtocolString();
     public String getJsonProtocolString();
     public int getTransferThreads();
+    public int getUploadParts();
+    public int getUploadPartSize();
     public int getConnectTimeout();
     public int getBackgroundNearbyTimeoutSeconds();
     public int getBackgroundDisconnectTimeoutSeconds();
@@ -27,6 +29,7 @@ public interface IXoClientConfiguration {
     public float getReconnectBackoffVariableMaximum();
 
     public boolean isSendDeliveryConfirmationEnabled();
+    public int getDeliveryBatchSize();
 
     public long getTimeToLiveInWorldwide();
     public String getNotificationPreferenceForWorldwide();
@@ -7,6 +7,8 @@ import com.hoccer.talk.client.model.TalkClientUpload;
 import com.hoccer.talk.content.ContentState;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpConnectionParams;
@@ -55,6 +57,10 @@ public abstract class TransferAgent {
         HttpConnectionParams.setTcpNoDelay(httpParams, true);
         HttpConnectionParams.setConnectionTimeout(httpParams, 3000);
         HttpConnectionParams.setSoTimeout(httpParams, 10000);
+        // every transfer thread may upload several parts at once
+        IXoClientConfiguration configuration = mClient.getConfiguration();
+        int connectionsPerRoute = configuration.getTransferThreads() * Math.max(1, configuration.getUploadParts());
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(connectionsPerRoute));
         return new HttpClientWithKeyStore(httpParams);
     }
 
@@ -5,9 +5,12 @@ import com.hoccer.talk.client.model.TalkClientUpload;
 import com.hoccer.talk.crypto.AESCryptor;
 import com.hoccer.talk.rpc.ITalkRpcServer;
 import com.hoccer.talk.util.ProgressOutputHttpEntity;
+import com.hoccer.talk.util.IProgressListener;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.http.*;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.log4j.Logger;
 import org.bouncycastle.util.encoders.Hex;
 
@@ -16,6 +19,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import static com.hoccer.talk.client.model.TalkClientUpload.State.*;
@@ -24,12 +34,19 @@ public class UploadAction implements TransferStateListener {
 
     private static final Logger LOG = Logger.getLogger(UploadAction.class);
 
+    /** Response header of the filecache listing all committed ranges */
+    private static final String COMMITTED_RANGES_HEADER = "X-Committed-Ranges";
+
     private final UploadAgent mUploadAgent;
 
     private TalkClientUpload mUpload;
     private HttpPut mHttpPut;
+    private final List<HttpPut> mPartPuts = new CopyOnWriteArrayList<HttpPut>();
     private Future mFuture;
 
+    /** Ranges the server has committed, null if it does not report them */
+    private List<ByteRange> mCommittedRanges;
+
     public UploadAction(UploadAgent uploadAgent, TalkClientUpload upload) {
         mUploadAgent = uploadAgent;
         mUpload = upload;
@@ -148,9 +165,11 @@ public class UploadAction implements TransferStateListener {
                 LOG.warn("[uploadId: '" + mUpload.getClientUploadId() + "'] no range header in check response");
                 mUpload.setProgress(0);
             }
+            mCommittedRanges = parseCommittedRanges(checkResponse.getFirstHeader(COMMITTED_RANGES_HEADER), mUpload);
             checkResponse.getEntity().consumeContent();
 
         } catch (IOException e) {
+            mCommittedRanges = null;
             LOG.error("IOException while retrieving uploaded range from server ", e);
         }
     }
@@ -213,15 +232,14 @@ public class UploadAction implements TransferStateListener {
         }
         LOG.debug("'[uploadId: '" + mUpload.getClientUploadId() + "'] current progress: " + mUpload.getProgress() + " | current upload length: " + mUpload.getUploadLength());
 
+        List<ByteRange> parts = planParts(mUpload);
+        if (parts != null) {
+            doPartsUploadingAction(parts);
+            return;
+        }
+
         try {
-            InputStream clearIs = new FileInputStream(mUpload.getTempCompressedFilePath() != null ? mUpload.getTempCompressedFilePath() : mUpload.getFilePath());
-            InputStream encryptingInputStream;
-            if (mUpload.isAttachment()) {
-                byte[] key = Hex.decode(mUpload.getEncryptionKey());
-                encryptingInputStream = AESCryptor.encryptingInputStream(clearIs, key, AESCryptor.NULL_SALT);
-            } else {
-                encryptingInputStream = clearIs;
-            }
+            InputStream encryptingInputStream = openUploadStream(mUpload);
 
             int skipped = (int) encryptingInputStream.skip(mUpload.getProgress());
             LOG.debug("'[uploadId: '" + mUpload.getClientUploadId() + "'] skipped " + skipped + " bytes");
@@ -266,6 +284,188 @@ public class UploadAction implements TransferStateListener {
         }
     }
 
+    /**
+     * Split the data the server is missing into parts to upload in parallel
+     *
+     * @return parts to upload, null if a single request should be used
+     */
+    private List<ByteRange> planParts(TalkClientUpload upload) {
+        IXoClientConfiguration configuration = mUploadAgent.getXoClient().getConfiguration();
+        int parallelParts = configuration.getUploadParts();
+        int minPartSize = configuration.getUploadPartSize();
+        if (mCommittedRanges == null || parallelParts < 2) {
+            return null;
+        }
+        // the default connection manager can not run requests concurrently
+        if (!(mUploadAgent.getHttpClient().getConnectionManager() instanceof ThreadSafeClientConnManager)) {
+            return null;
+        }
+
+        // collect the gaps between committed ranges
+        long length = upload.getUploadLength();
+        List<ByteRange> gaps = new ArrayList<ByteRange>();
+        long missing = 0;
+        long position = 0;
+        for (ByteRange range : mCommittedRanges) {
+            if (range.getStart() > position) {
+                gaps.add(new ByteRange(position, range.getStart() - 1));
+                missing += range.getStart() - position;
+            }
+            position = Math.max(position, range.getEnd() + 1);
+        }
+        if (position < length) {
+            gaps.add(new ByteRange(position, length - 1));
+            missing += length - position;
+        }
+        if (missing < 2L * minPartSize) {
+            return null;
+        }
+
+        // cut the gaps into parts of about equal size
+        long partSize = Math.max(minPartSize, (missing + parallelParts - 1) / parallelParts);
+        List<ByteRange> parts = new ArrayList<ByteRange>();
+        for (ByteRange gap : gaps) {
+            for (long start = gap.getStart(); start <= gap.getEnd(); start += partSize) {
+                parts.add(new ByteRange(start, Math.min(start + partSize - 1, gap.getEnd())));
+            }
+        }
+        LOG.debug("'[uploadId: '" + upload.getClientUploadId() + "'] " + missing + " bytes missing in "
+                + gaps.size() + " gaps, uploading " + parts.size() + " parts");
+        return parts;
+    }
+
+    private void doPartsUploadingAction(List<ByteRange> parts) {
+        LOG.info("[uploadId: '" + mUpload.getClientUploadId() + "'] performing upload of " + parts.size() + " parts");
+
+        long missing = 0;
+        for (ByteRange part : parts) {
+            missing += part.getEnd() - part.getStart() + 1;
+        }
+        final PartProgress progress = new PartProgress(mUpload.getUploadLength() - missing);
+
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (final ByteRange part : parts) {
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return uploadPart(part, progress.forPart());
+                }
+            });
+        }
+
+        int parallelParts = mUploadAgent.getXoClient().getConfiguration().getUploadParts();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelParts, parts.size()));
+        boolean complete = false;
+        mUploadAgent.onUploadStarted(mUpload);
+        try {
+            for (Future<Integer> result : executor.invokeAll(tasks)) {
+                try {
+                    // the part that fills the last gap gets the OK
+                    if (result.get() == HttpStatus.SC_OK) {
+                        complete = true;
+                    }
+                } catch (ExecutionException e) {
+                    LOG.error("Exception while performing part upload request: ", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("[uploadId: '" + mUpload.getClientUploadId() + "'] interrupted while uploading parts");
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+            mPartPuts.clear();
+        }
+
+        saveToDatabase(mUpload);
+        if (complete) {
+            mUpload.setFilePath(computeRelativeUploadFilePath(mUpload.getFilePath()));
+            mUpload.switchState(COMPLETE);
+        } else if (mUpload.getState() == UPLOADING) {
+            // the next attempt asks the server which parts are missing
+            LOG.warn("[uploadId: '" + mUpload.getClientUploadId() + "'] parts missing after upload");
+            mUpload.switchState(PAUSED);
+        }
+    }
+
+    /**
+     * @return HTTP status of the part request
+     */
+    private int uploadPart(ByteRange part, IProgressListener listener) throws Exception {
+        // parts still queued when the upload gets paused are dropped
+        if (mUpload.getState() != UPLOADING) {
+            LOG.debug("[uploadId: '" + mUpload.getClientUploadId() + "'] dropping part " + part.getStart() + "-" + part.getEnd());
+            return -1;
+        }
+
+        long length = part.getEnd() - part.getStart() + 1;
+        ByteRange contentRange = new ByteRange(part.getStart(), part.getEnd(), mUpload.getUploadLength());
+
+        InputStream inputStream = openUploadStream(mUpload);
+        try {
+            IOUtils.skipFully(inputStream, part.getStart());
+
+            HttpPut partPut = new HttpPut(mUpload.getUploadUrl());
+            partPut.addHeader("Content-Range", contentRange.toContentRangeString());
+            partPut.setEntity(new ProgressOutputHttpEntity(inputStream, length, listener, 0));
+            mPartPuts.add(partPut);
+
+            LOG.debug("PUT-part '" + mUpload.getUploadUrl() + "' with range '" + contentRange.toContentRangeString() + "'");
+            HttpResponse partResponse = mUploadAgent.getHttpClient().execute(partPut);
+            StatusLine partStatus = partResponse.getStatusLine();
+            LOG.trace("PUT-part '" + mUpload.getUploadUrl() + "' with status '" + partStatus.getStatusCode() + "': " + partStatus.getReasonPhrase());
+            logRequestHeaders(partResponse, "PUT-part response header ");
+            partResponse.getEntity().consumeContent();
+            return partStatus.getStatusCode();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static InputStream openUploadStream(TalkClientUpload upload) throws Exception {
+        InputStream clearIs = new FileInputStream(upload.getTempCompressedFilePath() != null ? upload.getTempCompressedFilePath() : upload.getFilePath());
+        if (upload.isAttachment()) {
+            byte[] key = Hex.decode(upload.getEncryptionKey());
+            return AESCryptor.encryptingInputStream(clearIs, key, AESCryptor.NULL_SALT);
+        }
+        return clearIs;
+    }
+
+    /**
+     * Parse the committed ranges reported by the server
+     *
+     * @return committed ranges in order, null if not reported or invalid
+     */
+    private static List<ByteRange> parseCommittedRanges(Header header, TalkClientUpload upload) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.getValue().trim();
+        int slash = value.lastIndexOf('/');
+        if (!value.startsWith("bytes ") || slash < 0) {
+            LOG.warn("invalid committed ranges '" + value + "'");
+            return null;
+        }
+        try {
+            if (Long.parseLong(value.substring(slash + 1)) != upload.getUploadLength()) {
+                LOG.error("server returned wrong upload length");
+                return null;
+            }
+            List<ByteRange> ranges = new ArrayList<ByteRange>();
+            String list = value.substring("bytes ".length(), slash);
+            if (!list.equals("*")) {
+                for (String range : list.split(",")) {
+                    int dash = range.indexOf('-');
+                    ranges.add(new ByteRange(Long.parseLong(range.substring(0, dash).trim()),
+                            Long.parseLong(range.substring(dash + 1).trim())));
+                }
+            }
+            return ranges;
+        } catch (RuntimeException e) {
+            LOG.warn("invalid committed ranges '" + value + "'", e);
+            return null;
+        }
+    }
+
     private HttpPut createHttpUploadRequest(TalkClientUpload upload) {
         long last = upload.getUploadLength() - 1;
         long bytesToGo = upload.getUploadLength() - upload.getProgress();
@@ -335,6 +535,9 @@ public class UploadAction implements TransferStateListener {
             mHttpPut = null;
             LOG.debug("aborted current Upload request. Upload can still resume.");
         }
+        for (HttpPut partPut : mPartPuts) {
+            partPut.abort();
+        }
         mUploadAgent.onUploadStateChanged(mUpload);
     }
 
@@ -382,4 +585,34 @@ public class UploadAction implements TransferStateListener {
     public TalkClientUpload getUpload() {
         return mUpload;
     }
+
+    /**
+     * Sums up the progress of parts uploading in parallel
+     */
+    private class PartProgress {
+
+        private long mTotal;
+
+        public PartProgress(long committed) {
+            mTotal = committed;
+        }
+
+        private synchronized void add(long bytes) {
+            mTotal += bytes;
+            mUpload.onProgress((int) mTotal);
+        }
+
+        /** @return listener for a single part, counting from zero */
+        public IProgressListener forPart() {
+            return new IProgressListener() {
+                private int mLast;
+
+                @Override
+                public void onProgress(int progress) {
+                    add(progress - mLast);
+                    mLast = progress;
+                }
+            };
+        }
+    }
 }
@@ -545,6 +545,7 @@ public class XoClient implements JsonRpcConnection.Listener, TransferListener {
             clientInfo.setSystemLanguage(mClientHost.getSystemLanguage());
             clientInfo.setSystemVersion(mClientHost.getSystemVersion());
             clientInfo.setClientBuildVariant(mClientHost.getClientBuildVariant());
+            clientInfo.setDeliveryBatchSize(mClientConfiguration.getDeliveryBatchSize());
             if (mClientConfiguration.isSupportModeEnabled()) {
                 clientInfo.setSupportTag(mClientConfiguration.getSupportTag());
             }
@@ -561,6 +562,7 @@ public class XoClient implements JsonRpcConnection.Listener, TransferListener {
                 LOG.debug("Hello: Server version is '" + talkServerInfo.getVersion() + "'");
                 LOG.debug("Hello: supported protocol versions: '" + talkServerInfo.getProtocolVersions() + "'");
                 LOG.debug("Hello: git commit is '" + talkServerInfo.getCommitId() + "'");
+                LOG.debug("Hello: delivery batch size is " + talkServerInfo.getDeliveryBatchSize());
             }
         } catch (JsonRpcClientException e) {
             LOG.error("Error while sending Hello: ", e);
@@ -1854,6 +1856,14 @@ public class XoClient implements JsonRpcConnection.Listener, TransferListener {
             updateIncomingDelivery(d, m);
         }
 
+        @Override
+        public void incomingDeliveries(TalkDelivery[] d, TalkMessage[] m) {
+            LOG.debug("server: incomingDeliveries(" + d.length + ")");
+            for (int i = 0; i < d.length; i++) {
+                updateIncomingDelivery(d[i], m[i]);
+            }
+        }
+
         @Override
         public void deliveriesReady() {
             LOG.debug("server: deliveriesReady()");
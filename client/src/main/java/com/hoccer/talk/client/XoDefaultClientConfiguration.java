@@ -42,6 +42,16 @@ public abstract class XoDefaultClientConfiguration implements IXoClientConfigura
         return 2;
     }
 
+    @Override
+    public int getUploadParts() {
+        return 3;
+    }
+
+    @Override
+    public int getUploadPartSize() {
+        return 256 * 1024;
+    }
+
     @Override
     public int getConnectTimeout() {
         return 15;
@@ -97,6 +107,11 @@ public abstract class XoDefaultClientConfiguration implements IXoClientConfigura
         return true;
     }
 
+    @Override
+    public int getDeliveryBatchSize() {
+        return 50;
+    }
+
     @Override
     public boolean isAutomaticWorldwideDownloadEnabled() {
         return false;
@@ -0,0 +1,111 @@
+package com.hoccer.talk.model;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import java.util.Date;
+
+/**
+ * Resume position of the incremental database cleaner
+ * <p/>
+ * A cleaning pass walks through several phases in fixed order. The checkpoint
+ * records the current phase and the key of the last document processed in it,
+ * so a restarted server continues where the previous one stopped.
+ */
+@DatabaseTable(tableName="cleaningCheckpoint")
+public class TalkCleaningCheckpoint {
+
+    /** Object ID for jongo */
+    private String _id;
+
+    /** Name of the cleaner this checkpoint belongs to */
+    @DatabaseField(id = true)
+    String name;
+
+    /** Name of the phase currently being worked on */
+    @DatabaseField
+    String phase;
+
+    /** Key of the last processed document in the current phase, null at the beginning of a phase */
+    @DatabaseField
+    String position;
+
+    /** Marks the (server) time when the current pass started */
+    @DatabaseField
+    Date timePassStarted;
+
+    /** Marks the (server) time when the last pass was completed */
+    @DatabaseField
+    Date timePassFinished;
+
+    /** Marks the (server) time of the last update */
+    @DatabaseField
+    Date timeUpdated;
+
+    /** Number of documents processed in the current pass */
+    @DatabaseField
+    long itemsProcessed;
+
+    public TalkCleaningCheckpoint() {
+    }
+
+    public TalkCleaningCheckpoint(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public String getPosition() {
+        return position;
+    }
+
+    public void setPosition(String position) {
+        this.position = position;
+    }
+
+    public Date getTimePassStarted() {
+        return timePassStarted;
+    }
+
+    public void setTimePassStarted(Date timePassStarted) {
+        this.timePassStarted = timePassStarted;
+    }
+
+    public Date getTimePassFinished() {
+        return timePassFinished;
+    }
+
+    public void setTimePassFinished(Date timePassFinished) {
+        this.timePassFinished = timePassFinished;
+    }
+
+    public Date getTimeUpdated() {
+        return timeUpdated;
+    }
+
+    public void setTimeUpdated(Date timeUpdated) {
+        this.timeUpdated = timeUpdated;
+    }
+
+    public long getItemsProcessed() {
+        return itemsProcessed;
+    }
+
+    public void setItemsProcessed(long itemsProcessed) {
+        this.itemsProcessed = itemsProcessed;
+    }
+}
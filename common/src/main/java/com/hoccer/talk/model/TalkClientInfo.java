@@ -52,6 +52,9 @@ public class TalkClientInfo {
     /** An optional string determining the environment, typically 'production' or 'development' */
     String environment;
 
+    /** Maximum number of deliveries the client accepts in one incomingDeliveries() call, 0 if unsupported */
+    int deliveryBatchSize;
+
     public TalkClientInfo() {
     }
 
@@ -150,4 +153,12 @@ public class TalkClientInfo {
     public void setEnvironment(String environment) {
         this.environment = environment;
     }
+
+    public int getDeliveryBatchSize() {
+        return deliveryBatchSize;
+    }
+
+    public void setDeliveryBatchSize(int deliveryBatchSize) {
+        this.deliveryBatchSize = deliveryBatchSize;
+    }
 }
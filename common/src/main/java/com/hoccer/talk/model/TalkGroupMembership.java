@@ -46,6 +46,13 @@ public class TalkGroupMembership {
             TalkGroupMembership.STATE_JOINED
     };
 
+    // members in these states receive the presences of each other
+    public static final String[] PRESENCE_STATES = {
+            TalkGroupMembership.STATE_INVITED,
+            TalkGroupMembership.STATE_JOINED,
+            TalkGroupMembership.STATE_SUSPENDED
+    };
+
     // needed for ormlight database
     private String _id;
 
@@ -12,6 +12,8 @@ public class TalkServerInfo {
     String version;
     String commitId;
     List<String> protocolVersions = new ArrayList<String>();
+    /** Number of deliveries the server will send per incomingDeliveries() call, 0 if batching is off */
+    int deliveryBatchSize;
 
     public TalkServerInfo() {
     }
@@ -50,4 +52,11 @@ public class TalkServerInfo {
     public void addProtocolVersion(String pProtocolVersion) {
         protocolVersions.add(pProtocolVersion);
     }
+
+    public int getDeliveryBatchSize() {
+        return deliveryBatchSize;
+    }
+    public void setDeliveryBatchSize(int deliveryBatchSize) {
+        this.deliveryBatchSize = deliveryBatchSize;
+    }
 }
@@ -96,6 +96,22 @@ public interface ITalkRpcClient {
     void incomingDelivery(TalkDelivery d, TalkMessage m);
 
 
+    /**
+     * Delivers a page of messages from the server, equivalent to calling incomingDelivery() for each pair
+     *
+     * @param d delivery objects towards this client
+     * @param m messages to be delivered, m[i] belongs to d[i]
+     * @talk.preconditions Client is logged in and announced a deliveryBatchSize greater than 1 in hello()
+     * @talk.preconditions.server undelivered messages on server
+     * @talk.behavior.client process messages as with incomingDelivery()
+     * @talk.statechanges.clientobjects new message and delivery objects created
+     * @talk.statechanges.serverobjects set timeUpdatedIn
+     * @talk.ui.client signal message reception, update views
+     * @talk.errors.client call deliveryAbort for every message whose preconditions are not met
+     */
+    @JsonRpcNotification
+    void incomingDeliveries(TalkDelivery[] d, TalkMessage[] m);
+
     @JsonRpcNotification
     void incomingDeliveryUpdated(TalkDelivery d);
 
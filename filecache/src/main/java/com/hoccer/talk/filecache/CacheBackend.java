@@ -15,6 +15,9 @@ public abstract class CacheBackend {
     /** Root directory of file store */
     private File mDataDirectory;
 
+    /** Layout of file data in the data directory */
+    private FileStore mFileStore;
+
     /**
      * Main superconstructor
      *
@@ -24,6 +27,7 @@ public abstract class CacheBackend {
     protected CacheBackend(CacheConfiguration configuration) {
         mConfiguration = configuration;
         mDataDirectory = new File(configuration.getDataDirectory());
+        mFileStore = new FileStore(mDataDirectory);
     }
 
     public CacheConfiguration getConfiguration() {
@@ -35,6 +39,11 @@ public abstract class CacheBackend {
         return mDataDirectory;
     }
 
+    /** @return the store for file data of this backend */
+    public FileStore getFileStore() {
+        return mFileStore;
+    }
+
     public abstract void start();
 
     /** Get a list of all files in memory */
@@ -68,4 +77,31 @@ public abstract class CacheBackend {
 
     public abstract void delete(CacheFile file);
 
+    /** @return the file holding shared content with the given hash */
+    public File getContentFile(String hash) {
+        File blobDirectory = new File(mDataDirectory, "blobs");
+        return new File(new File(blobDirectory, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Find shared content the given file refers to
+     *
+     * Backends without content-addressed storage return null.
+     *
+     * @return hash of the content or null if the file has its own data
+     */
+    public String lookupContentHash(CacheFile file) {
+        return null;
+    }
+
+    /**
+     * Called when all data of a file has been uploaded
+     *
+     * The file is still active when this is called.
+     *
+     * @param file that became complete
+     */
+    public void contentCompleted(CacheFile file) {
+    }
+
 }
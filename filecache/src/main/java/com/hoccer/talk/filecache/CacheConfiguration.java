@@ -19,6 +19,8 @@ public class CacheConfiguration {
 
     private String mDataDirectory = null;
     private long   mDataCheckpointInterval = 2000;
+    private boolean mDataDedup = false; // store identical content only once (ormlite backend only)
+    private int     mDataMigrationRate = 500; // files per second moved from the flat layout into shards
 
     private String mDatabaseBackend = "memory";
 
@@ -29,11 +31,14 @@ public class CacheConfiguration {
 
     private int mCleanupFilesDelay = 10; // in seconds
     private int mCleanupFilesInterval = 60; // in seconds
+    private int mCleanupFilesThreads = 4;
+    private int mCleanupFilesRate = 200; // files per second, 0 for no limit
 
     private int mStorageFileExpiryTime = 365 * 24 * 3600; // 1 year (in seconds)
     private int mTransferFileExpiryTime = 3 * 7 * 24 * 3600; // 3 weeks (in seconds)
 
     private int mDownloadTimeout = 120; // in seconds- after this time downloads will timeout when no new data has arrived
+    private boolean mDownloadAsync = true; // stream downloads of unfinished uploads without holding a thread
 
     public int getStorageFileExpiryTime() {
         return mStorageFileExpiryTime;
@@ -51,6 +56,14 @@ public class CacheConfiguration {
         return mCleanupFilesInterval;
     }
 
+    public int getCleanupFilesThreads() {
+        return mCleanupFilesThreads;
+    }
+
+    public int getCleanupFilesRate() {
+        return mCleanupFilesRate;
+    }
+
     public int getServerThreads() {
         return mServerThreads;
     }
@@ -95,6 +108,18 @@ public class CacheConfiguration {
         this.mDataCheckpointInterval = mDataCheckpointInterval;
     }
 
+    public boolean getDataDedup() {
+        return mDataDedup;
+    }
+
+    public void setDataDedup(boolean mDataDedup) {
+        this.mDataDedup = mDataDedup;
+    }
+
+    public int getDataMigrationRate() {
+        return mDataMigrationRate;
+    }
+
     public String getDatabaseBackend() {
         return mDatabaseBackend;
     }
@@ -139,6 +164,14 @@ public class CacheConfiguration {
         this.mDownloadTimeout = mDownloadTimeout;
     }
 
+    public boolean getDownloadAsync() {
+        return mDownloadAsync;
+    }
+
+    public void setDownloadAsync(boolean mDownloadAsync) {
+        this.mDownloadAsync = mDownloadAsync;
+    }
+
     public void configureFromProperties(Properties properties) {
         // Server
         String serverThreads = properties.getProperty(PROPERTY_PREFIX + ".server.threads", Integer.toString(mServerThreads));
@@ -149,6 +182,10 @@ public class CacheConfiguration {
         if(downloadTimeout != null) {
             mDownloadTimeout = Integer.parseInt(downloadTimeout);
         }
+        String downloadAsync = properties.getProperty(PROPERTY_PREFIX + ".download.async", Boolean.toString(mDownloadAsync));
+        if(downloadAsync != null) {
+            mDownloadAsync = Boolean.parseBoolean(downloadAsync);
+        }
         // Listen params
         mListenAddress = properties.getProperty(PROPERTY_PREFIX + ".listen.address", mListenAddress);
         String listenPort = properties.getProperty(PROPERTY_PREFIX + ".listen.port", Integer.toString(mListenPort));
@@ -161,6 +198,23 @@ public class CacheConfiguration {
         if(dataCheckpointInterval != null) {
             mDataCheckpointInterval = Long.parseLong(dataCheckpointInterval);
         }
+        String dataDedup = properties.getProperty(PROPERTY_PREFIX + ".data.dedup", Boolean.toString(mDataDedup));
+        if(dataDedup != null) {
+            mDataDedup = Boolean.parseBoolean(dataDedup);
+        }
+        String dataMigrationRate = properties.getProperty(PROPERTY_PREFIX + ".data.migrationRate", Integer.toString(mDataMigrationRate));
+        if(dataMigrationRate != null) {
+            mDataMigrationRate = Integer.parseInt(dataMigrationRate);
+        }
+        // Cleanup
+        String cleanupThreads = properties.getProperty(PROPERTY_PREFIX + ".cleanup.threads", Integer.toString(mCleanupFilesThreads));
+        if(cleanupThreads != null) {
+            mCleanupFilesThreads = Integer.parseInt(cleanupThreads);
+        }
+        String cleanupRate = properties.getProperty(PROPERTY_PREFIX + ".cleanup.rate", Integer.toString(mCleanupFilesRate));
+        if(cleanupRate != null) {
+            mCleanupFilesRate = Integer.parseInt(cleanupRate);
+        }
         // JMX
         String dataJMXPort = properties.getProperty(PROPERTY_PREFIX + ".jmx.port", Long.toString(mJMXListenPort));
         if(dataJMXPort != null) {
@@ -181,6 +235,7 @@ public class CacheConfiguration {
                         MessageFormat.format("\n   * listen port:                           ''{0}''", Long.toString(mListenPort)) +
                         MessageFormat.format("\n   * threads:                               ''{0}''", mServerThreads) +
                         MessageFormat.format("\n   * download timeout (in s):               ''{0}''", mDownloadTimeout) +
+                        MessageFormat.format("\n   * async downloads:                       ''{0}''", mDownloadAsync) +
                         "\n - Remote JMX Configuration:" +
                         MessageFormat.format("\n   * jmx port:                              ''{0}''", Long.toString(getJMXListenPort())) +
                         "\n - Database Configuration:" +
@@ -193,9 +248,13 @@ public class CacheConfiguration {
                         MessageFormat.format("\n   * transfer file expiry time (in days):   ''{0}''", Long.toString(mTransferFileExpiryTime / 3600 / 24)) +
                         MessageFormat.format("\n   * files cleanup delay (in s):            ''{0}''", Long.toString(mCleanupFilesDelay)) +
                         MessageFormat.format("\n   * files cleanup interval (in s):         ''{0}''", Long.toString(mCleanupFilesInterval)) +
+                        MessageFormat.format("\n   * files cleanup threads:                 ''{0}''", Long.toString(mCleanupFilesThreads)) +
+                        MessageFormat.format("\n   * files cleanup rate (files/s):          ''{0}''", Long.toString(mCleanupFilesRate)) +
                         "\n - Other:" +
                         MessageFormat.format("\n   * data directory:                        ''{0}''", mDataDirectory) +
-                        MessageFormat.format("\n   * data checkpoint interval:              ''{0}''", Long.toString(mDataCheckpointInterval))
+                        MessageFormat.format("\n   * data checkpoint interval:              ''{0}''", Long.toString(mDataCheckpointInterval)) +
+                        MessageFormat.format("\n   * data deduplication:                    ''{0}''", mDataDedup) +
+                        MessageFormat.format("\n   * data migration rate (files/s):         ''{0}''", Long.toString(mDataMigrationRate))
         );
     }
 
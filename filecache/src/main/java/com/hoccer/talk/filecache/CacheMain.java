@@ -4,7 +4,11 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.hoccer.talk.filecache.control.ControlServlet;
 import com.hoccer.talk.filecache.db.MemoryBackend;
+import com.hoccer.talk.filecache.db.ActiveFileIndex;
+import com.hoccer.talk.filecache.db.ContentStore;
+import com.hoccer.talk.filecache.db.ExpirySweeper;
 import com.hoccer.talk.filecache.db.OrmliteBackend;
+import com.hoccer.talk.filecache.transfer.BufferPoolStatus;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
@@ -20,6 +24,7 @@ import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.util.Properties;
 
+import javax.management.ObjectName;
 import javax.management.remote.JMXServiceURL;
 import org.eclipse.jetty.jmx.MBeanContainer;
 import org.eclipse.jetty.jmx.ConnectorServer;
@@ -56,7 +61,7 @@ public class CacheMain {
         context.setAttribute("config", config);
         context.addServlet(StatusServlet.class, "/status");
         context.addServlet(ControlServlet.class, "/control");
-        context.addServlet(DownloadServlet.class, "/download/*");
+        context.addServlet(DownloadServlet.class, "/download/*").setAsyncSupported(true);
         context.addServlet(UploadServlet.class, "/upload/*");
 
         // set root handler of the server
@@ -94,6 +99,35 @@ public class CacheMain {
         } catch (Exception e) {
             LOG.error("Can't start JMX monitoring:", e);
         }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new BufferPoolStatus(), new ObjectName(BufferPoolStatus.OBJECT_NAME));
+        } catch (Exception e) {
+            LOG.error("Can't register buffer pool MBean:", e);
+        }
+        if (db instanceof OrmliteBackend) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        ((OrmliteBackend) db).getActiveIndex(), new ObjectName(ActiveFileIndex.OBJECT_NAME));
+            } catch (Exception e) {
+                LOG.error("Can't register active file index MBean:", e);
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        ((OrmliteBackend) db).getExpirySweeper(), new ObjectName(ExpirySweeper.OBJECT_NAME));
+            } catch (Exception e) {
+                LOG.error("Can't register expiry sweeper MBean:", e);
+            }
+            ContentStore contentStore = ((OrmliteBackend) db).getContentStore();
+            if (contentStore != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(
+                            contentStore, new ObjectName(ContentStore.OBJECT_NAME));
+                } catch (Exception e) {
+                    LOG.error("Can't register content store MBean:", e);
+                }
+            }
+        }
 
 
         // run and stop when interrupted
@@ -7,6 +7,7 @@ import com.hoccer.talk.filecache.transfer.CacheDownload;
 import com.hoccer.talk.filecache.transfer.CacheTransfer;
 import org.apache.log4j.Logger;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -15,7 +16,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
-@WebServlet(urlPatterns = "/download/*")
+@WebServlet(urlPatterns = "/download/*", asyncSupported = true)
 public class DownloadServlet extends HttpServlet {
 
     static Logger LOG = Logger.getLogger(DownloadServlet.class);
@@ -75,6 +76,18 @@ public class DownloadServlet extends HttpServlet {
 
         LOG.info("GET " + req.getPathInfo() + " " + resp.getStatus() + " found " + file.getFileId() + " range " + range.toString());
 
+        // downloads that may have to wait for the upload continue without this thread
+        if(file.getState() != CacheFile.STATE_COMPLETE
+                && getCacheCacheConfiguration().getDownloadAsync()
+                && req.isAsyncSupported()) {
+            AsyncContext async = req.startAsync();
+            // waiting for data has its own timeout
+            async.setTimeout(0);
+            LOG.info("GET " + req.getPathInfo() + " --- async download started, agent "+download.getUserAgent()+" from "+download.getRemoteAddr());
+            download.performAsync(async);
+            return;
+        }
+
         // perform the download itself
         try {
             LOG.info("GET " + req.getPathInfo() + " --- download started, agent "+download.getUserAgent()+" from "+download.getRemoteAddr());
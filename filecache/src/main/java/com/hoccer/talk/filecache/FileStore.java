@@ -0,0 +1,206 @@
+package com.hoccer.talk.filecache;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Layout of file data in the data directory
+ * <p/>
+ * Data files live in two levels of subdirectories chosen by a hash of the
+ * file id, so no directory grows beyond a few entries per 65536 files.
+ * Files from the old flat layout are still found at the top level and get
+ * moved into their shard by a background migration. Resolving and moving
+ * a file happen under a lock striped by file id, so an open never races
+ * with the migration.
+ */
+public class FileStore {
+
+    private static final Logger LOG = Logger.getLogger(FileStore.class);
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final File mRoot;
+
+    private final Object[] mLocks = new Object[LOCK_STRIPES];
+
+    private final AtomicLong mMigrated = new AtomicLong();
+    private final AtomicInteger mMigrationBacklog = new AtomicInteger();
+
+    private Thread mMigrationThread;
+
+    public FileStore(File root) {
+        mRoot = root;
+        for (int i = 0; i < mLocks.length; i++) {
+            mLocks[i] = new Object();
+        }
+    }
+
+    private Object lockFor(String fileId) {
+        return mLocks[(fileId.hashCode() & 0x7fffffff) % mLocks.length];
+    }
+
+    /** @return location of the file in the sharded layout */
+    public File getShardedFile(String fileId) {
+        int hash = fileId.hashCode();
+        String first = String.format("%02x", (hash >>> 8) & 0xff);
+        String second = String.format("%02x", hash & 0xff);
+        return new File(new File(new File(mRoot, first), second), fileId);
+    }
+
+    /** @return current location of the data of the given file */
+    public File getFile(String fileId) {
+        synchronized (lockFor(fileId)) {
+            return resolve(fileId);
+        }
+    }
+
+    private File resolve(String fileId) {
+        File sharded = getShardedFile(fileId);
+        if (!sharded.exists()) {
+            File flat = new File(mRoot, fileId);
+            if (flat.isFile()) {
+                return flat;
+            }
+        }
+        return sharded;
+    }
+
+    /**
+     * Open the data of the given file, creating it if needed
+     */
+    public RandomAccessFile open(String fileId, String mode) throws IOException {
+        synchronized (lockFor(fileId)) {
+            File f = resolve(fileId);
+            if (!f.exists()) {
+                f.getParentFile().mkdirs();
+                f.createNewFile();
+            }
+            return new RandomAccessFile(f, mode);
+        }
+    }
+
+    /**
+     * Delete the data of the given file
+     */
+    public void delete(String fileId) {
+        synchronized (lockFor(fileId)) {
+            File f = resolve(fileId);
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Move the data of the given file somewhere outside the store
+     *
+     * @return true if the data has been moved
+     */
+    public boolean moveTo(String fileId, File target) {
+        synchronized (lockFor(fileId)) {
+            target.getParentFile().mkdirs();
+            return resolve(fileId).renameTo(target);
+        }
+    }
+
+    /**
+     * Move one file from the flat layout into its shard
+     */
+    private boolean migrate(String fileId) {
+        synchronized (lockFor(fileId)) {
+            File flat = new File(mRoot, fileId);
+            if (!flat.isFile()) {
+                return false;
+            }
+            File sharded = getShardedFile(fileId);
+            sharded.getParentFile().mkdirs();
+            if (!flat.renameTo(sharded)) {
+                LOG.error("could not migrate " + flat + " to " + sharded);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Start moving files of the flat layout into shards in the background
+     *
+     * @param filesPerSecond maximum rate of moves
+     */
+    public synchronized void startMigration(final int filesPerSecond) {
+        if (mMigrationThread != null) {
+            return;
+        }
+        mMigrationThread = new Thread("data-migration") {
+            @Override
+            public void run() {
+                try {
+                    runMigration(filesPerSecond);
+                } catch (Throwable t) {
+                    LOG.error("caught and swallowed exception escaping runnable", t);
+                }
+            }
+        };
+        mMigrationThread.setDaemon(true);
+        mMigrationThread.start();
+    }
+
+    private void runMigration(int filesPerSecond) throws InterruptedException {
+        File[] entries = mRoot.listFiles();
+        if (entries == null) {
+            return;
+        }
+        List<String> fileIds = new ArrayList<String>();
+        for (File entry : entries) {
+            if (entry.isFile()) {
+                fileIds.add(entry.getName());
+            }
+        }
+        if (fileIds.isEmpty()) {
+            return;
+        }
+        mMigrationBacklog.set(fileIds.size());
+        LOG.info("migrating " + fileIds.size() + " files to sharded layout");
+
+        long startTime = System.currentTimeMillis();
+        long interval = filesPerSecond > 0 ? 1000000000L / filesPerSecond : 0;
+        long next = System.nanoTime();
+        for (String fileId : fileIds) {
+            if (interval > 0) {
+                long now = System.nanoTime();
+                long wait = next - now;
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    next += interval;
+                } else {
+                    // do not make up for time lost on slow moves
+                    next = now + interval;
+                }
+            }
+            // files deleted meanwhile are skipped
+            if (migrate(fileId)) {
+                mMigrated.incrementAndGet();
+            }
+            mMigrationBacklog.decrementAndGet();
+        }
+        LOG.info("migration to sharded layout done, moved " + mMigrated.get() + " files in "
+                + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    /** @return number of files moved into shards */
+    public long getMigrated() {
+        return mMigrated.get();
+    }
+
+    /** @return number of files still waiting for migration */
+    public int getMigrationBacklog() {
+        return mMigrationBacklog.get();
+    }
+}
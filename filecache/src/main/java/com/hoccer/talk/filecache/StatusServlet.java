@@ -1,6 +1,11 @@
 package com.hoccer.talk.filecache;
 
+import com.hoccer.talk.filecache.db.ActiveFileIndex;
+import com.hoccer.talk.filecache.db.ContentStore;
+import com.hoccer.talk.filecache.db.ExpirySweeper;
+import com.hoccer.talk.filecache.db.OrmliteBackend;
 import com.hoccer.talk.filecache.model.CacheFile;
+import com.hoccer.talk.filecache.transfer.BufferPool;
 import com.hoccer.talk.filecache.transfer.CacheDownload;
 import com.hoccer.talk.filecache.transfer.CacheUpload;
 
@@ -40,6 +45,56 @@ public class StatusServlet extends HttpServlet {
 
         w.write(">>>>>>>>>>>>>>> Hoccer Filecache <<<<<<<<<<<<<<<\n\n");
 
+        w.write("Buffer pool:\n");
+        w.write(" Hits " + BufferPool.getHits()
+                + " misses " + BufferPool.getMisses()
+                + " in flight " + BufferPool.getInFlight()
+                + "\n");
+        for (int i = 0; i < BufferPool.SIZE_CLASSES.length; i++) {
+            w.write(" Size " + BufferPool.SIZE_CLASSES[i]
+                    + " shared " + BufferPool.getSharedCount(i)
+                    + "\n");
+        }
+        w.write("\n");
+
+        FileStore fileStore = backend.getFileStore();
+        w.write("File store:\n");
+        w.write(" Migrated " + fileStore.getMigrated()
+                + " backlog " + fileStore.getMigrationBacklog()
+                + "\n");
+        w.write("\n");
+
+        if (backend instanceof OrmliteBackend) {
+            ActiveFileIndex index = ((OrmliteBackend) backend).getActiveIndex();
+            w.write("Active file index:\n");
+            w.write(" Hits " + index.getHits()
+                    + " loads " + index.getLoads()
+                    + " load waits " + index.getLoadWaits()
+                    + " (" + index.getLoadWaitMillis() + "ms)"
+                    + "\n");
+            ExpirySweeper sweeper = ((OrmliteBackend) backend).getExpirySweeper();
+            w.write("Expiry sweeper:\n");
+            w.write(" Swept " + sweeper.getSwept()
+                    + " failed " + sweeper.getFailed()
+                    + " backlog " + sweeper.getBacklog()
+                    + " rate " + Math.round(sweeper.getRate()) + " files/s"
+                    + " last sweep " + sweeper.getLastSweepDuration() + "ms"
+                    + "\n");
+            ContentStore contentStore = ((OrmliteBackend) backend).getContentStore();
+            if (contentStore != null) {
+                w.write("Content store:\n");
+                w.write(" Blobs stored " + contentStore.getBlobsStored()
+                        + " deduplicated " + contentStore.getDeduplicated()
+                        + " released " + contentStore.getReleased()
+                        + " blobs deleted " + contentStore.getBlobsDeleted()
+                        + "\n");
+                w.write(" Bytes saved " + contentStore.getBytesSaved()
+                        + " total " + contentStore.getTotalBytesSaved()
+                        + "\n");
+            }
+            w.write("\n");
+        }
+
         List<CacheFile> allFiles = backend.getActiveFiles();
 
         Collections.sort(allFiles, getSorting());
@@ -58,8 +113,8 @@ public class StatusServlet extends HttpServlet {
             w.write("  Expires " + f.getExpiryTime() + "\n");
             w.write("  Account " + f.getAccountId() + "\n");
 
-            CacheUpload upload = f.getUpload();
-            if (upload != null) {
+            Vector<CacheUpload> uploads = f.getUploads();
+            for (CacheUpload upload : uploads) {
                 w.write("  Upload"
                         + " from " + upload.getRemoteAddr()
                         + " duration " + upload.getDuration() / 1000.0 +" secs"
@@ -70,12 +125,14 @@ public class StatusServlet extends HttpServlet {
 
             Vector<CacheDownload> downloads = f.getDownloads();
             for (CacheDownload d : downloads) {
+                Thread thread = d.getThread();
                 w.write("  Download"
                         + " from " + d.getRemoteAddr()
                         + " duration " + d.getDuration() / 1000.0 +" secs"
                         + " rate " + Math.round(d.getRate()) / 1000.0 + " kB/s"
                         + " agent '" + d.getUserAgent()  + "'"
-                        + " thread '" + d.getThread().getName() + "', id "+d.getThread().getId() + ", state "+d.getThread().getState()
+                        + (thread == null ? " waiting for data"
+                            : " thread '" + thread.getName() + "', id "+thread.getId() + ", state "+thread.getState())
                         + "\n");
             }
         }
@@ -12,12 +12,25 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Map;
+import java.util.SortedMap;
 
 @WebServlet(urlPatterns = "/upload/*")
 public class UploadServlet extends DownloadServlet {
 
     static Logger LOG = Logger.getLogger(UploadServlet.class);
 
+    /**
+     * Response header listing all committed ranges of a file
+     * <p/>
+     * Formatted like a content range with several ranges, e.g.
+     * "bytes 0-1023,4096-8191/16384", with a "*" instead of the ranges
+     * when nothing has been committed. Clients use it to upload the missing
+     * parts of a file in parallel, while the Range header only covers the
+     * data from the start of the file.
+     */
+    public static final String COMMITTED_RANGES_HEADER = "X-Committed-Ranges";
+
     @Override
     protected void doPut(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
@@ -29,6 +42,13 @@ public class UploadServlet extends DownloadServlet {
             return;
         }
 
+        // shared content is complete and must not be written to
+        if(file.getContentHash() != null) {
+            LOG.info("PUT " + req.getPathInfo() + " found " + file.getFileId() + " with shared content, nothing to upload");
+            finishPut(file, req, resp);
+            return;
+        }
+
         ByteRange range = beginPut(file, req, resp);
         if(range == null) {
             LOG.info("PUT " + req.getPathInfo() + " " + resp.getStatus() + " invalid range, agent="
@@ -162,6 +182,7 @@ public class UploadServlet extends DownloadServlet {
         if(file.getLimit() > 0) {
             resp.setHeader("Range", "bytes=0-" + (file.getLimit() - 1) + "/" + file.getContentLength());
         }
+        resp.setHeader(COMMITTED_RANGES_HEADER, formatCommittedRanges(file));
         if(file.getLimit() == file.getContentLength()) {
             resp.setStatus(HttpServletResponse.SC_OK);
         } else {
@@ -169,6 +190,22 @@ public class UploadServlet extends DownloadServlet {
         }
     }
 
+    static String formatCommittedRanges(CacheFile file) {
+        SortedMap<Integer, Integer> ranges = file.getCommittedRanges();
+        if (ranges.isEmpty()) {
+            return "bytes */" + file.getContentLength();
+        }
+        StringBuilder value = new StringBuilder("bytes ");
+        for (Map.Entry<Integer, Integer> range : ranges.entrySet()) {
+            if (value.length() > 6) {
+                value.append(',');
+            }
+            value.append(range.getKey()).append('-').append(range.getValue() - 1);
+        }
+        value.append('/').append(file.getContentLength());
+        return value.toString();
+    }
+
     @Override
     protected CacheFile getFileForDownload(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
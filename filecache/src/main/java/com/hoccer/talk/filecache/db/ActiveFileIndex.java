@@ -0,0 +1,171 @@
+package com.hoccer.talk.filecache.db;
+
+import com.hoccer.talk.filecache.CacheBackend;
+import com.hoccer.talk.filecache.model.CacheFile;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of active files by file, upload and download id
+ * <p/>
+ * Lookups go to concurrent maps without locking. Loads from the database
+ * are done at most once per key at a time, concurrent requests for the
+ * same key wait for the running load. Activation and deactivation of a
+ * file are serialized on a lock stripe chosen by its file id.
+ */
+public class ActiveFileIndex implements ActiveFileIndexMBean {
+
+    private static final Logger LOG = Logger.getLogger(ActiveFileIndex.class);
+
+    public static final String OBJECT_NAME = "com.hoccer.talk.filecache:type=ActiveFileIndex";
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final ConcurrentHashMap<String, CacheFile> mByFileId = new ConcurrentHashMap<String, CacheFile>();
+    private final ConcurrentHashMap<String, CacheFile> mByUploadId = new ConcurrentHashMap<String, CacheFile>();
+    private final ConcurrentHashMap<String, CacheFile> mByDownloadId = new ConcurrentHashMap<String, CacheFile>();
+
+    /** Loads in progress by lookup key */
+    private final ConcurrentHashMap<String, FutureTask<CacheFile>> mLoading = new ConcurrentHashMap<String, FutureTask<CacheFile>>();
+
+    private final Object[] mLocks = new Object[LOCK_STRIPES];
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mLoads = new AtomicLong();
+    private final AtomicLong mLoadWaits = new AtomicLong();
+    private final AtomicLong mLoadWaitNanos = new AtomicLong();
+
+    public ActiveFileIndex() {
+        for (int i = 0; i < mLocks.length; i++) {
+            mLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return the lock serializing activation changes of the given file
+     */
+    public Object lockFor(String fileId) {
+        return mLocks[(fileId.hashCode() & 0x7fffffff) % mLocks.length];
+    }
+
+    public CacheFile getByFileId(String id) {
+        return countHit(mByFileId.get(id));
+    }
+
+    public CacheFile getByUploadId(String id) {
+        return countHit(mByUploadId.get(id));
+    }
+
+    public CacheFile getByDownloadId(String id) {
+        return countHit(mByDownloadId.get(id));
+    }
+
+    private CacheFile countHit(CacheFile file) {
+        if (file != null) {
+            mHits.incrementAndGet();
+        }
+        return file;
+    }
+
+    /**
+     * Run a database load, joining a load already running for the same key
+     *
+     * @return the loaded file or null if there is none or loading failed
+     */
+    public CacheFile load(String key, Callable<CacheFile> loader) {
+        FutureTask<CacheFile> task = new FutureTask<CacheFile>(loader);
+        FutureTask<CacheFile> running = mLoading.putIfAbsent(key, task);
+        long waitStart = 0;
+        if (running == null) {
+            mLoads.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                mLoading.remove(key, task);
+            }
+            running = task;
+        } else {
+            mLoadWaits.incrementAndGet();
+            waitStart = System.nanoTime();
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            LOG.error("SQL exception", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (waitStart != 0) {
+                mLoadWaitNanos.addAndGet(System.nanoTime() - waitStart);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Make a loaded file active unless another instance already is
+     *
+     * @return the active instance of the file
+     */
+    public CacheFile activate(CacheFile file, CacheBackend backend) {
+        synchronized (lockFor(file.getFileId())) {
+            CacheFile active = mByFileId.get(file.getFileId());
+            if (active != null) {
+                return active;
+            }
+            file.onActivate(backend);
+            mByFileId.put(file.getFileId(), file);
+            mByUploadId.put(file.getUploadId(), file);
+            mByDownloadId.put(file.getDownloadId(), file);
+            return file;
+        }
+    }
+
+    /**
+     * Remove a file from the index if it is the active instance
+     */
+    public void remove(CacheFile file) {
+        synchronized (lockFor(file.getFileId())) {
+            if (mByFileId.remove(file.getFileId(), file)) {
+                mByUploadId.remove(file.getUploadId(), file);
+                mByDownloadId.remove(file.getDownloadId(), file);
+            }
+        }
+    }
+
+    public List<CacheFile> getActiveFiles() {
+        return new ArrayList<CacheFile>(mByFileId.values());
+    }
+
+    @Override
+    public int getActiveCount() {
+        return mByFileId.size();
+    }
+
+    @Override
+    public long getHits() {
+        return mHits.get();
+    }
+
+    @Override
+    public long getLoads() {
+        return mLoads.get();
+    }
+
+    @Override
+    public long getLoadWaits() {
+        return mLoadWaits.get();
+    }
+
+    @Override
+    public long getLoadWaitMillis() {
+        return mLoadWaitNanos.get() / 1000000;
+    }
+}
@@ -0,0 +1,18 @@
+package com.hoccer.talk.filecache.db;
+
+/**
+ * JMX view of the active file index
+ */
+public interface ActiveFileIndexMBean {
+
+    int getActiveCount();
+
+    long getHits();
+
+    long getLoads();
+
+    long getLoadWaits();
+
+    long getLoadWaitMillis();
+
+}
@@ -0,0 +1,260 @@
+package com.hoccer.talk.filecache.db;
+
+import com.hoccer.talk.filecache.CacheBackend;
+import com.hoccer.talk.filecache.FileStore;
+import com.hoccer.talk.filecache.model.CacheFile;
+import com.hoccer.talk.filecache.model.ContentBlob;
+import com.hoccer.talk.filecache.model.ContentRef;
+import com.hoccer.talk.filecache.transfer.BufferPool;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.TableUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed storage of completed files
+ * <p/>
+ * When a file is complete its data is hashed. The first file with a given
+ * hash has its data moved to a shared blob, later files with the same hash
+ * drop their data and refer to the existing blob. Blobs are deleted when
+ * the last referring file is deleted.
+ */
+public class ContentStore implements ContentStoreMBean {
+
+    private static final Logger LOG = Logger.getLogger(ContentStore.class);
+
+    public static final String OBJECT_NAME = "com.hoccer.talk.filecache:type=ContentStore";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final CacheBackend mBackend;
+
+    private ConnectionSource mConnectionSource;
+
+    private Dao<ContentBlob, String> mBlobDao;
+    private Dao<ContentRef, String> mRefDao;
+
+    private final AtomicLong mBlobsStored = new AtomicLong();
+    private final AtomicLong mDeduplicated = new AtomicLong();
+    private final AtomicLong mReleased = new AtomicLong();
+    private final AtomicLong mBlobsDeleted = new AtomicLong();
+    private final AtomicLong mBytesSaved = new AtomicLong();
+
+    public ContentStore(CacheBackend backend) {
+        mBackend = backend;
+    }
+
+    public void start(ConnectionSource connectionSource) throws SQLException {
+        mConnectionSource = connectionSource;
+        TableUtils.createTableIfNotExists(mConnectionSource, ContentBlob.class);
+        TableUtils.createTableIfNotExists(mConnectionSource, ContentRef.class);
+        mBlobDao = DaoManager.createDao(mConnectionSource, ContentBlob.class);
+        mRefDao = DaoManager.createDao(mConnectionSource, ContentRef.class);
+    }
+
+    /**
+     * @return hash of the blob holding the data of the given file or null
+     */
+    public String lookup(String fileId) {
+        try {
+            ContentRef ref = mRefDao.queryForId(fileId);
+            return ref == null ? null : ref.getHash();
+        } catch (SQLException e) {
+            LOG.error("SQL exception", e);
+            return null;
+        }
+    }
+
+    /**
+     * Move the data of a complete file into the store
+     */
+    public void store(CacheFile file) {
+        final String fileId = file.getFileId();
+        final File data = file.getFile();
+        final long length = data.length();
+
+        final String hash;
+        try {
+            hash = hash(data);
+        } catch (IOException e) {
+            LOG.error("Error hashing file with id '" + fileId + "'", e);
+            return;
+        }
+
+        try {
+            file.switchContent(hash, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return attach(fileId, hash, length);
+                }
+            });
+        } catch (Exception e) {
+            LOG.error("Error storing content of file with id '" + fileId + "'", e);
+        }
+    }
+
+    private synchronized boolean attach(final String fileId, final String hash, final long length)
+            throws IOException, SQLException {
+        FileStore store = mBackend.getFileStore();
+        File blobFile = mBackend.getContentFile(hash);
+
+        // new content gets moved into place before it is recorded
+        boolean exists = mBlobDao.idExists(hash);
+        if (!exists) {
+            if (!store.moveTo(fileId, blobFile)) {
+                throw new IOException("Could not move file with id '" + fileId + "' to " + blobFile);
+            }
+        }
+
+        try {
+            TransactionManager.callInTransaction(mConnectionSource, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    ContentBlob blob = mBlobDao.queryForId(hash);
+                    if (blob == null) {
+                        mBlobDao.create(new ContentBlob(hash, length));
+                    } else {
+                        blob.addReference();
+                        mBlobDao.update(blob);
+                    }
+                    mRefDao.create(new ContentRef(fileId, hash));
+                    return null;
+                }
+            });
+        } catch (SQLException e) {
+            if (!exists) {
+                blobFile.renameTo(store.getShardedFile(fileId));
+            }
+            throw e;
+        }
+
+        if (exists) {
+            LOG.info("file with id '" + fileId + "' has the same content as blob '" + hash + "', saved " + length + " bytes");
+            store.delete(fileId);
+            mDeduplicated.incrementAndGet();
+            mBytesSaved.addAndGet(length);
+        } else {
+            LOG.debug("file with id '" + fileId + "' stored as blob '" + hash + "'");
+            mBlobsStored.incrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Drop the reference of a deleted file, deleting the blob when unused
+     */
+    public synchronized void release(CacheFile file) {
+        final String fileId = file.getFileId();
+        final String hash = file.getContentHash();
+        boolean unused;
+        try {
+            unused = TransactionManager.callInTransaction(mConnectionSource, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (mRefDao.deleteById(fileId) == 0) {
+                        return false;
+                    }
+                    ContentBlob blob = mBlobDao.queryForId(hash);
+                    if (blob == null) {
+                        return false;
+                    }
+                    if (blob.removeReference()) {
+                        mBlobDao.update(blob);
+                        return false;
+                    }
+                    mBlobDao.delete(blob);
+                    return true;
+                }
+            });
+        } catch (SQLException e) {
+            LOG.error("SQL exception", e);
+            return;
+        }
+        mReleased.incrementAndGet();
+        if (unused) {
+            LOG.debug("deleting blob '" + hash + "' from disk");
+            mBackend.getContentFile(hash).delete();
+            mBlobsDeleted.incrementAndGet();
+        }
+    }
+
+    private static String hash(File data) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = BufferPool.takeBuffer();
+        InputStream in = new FileInputStream(data);
+        try {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+        } finally {
+            in.close();
+            BufferPool.returnBuffer(buffer);
+        }
+        byte[] bytes = digest.digest();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    @Override
+    public long getBlobsStored() {
+        return mBlobsStored.get();
+    }
+
+    @Override
+    public long getDeduplicated() {
+        return mDeduplicated.get();
+    }
+
+    @Override
+    public long getReleased() {
+        return mReleased.get();
+    }
+
+    @Override
+    public long getBlobsDeleted() {
+        return mBlobsDeleted.get();
+    }
+
+    @Override
+    public long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    @Override
+    public long getTotalBytesSaved() {
+        try {
+            long saved = 0;
+            for (ContentBlob blob : mBlobDao.queryBuilder().where().gt("refCount", 1).query()) {
+                saved += (blob.getRefCount() - 1) * blob.getLength();
+            }
+            return saved;
+        } catch (SQLException e) {
+            LOG.error("SQL exception", e);
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.hoccer.talk.filecache.db;
+
+/**
+ * JMX view of the content-addressed store
+ */
+public interface ContentStoreMBean {
+
+    long getBlobsStored();
+
+    long getDeduplicated();
+
+    long getReleased();
+
+    long getBlobsDeleted();
+
+    long getBytesSaved();
+
+    long getTotalBytesSaved();
+
+}
@@ -0,0 +1,183 @@
+package com.hoccer.talk.filecache.db;
+
+import com.hoccer.talk.filecache.model.CacheFile;
+import org.apache.log4j.Logger;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parallel, rate-limited removal of expired files
+ * <p/>
+ * Expired files are fetched in batches and handed to a pool of workers.
+ * All workers together stay below the configured number of files per
+ * second, so a large backlog does not starve transfers of disk and
+ * database time. Subclasses provide the queries and the removal itself.
+ */
+public abstract class ExpirySweeper implements ExpirySweeperMBean {
+
+    private static final Logger LOG = Logger.getLogger(ExpirySweeper.class);
+
+    public static final String OBJECT_NAME = "com.hoccer.talk.filecache:type=ExpirySweeper";
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final ExecutorService mWorkers;
+
+    /** Nanoseconds between two files, 0 for no limit */
+    private final long mInterval;
+
+    private final AtomicLong mNextPermit = new AtomicLong();
+
+    private final AtomicLong mBacklog = new AtomicLong();
+    private final AtomicLong mSwept = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+
+    private volatile long mSweepStart;
+    private final AtomicLong mSweepCount = new AtomicLong();
+    private volatile double mLastRate;
+    private volatile long mLastDuration;
+
+    public ExpirySweeper(int threads, int filesPerSecond) {
+        mWorkers = Executors.newFixedThreadPool(threads);
+        mInterval = filesPerSecond > 0 ? 1000000000L / filesPerSecond : 0;
+        mNextPermit.set(System.nanoTime());
+    }
+
+    /** @return number of files due for removal at the given time */
+    protected abstract long countExpired(Date now) throws SQLException;
+
+    /**
+     * @return up to limit files due for removal at the given time with an id
+     *         greater than afterFileId, ordered by id
+     */
+    protected abstract List<CacheFile> queryExpired(Date now, String afterFileId, long limit) throws SQLException;
+
+    /** Remove a single file */
+    protected abstract void sweep(CacheFile file, Date now);
+
+    /**
+     * Remove all files expired by now, blocking until done
+     */
+    public void sweepExpired() throws InterruptedException {
+        Date now = new Date();
+        long total;
+        try {
+            total = countExpired(now);
+        } catch (SQLException e) {
+            LOG.error("SQL exception", e);
+            return;
+        }
+        LOG.info("found " + total + " expired files");
+
+        mBacklog.set(total);
+        mSweepCount.set(0);
+        mSweepStart = System.currentTimeMillis();
+        try {
+            // continue after the last file seen, files that survive a sweep are not returned again
+            long processed = 0;
+            String lastFileId = null;
+            while (processed < total) {
+                List<CacheFile> batch;
+                try {
+                    batch = queryExpired(now, lastFileId, Math.min(BATCH_SIZE, total - processed));
+                } catch (SQLException e) {
+                    LOG.error("SQL exception", e);
+                    break;
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                lastFileId = batch.get(batch.size() - 1).getFileId();
+                sweepBatch(batch, now);
+                processed += batch.size();
+            }
+        } finally {
+            mLastDuration = System.currentTimeMillis() - mSweepStart;
+            mLastRate = mSweepCount.get() / Math.max(mLastDuration / 1000.0, 0.001);
+            mSweepStart = 0;
+            mBacklog.set(0);
+        }
+        LOG.info("swept " + mSweepCount.get() + " files in " + mLastDuration + "ms ("
+                + Math.round(mLastRate) + " files/s)");
+    }
+
+    private void sweepBatch(List<CacheFile> batch, final Date now) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(batch.size());
+        for (final CacheFile file : batch) {
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        acquirePermit();
+                        sweep(file, now);
+                        mSwept.incrementAndGet();
+                    } catch (Throwable t) {
+                        mFailed.incrementAndGet();
+                        LOG.error("caught and swallowed exception escaping runnable", t);
+                    } finally {
+                        mBacklog.decrementAndGet();
+                        mSweepCount.incrementAndGet();
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+    }
+
+    private void acquirePermit() throws InterruptedException {
+        if (mInterval == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long slot;
+        while (true) {
+            long next = mNextPermit.get();
+            // idle time does not accumulate into a burst
+            slot = Math.max(next, now);
+            if (mNextPermit.compareAndSet(next, slot + mInterval)) {
+                break;
+            }
+        }
+        long wait = slot - now;
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+
+    @Override
+    public long getBacklog() {
+        return mBacklog.get();
+    }
+
+    @Override
+    public long getSwept() {
+        return mSwept.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return mFailed.get();
+    }
+
+    @Override
+    public double getRate() {
+        long start = mSweepStart;
+        if (start == 0) {
+            return mLastRate;
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        return mSweepCount.get() / Math.max(elapsed / 1000.0, 0.001);
+    }
+
+    @Override
+    public long getLastSweepDuration() {
+        return mLastDuration;
+    }
+}
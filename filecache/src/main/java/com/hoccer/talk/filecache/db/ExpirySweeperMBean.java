@@ -0,0 +1,18 @@
+package com.hoccer.talk.filecache.db;
+
+/**
+ * JMX view of the expiry sweeper
+ */
+public interface ExpirySweeperMBean {
+
+    long getBacklog();
+
+    long getSwept();
+
+    long getFailed();
+
+    double getRate();
+
+    long getLastSweepDuration();
+
+}
@@ -7,15 +7,13 @@ import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
 import com.j256.ormlite.jdbc.JdbcConnectionSource;
 import com.j256.ormlite.misc.TransactionManager;
-import com.j256.ormlite.stmt.PreparedQuery;
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.Where;
 import com.j256.ormlite.table.TableUtils;
 
-import java.io.File;
 import java.sql.SQLException;
 import java.util.Date;
-import java.util.Hashtable;
 import java.util.List;
-import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -29,19 +27,37 @@ public class OrmliteBackend extends CacheBackend {
 
     private Dao<CacheFile, String> mDao;
 
-    private Hashtable<String, CacheFile> mActiveByFileId;
-    private Hashtable<String, CacheFile> mActiveByUploadId;
-    private Hashtable<String, CacheFile> mActiveByDownloadId;
+    private ActiveFileIndex mActive;
+
+    private ContentStore mContentStore;
+
+    private ExpirySweeper mExpirySweeper;
 
     private ScheduledExecutorService mExpiryExecutor;
 
     public OrmliteBackend(CacheConfiguration configuration) {
         super(configuration);
-        mActiveByFileId = new Hashtable<String, CacheFile>();
-        mActiveByUploadId = new Hashtable<String, CacheFile>();
-        mActiveByDownloadId = new Hashtable<String, CacheFile>();
+        mActive = new ActiveFileIndex();
         mExpiryExecutor = Executors.newSingleThreadScheduledExecutor();
         mConfiguration = configuration;
+        if(configuration.getDataDedup()) {
+            mContentStore = new ContentStore(this);
+        }
+        mExpirySweeper = new ExpirySweeper(configuration.getCleanupFilesThreads(),
+                                           configuration.getCleanupFilesRate()) {
+            @Override
+            protected long countExpired(Date now) throws SQLException {
+                return mDao.countOf(expiryQuery(now, null).setCountOf(true).prepare());
+            }
+            @Override
+            protected List<CacheFile> queryExpired(Date now, String afterFileId, long limit) throws SQLException {
+                return mDao.query(expiryQuery(now, afterFileId).orderBy("fileId", true).limit(limit).prepare());
+            }
+            @Override
+            protected void sweep(CacheFile file, Date now) {
+                sweepFile(file, now);
+            }
+        };
     }
 
     @Override
@@ -64,10 +80,16 @@ public class OrmliteBackend extends CacheBackend {
                 LOG.debug("creating dao for files");
             }
             mDao = DaoManager.createDao(mConnectionSource, CacheFile.class);
+            if(mContentStore != null) {
+                LOG.info("starting content store");
+                mContentStore.start(mConnectionSource);
+            }
         } catch (SQLException e) {
             LOG.error("Error initializing ormlite", e);
         }
 
+        getFileStore().startMigration(mConfiguration.getDataMigrationRate());
+
         LOG.info("cleaning files scheduling will start in '" + mConfiguration.getCleanupFilesDelay() + "' seconds.");
         mExpiryExecutor.schedule(new Runnable() {
             @Override
@@ -94,21 +116,17 @@ public class OrmliteBackend extends CacheBackend {
         }, mConfiguration.getCleanupFilesInterval(), TimeUnit.SECONDS);
     }
 
+    public ActiveFileIndex getActiveIndex() {
+        return mActive;
+    }
+
+    /** @return the content store or null if deduplication is disabled */
+    public ContentStore getContentStore() {
+        return mContentStore;
+    }
+
     private CacheFile activate(CacheFile file) {
-        CacheFile res = null;
-        synchronized (mActiveByFileId) {
-            CacheFile active = mActiveByFileId.get(file.getFileId());
-            if(active != null) {
-                res = active;
-            } else {
-                file.onActivate(this);
-                mActiveByFileId.put(file.getFileId(), file);
-                mActiveByUploadId.put(file.getUploadId(), file);
-                mActiveByDownloadId.put(file.getDownloadId(), file);
-                res = file;
-            }
-        }
-        return res;
+        return mActive.activate(file, this);
     }
 
     @Override
@@ -122,11 +140,13 @@ public class OrmliteBackend extends CacheBackend {
 
     @Override
     public void delete(CacheFile file) {
-        // delete the file
-        File f = file.getFile();
-        if (f.exists()) {
+        if (file.getContentHash() != null) {
+            // shared content goes when its last file does
+            mContentStore.release(file);
+        } else {
+            // delete the file
             LOG.debug("deleting file from disk (file-id: '" + file.getFileId() + "')");
-            f.delete();
+            getFileStore().delete(file.getFileId());
         }
         // delete the record
         try {
@@ -139,12 +159,10 @@ public class OrmliteBackend extends CacheBackend {
 
     @Override
     public void deactivate(CacheFile file) {
-        synchronized (mActiveByFileId) {
+        synchronized (mActive.lockFor(file.getFileId())) {
             file.onDeactivate();
 
-            mActiveByFileId.remove(file.getFileId());
-            mActiveByUploadId.remove(file.getUploadId());
-            mActiveByDownloadId.remove(file.getDownloadId());
+            mActive.remove(file);
 
             int fileState = file.getState();
             switch(fileState) {
@@ -157,41 +175,54 @@ public class OrmliteBackend extends CacheBackend {
 
 
     @Override
-    public List<CacheFile> getActiveFiles() {
-        List<CacheFile> res;
-        synchronized (mActiveByFileId) {
-            res = new Vector<CacheFile>(mActiveByFileId.values());
+    public String lookupContentHash(CacheFile file) {
+        if (mContentStore == null) {
+            return null;
         }
-        return res;
+        return mContentStore.lookup(file.getFileId());
+    }
+
+    @Override
+    public void contentCompleted(CacheFile file) {
+        if (mContentStore != null) {
+            mContentStore.store(file);
+        }
+    }
+
+    @Override
+    public List<CacheFile> getActiveFiles() {
+        return mActive.getActiveFiles();
     }
 
     @Override
-    public synchronized CacheFile getByFileId(final String id, final boolean create) {
-        CacheFile res = null;
+    public CacheFile getByFileId(final String id, final boolean create) {
+        // active files need no database access
+        CacheFile res = mActive.getByFileId(id);
 
         // not found? try database
         if(res == null) {
-            try {
-                res = TransactionManager.callInTransaction(mConnectionSource,
-                        new Callable<CacheFile>() {
-                            @Override
-                            public CacheFile call() throws Exception {
-                                CacheFile res = null;
-                                // try to find in db
-                                res = mDao.queryForId(id);
-                                // not found? create if we want to
-                                if(res == null) {
-                                    if(create) {
-                                        res = new CacheFile(id, null, null, -1);
-                                        mDao.create(res);
+            res = mActive.load("file:" + id + (create ? ":create" : ""), new Callable<CacheFile>() {
+                @Override
+                public CacheFile call() throws Exception {
+                    return TransactionManager.callInTransaction(mConnectionSource,
+                            new Callable<CacheFile>() {
+                                @Override
+                                public CacheFile call() throws Exception {
+                                    CacheFile res = null;
+                                    // try to find in db
+                                    res = mDao.queryForId(id);
+                                    // not found? create if we want to
+                                    if(res == null) {
+                                        if(create) {
+                                            res = new CacheFile(id, null, null, -1);
+                                            mDao.create(res);
+                                        }
                                     }
+                                    return res;
                                 }
-                                return res;
-                            }
-                        });
-            } catch (SQLException e) {
-                LOG.error("SQL exception", e);
-            }
+                            });
+                }
+            });
             if(res != null) {
                 res = activate(res);
             }
@@ -207,18 +238,13 @@ public class OrmliteBackend extends CacheBackend {
 
     @Override
     public CacheFile getByUploadId(String id) {
-        CacheFile res = null;
-
-        try {
-            res = mDao.queryBuilder().where()
-                      .eq("uploadId", id)
-                      .queryForFirst();
-        } catch (SQLException e) {
-            LOG.error("SQL exception", e);
-        }
+        CacheFile res = mActive.getByUploadId(id);
 
-        if(res != null) {
-            res = activate(res);
+        if(res == null) {
+            res = mActive.load("upload:" + id, queryFirst("uploadId", id));
+            if(res != null) {
+                res = activate(res);
+            }
         }
 
         if(LOG.isDebugEnabled()) {
@@ -230,18 +256,13 @@ public class OrmliteBackend extends CacheBackend {
 
     @Override
     public CacheFile getByDownloadId(String id) {
-        CacheFile res = null;
-
-        try {
-            res = mDao.queryBuilder().where()
-                    .eq("downloadId", id)
-                    .queryForFirst();
-        } catch (SQLException e) {
-            LOG.error("SQL exception", e);
-        }
+        CacheFile res = mActive.getByDownloadId(id);
 
-        if(res != null) {
-            res = activate(res);
+        if(res == null) {
+            res = mActive.load("download:" + id, queryFirst("downloadId", id));
+            if(res != null) {
+                res = activate(res);
+            }
         }
 
         if(LOG.isDebugEnabled()) {
@@ -251,6 +272,17 @@ public class OrmliteBackend extends CacheBackend {
         return res;
     }
 
+    private Callable<CacheFile> queryFirst(final String column, final String id) {
+        return new Callable<CacheFile>() {
+            @Override
+            public CacheFile call() throws Exception {
+                return mDao.queryBuilder().where()
+                           .eq(column, id)
+                           .queryForFirst();
+            }
+        };
+    }
+
     @Override
     public List<CacheFile> getFilesByAccount(String accountId) {
         List<CacheFile> res = null;
@@ -272,46 +304,50 @@ public class OrmliteBackend extends CacheBackend {
         return res;
     }
 
-    private void doCleanupFiles() {
-        LOG.info("cleanupFiles - querying for expired files...");
-        long startTime = System.currentTimeMillis();
+    /** @return the sweeper removing expired files */
+    public ExpirySweeper getExpirySweeper() {
+        return mExpirySweeper;
+    }
 
-        Date now = new Date();
-        List<CacheFile> files = null;
-        try {
-            PreparedQuery<CacheFile> expiryQuery =
-                    mDao.queryBuilder()
-                            .where()
-                                .le("expiryTime", now)
-                                .eq("state", CacheFile.STATE_EXPIRED)
-                                .eq("state", CacheFile.STATE_DELETED)
-                            .or(3)
-                            .prepare();
-            files = mDao.query(expiryQuery);
-            LOG.info("found " + files.size() + " expired files");
-        } catch (SQLException e) {
-            LOG.error("SQL exception", e);
+    private QueryBuilder<CacheFile, String> expiryQuery(Date now, String afterFileId) throws SQLException {
+        QueryBuilder<CacheFile, String> builder = mDao.queryBuilder();
+        Where<CacheFile, String> where = builder.where()
+                .le("expiryTime", now)
+                .eq("state", CacheFile.STATE_EXPIRED)
+                .eq("state", CacheFile.STATE_DELETED)
+                .or(3);
+        if(afterFileId != null) {
+            where.gt("fileId", afterFileId).and(2);
         }
-        if(files != null) {
-            for(int i = 0; i < files.size(); i++) {
-                CacheFile file = activate(files.get(i));
-                if(file.getExpiryTime().before(now)) {
-                    file.expire();
-                } else {
-                    switch(file.getState()) {
-                    case CacheFile.STATE_EXPIRED:
-                        file.expire();
-                        break;
-                    case CacheFile.STATE_DELETED:
-                        file.delete();
-                        break;
-                    }
-                }
+        return builder;
+    }
+
+    private void sweepFile(CacheFile expired, Date now) {
+        CacheFile file = activate(expired);
+        if(file.getExpiryTime().before(now)) {
+            file.expire();
+        } else {
+            switch(file.getState()) {
+            case CacheFile.STATE_EXPIRED:
+                file.expire();
+                break;
+            case CacheFile.STATE_DELETED:
+                file.delete();
+                break;
             }
         }
+    }
 
-        long endTime = System.currentTimeMillis();
-        LOG.info("cleanupFiles done (took '" + (endTime - startTime) + "ms'). re-scheduling next run...");
-        scheduleCleanupFiles();
+    private void doCleanupFiles() throws InterruptedException {
+        LOG.info("cleanupFiles - sweeping expired files...");
+        long startTime = System.currentTimeMillis();
+
+        try {
+            mExpirySweeper.sweepExpired();
+        } finally {
+            long endTime = System.currentTimeMillis();
+            LOG.info("cleanupFiles done (took '" + (endTime - startTime) + "ms'). re-scheduling next run...");
+            scheduleCleanupFiles();
+        }
     }
 }
@@ -12,11 +12,18 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
@@ -47,17 +54,45 @@ public class CacheFile {
 
     protected static Logger LOG = Logger.getLogger(CacheFile.class);
 
+    /**
+     * Callback for transfers waiting for data without blocking a thread
+     * <p/>
+     * Listeners are called once, under the state lock of the file, when
+     * the limit reaches the position they wait for or the file reaches a
+     * final state. They must not block.
+     */
+    public interface DataListener {
+        void onDataAvailable(CacheFile file);
+    }
+
     transient private CacheBackend mBackend;
 
     transient private ReentrantLock mStateLock;
     transient private Condition mStateChanged;
 
-    transient private CacheUpload mUpload = null;
+    transient private Vector<CacheUpload> mUploads = new Vector<CacheUpload>();
+
+    /**
+     * Byte ranges written by uploads, start to end (exclusive), merged
+     * <p/>
+     * Only the range starting at zero is reflected in the limit and
+     * persisted, others are lost when the file is deactivated.
+     */
+    transient private TreeMap<Integer, Integer> mCommittedRanges = new TreeMap<Integer, Integer>();
+
+    /** True once the completed content has been handed to the backend */
+    transient private boolean mContentCompleted;
 
     transient private Vector<CacheDownload> mDownloads = new Vector<CacheDownload>();
 
+    /** Listeners waiting for data, by the position they wait for */
+    transient private TreeMap<Integer, List<DataListener>> mDataListeners = new TreeMap<Integer, List<DataListener>>();
+
     transient private ScheduledFuture<?> mExpiryFuture;
 
+    /** Hash of shared content holding the data, null for files with their own data */
+    transient private String mContentHash;
+
     transient private long mLastCheckpoint;
     transient private long mCheckpointInterval;
 
@@ -124,12 +159,16 @@ public class CacheFile {
         mBackend = backend;
         CacheConfiguration configuration = mBackend.getConfiguration();
         mCheckpointInterval = configuration.getDataCheckpointInterval();
+        mContentHash = backend.lookupContentHash(this);
+        if (mLimit > 0) {
+            mCommittedRanges.put(0, mLimit);
+        }
     }
 
     public void onDeactivate() {
         LOG.debug("onDeactivate (file-id: '" + mFileId + "')");
-        if (mUpload != null) {
-            mUpload.abort();
+        for (CacheUpload upload: mUploads) {
+            upload.abort();
         }
         for (CacheDownload download: mDownloads) {
             download.abort();
@@ -144,7 +183,7 @@ public class CacheFile {
     }
 
     public boolean isActive() {
-        return mDownloads.size() > 0 || mUpload != null;
+        return mDownloads.size() > 0 || mUploads.size() > 0;
     }
 
     public boolean isAlive() {
@@ -221,8 +260,24 @@ public class CacheFile {
         return mLastDownloadTime;
     }
 
-    public CacheUpload getUpload() {
-        return mUpload;
+    public int getNumUploads() {
+        return mUploads.size();
+    }
+
+    public Vector<CacheUpload> getUploads() {
+        return new Vector<CacheUpload>(mUploads);
+    }
+
+    /**
+     * @return committed byte ranges, start to end (exclusive), in order
+     */
+    public SortedMap<Integer, Integer> getCommittedRanges() {
+        mStateLock.lock();
+        try {
+            return new TreeMap<Integer, Integer>(mCommittedRanges);
+        } finally {
+            mStateLock.unlock();
+        }
     }
 
     public int getNumDownloads() {
@@ -233,8 +288,16 @@ public class CacheFile {
         return new Vector<CacheDownload>(mDownloads);
     }
 
+    public String getContentHash() {
+        return mContentHash;
+    }
+
     public File getFile() {
-        return new File(mBackend.getDataDirectory(), mFileId);
+        String contentHash = mContentHash;
+        if (contentHash != null) {
+            return mBackend.getContentFile(contentHash);
+        }
+        return mBackend.getFileStore().getFile(mFileId);
     }
 
     private void switchState(int newState, String cause) {
@@ -242,6 +305,38 @@ public class CacheFile {
                  " -> " + stateNames[newState] + " (reason: '" + cause + "')");
         mState = newState;
         mBackend.checkpoint(this);
+        // no more data will arrive, waiting listeners have to look again
+        if (newState == STATE_COMPLETE || newState == STATE_EXPIRED || newState == STATE_DELETED) {
+            callDataListeners(mDataListeners);
+        }
+    }
+
+    /**
+     * Wake up threads blocked waiting for data
+     * <p/>
+     * Must be called with the state lock held.
+     */
+    private void signalStateChanged() {
+        mStateChanged.signalAll();
+    }
+
+    /**
+     * Unregister and call the given listeners
+     * <p/>
+     * Must be called with the state lock held.
+     */
+    private void callDataListeners(SortedMap<Integer, List<DataListener>> listenersByPosition) {
+        if (listenersByPosition.isEmpty()) {
+            return;
+        }
+        List<DataListener> listeners = new ArrayList<DataListener>();
+        for (List<DataListener> atPosition : listenersByPosition.values()) {
+            listeners.addAll(atPosition);
+        }
+        listenersByPosition.clear();
+        for (DataListener listener : listeners) {
+            listener.onDataAvailable(this);
+        }
     }
 
     private void considerDeactivate() {
@@ -271,22 +366,33 @@ public class CacheFile {
         }
     }
 
-    public void uploadStarts(CacheUpload upload) {
+    /**
+     * Register an upload about to write to the file
+     *
+     * @return false if the file has shared content, which must not be written to
+     */
+    public boolean uploadStarts(CacheUpload upload) {
         LOG.debug("uploadStarts: fileId=" + mFileId);
         mStateLock.lock();
         try {
+            if(mContentHash != null) {
+                LOG.info("file with id '" + mFileId + "' has shared content, rejecting upload");
+                return false;
+            }
+
             if(mState == STATE_NEW) {
                 switchState(STATE_UPLOADING, "starting new upload");
             } else {
                 // this means we are in a reupload
             }
 
-            mUpload = upload;
+            mUploads.add(upload);
 
             mLastUploadTime = new Date();
             mBackend.checkpoint(this);
 
-            mStateChanged.signalAll();
+            signalStateChanged();
+            return true;
         } finally {
             mStateLock.unlock();
         }
@@ -296,8 +402,8 @@ public class CacheFile {
         LOG.debug("uploadAborted: fileId=" + mFileId);
         mStateLock.lock();
         try {
-            mUpload = null;
-            mStateChanged.signalAll();
+            mUploads.remove(upload);
+            signalStateChanged();
             considerDeactivate();
         } finally {
             mStateLock.unlock();
@@ -306,10 +412,25 @@ public class CacheFile {
 
     public void uploadFinished(CacheUpload upload) {
         LOG.debug("uploadFinished: fileId=" + mFileId);
+        // only the first upload to finish a complete file hands it over
+        boolean completed = false;
         mStateLock.lock();
         try {
-            mUpload = null;
-            mStateChanged.signalAll();
+            if (mState == STATE_COMPLETE && mContentHash == null && !mContentCompleted) {
+                mContentCompleted = true;
+                completed = true;
+            }
+        } finally {
+            mStateLock.unlock();
+        }
+        // the running upload keeps the file active while the backend stores it
+        if (completed) {
+            mBackend.contentCompleted(this);
+        }
+        mStateLock.lock();
+        try {
+            mUploads.remove(upload);
+            signalStateChanged();
             considerDeactivate();
         } finally {
             mStateLock.unlock();
@@ -325,7 +446,7 @@ public class CacheFile {
             mLastDownloadTime = new Date();
             mBackend.checkpoint(this);
 
-            mStateChanged.signalAll();
+            signalStateChanged();
         } finally {
             mStateLock.unlock();
         }
@@ -336,7 +457,7 @@ public class CacheFile {
         mStateLock.lock();
         try {
             mDownloads.remove(download);
-            mStateChanged.signalAll();
+            signalStateChanged();
             considerDeactivate();
         } finally {
             mStateLock.unlock();
@@ -348,20 +469,35 @@ public class CacheFile {
         mStateLock.lock();
         try {
             mDownloads.remove(download);
-            mStateChanged.signalAll();
+            signalStateChanged();
             considerDeactivate();
         } finally {
             mStateLock.unlock();
         }
     }
 
-    public void updateLimit(int newLimit, RandomAccessFile raf) throws IOException {
+    /**
+     * Record that the given byte range has been written
+     * <p/>
+     * The limit advances over the range starting at zero, and the file is
+     * complete when that range covers the whole content, no matter in
+     * which order the ranges arrived.
+     *
+     * @param start of the range
+     * @param end of the range (exclusive)
+     */
+    public void commitRange(int start, int end, RandomAccessFile raf) throws IOException {
 
         mStateLock.lock();
         try {
+            mergeRange(start, end);
+
+            Map.Entry<Integer, Integer> first = mCommittedRanges.firstEntry();
+            int newLimit = (first != null && first.getKey() == 0) ? first.getValue() : 0;
             if(newLimit > mLimit) {
                 LOG.debug("limit is now " + newLimit + " was " + mLimit);
                 mLimit = newLimit;
+                callDataListeners(mDataListeners.headMap(mLimit, true));
             }
 
             if(newLimit == mContentLength) {
@@ -370,7 +506,7 @@ public class CacheFile {
                 }
             }
 
-            mStateChanged.signalAll();
+            signalStateChanged();
 
             // do occasional checkpoints
             long now = System.currentTimeMillis();
@@ -385,6 +521,23 @@ public class CacheFile {
         }
     }
 
+    private void mergeRange(int start, int end) {
+        // join a range that starts before and reaches this one
+        Map.Entry<Integer, Integer> before = mCommittedRanges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        // swallow ranges that start within this one
+        Map.Entry<Integer, Integer> next = mCommittedRanges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            mCommittedRanges.remove(next.getKey());
+            next = mCommittedRanges.ceilingEntry(start);
+        }
+        mCommittedRanges.put(start, end);
+    }
+
     public void delete() {
         mStateLock.lock();
         try {
@@ -456,19 +609,109 @@ public class CacheFile {
         }
     }
 
-    private void ensureExists() throws IOException {
-        File f = getFile();
-        f.createNewFile();
+    /**
+     * Register a listener to be called when data up to the given position is available
+     * or will never be
+     * <p/>
+     * Does not register anything when waiting makes no sense, either because
+     * the data is already there or because no more data will arrive. The
+     * caller should then proceed directly.
+     *
+     * @return true if the listener has been registered
+     */
+    public boolean addDataListener(int wantedPosition, DataListener listener) {
+        mStateLock.lock();
+        try {
+            if (mLimit >= wantedPosition) {
+                return false;
+            }
+            if (mState != STATE_NEW && mState != STATE_UPLOADING) {
+                return false;
+            }
+            List<DataListener> atPosition = mDataListeners.get(wantedPosition);
+            if (atPosition == null) {
+                atPosition = new ArrayList<DataListener>(1);
+                mDataListeners.put(wantedPosition, atPosition);
+            }
+            atPosition.add(listener);
+            return true;
+        } finally {
+            mStateLock.unlock();
+        }
     }
 
-    public RandomAccessFile openForRandomAccess(String mode) throws IOException {
-        ensureExists();
+    /**
+     * Unregister a listener that has not been called yet
+     *
+     * @return true if the listener was still registered
+     */
+    public boolean removeDataListener(DataListener listener) {
+        mStateLock.lock();
+        try {
+            Iterator<List<DataListener>> it = mDataListeners.values().iterator();
+            while (it.hasNext()) {
+                List<DataListener> atPosition = it.next();
+                if (atPosition.remove(listener)) {
+                    if (atPosition.isEmpty()) {
+                        it.remove();
+                    }
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mStateLock.unlock();
+        }
+    }
 
+    /**
+     * Switch the file over to shared content with the given hash
+     * <p/>
+     * The mover puts the data in place. It runs with the state lock held, so
+     * no transfer opens the file while its data moves. Other uploads than
+     * the finishing one would keep writing to the moved data, so the file
+     * keeps its own data while there are any.
+     *
+     * @return true if the file now uses the shared content
+     */
+    public boolean switchContent(String hash, Callable<Boolean> mover) throws Exception {
+        mStateLock.lock();
+        try {
+            if (!isAlive() || mContentHash != null) {
+                return false;
+            }
+            if (mUploads.size() > 1) {
+                LOG.info("file with id '" + mFileId + "' has " + mUploads.size() + " uploads, not sharing its content");
+                return false;
+            }
+            if (!mover.call()) {
+                return false;
+            }
+            mContentHash = hash;
+            return true;
+        } finally {
+            mStateLock.unlock();
+        }
+    }
+
+    public RandomAccessFile openForRandomAccess(String mode) throws IOException {
         RandomAccessFile r = null;
+        mStateLock.lock();
         try {
-            r = new RandomAccessFile(getFile(), mode);
+            if (mContentHash != null) {
+                // shared content belongs to all files with the same data
+                if (!mode.equals("r")) {
+                    throw new IOException("File with id '" + mFileId + "' has shared content, can not open it with mode '" + mode + "'");
+                }
+                // shared content always exists and is never created here
+                r = new RandomAccessFile(getFile(), mode);
+            } else {
+                r = mBackend.getFileStore().open(mFileId, mode);
+            }
         } catch (FileNotFoundException e) {
             LOG.error("Error opening file (with mode: '" + mode + "') ", e);
+        } finally {
+            mStateLock.unlock();
         }
         return r;
     }
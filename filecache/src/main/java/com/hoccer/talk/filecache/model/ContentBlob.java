@@ -0,0 +1,62 @@
+package com.hoccer.talk.filecache.model;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import java.util.Date;
+
+/**
+ * Content shared by files with identical data
+ * <p/>
+ * Blobs are named by the SHA-256 hash of their data and
+ * count the files referring to them.
+ */
+@DatabaseTable(tableName = "content_blob")
+public class ContentBlob {
+
+    @DatabaseField(columnName = "hash", id = true)
+    private String mHash;
+
+    @DatabaseField(columnName = "length")
+    private long mLength;
+
+    @DatabaseField(columnName = "refCount")
+    private int mRefCount;
+
+    @DatabaseField(columnName = "creationTime")
+    private Date mCreationTime;
+
+    public ContentBlob() {
+    }
+
+    public ContentBlob(String hash, long length) {
+        mHash = hash;
+        mLength = length;
+        mRefCount = 1;
+        mCreationTime = new Date();
+    }
+
+    public String getHash() {
+        return mHash;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public int getRefCount() {
+        return mRefCount;
+    }
+
+    public void addReference() {
+        mRefCount++;
+    }
+
+    /**
+     * @return true if the blob is still referenced
+     */
+    public boolean removeReference() {
+        mRefCount--;
+        return mRefCount > 0;
+    }
+}
@@ -0,0 +1,33 @@
+package com.hoccer.talk.filecache.model;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * Reference from a file to the blob holding its data
+ */
+@DatabaseTable(tableName = "content_ref")
+public class ContentRef {
+
+    @DatabaseField(columnName = "fileId", id = true)
+    private String mFileId;
+
+    @DatabaseField(columnName = "hash", index = true)
+    private String mHash;
+
+    public ContentRef() {
+    }
+
+    public ContentRef(String fileId, String hash) {
+        mFileId = fileId;
+        mHash = hash;
+    }
+
+    public String getFileId() {
+        return mFileId;
+    }
+
+    public String getHash() {
+        return mHash;
+    }
+}
@@ -0,0 +1,193 @@
+package com.hoccer.talk.filecache.transfer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pool of transfer buffers in several size classes
+ * <p/>
+ * Each thread keeps a few buffers of every size class for itself. Further
+ * buffers go to a lock-free stack shared by all threads, bounded in bytes
+ * per size class. Requests larger than the largest class are allocated
+ * and dropped without pooling.
+ */
+public class BufferPool {
+
+    /**
+     * Sizes of the managed buffers
+     */
+    public static final int[] SIZE_CLASSES = {1 << 12, 1 << 14, 1 << 16, 1 << 18};
+
+    /**
+     * Size of buffers for streaming transfers
+     */
+    public static final int DEFAULT_SIZE = 1 << 16;
+
+    /**
+     * Number of buffers per size class cached by each thread
+     */
+    public static final int LOCAL_BUFFER_COUNT = 2;
+
+    /**
+     * Bytes per size class kept in the shared stack
+     */
+    public static final int SHARED_BYTES = 16 << 20;
+
+    private static final AtomicLong sHits = new AtomicLong();
+    private static final AtomicLong sMisses = new AtomicLong();
+    private static final AtomicInteger sInFlight = new AtomicInteger();
+
+    private static final SizeClass[] sClasses = createClasses();
+
+    /**
+     * Buffers of one size, per thread and shared
+     */
+    private static class SizeClass {
+        final int capacity;
+        final AtomicReference<Node> head = new AtomicReference<Node>();
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadLocal<ArrayDeque<byte[]>> local = new ThreadLocal<ArrayDeque<byte[]>>() {
+            @Override
+            protected ArrayDeque<byte[]> initialValue() {
+                return new ArrayDeque<byte[]>(LOCAL_BUFFER_COUNT);
+            }
+        };
+
+        SizeClass(int size) {
+            this.capacity = Math.max(LOCAL_BUFFER_COUNT, SHARED_BYTES / size);
+        }
+
+        byte[] take() {
+            byte[] buffer = local.get().pollLast();
+            if (buffer != null) {
+                return buffer;
+            }
+            Node top;
+            do {
+                top = head.get();
+                if (top == null) {
+                    return null;
+                }
+            } while (!head.compareAndSet(top, top.next));
+            count.decrementAndGet();
+            return top.buffer;
+        }
+
+        void give(byte[] buffer) {
+            ArrayDeque<byte[]> cached = local.get();
+            if (cached.size() < LOCAL_BUFFER_COUNT) {
+                cached.addLast(buffer);
+                return;
+            }
+            if (count.incrementAndGet() > capacity) {
+                // shared stack full, let the buffer go
+                count.decrementAndGet();
+                return;
+            }
+            Node node = new Node(buffer);
+            do {
+                node.next = head.get();
+            } while (!head.compareAndSet(node.next, node));
+        }
+    }
+
+    private static class Node {
+        final byte[] buffer;
+        Node next;
+
+        Node(byte[] buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private static SizeClass[] createClasses() {
+        SizeClass[] classes = new SizeClass[SIZE_CLASSES.length];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(SIZE_CLASSES[i]);
+        }
+        return classes;
+    }
+
+    /**
+     * @return index of the smallest class holding the given size or -1
+     */
+    private static int classFor(int minSize) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (SIZE_CLASSES[i] >= minSize) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the class of exactly the given size or -1
+     */
+    private static int classOf(int size) {
+        int index = classFor(size);
+        return (index >= 0 && SIZE_CLASSES[index] == size) ? index : -1;
+    }
+
+    /**
+     * Acquire a buffer for streaming transfers
+     */
+    public static byte[] takeBuffer() {
+        return takeBuffer(DEFAULT_SIZE);
+    }
+
+    /**
+     * Acquire a buffer of at least the given size
+     */
+    public static byte[] takeBuffer(int minSize) {
+        sInFlight.incrementAndGet();
+        int index = classFor(minSize);
+        byte[] buffer = index < 0 ? null : sClasses[index].take();
+        if (buffer == null) {
+            sMisses.incrementAndGet();
+            return new byte[index < 0 ? minSize : SIZE_CLASSES[index]];
+        }
+        sHits.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to be reused
+     */
+    public static void returnBuffer(byte[] buffer) {
+        sInFlight.decrementAndGet();
+        int index = classOf(buffer.length);
+        if (index >= 0) {
+            sClasses[index].give(buffer);
+        }
+    }
+
+    /**
+     * @return number of requests served from the pool
+     */
+    public static long getHits() {
+        return sHits.get();
+    }
+
+    /**
+     * @return number of requests that needed an allocation
+     */
+    public static long getMisses() {
+        return sMisses.get();
+    }
+
+    /**
+     * @return number of buffers taken and not returned
+     */
+    public static int getInFlight() {
+        return sInFlight.get();
+    }
+
+    /**
+     * @return number of buffers of the given size class in the shared stack
+     */
+    public static int getSharedCount(int sizeClass) {
+        return sClasses[sizeClass].count.get();
+    }
+}
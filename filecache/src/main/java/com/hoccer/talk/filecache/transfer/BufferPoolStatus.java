@@ -0,0 +1,33 @@
+package com.hoccer.talk.filecache.transfer;
+
+/**
+ * Exposes the counters of {@link BufferPool} over JMX
+ */
+public class BufferPoolStatus implements BufferPoolStatusMBean {
+
+    public static final String OBJECT_NAME = "com.hoccer.talk.filecache:type=BufferPool";
+
+    @Override
+    public long getHits() {
+        return BufferPool.getHits();
+    }
+
+    @Override
+    public long getMisses() {
+        return BufferPool.getMisses();
+    }
+
+    @Override
+    public int getInFlight() {
+        return BufferPool.getInFlight();
+    }
+
+    @Override
+    public int getSharedBuffers() {
+        int count = 0;
+        for (int i = 0; i < BufferPool.SIZE_CLASSES.length; i++) {
+            count += BufferPool.getSharedCount(i);
+        }
+        return count;
+    }
+}
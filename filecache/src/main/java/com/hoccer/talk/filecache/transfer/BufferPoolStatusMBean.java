@@ -0,0 +1,16 @@
+package com.hoccer.talk.filecache.transfer;
+
+/**
+ * JMX view of the transfer buffer pool
+ */
+public interface BufferPoolStatusMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    int getInFlight();
+
+    int getSharedBuffers();
+
+}
@@ -3,26 +3,64 @@ package com.hoccer.talk.filecache.transfer;
 import com.google.appengine.api.blobstore.ByteRange;
 import com.hoccer.talk.filecache.model.CacheFile;
 import org.apache.log4j.Logger;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.server.AbstractHttpConnection;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Active download from the cache
  *
  * @author ingo
  */
-public class CacheDownload extends CacheTransfer {
+public class CacheDownload extends CacheTransfer implements CacheFile.DataListener {
 
     static Logger LOG = Logger.getLogger(CacheDownload.class);
 
+    /**
+     * Timer for asynchronous downloads waiting for data
+     */
+    private static final ScheduledExecutorService sWaitTimer = Executors.newSingleThreadScheduledExecutor();
+
     ByteRange byteRange;
     private int mTimeout;
 
+    /* state of asynchronous downloads */
+    private AsyncContext mAsync;
+    private OutputStream mOutStream;
+    private RandomAccessFile mInFile;
+    private byte[] mBuffer;
+    private int mTotalRequested;
+    private int mTotalTransferred;
+    private int mAbsolutePosition;
+    private volatile boolean mAborted;
+    private final AtomicBoolean mWaiting = new AtomicBoolean();
+    private volatile ScheduledFuture<?> mWaitTimeout;
+
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                performStep();
+            } catch (Throwable t) {
+                LOG.error("caught and swallowed exception escaping runnable", t);
+            }
+        }
+    };
+
     public CacheDownload(CacheFile file, ByteRange range,
                          HttpServletRequest req,
                          HttpServletResponse resp,
@@ -34,8 +72,6 @@ public class CacheDownload extends CacheTransfer {
 
     public void perform() throws IOException, InterruptedException {
         LOG.debug("CacheDownload.perform");
-        // allocate a transfer buffer
-        byte[] buffer = BufferCache.takeBuffer();
 
         // set content type
         httpResponse.setContentType(cacheFile.getContentType());
@@ -52,6 +88,60 @@ public class CacheDownload extends CacheTransfer {
             // determine amount of data to send
             int totalRequested = ((int) byteRange.getEnd()) - ((int) byteRange.getStart()) + 1;
 
+            try {
+                if (cacheFile.getState() == CacheFile.STATE_COMPLETE
+                        && outStream instanceof AbstractHttpConnection.Output) {
+                    // all data is there, hand the file to the connection
+                    performComplete((AbstractHttpConnection.Output) outStream, inFile, totalRequested);
+                } else {
+                    performStreaming(outStream, inFile, totalRequested);
+                }
+            } finally {
+                LOG.debug("closing inFile");
+                // close file stream
+                inFile.close();
+            }
+
+        } catch (InterruptedException e) {
+            cacheFile.downloadAborted(this);
+            // rethrow to finish the http request
+            throw e;
+        } catch (IOException e) {
+            // notify the file of the abort
+            cacheFile.downloadAborted(this);
+            // rethrow to finish the http request
+            throw e;
+        } finally {
+            // always finish the rate estimator
+            transferEnd();
+        }
+        LOG.debug("download finished");
+
+        // we are done, tell everybody
+        cacheFile.downloadFinished(this);
+    }
+
+    /**
+     * Send a range of a completed file without copying it through the heap
+     * <p/>
+     * The mapped file region is handed to the Jetty connection, which
+     * writes it to the socket directly.
+     */
+    private void performComplete(AbstractHttpConnection.Output outStream, RandomAccessFile inFile, int totalRequested) throws IOException {
+        LOG.debug("sending " + totalRequested + " mapped bytes");
+        MappedByteBuffer mapped = inFile.getChannel().map(FileChannel.MapMode.READ_ONLY, byteRange.getStart(), totalRequested);
+        outStream.sendContent(new DirectNIOBuffer(mapped, true));
+        transferProgress(totalRequested);
+    }
+
+    /**
+     * Send a range of a file that may still be uploading, waiting for data as needed
+     */
+    private void performStreaming(OutputStream outStream, RandomAccessFile inFile, int totalRequested) throws IOException, InterruptedException {
+        // allocate a transfer buffer
+        byte[] buffer = BufferPool.takeBuffer();
+
+        try {
             // seek forward to the requested range
             inFile.seek(byteRange.getStart());
 
@@ -122,30 +212,176 @@ public class CacheDownload extends CacheTransfer {
                 absolutePosition += bytesRead;
                 transferProgress(bytesRead);
             }
-            LOG.debug("closing inFile");
+        } finally {
+            // return the transfer buffer
+            BufferPool.returnBuffer(buffer);
+        }
+    }
+
+    /**
+     * Start a download that does not hold a thread while waiting for data
+     * <p/>
+     * Available data is sent on a container thread. When the download
+     * catches up with the upload it registers with the file and is resumed
+     * once the limit advances. The async context is completed when the
+     * download finishes or fails.
+     */
+    public void performAsync(AsyncContext asyncContext) {
+        LOG.debug("CacheDownload.performAsync");
+
+        mAsync = asyncContext;
+        mTotalRequested = ((int) byteRange.getEnd()) - ((int) byteRange.getStart()) + 1;
+        mAbsolutePosition = (int) byteRange.getStart();
 
-            // close file stream
-            inFile.close();
+        // set content type
+        httpResponse.setContentType(cacheFile.getContentType());
+
+        // start the download, the thread is set while a step runs
+        transferBegin(null);
+        cacheFile.downloadStarts(this);
 
+        mAsync.start(mStep);
+    }
+
+    @Override
+    public void onDataAvailable(CacheFile file) {
+        if (mWaiting.compareAndSet(true, false)) {
+            cancelWaitTimeout();
+            mAsync.start(mStep);
+        }
+    }
+
+    @Override
+    public void abort() {
+        mAborted = true;
+        super.abort();
+        if (mAsync != null && mWaiting.compareAndSet(true, false)) {
+            cancelWaitTimeout();
+            cacheFile.removeDataListener(this);
+            // let a step notice the abort and finish the request
+            mAsync.start(mStep);
+        }
+    }
+
+    /**
+     * Send what is available, then either finish or wait for more data
+     */
+    private void performStep() {
+        thread = Thread.currentThread();
+        try {
+            if (mInFile == null) {
+                mOutStream = httpResponse.getOutputStream();
+                mInFile = cacheFile.openForRandomAccess("r");
+                mInFile.seek(byteRange.getStart());
+                mBuffer = BufferPool.takeBuffer();
+            }
+
+            while (mTotalTransferred < mTotalRequested) {
+                if (mAborted || Thread.interrupted()) {
+                    throw new InterruptedException("Transfer aborted");
+                }
+
+                // abort when file becomes invalid
+                if (!cacheFile.isAlive()) {
+                    throw new InterruptedException("File no longer available");
+                }
+
+                // determine how much to transfer
+                int bytesWanted = Math.min(mTotalRequested - mTotalTransferred, mBuffer.length);
+                int wantedPosition = mAbsolutePosition + bytesWanted;
+
+                // wait for the upload unless all there is has arrived
+                if (cacheFile.getLimit() < wantedPosition && cacheFile.getState() != CacheFile.STATE_COMPLETE) {
+                    thread = null;
+                    mWaiting.set(true);
+                    scheduleWaitTimeout();
+                    if (cacheFile.addDataListener(wantedPosition, this)) {
+                        // resumed by onDataAvailable, abort or timeout
+                        return;
+                    }
+                    // data arrived or will never arrive, look again
+                    if (!mWaiting.compareAndSet(true, false)) {
+                        // aborted concurrently, a new step is on its way
+                        return;
+                    }
+                    cancelWaitTimeout();
+                    thread = Thread.currentThread();
+                    continue;
+                }
+
+                // read data from file
+                int bytesRead = mInFile.read(mBuffer, 0, bytesWanted);
+                if (bytesRead == -1) {
+                    LOG.debug("failed to read from file, bytesread= " + bytesRead);
+                    break;
+                }
+                // write to http output stream
+                mOutStream.write(mBuffer, 0, bytesRead);
+
+                // account for what we did
+                mTotalTransferred += bytesRead;
+                mAbsolutePosition += bytesRead;
+                transferProgress(bytesRead);
+            }
         } catch (InterruptedException e) {
-            cacheFile.downloadAborted(this);
-            // rethrow to finish the http request
-            throw e;
+            finishAsync(e);
+            return;
         } catch (IOException e) {
-            // notify the file of the abort
+            finishAsync(e);
+            return;
+        }
+        finishAsync(null);
+    }
+
+    private void scheduleWaitTimeout() {
+        mWaitTimeout = sWaitTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mWaiting.compareAndSet(true, false)) {
+                    cacheFile.removeDataListener(CacheDownload.this);
+                    LOG.info("Download timeout (" + mTimeout + " secs.) in state " + cacheFile.getStateString()
+                            + " for file id " + cacheFile.getFileId());
+                    mAborted = true;
+                    mAsync.start(mStep);
+                }
+            }
+        }, mTimeout, TimeUnit.SECONDS);
+    }
+
+    private void cancelWaitTimeout() {
+        ScheduledFuture<?> timeout = mWaitTimeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+
+    private void finishAsync(Exception error) {
+        thread = null;
+        if (mInFile != null) {
+            try {
+                mInFile.close();
+            } catch (IOException e) {
+                LOG.error("Error closing file", e);
+            }
+        }
+        if (mBuffer != null) {
+            BufferPool.returnBuffer(mBuffer);
+            mBuffer = null;
+        }
+        transferEnd();
+
+        // notify the file and log like a synchronous download would
+        if (error == null) {
+            cacheFile.downloadFinished(this);
+            LOG.info("GET " + httpRequest.getPathInfo() + " --- download finished, agent " + getUserAgent()
+                    + " from " + getRemoteAddr() + ", duration " + getTotalDuration());
+        } else {
             cacheFile.downloadAborted(this);
-            // rethrow to finish the http request
-            throw e;
-        } finally {
-            // always finish the rate estimator
-            transferEnd();
-            // return the transfer buffer
-            BufferCache.returnBuffer(buffer);
+            LOG.info("GET " + httpRequest.getPathInfo() + " --- download aborted, agent " + getUserAgent()
+                    + " from " + getRemoteAddr() + ": " + error.getMessage());
         }
-        LOG.debug("download finished");
 
-        // we are done, tell everybody
-        cacheFile.downloadFinished(this);
+        mAsync.complete();
     }
 
 }
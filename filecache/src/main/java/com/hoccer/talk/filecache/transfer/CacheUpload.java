@@ -11,6 +11,9 @@ import java.io.RandomAccessFile;
 
 /**
  * Active upload to the cache
+ * <p/>
+ * Each upload writes one byte range. Clients may upload several ranges
+ * of the same file in parallel, the file tracks which ranges are done.
  *
  * @author ingo
  */
@@ -27,13 +30,16 @@ public class CacheUpload extends CacheTransfer {
     }
 
     public void perform() throws IOException, InterruptedException {
+        // start the transfer, shared content is complete already
+        if (!cacheFile.uploadStarts(this)) {
+            return;
+        }
+
         // allocate a transfer buffer
-        byte[] buffer = BufferCache.takeBuffer();
+        byte[] buffer = BufferPool.takeBuffer();
 
         // start the rate estimator
         transferBegin(Thread.currentThread());
-        // start the transfer
-        cacheFile.uploadStarts(this);
 
         try {
             // get the input stream
@@ -84,8 +90,8 @@ public class CacheUpload extends CacheTransfer {
                 // inform rate estimator
                 transferProgress(bytesRead);
 
-                // update the files limit
-                cacheFile.updateLimit(absolutePosition, outFile);
+                // commit what this upload has written so far
+                cacheFile.commitRange((int) byteRange.getStart(), absolutePosition, outFile);
             }
 
             // do a final sync
@@ -106,7 +112,7 @@ public class CacheUpload extends CacheTransfer {
             // always finish the rate estimator
             transferEnd();
             // return the transfer buffer
-            BufferCache.returnBuffer(buffer);
+            BufferPool.returnBuffer(buffer);
         }
 
         // we are done, tell everybody
@@ -0,0 +1,46 @@
+package com.hoccer.talk.filecache;
+
+import com.hoccer.talk.filecache.db.MemoryBackend;
+import com.hoccer.talk.filecache.model.CacheFile;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class UploadServletTest {
+
+    @Test
+    public void testCommittedRangesGuideResume() throws Exception {
+        File data = File.createTempFile("upload", ".data");
+        RandomAccessFile raf = new RandomAccessFile(data, "rw");
+        try {
+            CacheConfiguration configuration = new CacheConfiguration();
+            configuration.setDataDirectory(data.getParent());
+            CacheFile file = new CacheFile("file", "account", "application/octet-stream", 16384);
+            file.onActivate(new MemoryBackend(configuration));
+            file.uploadStarts(null);
+            assertEquals("bytes */16384", UploadServlet.formatCommittedRanges(file));
+
+            // two parallel parts arrive, the one in between is interrupted
+            file.commitRange(4096, 8192, raf);
+            file.commitRange(0, 1024, raf);
+            assertEquals("bytes 0-1023,4096-8191/16384", UploadServlet.formatCommittedRanges(file));
+            assertEquals(1024, file.getLimit());
+
+            // the client resumes with exactly the missing parts
+            file.commitRange(8192, 16384, raf);
+            file.commitRange(1024, 4096, raf);
+            assertEquals("bytes 0-16383/16384", UploadServlet.formatCommittedRanges(file));
+            assertEquals(16384, file.getLimit());
+            assertEquals(CacheFile.STATE_COMPLETE, file.getState());
+        } finally {
+            raf.close();
+            data.delete();
+        }
+    }
+}
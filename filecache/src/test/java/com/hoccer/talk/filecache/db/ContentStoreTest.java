@@ -0,0 +1,175 @@
+package com.hoccer.talk.filecache.db;
+
+import com.hoccer.talk.filecache.CacheBackend;
+import com.hoccer.talk.filecache.CacheConfiguration;
+import com.hoccer.talk.filecache.model.CacheFile;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ContentStoreTest {
+
+    private File mDirectory;
+    private JdbcConnectionSource mConnectionSource;
+    private CacheBackend mBackend;
+    private ContentStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("contentstore", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setDataDirectory(mDirectory.getPath());
+        mBackend = new MemoryBackend(configuration);
+
+        mConnectionSource = new JdbcConnectionSource("jdbc:h2:mem:" + UUID.randomUUID());
+        mStore = new ContentStore(mBackend);
+        mStore.start(mConnectionSource);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mConnectionSource.close();
+        deleteRecursively(mDirectory);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private CacheFile createFile(String fileId, String content) throws Exception {
+        CacheFile file = new CacheFile(fileId, "account", "text/plain", content.length());
+        file.onActivate(mBackend);
+        RandomAccessFile raf = mBackend.getFileStore().open(fileId, "rw");
+        try {
+            raf.write(content.getBytes("UTF-8"));
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    private static String read(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return new String(data, "UTF-8");
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testSameContentIsShared() throws Exception {
+        CacheFile first = createFile("first", "hello");
+        CacheFile second = createFile("second", "hello");
+        CacheFile other = createFile("other", "world");
+
+        mStore.store(first);
+        mStore.store(second);
+        mStore.store(other);
+
+        String hash = first.getContentHash();
+        assertNotNull(hash);
+        assertEquals(hash, second.getContentHash());
+        assertEquals(hash, mStore.lookup("second"));
+        assertFalse(hash.equals(other.getContentHash()));
+        assertEquals(2, mStore.getBlobsStored());
+        assertEquals(1, mStore.getDeduplicated());
+        assertEquals(5, mStore.getTotalBytesSaved());
+
+        // the data of the files has gone into the blob
+        assertFalse(mBackend.getFileStore().getFile("first").exists());
+        assertFalse(mBackend.getFileStore().getFile("second").exists());
+        assertEquals("hello", read(second.getFile()));
+    }
+
+    @Test
+    public void testBlobOutlivesAllButLastReference() throws Exception {
+        CacheFile first = createFile("first", "hello");
+        CacheFile second = createFile("second", "hello");
+        mStore.store(first);
+        mStore.store(second);
+        File blob = mBackend.getContentFile(first.getContentHash());
+
+        mStore.release(first);
+        assertTrue(blob.exists());
+        assertEquals("hello", read(second.getFile()));
+        assertEquals(0, mStore.getBlobsDeleted());
+
+        // releasing the same file again must not take the reference of the other
+        mStore.release(first);
+        assertTrue(blob.exists());
+        assertEquals(0, mStore.getBlobsDeleted());
+
+        mStore.release(second);
+        assertFalse(blob.exists());
+        assertNull(mStore.lookup("second"));
+        assertEquals(1, mStore.getBlobsDeleted());
+    }
+
+    @Test
+    public void testDeletedFileIsNotStored() throws Exception {
+        CacheFile file = createFile("file", "hello");
+        file.delete();
+
+        mStore.store(file);
+        assertNull(file.getContentHash());
+        assertNull(mStore.lookup("file"));
+        assertEquals(0, mStore.getBlobsStored());
+    }
+
+    @Test
+    public void testSharedContentIsNotWritable() throws Exception {
+        CacheFile first = createFile("first", "hello");
+        CacheFile second = createFile("second", "hello");
+        mStore.store(first);
+        mStore.store(second);
+
+        assertFalse(second.uploadStarts(null));
+        assertEquals(0, second.getNumUploads());
+        try {
+            second.openForRandomAccess("rw");
+            fail("shared content opened for writing");
+        } catch (IOException e) {
+            // expected
+        }
+        RandomAccessFile raf = second.openForRandomAccess("r");
+        assertNotNull(raf);
+        raf.close();
+        assertEquals("hello", read(first.getFile()));
+    }
+
+    @Test
+    public void testFileWithOtherUploadsIsNotStored() throws Exception {
+        CacheFile file = createFile("file", "hello");
+        // the finishing upload and another one still writing
+        file.uploadStarts(null);
+        file.uploadStarts(null);
+
+        mStore.store(file);
+        assertNull(file.getContentHash());
+        assertNull(mStore.lookup("file"));
+        assertTrue(mBackend.getFileStore().getFile("file").exists());
+    }
+}
@@ -0,0 +1,81 @@
+package com.hoccer.talk.filecache.db;
+
+import com.hoccer.talk.filecache.model.CacheFile;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class ExpirySweeperTest {
+
+    /**
+     * Sweeper over files kept in memory, ids starting with "stuck" survive sweeps
+     */
+    private static class MemorySweeper extends ExpirySweeper {
+        final TreeMap<String, CacheFile> mExpired = new TreeMap<String, CacheFile>();
+        final List<String> mSwept = Collections.synchronizedList(new ArrayList<String>());
+
+        MemorySweeper() {
+            super(4, 0);
+        }
+
+        @Override
+        protected synchronized long countExpired(Date now) {
+            return mExpired.size();
+        }
+
+        @Override
+        protected synchronized List<CacheFile> queryExpired(Date now, String afterFileId, long limit) {
+            List<CacheFile> result = new ArrayList<CacheFile>();
+            for (CacheFile file : (afterFileId == null ? mExpired : mExpired.tailMap(afterFileId, false)).values()) {
+                if (result.size() == limit) {
+                    break;
+                }
+                result.add(file);
+            }
+            return result;
+        }
+
+        @Override
+        protected void sweep(CacheFile file, Date now) {
+            mSwept.add(file.getFileId());
+            if (!file.getFileId().startsWith("stuck")) {
+                synchronized (this) {
+                    mExpired.remove(file.getFileId());
+                }
+            }
+        }
+
+        void addExpired(String fileId) {
+            mExpired.put(fileId, new CacheFile(fileId, "account", "text/plain", 0));
+        }
+    }
+
+    @Test
+    public void testFilesSurvivingSweepDoNotStarveOthers() throws Exception {
+        MemorySweeper sweeper = new MemorySweeper();
+        // more stuck files than fit into a batch, sorted before the rest
+        for (int i = 0; i < 1500; i++) {
+            sweeper.addExpired(String.format("stuck-%04d", i));
+        }
+        for (int i = 0; i < 500; i++) {
+            sweeper.addExpired(String.format("valid-%04d", i));
+        }
+
+        sweeper.sweepExpired();
+
+        assertEquals(2000, sweeper.mSwept.size());
+        assertEquals(2000, sweeper.getSwept());
+        assertEquals(1500, sweeper.mExpired.size());
+        assertTrue(sweeper.mSwept.contains("valid-0499"));
+    }
+}
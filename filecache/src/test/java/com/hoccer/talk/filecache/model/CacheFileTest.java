@@ -0,0 +1,138 @@
+package com.hoccer.talk.filecache.model;
+
+import com.hoccer.talk.filecache.CacheConfiguration;
+import com.hoccer.talk.filecache.db.MemoryBackend;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class CacheFileTest {
+
+    private File mData;
+    private RandomAccessFile mRaf;
+    private CacheFile mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mData = File.createTempFile("cachefile", ".data");
+        mRaf = new RandomAccessFile(mData, "rw");
+
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setDataDirectory(mData.getParent());
+        mFile = new CacheFile("file", "account", "application/octet-stream", 300);
+        mFile.onActivate(new MemoryBackend(configuration));
+        mFile.uploadStarts(null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRaf.close();
+        mData.delete();
+    }
+
+    private static SortedMap<Integer, Integer> ranges(int... bounds) {
+        SortedMap<Integer, Integer> ranges = new TreeMap<Integer, Integer>();
+        for (int i = 0; i < bounds.length; i += 2) {
+            ranges.put(bounds[i], bounds[i + 1]);
+        }
+        return ranges;
+    }
+
+    @Test
+    public void testOverlappingRangesMerge() throws Exception {
+        mFile.commitRange(0, 100, mRaf);
+        mFile.commitRange(50, 150, mRaf);
+        assertEquals(ranges(0, 150), mFile.getCommittedRanges());
+        assertEquals(150, mFile.getLimit());
+
+        // contained in what is there already
+        mFile.commitRange(10, 20, mRaf);
+        assertEquals(ranges(0, 150), mFile.getCommittedRanges());
+    }
+
+    @Test
+    public void testAdjacentRangesMerge() throws Exception {
+        mFile.commitRange(0, 100, mRaf);
+        mFile.commitRange(100, 200, mRaf);
+        assertEquals(ranges(0, 200), mFile.getCommittedRanges());
+        assertEquals(200, mFile.getLimit());
+    }
+
+    @Test
+    public void testOutOfOrderRangesComplete() throws Exception {
+        mFile.commitRange(200, 300, mRaf);
+        mFile.commitRange(100, 150, mRaf);
+        assertEquals(ranges(100, 150, 200, 300), mFile.getCommittedRanges());
+        // nothing from the start yet
+        assertEquals(0, mFile.getLimit());
+        assertEquals(CacheFile.STATE_UPLOADING, mFile.getState());
+
+        // bridges the gap and swallows both ranges behind it
+        mFile.commitRange(0, 250, mRaf);
+        assertEquals(ranges(0, 300), mFile.getCommittedRanges());
+        assertEquals(300, mFile.getLimit());
+        assertEquals(CacheFile.STATE_COMPLETE, mFile.getState());
+    }
+
+    @Test
+    public void testRangeSpanningSeveralRanges() throws Exception {
+        mFile.commitRange(0, 10, mRaf);
+        mFile.commitRange(20, 30, mRaf);
+        mFile.commitRange(40, 50, mRaf);
+        mFile.commitRange(60, 70, mRaf);
+        mFile.commitRange(5, 45, mRaf);
+        assertEquals(ranges(0, 50, 60, 70), mFile.getCommittedRanges());
+        assertEquals(50, mFile.getLimit());
+    }
+
+    private static class CountingListener implements CacheFile.DataListener {
+        int calls;
+
+        @Override
+        public void onDataAvailable(CacheFile file) {
+            calls++;
+        }
+    }
+
+    @Test
+    public void testListenersAreCalledWhenLimitReachesTheirPosition() throws Exception {
+        CountingListener near = new CountingListener();
+        CountingListener far = new CountingListener();
+        assertTrue(mFile.addDataListener(100, near));
+        assertTrue(mFile.addDataListener(200, far));
+
+        // neither moves the limit
+        mFile.uploadStarts(null);
+        mFile.commitRange(50, 150, mRaf);
+        assertEquals(0, near.calls);
+        assertEquals(0, far.calls);
+
+        mFile.commitRange(0, 50, mRaf);
+        assertEquals(1, near.calls);
+        assertEquals(0, far.calls);
+
+        // nothing left to wait for at the limit
+        assertFalse(mFile.addDataListener(150, near));
+        assertTrue(mFile.removeDataListener(far));
+        assertFalse(mFile.removeDataListener(far));
+    }
+
+    @Test
+    public void testListenersAreCalledWhenFileIsDeleted() throws Exception {
+        CountingListener listener = new CountingListener();
+        assertTrue(mFile.addDataListener(100, listener));
+        mFile.delete();
+        assertEquals(1, listener.calls);
+        assertFalse(mFile.removeDataListener(listener));
+    }
+}
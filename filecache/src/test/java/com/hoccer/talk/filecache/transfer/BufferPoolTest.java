@@ -0,0 +1,118 @@
+package com.hoccer.talk.filecache.transfer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class BufferPoolTest {
+
+    private static final int LARGEST = BufferPool.SIZE_CLASSES.length - 1;
+
+    /** Run on a fresh thread so the caches of this one do not interfere */
+    private static void onNewThread(final Runnable runnable) throws Exception {
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+    }
+
+    @Test
+    public void testSizes() throws Exception {
+        assertEquals(BufferPool.DEFAULT_SIZE, BufferPool.takeBuffer().length);
+        assertEquals(BufferPool.SIZE_CLASSES[0], BufferPool.takeBuffer(1).length);
+        assertEquals(BufferPool.SIZE_CLASSES[1], BufferPool.takeBuffer(BufferPool.SIZE_CLASSES[0] + 1).length);
+        // larger than any class, allocated as requested
+        int oversized = BufferPool.SIZE_CLASSES[LARGEST] + 1;
+        assertEquals(oversized, BufferPool.takeBuffer(oversized).length);
+    }
+
+    @Test
+    public void testReturnedBufferIsReusedByThread() throws Exception {
+        onNewThread(new Runnable() {
+            @Override
+            public void run() {
+                int inFlight = BufferPool.getInFlight();
+                byte[] buffer = BufferPool.takeBuffer();
+                assertEquals(inFlight + 1, BufferPool.getInFlight());
+                BufferPool.returnBuffer(buffer);
+                assertEquals(inFlight, BufferPool.getInFlight());
+
+                long hits = BufferPool.getHits();
+                assertSame(buffer, BufferPool.takeBuffer());
+                assertEquals(hits + 1, BufferPool.getHits());
+            }
+        });
+    }
+
+    @Test
+    public void testBuffersMoveBetweenThreadsThroughSharedStack() throws Exception {
+        final List<byte[]> buffers = new ArrayList<byte[]>();
+        onNewThread(new Runnable() {
+            @Override
+            public void run() {
+                // all but the last stay with this thread
+                for (int i = 0; i < BufferPool.LOCAL_BUFFER_COUNT + 1; i++) {
+                    buffers.add(BufferPool.takeBuffer(BufferPool.SIZE_CLASSES[0]));
+                }
+                for (byte[] buffer : buffers) {
+                    BufferPool.returnBuffer(buffer);
+                }
+            }
+        });
+        onNewThread(new Runnable() {
+            @Override
+            public void run() {
+                assertSame(buffers.get(buffers.size() - 1), BufferPool.takeBuffer(BufferPool.SIZE_CLASSES[0]));
+            }
+        });
+    }
+
+    @Test
+    public void testSharedStackIsBounded() throws Exception {
+        final int capacity = Math.max(BufferPool.LOCAL_BUFFER_COUNT,
+                BufferPool.SHARED_BYTES / BufferPool.SIZE_CLASSES[LARGEST]);
+        onNewThread(new Runnable() {
+            @Override
+            public void run() {
+                List<byte[]> buffers = new ArrayList<byte[]>();
+                for (int i = 0; i < capacity + BufferPool.LOCAL_BUFFER_COUNT + 10; i++) {
+                    buffers.add(new byte[BufferPool.SIZE_CLASSES[LARGEST]]);
+                }
+                for (byte[] buffer : buffers) {
+                    BufferPool.returnBuffer(buffer);
+                }
+                assertEquals(capacity, BufferPool.getSharedCount(LARGEST));
+            }
+        });
+    }
+
+    @Test
+    public void testOddSizesAreNotPooled() throws Exception {
+        onNewThread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] odd = new byte[BufferPool.SIZE_CLASSES[0] + 1];
+                BufferPool.returnBuffer(odd);
+                assertNotSame(odd, BufferPool.takeBuffer(odd.length));
+            }
+        });
+    }
+}
@@ -3,15 +3,25 @@ package better.jsonrpc.client;
 import better.jsonrpc.core.JsonRpcConnection;
 import better.jsonrpc.exceptions.DefaultExceptionResolver;
 import better.jsonrpc.exceptions.ExceptionResolver;
+import better.jsonrpc.util.ProtocolUtils;
+import better.jsonrpc.util.TimerWheel;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.POJONode;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A JSON-RPC client
@@ -30,6 +40,15 @@ public class JsonRpcClient {
     /** Default request timeout (msecs) */
     public static final long DEFAULT_REQUEST_TIMEOUT = 30 * 1000;
 
+    /** Resolution of request timeouts (msecs) */
+    private static final long TIMEOUT_WHEEL_TICK = 100;
+
+    /** Number of slots of the timeout wheel, one revolution covers the default timeout */
+    private static final int TIMEOUT_WHEEL_SLOTS = 512;
+
+    /** Wheel timing out requests of all clients, created on first use */
+    private static TimerWheel<JsonRpcClientRequest> sTimeoutWheel;
+
     /** Global logger for clients */
 	private static final Logger LOG = Logger.getLogger(JsonRpcClient.class);
 
@@ -79,9 +98,21 @@ public class JsonRpcClient {
     /** Exception converter */
 	private ExceptionResolver mExceptionResolver = DefaultExceptionResolver.INSTANCE;
 
-    /** Table of outstanding requests */
-    private Hashtable<String, JsonRpcClientRequest> mOutstandingRequests =
-            new Hashtable<String, JsonRpcClientRequest>();
+    /** Outstanding requests by connection and request id */
+    private final ConcurrentMap<JsonRpcConnection, ConcurrentMap<String, JsonRpcClientRequest>> mOutstandingRequests =
+            new ConcurrentHashMap<JsonRpcConnection, ConcurrentMap<String, JsonRpcClientRequest>>();
+
+    /** Number of outstanding requests of this client */
+    private final AtomicInteger mOutstandingCount = new AtomicInteger();
+
+    /** Number of timeouts of this client, never reset */
+    private final AtomicLong mTotalTimeoutCount = new AtomicLong();
+
+    /** Number of outstanding requests of all clients */
+    private static final AtomicInteger sOutstandingCount = new AtomicInteger();
+
+    /** Number of timeouts of all clients */
+    private static final AtomicLong sTimeoutCount = new AtomicLong();
 
     private Date mLastRequestDate = null;
     private String mLastMethodName = null;
@@ -194,6 +225,26 @@ public class JsonRpcClient {
         return mLastRequestTimeoutOccurred;
     }
 
+    /** Returns the number of requests waiting for a response */
+    public int getOutstandingRequestCount() {
+        return mOutstandingCount.get();
+    }
+
+    /** Returns the number of timeouts since this client was created */
+    public long getTotalRequestTimeoutCount() {
+        return mTotalTimeoutCount.get();
+    }
+
+    /** Returns the number of requests of all clients waiting for a response */
+    public static int getGlobalOutstandingRequestCount() {
+        return sOutstandingCount.get();
+    }
+
+    /** Returns the number of timeouts of all clients */
+    public static long getGlobalRequestTimeoutCount() {
+        return sTimeoutCount.get();
+    }
+
     private synchronized void responseReceived(JsonRpcClientRequest request) {
         mLastResponseOccurred = new Date(request.getTimeFinished());
         mLastResponseTime = request.getTimeFinished() - request.getTimeStarted();
@@ -201,7 +252,7 @@ public class JsonRpcClient {
         mRequestTimeoutCountSinceLastSuccess = 0;
         mRequestSuccessCount++;
         LOG.debug("responseReceived: responseTime:"+mLastResponseTime+", averageResponseTime:"+String.format("%.2f",mAverageResponseTime)+
-                " ms , outstanding:"+mOutstandingRequests.size()+", successes:"+mRequestSuccessCount+", failures:"+mRequestFailureCount+", timeouts:" +mRequestTimeoutCount);
+                " ms , outstanding:"+mOutstandingCount.get()+", successes:"+mRequestSuccessCount+", failures:"+mRequestFailureCount+", timeouts:" +mRequestTimeoutCount);
 
     }
 
@@ -209,6 +260,8 @@ public class JsonRpcClient {
         mLastRequestFailureOccurred = new Date(request.getTimeFailed());
         mLastFailureTime = request.getTimeFailed() - request.getTimeStarted();
         if (request.timeoutOccured()) {
+            mTotalTimeoutCount.incrementAndGet();
+            sTimeoutCount.incrementAndGet();
             mLastRequestTimeoutOccurred = new Date(request.getTimeFailed());
             mRequestTimeoutCount++;
             mRequestTimeoutCountSinceLastSuccess++;
@@ -216,7 +269,7 @@ public class JsonRpcClient {
         mAverageFailureTime = 0.9 * mAverageFailureTime + 0.1 * mLastFailureTime;
 
         LOG.debug("responseFailed: timeout:"+request.timeoutOccured()+"failureTime:"+mLastFailureTime+", mAverageFailureTime:"+String.format("%.2f",mAverageFailureTime)+
-                " ms, outstanding:"+mOutstandingRequests.size()+", timeouts since last success:"+mRequestTimeoutCountSinceLastSuccess+", failures:"+mRequestFailureCount+", timeouts:" +mRequestTimeoutCount);
+                " ms, outstanding:"+mOutstandingCount.get()+", timeouts since last success:"+mRequestTimeoutCountSinceLastSuccess+", failures:"+mRequestFailureCount+", timeouts:" +mRequestTimeoutCount);
 
         if (!isResponsive()) {
             LOG.warn("Client not responsive, disconnecting");
@@ -249,6 +302,7 @@ public class JsonRpcClient {
      * Handle binding to a connection
      */
     public void bindConnection(JsonRpcConnection connection) {
+        mOutstandingRequests.putIfAbsent(connection, new ConcurrentHashMap<String, JsonRpcClientRequest>());
         connection.addListener(mConnectionListener);
     }
 
@@ -257,6 +311,10 @@ public class JsonRpcClient {
      */
     public void unbindConnection(JsonRpcConnection connection) {
         connection.removeListener(mConnectionListener);
+        Map<String, JsonRpcClientRequest> requests = mOutstandingRequests.remove(connection);
+        if (requests != null) {
+            disconnectRequests(requests);
+        }
     }
 
     /**
@@ -265,7 +323,7 @@ public class JsonRpcClient {
     public void sendRequest(JsonRpcConnection connection, ObjectNode request) throws Exception {
         // log request
         if (LOG.isDebugEnabled()) {
-            LOG.debug("RPC-Request -> [" + connection.getConnectionId() + "] " + request.toString());
+            LOG.debug("RPC-Request -> [" + connection.getConnectionId() + "] " + ProtocolUtils.describe(request));
         }
         JsonNode methodNode = request.get("method");
         mLastMethodName = (methodNode != null && !methodNode.isNull()) ? methodNode.asText() : null;
@@ -280,7 +338,7 @@ public class JsonRpcClient {
     public void sendNotification(JsonRpcConnection connection, ObjectNode notification) throws Exception {
         // log notification
         if (LOG.isDebugEnabled()) {
-            LOG.debug("RPC-Notification -> [" + connection.getConnectionId() + "] " + notification.toString());
+            LOG.debug("RPC-Notification -> [" + connection.getConnectionId() + "] " + ProtocolUtils.describe(notification));
         }
         JsonNode methodNode = notification.get("method");
         mLastMethodName = (methodNode != null && !methodNode.isNull()) ? methodNode.asText() : null;
@@ -298,35 +356,79 @@ public class JsonRpcClient {
      * @param connection
      */
     private void handleConnectionChange(JsonRpcConnection connection) {
-        synchronized (mOutstandingRequests) {
-            // vector to collect matched requests into
-            Vector<JsonRpcClientRequest> matches = new Vector<JsonRpcClientRequest>();
-            // for every outstanding request
-            Enumeration<JsonRpcClientRequest> reqs = mOutstandingRequests.elements();
-            while(reqs.hasMoreElements()) {
-                JsonRpcClientRequest req = reqs.nextElement();
-                // if the request belongs to the changed connection
-                if(req.getConnection() == connection) {
-                    // unblock the requestor
-                    req.handleDisconnect();
-                    // and remember the request
-                    matches.add(req);
-                }
-            }
-            // for all relevant requests
-            for(JsonRpcClientRequest req: matches) {
-                // remove request from table
-                mOutstandingRequests.remove(req.getId());
+        // swap in an empty table, leaving the old one to us alone
+        Map<String, JsonRpcClientRequest> requests =
+                mOutstandingRequests.replace(connection, new ConcurrentHashMap<String, JsonRpcClientRequest>());
+        if (requests != null) {
+            disconnectRequests(requests);
+        }
+    }
+
+    /**
+     * Unblock the requestors of all given requests
+     */
+    private void disconnectRequests(Map<String, JsonRpcClientRequest> requests) {
+        for (JsonRpcClientRequest req : requests.values()) {
+            req.handleDisconnect();
+        }
+    }
+
+    /**
+     * Returns the table of outstanding requests of the given connection
+     */
+    private ConcurrentMap<String, JsonRpcClientRequest> getRequestTable(JsonRpcConnection connection) {
+        ConcurrentMap<String, JsonRpcClientRequest> requests = mOutstandingRequests.get(connection);
+        if (requests == null) {
+            // calls through a connection that was never bound
+            ConcurrentMap<String, JsonRpcClientRequest> created = new ConcurrentHashMap<String, JsonRpcClientRequest>();
+            requests = mOutstandingRequests.putIfAbsent(connection, created);
+            if (requests == null) {
+                requests = created;
             }
         }
+        return requests;
     }
 
+    /**
+     * Returns the wheel timing out requests of all clients
+     */
+    private static synchronized TimerWheel<JsonRpcClientRequest> getTimeoutWheel() {
+        if (sTimeoutWheel == null) {
+            final TimerWheel<JsonRpcClientRequest> wheel = new TimerWheel<JsonRpcClientRequest>(
+                    TIMEOUT_WHEEL_SLOTS, TIMEOUT_WHEEL_TICK, System.currentTimeMillis()) {
+                @Override
+                protected void expire(JsonRpcClientRequest request, int slot) {
+                    request.handleTimeout();
+                }
+            };
+            ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jsonrpc-timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            ticker.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        wheel.advanceTo(System.currentTimeMillis());
+                    } catch (Throwable t) {
+                        LOG.error("caught and swallowed exception escaping runnable", t);
+                    }
+                }
+            }, TIMEOUT_WHEEL_TICK, TIMEOUT_WHEEL_TICK, TimeUnit.MILLISECONDS);
+            sTimeoutWheel = wheel;
+        }
+        return sTimeoutWheel;
+    }
 
     /**
      * Invoke the method specified via the given connection
      *
-     * Requests submitted via this method may block and will
-     * be tracked by the client in its outstanding request table.
+     * Requests submitted via this method block until they are done
+     * and will be tracked by the client in its outstanding request table.
      *
      * @param methodName
      * @param arguments
@@ -337,9 +439,25 @@ public class JsonRpcClient {
      */
 	public Object invokeMethod(String methodName, Object arguments, Type returnType, JsonRpcConnection connection)
 		throws Throwable {
-        Object result = null;
+        return invokeMethodAsync(methodName, arguments, returnType, connection).await();
+	}
+
+    /**
+     * Invoke the method specified via the given connection without blocking
+     *
+     * The request is tracked by the client in its outstanding request table
+     * and timed out by a shared timer wheel, so any number of calls can be
+     * in flight without holding a thread each.
+     *
+     * @param methodName
+     * @param arguments
+     * @param returnType
+     * @param connection
+     * @return future of the remote return value
+     */
+    public JsonRpcClientFuture<Object> invokeMethodAsync(final String methodName, Object arguments, final Type returnType, JsonRpcConnection connection) {
         // generate request id
-        String id = generateId();
+        final String id = generateId();
         // log about call
         if (LOG.isTraceEnabled()) {
             LOG.trace("[" + id + "] calling " + methodName);
@@ -348,40 +466,65 @@ public class JsonRpcClient {
         ObjectNode requestNode = createRequest(methodName, arguments, id, connection);
         // construct the request state object
         JsonRpcClientRequest request = new JsonRpcClientRequest(id, requestNode, connection);
+        final JsonRpcClientFuture<Object> future = new JsonRpcClientFuture<Object>(request);
+        request.mCompletionListener = new JsonRpcClientRequest.CompletionListener() {
+            @Override
+            public void onComplete(JsonRpcClientRequest request) {
+                completeRequest(request, methodName, returnType, future);
+            }
+        };
         // add the request to client state
-        synchronized (mOutstandingRequests) {
-            mOutstandingRequests.put(id, request);
-        }
-        // request execution
+        request.mTimeStarted = System.currentTimeMillis();
+        request.mTimeoutEntry = getTimeoutWheel().schedule(request, request.mTimeStarted + mRequestTimeout);
+        getRequestTable(connection).put(id, request);
+        mOutstandingCount.incrementAndGet();
+        sOutstandingCount.incrementAndGet();
+        // send request
         try {
-            // send request
             sendRequest(connection, requestNode);
-            // wait for response or other result
-            result = request.waitForResponse(returnType);
-            responseReceived(request);
+        } catch (Throwable t) {
+            // fail with the original exception, then abort the request
+            future.fail(t);
+            request.handleException(t);
+        }
+        return future;
+    }
+
+    /**
+     * Finish a request that is done, handing its result to the future
+     */
+    private void completeRequest(JsonRpcClientRequest request, String methodName, Type returnType, JsonRpcClientFuture<Object> future) {
+        String id = request.getId();
+        // remove request from client state
+        Map<String, JsonRpcClientRequest> requests = mOutstandingRequests.get(request.getConnection());
+        if (requests != null) {
+            requests.remove(id);
+        }
+        mOutstandingCount.decrementAndGet();
+        sOutstandingCount.decrementAndGet();
+        TimerWheel.Entry<JsonRpcClientRequest> timeoutEntry = request.mTimeoutEntry;
+        if (timeoutEntry != null) {
+            getTimeoutWheel().cancel(timeoutEntry);
+        }
+        Object result;
+        try {
+            result = request.decodeResponse(returnType);
         } catch (Throwable t) {
             responseFailed(request);
             // log about exception
             if (LOG.isTraceEnabled()) {
                 LOG.trace("[" + id + "] call to " + methodName + " throws", t);
             }
-            // abort the request
-            request.handleException(t);
-            // rethrow for library user to handle
-            throw t;
-        } finally {
-            // remove request from client state
-            synchronized (mOutstandingRequests) {
-                mOutstandingRequests.remove(id);
-            }
+            future.fail(t);
+            return;
         }
+        responseReceived(request);
         // log about return
         if (LOG.isTraceEnabled()) {
             LOG.trace("[" + id + "] returning from " + methodName);
         }
-        // return final result
-        return result;
-	}
+        future.succeed(result);
+    }
 
     /**
      * Invoke the method specified via the given connection
@@ -438,12 +581,10 @@ public class JsonRpcClient {
                 LOG.debug("RPC-Response <- [" + connection.getConnectionId() + "] " + response.toString());
             }
             // retrieve the request from the client table
-            JsonRpcClientRequest req = null;
-            synchronized (mOutstandingRequests) {
-                req = mOutstandingRequests.get(id);
-            }
+            Map<String, JsonRpcClientRequest> requests = mOutstandingRequests.get(connection);
+            JsonRpcClientRequest req = requests == null ? null : requests.get(id);
             // if there was an actual request
-			if(req != null && req.getConnection() == connection) {
+			if(req != null) {
                 // handle the response, unblocking the requestor
 				req.handleResponse(response);
                 // we have handled the request
@@ -483,28 +624,40 @@ public class JsonRpcClient {
         if (arguments!=null && arguments.getClass().isArray()) {
             Object[] args = Object[].class.cast(arguments);
             if (args.length>0) {
-                request.put("params", mapper.valueToTree(Object[].class.cast(arguments)));
+                request.put("params", toParamsNode(arguments, connection));
             }
 
             // collection args
         } else if (arguments!=null && Collection.class.isInstance(arguments)) {
             if (!Collection.class.cast(arguments).isEmpty()) {
-                request.put("params", mapper.valueToTree(arguments));
+                request.put("params", toParamsNode(arguments, connection));
             }
 
             // map args
         } else if (arguments!=null && Map.class.isInstance(arguments)) {
             if (!Map.class.cast(arguments).isEmpty()) {
-                request.put("params", mapper.valueToTree(arguments));
+                request.put("params", toParamsNode(arguments, connection));
             }
 
             // other args
         } else if (arguments!=null) {
-            request.put("params", mapper.valueToTree(arguments));
+            request.put("params", toParamsNode(arguments, connection));
         }
 
         // return the request
         return request;
     }
 
+    /**
+     * Converts arguments for a request
+     * <p/>
+     * Streaming connections serialize them when the request is sent.
+     */
+    private JsonNode toParamsNode(Object arguments, JsonRpcConnection connection) {
+        if (connection.isStreamingCodec()) {
+            return new POJONode(arguments);
+        }
+        return connection.getMapper().valueToTree(arguments);
+    }
+
 }
@@ -0,0 +1,18 @@
+package better.jsonrpc.client;
+
+/**
+ * Callback for the result of an asynchronous JSON-RPC call
+ *
+ * Callbacks run on the thread that completes the call, which is
+ * the thread receiving the response, the timeout thread or the
+ * thread closing the connection. They should return quickly.
+ */
+public interface JsonRpcClientCallback<T> {
+
+    /** Called with the result of a successful call */
+    void onSuccess(T result);
+
+    /** Called with the reason of a failed call */
+    void onFailure(Throwable cause);
+
+}
@@ -0,0 +1,180 @@
+package better.jsonrpc.client;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending result of an asynchronous JSON-RPC call
+ *
+ * Completed by the client when the response arrives, the request
+ * times out or the connection goes away. Failures are the same
+ * exceptions a blocking call would throw.
+ */
+public class JsonRpcClientFuture<T> implements Future<T> {
+
+    private static final Logger LOG = Logger.getLogger(JsonRpcClientFuture.class);
+
+    /** Request this is the result of */
+    private final JsonRpcClientRequest mRequest;
+
+    /** Released on completion */
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /** Callbacks waiting for completion, guarded by this */
+    private final List<JsonRpcClientCallback<? super T>> mCallbacks =
+            new ArrayList<JsonRpcClientCallback<? super T>>();
+
+    /** Guarded by this */
+    private boolean mCompleted;
+
+    private T mResult;
+    private Throwable mFailure;
+
+    JsonRpcClientFuture(JsonRpcClientRequest request) {
+        mRequest = request;
+    }
+
+    /** Returns the request this is the result of */
+    public JsonRpcClientRequest getRequest() {
+        return mRequest;
+    }
+
+    /**
+     * Add a callback for the result
+     *
+     * The callback is called immediately if the call is already done.
+     */
+    public void addCallback(JsonRpcClientCallback<? super T> callback) {
+        synchronized (this) {
+            if (!mCompleted) {
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        notifyCallback(callback);
+    }
+
+    void succeed(T result) {
+        complete(result, null);
+    }
+
+    void fail(Throwable failure) {
+        complete(null, failure);
+    }
+
+    private void complete(T result, Throwable failure) {
+        List<JsonRpcClientCallback<? super T>> callbacks;
+        synchronized (this) {
+            if (mCompleted) {
+                return;
+            }
+            mCompleted = true;
+            mResult = result;
+            mFailure = failure;
+            callbacks = new ArrayList<JsonRpcClientCallback<? super T>>(mCallbacks);
+            mCallbacks.clear();
+        }
+        mDone.countDown();
+        for (JsonRpcClientCallback<? super T> callback : callbacks) {
+            notifyCallback(callback);
+        }
+    }
+
+    private void notifyCallback(JsonRpcClientCallback<? super T> callback) {
+        try {
+            if (mFailure == null) {
+                callback.onSuccess(mResult);
+            } else {
+                callback.onFailure(mFailure);
+            }
+        } catch (Throwable t) {
+            LOG.error("caught and swallowed exception escaping callback", t);
+        }
+    }
+
+    /**
+     * Abort the call
+     *
+     * A response arriving later is dropped.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        CancellationException cancellation = new CancellationException();
+        synchronized (this) {
+            if (mCompleted) {
+                return false;
+            }
+        }
+        fail(cancellation);
+        mRequest.handleException(cancellation);
+        return isCancelled();
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mFailure instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mCompleted;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    /**
+     * Wait for the result like a blocking call
+     *
+     * Interrupts do not abort the wait, the call is limited
+     * by the request timeout. Failures are thrown unwrapped.
+     */
+    T await() throws Throwable {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mFailure != null) {
+            throw mFailure;
+        }
+        return mResult;
+    }
+
+    private T report() throws ExecutionException {
+        if (mFailure instanceof CancellationException) {
+            throw (CancellationException) mFailure;
+        }
+        if (mFailure != null) {
+            throw new ExecutionException(mFailure);
+        }
+        return mResult;
+    }
+
+}
@@ -2,6 +2,7 @@ package better.jsonrpc.client;
 
 import better.jsonrpc.core.JsonRpcConnection;
 import better.jsonrpc.exceptions.DefaultExceptionResolver;
+import better.jsonrpc.util.TimerWheel;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -11,7 +12,6 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import java.lang.reflect.Type;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -23,6 +23,9 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * They therefore also contain a considerable part of call logic.
  *
+ * A request is done once it got a response, timed out, failed
+ * or lost its connection. Only the first of these counts.
+ *
  */
 public class JsonRpcClientRequest {
 
@@ -57,6 +60,16 @@ public class JsonRpcClientRequest {
     long mTimeFailed;
     boolean mTimeoutOccured;
 
+    /** Listener notified once when the request is done */
+    interface CompletionListener {
+        void onComplete(JsonRpcClientRequest request);
+    }
+
+    /** Listener for completion, set before the request is sent */
+    volatile CompletionListener mCompletionListener;
+    /** Entry of this request on the timeout wheel */
+    volatile TimerWheel.Entry<JsonRpcClientRequest> mTimeoutEntry;
+
     /** Constructs a client request */
     public JsonRpcClientRequest(String id, ObjectNode request, JsonRpcConnection connection) {
         if (connection == null) {
@@ -113,32 +126,62 @@ public class JsonRpcClientRequest {
 
     /** Should be called when underlying connection fails */
     public void handleDisconnect() {
+        boolean completed = false;
         mLock.lock();
         try {
             if (!isDone()) {
                 mDisconnected = true;
                 mCondition.signalAll();
+                completed = true;
             }
         } finally {
             mLock.unlock();
         }
+        if (completed) {
+            notifyCompletion();
+        }
     }
 
     /** Should be called on IO errors, timeouts and other such local abort causes */
     public void handleException(Throwable exception) {
+        boolean completed = false;
         mLock.lock();
         try {
             if (!isDone()) {
                 mException = exception;
                 mCondition.signalAll();
+                completed = true;
             }
         } finally {
             mLock.unlock();
         }
+        if (completed) {
+            notifyCompletion();
+        }
+    }
+
+    /** Should be called when the request timeout has passed */
+    public void handleTimeout() {
+        boolean completed = false;
+        mLock.lock();
+        try {
+            if (!isDone()) {
+                mTimeoutOccured = true;
+                mException = new JsonRpcClientTimeout();
+                mCondition.signalAll();
+                completed = true;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (completed) {
+            notifyCompletion();
+        }
     }
 
     /** Should be called when a matching response has been received */
     public void handleResponse(ObjectNode response) {
+        boolean completed = false;
         LOG.trace("handleResponse id="+response.get("id")+" before lock "+mLock+" thread "+Thread.currentThread());
         mLock.lock();
         LOG.trace("handleResponse id="+response.get("id")+" acquired lock "+mLock+" thread "+Thread.currentThread());
@@ -147,6 +190,7 @@ public class JsonRpcClientRequest {
                 mResponse = response;
                 LOG.trace("handleResponse id="+response.get("id")+" signaling  condition "+mCondition+" thread "+Thread.currentThread());
                 mCondition.signalAll();
+                completed = true;
             } else {
                 LOG.trace("handleResponse id="+response.get("id")+" not signalling, mDisconnected="+mDisconnected+"mResponse != null="+(mResponse != null)+"mException="+mException+", thread "+Thread.currentThread());
 
@@ -155,53 +199,45 @@ public class JsonRpcClientRequest {
             LOG.trace("handleResponse id="+response.get("id")+" unlocking lock "+mLock+" thread "+Thread.currentThread());
             mLock.unlock();
         }
+        if (completed) {
+            notifyCompletion();
+        }
+    }
+
+    private void notifyCompletion() {
+        CompletionListener listener = mCompletionListener;
+        if (listener != null) {
+            listener.onComplete(this);
+        }
     }
 
     /**
-     * Wait for this request to finish and take appropriate action
+     * Take appropriate action for a finished request
      *
      * This will throw exceptions as resolved by the error resolver.
      *
      * If none occur, the return value of the RPC call is returned.
      *
-     * This call will block, limited by the request timeout.
+     * Must only be called once the request is done.
      */
-    public Object waitForResponse(Type returnType) throws Throwable {
-        LOG.trace("waitForResponse type="+returnType+" request id='"+mRequest.get("id")+"', locking lock "+mLock+" thread "+Thread.currentThread());
+    Object decodeResponse(Type returnType) throws Throwable {
         mLock.lock();
         try {
-            // wait until done or timeout is reached
-            mTimeStarted = System.currentTimeMillis();
-            long timeout =  mTimeStarted + mClient.getRequestTimeout();
-            while (!isDone()) {
-                // recompute time left
-                long timeLeft = timeout - System.currentTimeMillis();
-                // throw on timeout
-                if (timeLeft <= 0) {
-                    mTimeoutOccured = true;
-                    mException = new JsonRpcClientTimeout();
-                    mCondition.signalAll();
-                    throw mException;
-                }
-                // wait for state changes
-                try {
-                    LOG.trace("waitForResponse type="+returnType+" request id="+mRequest.get("id")+", wait for condition "+mCondition+" thread "+Thread.currentThread()+", timeLeft="+timeLeft);
-                    mCondition.await(timeLeft, TimeUnit.MILLISECONDS);
-                    LOG.trace("waitForResponse type="+returnType+" request id="+mRequest.get("id")+", awake from condition "+mCondition+" thread "+Thread.currentThread()+", timeLeft="+(timeout - System.currentTimeMillis()));
-                } catch (InterruptedException e) {
-                    LOG.trace("waitForResponse type="+returnType+" request id="+mRequest.get("id")+", interrupted exception: "+e+" thread "+Thread.currentThread()+", timeLeft="+(timeout - System.currentTimeMillis()));
-                }
+            // throw if we timed out
+            if (mTimeoutOccured) {
+                LOG.trace("decodeResponse type="+returnType+" timeout, thread "+Thread.currentThread());
+                throw mException;
             }
 
             // throw if we got disconnected
             if (mDisconnected) {
-                LOG.trace("waitForResponse type="+returnType+" disconnected, thread "+Thread.currentThread());
+                LOG.trace("decodeResponse type="+returnType+" disconnected, thread "+Thread.currentThread());
                 throw new JsonRpcClientDisconnect();
             }
 
             // detect rpc failures
             if (mException != null) {
-                LOG.trace("waitForResponse type="+returnType+" exception:"+mException+", thread "+Thread.currentThread());
+                LOG.trace("decodeResponse type="+returnType+" exception:"+mException+", thread "+Thread.currentThread());
                 throw new RuntimeException("JSON-RPC failure", mException);
             }
 
@@ -211,7 +247,7 @@ public class JsonRpcClientRequest {
             if (mResponse.has("error")
                     && mResponse.get("error") != null
                     && !mResponse.get("error").isNull()) {
-                LOG.trace("waitForResponse type="+returnType+" error:"+mResponse.get("error")+", thread "+Thread.currentThread());
+                LOG.trace("decodeResponse type="+returnType+" error:"+mResponse.get("error")+", thread "+Thread.currentThread());
                 // resolve and throw the exception
                 if (mClient.getExceptionResolver() == null) {
                     throw DefaultExceptionResolver.INSTANCE.resolveException(mResponse);
@@ -224,7 +260,7 @@ public class JsonRpcClientRequest {
             if (mResponse.has("result")
                     && !mResponse.get("result").isNull()
                     && mResponse.get("result") != null) {
-                LOG.trace("waitForResponse type="+returnType+" result:"+mResponse.get("result")+", thread "+Thread.currentThread());
+                LOG.trace("decodeResponse type="+returnType+" result:"+mResponse.get("result")+", thread "+Thread.currentThread());
                 if (returnType == null) {
                     // XXX warn
                     return null;
@@ -242,10 +278,9 @@ public class JsonRpcClientRequest {
             if (mTimeFinished == 0) {
                 mTimeFailed = System.currentTimeMillis();
             }
-            LOG.trace("waitForResponse type="+returnType+" request id='"+mRequest.get("id")+"', unlocking lock "+mLock+" thread "+Thread.currentThread());
             mLock.unlock();
         }
         return null;
     }
 
-}
\ No newline at end of file
+}
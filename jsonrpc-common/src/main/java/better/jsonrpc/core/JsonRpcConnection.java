@@ -2,6 +2,7 @@ package better.jsonrpc.core;
 
 import better.jsonrpc.client.JsonRpcClient;
 import better.jsonrpc.server.JsonRpcServer;
+import better.jsonrpc.util.ProtocolUtils;
 import better.jsonrpc.util.ProxyUtil;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -79,6 +80,13 @@ public abstract class JsonRpcConnection {
     Object mServerHandler;
 
 
+    /**
+     * Queue executing incoming requests and notifications
+     * <p/>
+     * When null they are handled on the receiving thread.
+     */
+    volatile JsonRpcRequestExecutor.Queue mRequestQueue;
+
     /**
      * Connection State listeners
      */
@@ -188,6 +196,18 @@ public abstract class JsonRpcConnection {
         mServerHandler = handler;
     }
 
+    /**
+     * Execute incoming requests and notifications with the given executor
+     * <p/>
+     * They keep their order but no longer block the receiving thread,
+     * so responses are handled while a request is running.
+     *
+     * @param executor to use, null to handle them on the receiving thread
+     */
+    public void setRequestExecutor(JsonRpcRequestExecutor executor) {
+        mRequestQueue = executor == null ? null : executor.createQueue();
+    }
+
     public Object getServerHandler() {
         if (mServerHandler == null) {
             throw new RuntimeException("Connection has no server handler (not configured for server mode)");
@@ -195,6 +215,17 @@ public abstract class JsonRpcConnection {
         return mServerHandler;
     }
 
+    /**
+     * Returns true if messages are read and written as streams
+     * <p/>
+     * Requests may then carry parameters already bound by
+     * {@link JsonRpcMessageReader}, and responses may carry
+     * results that are only serialized when they are sent.
+     */
+    public boolean isStreamingCodec() {
+        return false;
+    }
+
     /**
      * Returns true if the connection is currently connected
      */
@@ -238,7 +269,30 @@ public abstract class JsonRpcConnection {
     /**
      * Dispatch an incoming request (for subclasses to call)
      */
-    public void handleRequest(ObjectNode request) {
+    public void handleRequest(final ObjectNode request) {
+        JsonRpcRequestExecutor.Queue queue = mRequestQueue;
+        if (queue == null) {
+            processRequest(request);
+            return;
+        }
+        boolean queued = queue.offer(new Runnable() {
+            @Override
+            public void run() {
+                processRequest(request);
+            }
+        });
+        if (!queued) {
+            LOG.warn("[" + mConnectionId + "] request queue full, rejecting request id=" + request.get("id"));
+            try {
+                sendResponse(ProtocolUtils.createErrorResponse(mMapper, "2.0",
+                        ProtocolUtils.parseId(request.get("id")), -32000, "Server busy", null));
+            } catch (Exception e) {
+                LOG.error("Exception rejecting request", e);
+            }
+        }
+    }
+
+    private void processRequest(ObjectNode request) {
         LOG.trace("handleRequest id="+ request.get("id"));
         if (mServer != null) {
             try {
@@ -267,6 +321,8 @@ public abstract class JsonRpcConnection {
 
     /**
      * Dispatch an incoming response (for subclasses to call)
+     * <p/>
+     * Responses are always handled on the receiving thread.
      */
     public void handleResponse(ObjectNode response) {
         LOG.trace("handleResponse id="+ response.get("id"));
@@ -294,7 +350,24 @@ public abstract class JsonRpcConnection {
     /**
      * Dispatch an incoming notification (for subclasses to call)
      */
-    public void handleNotification(ObjectNode notification) {
+    public void handleNotification(final ObjectNode notification) {
+        JsonRpcRequestExecutor.Queue queue = mRequestQueue;
+        if (queue == null) {
+            processNotification(notification);
+            return;
+        }
+        boolean queued = queue.offer(new Runnable() {
+            @Override
+            public void run() {
+                processNotification(notification);
+            }
+        });
+        if (!queued) {
+            LOG.warn("[" + mConnectionId + "] request queue full, dropping notification " + notification.get("method"));
+        }
+    }
+
+    private void processNotification(ObjectNode notification) {
         if (mServer != null) {
             try {
                 for (ConnectionEventListener l : mConnectionEventListeners) {
@@ -0,0 +1,67 @@
+package better.jsonrpc.core;
+
+import better.jsonrpc.server.JsonRpcBoundParams;
+import better.jsonrpc.server.JsonRpcServer;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+/**
+ * Streaming reader for JSON-RPC messages
+ * <p/>
+ * Reads the envelope of a message field by field. When the method of a
+ * request is known before its params, the params are bound directly to
+ * the parameter types of the method instead of being built as a tree
+ * and converted afterwards. Everything else is read as a tree.
+ * <p/>
+ * Messages that can not be bound are left to the caller, which reads
+ * them as a tree again so that errors are reported as before.
+ */
+public class JsonRpcMessageReader {
+
+    /**
+     * Read a message
+     *
+     * @param parser positioned before the message
+     * @param mapper of the connection
+     * @param server to bind params for, may be null
+     * @return the message, or null if it has to be read as a tree
+     * @throws IOException if the message is malformed or does not bind
+     */
+    public static ObjectNode readMessage(JsonParser parser, ObjectMapper mapper, JsonRpcServer server)
+            throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return null;
+        }
+        ObjectNode message = mapper.createObjectNode();
+        String methodName = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (server != null && methodName != null
+                    && token == JsonToken.START_ARRAY && "params".equals(field)) {
+                Method method = server.getBindableMethod(methodName);
+                if (method != null) {
+                    Object[] params = server.bindParams(method, parser, mapper);
+                    if (params == null) {
+                        return null;
+                    }
+                    message.putPOJO(field, new JsonRpcBoundParams(method, params));
+                    continue;
+                }
+            }
+            JsonNode value = mapper.readTree(parser);
+            message.put(field, value);
+            if ("method".equals(field) && value != null && value.isTextual()) {
+                methodName = value.asText();
+            }
+        }
+        return message;
+    }
+
+}
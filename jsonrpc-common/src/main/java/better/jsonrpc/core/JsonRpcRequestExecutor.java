@@ -0,0 +1,193 @@
+package better.jsonrpc.core;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes incoming requests of many connections on a shared pool
+ * <p/>
+ * Every connection gets its own bounded queue. Messages of one
+ * connection run one at a time in arrival order, different connections
+ * run in parallel on the pool. When a queue is full the receiving thread
+ * waits for a limited time, then the message is rejected.
+ */
+public class JsonRpcRequestExecutor {
+
+    private static final Logger LOG = Logger.getLogger(JsonRpcRequestExecutor.class);
+
+    /** Messages handled by a queue before it yields its worker to other connections */
+    private static final int BATCH_SIZE = 16;
+
+    /** Pool running the queues */
+    private final Executor mWorkers;
+
+    /** Maximum number of messages waiting per connection */
+    private final int mQueueCapacity;
+
+    /** Time a receiving thread waits for space in a full queue (msecs) */
+    private final long mMaxWaitMillis;
+
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final AtomicLong mExecuted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mQueueTimeTotal = new AtomicLong();
+
+    /**
+     * @param workers pool running the queues
+     * @param queueCapacity maximum number of messages waiting per connection
+     * @param maxWaitMillis time to wait for space in a full queue, 0 to reject at once
+     */
+    public JsonRpcRequestExecutor(Executor workers, int queueCapacity, long maxWaitMillis) {
+        mWorkers = workers;
+        mQueueCapacity = queueCapacity;
+        mMaxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Create the queue of a connection
+     */
+    public Queue createQueue() {
+        return new Queue();
+    }
+
+    /**
+     * Called with the time each message spent waiting in its queue
+     */
+    protected void queueTimeRecorded(long nanos) {
+    }
+
+    /** @return number of messages waiting in all queues */
+    public int getQueuedCount() {
+        return mQueued.get();
+    }
+
+    /** @return number of messages executed */
+    public long getExecutedCount() {
+        return mExecuted.get();
+    }
+
+    /** @return number of messages rejected because their queue was full */
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /** @return average time messages spent waiting in their queue (msecs) */
+    public double getAverageQueueTime() {
+        long executed = mExecuted.get();
+        return executed == 0 ? 0 : mQueueTimeTotal.get() / 1000000.0 / executed;
+    }
+
+    private static class Task {
+        final Runnable runnable;
+        final long enqueued = System.nanoTime();
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * Ordered queue of one connection
+     */
+    public class Queue implements Runnable {
+
+        /** Waiting messages, guarded by this */
+        private final ArrayDeque<Task> mTasks = new ArrayDeque<Task>();
+
+        /** True while the queue is submitted to or running on a worker, guarded by this */
+        private boolean mScheduled;
+
+        private Queue() {
+        }
+
+        /**
+         * Queue a message for execution
+         * <p/>
+         * Waits for space if the queue is full.
+         *
+         * @return false if the message was rejected
+         */
+        public boolean offer(Runnable runnable) {
+            Task task = new Task(runnable);
+            boolean schedule;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + mMaxWaitMillis;
+                while (mTasks.size() >= mQueueCapacity) {
+                    long timeLeft = deadline - System.currentTimeMillis();
+                    if (timeLeft <= 0) {
+                        mRejected.incrementAndGet();
+                        return false;
+                    }
+                    try {
+                        wait(timeLeft);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        mRejected.incrementAndGet();
+                        return false;
+                    }
+                }
+                mTasks.add(task);
+                mQueued.incrementAndGet();
+                schedule = !mScheduled;
+                mScheduled = true;
+            }
+            if (schedule) {
+                submit();
+            }
+            return true;
+        }
+
+        /** @return number of messages waiting in this queue */
+        public synchronized int size() {
+            return mTasks.size();
+        }
+
+        private void submit() {
+            try {
+                mWorkers.execute(this);
+            } catch (RejectedExecutionException e) {
+                LOG.warn("worker pool rejected queue, running it on the calling thread");
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Task task;
+                synchronized (this) {
+                    task = mTasks.poll();
+                    if (task == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                    // wake up receivers waiting for space
+                    notifyAll();
+                }
+                mQueued.decrementAndGet();
+                long queueTime = System.nanoTime() - task.enqueued;
+                mQueueTimeTotal.addAndGet(queueTime);
+                mExecuted.incrementAndGet();
+                queueTimeRecorded(queueTime);
+                try {
+                    task.runnable.run();
+                } catch (Throwable t) {
+                    LOG.error("caught and swallowed exception escaping runnable", t);
+                }
+            }
+            synchronized (this) {
+                if (mTasks.isEmpty()) {
+                    mScheduled = false;
+                    return;
+                }
+            }
+            // let other connections have the worker, we stay scheduled
+            submit();
+        }
+    }
+}
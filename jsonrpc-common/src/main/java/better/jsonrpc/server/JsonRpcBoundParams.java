@@ -0,0 +1,41 @@
+package better.jsonrpc.server;
+
+import better.jsonrpc.util.ProtocolUtils;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.lang.reflect.Method;
+
+/**
+ * Parameters of a request, already bound to the parameter types of its method
+ * <p/>
+ * Produced by the streaming message reader, carried in place of
+ * the params node of the request.
+ */
+public final class JsonRpcBoundParams {
+
+    private final Method mMethod;
+
+    private final Object[] mParams;
+
+    public JsonRpcBoundParams(Method method, Object[] params) {
+        mMethod = method;
+        mParams = params;
+    }
+
+    public Method getMethod() {
+        return mMethod;
+    }
+
+    /**
+     * @return the bound params, also what these serialize to
+     */
+    @JsonValue
+    public Object[] getParams() {
+        return mParams;
+    }
+
+    @Override
+    public String toString() {
+        return ProtocolUtils.describe(mParams);
+    }
+}
@@ -9,12 +9,14 @@ import better.jsonrpc.exceptions.MultipleErrorResolver;
 import better.jsonrpc.util.ProtocolUtils;
 import better.jsonrpc.util.ReflectionUtil;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.POJONode;
 import com.fasterxml.jackson.databind.type.TypeFactory;
 import org.apache.log4j.Logger;
 
@@ -68,6 +70,22 @@ public class JsonRpcServer {
      */
     private boolean mAllowLessParams = false;
 
+    /**
+     * Methods of the protocol interfaces by name
+     */
+    private final Map<String, Set<Method>> mMethodsByName = new HashMap<String, Set<Method>>();
+    /**
+     * Methods by name, indexed by number of parameters
+     * <p/>
+     * Entries are null where no method or several overloads
+     * have that number of parameters.
+     */
+    private final Map<String, Method[]> mDispatchTable = new HashMap<String, Method[]>();
+    /**
+     * Parameter types of all methods, resolved for Jackson
+     */
+    private final Map<Method, JavaType[]> mParameterTypes = new HashMap<Method, JavaType[]>();
+
     /**
      * Construct a JSON-RPC server with multiple protocols
      *
@@ -75,6 +93,7 @@ public class JsonRpcServer {
      */
     public JsonRpcServer(Class<?>[] remoteInterfaces) {
         this.mRemoteInterfaces = remoteInterfaces;
+        buildDispatchTable();
     }
 
     /**
@@ -95,6 +114,122 @@ public class JsonRpcServer {
         return mRemoteInterfaces;
     }
 
+    /**
+     * Resolve all methods of the protocol interfaces up front
+     * <p/>
+     * Requests to a method that is unique in name and number of
+     * parameters are dispatched without searching for overloads.
+     */
+    private void buildDispatchTable() {
+        for (Class<?> remoteInterface : getHandlerInterfaces()) {
+            for (Method method : remoteInterface.getMethods()) {
+                Set<Method> methods = mMethodsByName.get(method.getName());
+                if (methods == null) {
+                    methods = new HashSet<Method>();
+                    mMethodsByName.put(method.getName(), methods);
+                }
+                methods.add(method);
+            }
+        }
+
+        TypeFactory typeFactory = TypeFactory.defaultInstance();
+        for (Map.Entry<String, Set<Method>> entry : mMethodsByName.entrySet()) {
+            int maxParams = 0;
+            for (Method method : entry.getValue()) {
+                Type[] genericTypes = method.getGenericParameterTypes();
+                JavaType[] types = new JavaType[genericTypes.length];
+                for (int i = 0; i < genericTypes.length; i++) {
+                    types[i] = typeFactory.constructType(genericTypes[i]);
+                }
+                mParameterTypes.put(method, types);
+                maxParams = Math.max(maxParams, types.length);
+                try {
+                    // skip access checks on every invocation
+                    method.setAccessible(true);
+                } catch (SecurityException e) {
+                    LOG.warn("could not make method accessible: " + method, e);
+                }
+            }
+
+            Method[] byParams = new Method[maxParams + 1];
+            boolean[] overloaded = new boolean[maxParams + 1];
+            for (Method method : entry.getValue()) {
+                int numParams = method.getParameterTypes().length;
+                if (byParams[numParams] != null) {
+                    overloaded[numParams] = true;
+                }
+                byParams[numParams] = method;
+            }
+            for (int i = 0; i < byParams.length; i++) {
+                if (overloaded[i]) {
+                    byParams[i] = null;
+                }
+            }
+            mDispatchTable.put(entry.getKey(), byParams);
+        }
+    }
+
+    /**
+     * Look up the method for a request with positional parameters
+     *
+     * @return the method or null if it must be resolved by parameter types or names
+     */
+    private Method findDispatchMethod(String methodName, JsonNode paramsNode) {
+        int numParams;
+        if (paramsNode == null || paramsNode.isNull()) {
+            numParams = 0;
+        } else if (paramsNode.isArray()) {
+            numParams = paramsNode.size();
+        } else {
+            return null;
+        }
+        Method[] byParams = mDispatchTable.get(methodName);
+        if (byParams == null || numParams >= byParams.length) {
+            return null;
+        }
+        return byParams[numParams];
+    }
+
+    /**
+     * Look up the method that positional parameters of a request
+     * can be bound to while they are being read
+     *
+     * @return the method or null if the request must be read as a tree
+     */
+    public Method getBindableMethod(String methodName) {
+        if (mAllowExtraParams || mAllowLessParams) {
+            return null;
+        }
+        Set<Method> methods = mMethodsByName.get(methodName);
+        if (methods == null || methods.size() != 1) {
+            return null;
+        }
+        return methods.iterator().next();
+    }
+
+    /**
+     * Bind a params array to the parameter types of the given method
+     * <p/>
+     * The parser must be positioned at the start of the array
+     * and is left at its end.
+     *
+     * @return the parameters or null if their number does not match
+     */
+    public Object[] bindParams(Method method, JsonParser parser, ObjectMapper mapper) throws IOException {
+        JavaType[] parameterTypes = mParameterTypes.get(method);
+        Object[] params = new Object[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (parser.nextToken() == JsonToken.END_ARRAY) {
+                return null;
+            }
+            params[i] = mapper.readValue(parser, parameterTypes[i]);
+        }
+        if (parser.nextToken() != JsonToken.END_ARRAY) {
+            return null;
+        }
+        return params;
+    }
+
     private Map<String, CallInfo> mCallInfoMap = new Hashtable<String, CallInfo>();
 
     public static String methodName(ObjectNode request) {
@@ -300,10 +435,11 @@ public class JsonRpcServer {
 
                 totalCalls++;
                 totalDurationMillis += durationMillis;
+                // streamed messages hold the live params and results, keep copies
                 if (durationMillis > maxCallDuration) {
                     maxDurationConnection = connectionId;
-                    maxDurationRequestOrNotification = request;
-                    maxDurationResponse = response;
+                    maxDurationRequestOrNotification = ProtocolUtils.snapshot(request);
+                    maxDurationResponse = ProtocolUtils.snapshot(response);
                     maxDurationResponseDate = lastUpdate;
                     maxCallDuration = durationMillis;
                 }
@@ -314,7 +450,7 @@ public class JsonRpcServer {
                 rollingAverageDuration = approxRollingAverage(rollingAverageDuration, durationMillis, RUNNING_AVERAGE_WINDOW_SIZE);
                 if (isError(response)) {
                     ++errors;
-                    lastError = response;
+                    lastError = ProtocolUtils.snapshot(response);
                 }
             }
         }
@@ -418,11 +554,11 @@ public class JsonRpcServer {
     public void handleRequest(Object handler, ObjectNode node, JsonRpcConnection connection) throws Throwable {
         ObjectMapper mapper = connection.getMapper();
 
-        if (LOG.isInfoEnabled()) {
+        if (LOG.isDebugEnabled()) {
             if (node.hasNonNull("id")) {
-                LOG.debug("RPC-Request <- [" + connection.getConnectionId() + "] " + node.toString());
+                LOG.debug("RPC-Request <- [" + connection.getConnectionId() + "] " + ProtocolUtils.describe(node));
             } else {
-                LOG.debug("RPC-Notification <- [" + connection.getConnectionId() + "] " + node.toString());
+                LOG.debug("RPC-Notification <- [" + connection.getConnectionId() + "] " + ProtocolUtils.describe(node));
             }
         }
         Date start = new Date();
@@ -447,9 +583,8 @@ public class JsonRpcServer {
         Object id = ProtocolUtils.parseId(idNode);
 
         // find methods
-        Set<Method> methods = new HashSet<Method>();
-        methods.addAll(ReflectionUtil.findMethods(getHandlerInterfaces(), methodName));
-        if (methods.isEmpty()) {
+        Set<Method> methods = mMethodsByName.get(methodName);
+        if (methods == null) {
             if (id != null) {
                 connection.sendResponse(
                         ProtocolUtils.createErrorResponse(
@@ -458,8 +593,26 @@ public class JsonRpcServer {
             return;
         }
 
-        // choose a method
-        MethodAndArgs methodArgs = findBestMethodByParamsNode(methods, paramsNode);
+        // choose a method, searching only when it is ambiguous
+        MethodAndArgs methodArgs;
+        JsonRpcBoundParams boundParams = null;
+        if (paramsNode != null && paramsNode.isPojo()
+                && ((POJONode) paramsNode).getPojo() instanceof JsonRpcBoundParams) {
+            boundParams = (JsonRpcBoundParams) ((POJONode) paramsNode).getPojo();
+        }
+        Method dispatchMethod = (boundParams == null) ? findDispatchMethod(methodName, paramsNode) : null;
+        if (boundParams != null) {
+            methodArgs = new MethodAndArgs();
+            methodArgs.method = boundParams.getMethod();
+        } else if (dispatchMethod != null) {
+            methodArgs = new MethodAndArgs();
+            methodArgs.method = dispatchMethod;
+            for (int i = 0; i < dispatchMethod.getParameterTypes().length; i++) {
+                methodArgs.arguments.add(paramsNode.get(i));
+            }
+        } else {
+            methodArgs = findBestMethodByParamsNode(methods, paramsNode);
+        }
         if (methodArgs == null) {
             if (id != null) {
                 connection.sendResponse(
@@ -473,7 +626,16 @@ public class JsonRpcServer {
         JsonNode result = null;
         Throwable thrown = null;
         try {
-            result = invoke(handler, methodArgs.method, methodArgs.arguments, mapper);
+            if (boundParams != null || connection.isStreamingCodec()) {
+                Object[] params = (boundParams != null)
+                        ? boundParams.getParams()
+                        : convertParams(methodArgs.method, methodArgs.arguments, mapper);
+                Object value = methodArgs.method.invoke(handler, params);
+                // serialized straight into the outgoing message
+                result = (value != null) ? new POJONode(value) : null;
+            } else {
+                result = invoke(handler, methodArgs.method, methodArgs.arguments, mapper);
+            }
         } catch (Throwable e) {
             thrown = e;
         }
@@ -508,7 +670,7 @@ public class JsonRpcServer {
             updateCallInfo(connection.getConnectionId(), duration, node, response);
 
             if (LOG.isDebugEnabled()) {
-                LOG.debug("RPC-Response -> [" + connection.getConnectionId() + "] " + response.toString());
+                LOG.debug("RPC-Response -> [" + connection.getConnectionId() + "] " + ProtocolUtils.describe(response));
             }
 
             connection.sendResponse(response);
@@ -573,18 +735,25 @@ public class JsonRpcServer {
         }
 
         // convert the parameters
+        Object[] convertedParams = convertParams(m, params, mapper);
+
+        // invoke the method
+        Object result = m.invoke(handler, convertedParams);
+        return (m.getGenericReturnType() != null) ? mapper.valueToTree(result) : null;
+    }
+
+    /**
+     * Converts parameter nodes to the parameter types of the given method
+     */
+    protected Object[] convertParams(Method m, List<JsonNode> params, ObjectMapper mapper) throws IOException {
         Object[] convertedParams = new Object[params.size()];
-        Type[] parameterTypes = m.getGenericParameterTypes();
+        JavaType[] parameterTypes = mParameterTypes.get(m);
 
         for (int i = 0; i < parameterTypes.length; i++) {
             JsonParser paramJsonParser = mapper.treeAsTokens(params.get(i));
-            JavaType paramJavaType = TypeFactory.defaultInstance().constructType(parameterTypes[i]);
-            convertedParams[i] = mapper.readValue(paramJsonParser, paramJavaType);
+            convertedParams[i] = mapper.readValue(paramJsonParser, parameterTypes[i]);
         }
-
-        // invoke the method
-        Object result = m.invoke(handler, convertedParams);
-        return (m.getGenericReturnType() != null) ? mapper.valueToTree(result) : null;
+        return convertedParams;
     }
 
     /**
@@ -4,10 +4,51 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 
 public class ProtocolUtils {
+
+	/** Mapper for rendering messages in logs */
+	private static final ObjectMapper DESCRIBE_MAPPER = new ObjectMapper();
+
+	/**
+	 * Renders a message or value as JSON for logging.
+	 * <p/>
+	 * Unlike toString() this includes values that are
+	 * only serialized when the message is sent.
+	 * @param value the message or value
+	 * @return the JSON text
+	 */
+	public static String describe(Object value) {
+		try {
+			return DESCRIBE_MAPPER.writeValueAsString(value);
+		} catch (Exception e) {
+			return String.valueOf(value);
+		}
+	}
 	
+	/**
+	 * Copies a message into a plain tree that can be kept around.
+	 * <p/>
+	 * Values held by POJO nodes are serialized, so the copy does not
+	 * pin them and does not change when they are modified later.
+	 * @param message the message, may be null
+	 * @return the copy, or null if there is none
+	 */
+	public static ObjectNode snapshot(ObjectNode message) {
+		if (message == null) {
+			return null;
+		}
+		try {
+			// valueToTree() would keep POJOs embedded, so go through the text
+			return (ObjectNode) DESCRIBE_MAPPER.readTree(DESCRIBE_MAPPER.writeValueAsBytes(message));
+		} catch (IOException e) {
+			// not worth keeping a reference to the live values instead
+			return null;
+		}
+	}
+
 	/**
 	 * Parses an ID.
 	 * @param node
@@ -1,12 +1,15 @@
 package better.jsonrpc.util;
 
 import better.jsonrpc.client.JsonRpcClient;
+import better.jsonrpc.client.JsonRpcClientFuture;
 import better.jsonrpc.core.JsonRpcConnection;
 import org.apache.log4j.Logger;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -122,6 +125,8 @@ public abstract class ProxyUtil {
 	/**
 	 * Creates a {@link Proxy} of the given proxyInterface
 	 * that uses the given {@link JsonRpcClient}.
+	 * Methods returning a {@link JsonRpcClientFuture}
+	 * are called without blocking.
 	 * @param <T> the proxy type
 	 * @param classLoader the {@link ClassLoader}
 	 * @param proxyInterface the interface to proxy
@@ -148,6 +153,10 @@ public abstract class ProxyUtil {
 					if(isNotification) {
 						client.invokeNotification(method.getName(), arguments, connection);
 						return null;
+					} else if(method.getReturnType() == JsonRpcClientFuture.class) {
+						return client.invokeMethodAsync(
+								method.getName(), arguments,
+								getFutureResultType(method), connection);
 					} else {
 						return client.invokeMethod(
 								method.getName(), arguments,
@@ -157,4 +166,18 @@ public abstract class ProxyUtil {
 			});
 	}
 
+	/**
+	 * Returns the result type of a method returning a {@link JsonRpcClientFuture}
+	 *
+	 * @return the type argument of the future, null for Void
+	 */
+	private static Type getFutureResultType(Method method) {
+		Type returnType = method.getGenericReturnType();
+		if (!(returnType instanceof ParameterizedType)) {
+			return Object.class;
+		}
+		Type resultType = ((ParameterizedType) returnType).getActualTypeArguments()[0];
+		return resultType == Void.class ? null : resultType;
+	}
+
 }
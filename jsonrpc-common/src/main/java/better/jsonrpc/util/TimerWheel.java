@@ -0,0 +1,160 @@
+package better.jsonrpc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel for large numbers of coarse timeouts
+ * <p/>
+ * Deadlines are hashed into a fixed number of slots by their tick. Each
+ * call to {@link #advanceTo} visits the slots of the ticks that have
+ * passed and hands the expired items to {@link #expire}. Deadlines further
+ * away than one revolution wait in their slot for the remaining rounds.
+ * Scheduling and cancelling are constant time, entries are plain objects
+ * instead of scheduled futures.
+ */
+public abstract class TimerWheel<T> {
+
+    private final long mTickMillis;
+
+    private final Entry<T>[] mSlots;
+
+    private final long mStartTime;
+
+    /** Next tick to be processed, guarded by this */
+    private long mTick;
+
+    /** Number of scheduled entries, guarded by this */
+    private int mSize;
+
+    /**
+     * Handle of a scheduled item
+     */
+    public static final class Entry<T> {
+        private final T mItem;
+        private final long mDeadline;
+        private long mRounds;
+        private int mSlot = -1;
+        private Entry<T> mPrev;
+        private Entry<T> mNext;
+
+        private Entry(T item, long deadline) {
+            mItem = item;
+            mDeadline = deadline;
+        }
+
+        public T getItem() {
+            return mItem;
+        }
+
+        public long getDeadline() {
+            return mDeadline;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(int slots, long tickMillis, long startTime) {
+        mSlots = (Entry<T>[]) new Entry<?>[slots];
+        mTickMillis = tickMillis;
+        mStartTime = startTime;
+    }
+
+    /**
+     * Called for every expired item, outside of the wheel lock
+     *
+     * @param slot the item expired from
+     */
+    protected abstract void expire(T item, int slot);
+
+    /**
+     * Schedule an item to expire at the given time
+     * <p/>
+     * Deadlines in the past expire on the next tick.
+     */
+    public synchronized Entry<T> schedule(T item, long deadline) {
+        Entry<T> entry = new Entry<T>(item, deadline);
+        long tick = Math.max((deadline - mStartTime + mTickMillis - 1) / mTickMillis, mTick);
+        entry.mRounds = (tick - mTick) / mSlots.length;
+        entry.mSlot = (int) (tick % mSlots.length);
+        entry.mNext = mSlots[entry.mSlot];
+        if (entry.mNext != null) {
+            entry.mNext.mPrev = entry;
+        }
+        mSlots[entry.mSlot] = entry;
+        mSize++;
+        return entry;
+    }
+
+    /**
+     * Cancel a scheduled item
+     *
+     * @return false if the item already expired or has been cancelled
+     */
+    public synchronized boolean cancel(Entry<T> entry) {
+        if (entry.mSlot < 0) {
+            return false;
+        }
+        unlink(entry);
+        return true;
+    }
+
+    /**
+     * Expire everything due up to the given time
+     */
+    public void advanceTo(long now) {
+        List<Entry<T>> expired = new ArrayList<Entry<T>>();
+        List<Integer> expiredSlots = new ArrayList<Integer>();
+        synchronized (this) {
+            long lastTick = (now - mStartTime) / mTickMillis;
+            while (mTick <= lastTick) {
+                int slot = (int) (mTick % mSlots.length);
+                Entry<T> entry = mSlots[slot];
+                while (entry != null) {
+                    Entry<T> next = entry.mNext;
+                    if (entry.mRounds <= 0) {
+                        unlink(entry);
+                        expired.add(entry);
+                        expiredSlots.add(slot);
+                    } else {
+                        entry.mRounds--;
+                    }
+                    entry = next;
+                }
+                mTick++;
+            }
+        }
+        for (int i = 0; i < expired.size(); i++) {
+            expire(expired.get(i).mItem, expiredSlots.get(i));
+        }
+    }
+
+    /**
+     * @return number of scheduled items
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int getSlotCount() {
+        return mSlots.length;
+    }
+
+    public long getTickMillis() {
+        return mTickMillis;
+    }
+
+    private void unlink(Entry<T> entry) {
+        if (entry.mPrev != null) {
+            entry.mPrev.mNext = entry.mNext;
+        } else {
+            mSlots[entry.mSlot] = entry.mNext;
+        }
+        if (entry.mNext != null) {
+            entry.mNext.mPrev = entry.mPrev;
+        }
+        entry.mPrev = null;
+        entry.mNext = null;
+        entry.mSlot = -1;
+        mSize--;
+    }
+}
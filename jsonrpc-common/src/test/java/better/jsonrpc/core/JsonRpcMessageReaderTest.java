@@ -0,0 +1,145 @@
+package better.jsonrpc.core;
+
+import better.jsonrpc.server.JsonRpcBoundParams;
+import better.jsonrpc.server.JsonRpcServer;
+import better.jsonrpc.test.simple.SimpleRpcServer;
+import better.jsonrpc.test.simple.model.SimplePerson;
+import better.jsonrpc.test.simple.rpc.ISimpleServer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.POJONode;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class JsonRpcMessageReaderTest {
+
+    private static final String EXTRACT_ADDRESS_REQUEST =
+            "{\"jsonrpc\":\"2.0\",\"id\":7,\"method\":\"extractAddress\",\"params\":[{\"firstName\":\"Ada\","
+                    + "\"lastName\":\"Lovelace\",\"address\":{\"city\":\"London\",\"street\":\"St James's Square\",\"number\":\"12\"}}]}";
+
+    private final ObjectMapper mMapper = new ObjectMapper();
+
+    private final JsonRpcServer mServer = new JsonRpcServer(ISimpleServer.class);
+
+    private ObjectNode read(String message) throws Exception {
+        return JsonRpcMessageReader.readMessage(mMapper.getFactory().createJsonParser(message), mMapper, mServer);
+    }
+
+    @Test
+    public void testBindsParams() throws Exception {
+        ObjectNode message = read(EXTRACT_ADDRESS_REQUEST);
+        assertNotNull(message);
+        assertEquals("extractAddress", message.get("method").asText());
+        assertEquals(7, message.get("id").asInt());
+
+        JsonNode params = message.get("params");
+        assertTrue(params.isPojo());
+        JsonRpcBoundParams bound = (JsonRpcBoundParams) ((POJONode) params).getPojo();
+        assertEquals("extractAddress", bound.getMethod().getName());
+        assertEquals(1, bound.getParams().length);
+        SimplePerson person = (SimplePerson) bound.getParams()[0];
+        assertEquals("Ada", person.getFirstName());
+        assertEquals("London", person.getAddress().getCity());
+    }
+
+    @Test
+    public void testOverloadsAreReadAsTree() throws Exception {
+        String request = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"add\",\"params\":[1,2]}";
+        assertEquals(mMapper.readTree(request), read(request));
+    }
+
+    @Test
+    public void testParamsBeforeMethodAreReadAsTree() throws Exception {
+        String request = "{\"jsonrpc\":\"2.0\",\"params\":[6,7],\"id\":1,\"method\":\"mul\"}";
+        assertEquals(mMapper.readTree(request), read(request));
+    }
+
+    @Test
+    public void testResponsesAreReadAsTree() throws Exception {
+        String response = "{\"jsonrpc\":\"2.0\",\"id\":3,\"result\":{\"city\":\"London\",\"list\":[1,2.5,null,true]}}";
+        assertEquals(mMapper.readTree(response), read(response));
+    }
+
+    @Test
+    public void testParamCountMismatchIsLeftToCaller() throws Exception {
+        assertNull(read("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"mul\",\"params\":[1,2,3]}"));
+        assertNull(read("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"mul\",\"params\":[1]}"));
+    }
+
+    @Test
+    public void testBoundRequestGivesSameResponse() throws Throwable {
+        SimpleRpcServer handler = new SimpleRpcServer();
+
+        CapturingConnection treeConnection = new CapturingConnection(mMapper, false);
+        mServer.handleRequest(handler, (ObjectNode) mMapper.readTree(EXTRACT_ADDRESS_REQUEST), treeConnection);
+
+        CapturingConnection streamingConnection = new CapturingConnection(mMapper, true);
+        mServer.handleRequest(handler, read(EXTRACT_ADDRESS_REQUEST), streamingConnection);
+
+        assertEquals(1, treeConnection.responses.size());
+        assertEquals(1, streamingConnection.responses.size());
+        assertTrue(streamingConnection.responses.get(0).get("result").isPojo());
+        assertEquals(mMapper.writeValueAsString(treeConnection.responses.get(0)),
+                mMapper.writeValueAsString(streamingConnection.responses.get(0)));
+    }
+
+    @Test
+    public void testCallInfoKeepsCopiesOfBoundMessages() throws Throwable {
+        CapturingConnection connection = new CapturingConnection(mMapper, true);
+        mServer.handleRequest(new SimpleRpcServer(), read(EXTRACT_ADDRESS_REQUEST), connection);
+
+        JsonRpcServer.CallInfo callInfo = mServer.getCallInfoMapClone().get("extractAddress");
+        ObjectNode request = callInfo.getMaxDurationRequestOrNotification();
+        ObjectNode response = callInfo.getMaxDurationResponse();
+        assertFalse(request.get("params").isPojo());
+        assertFalse(response.get("result").isPojo());
+        assertEquals(mMapper.readTree(EXTRACT_ADDRESS_REQUEST), request);
+        assertEquals(mMapper.readTree(mMapper.writeValueAsString(connection.responses.get(0))), response);
+    }
+
+    private static class CapturingConnection extends JsonRpcConnection {
+        final List<ObjectNode> responses = new ArrayList<ObjectNode>();
+        final boolean streaming;
+
+        CapturingConnection(ObjectMapper mapper, boolean streaming) {
+            super(mapper);
+            this.streaming = streaming;
+        }
+
+        @Override
+        public boolean isStreamingCodec() {
+            return streaming;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean disconnect() {
+            return false;
+        }
+
+        @Override
+        public void sendRequest(ObjectNode request) {
+        }
+
+        @Override
+        public void sendResponse(ObjectNode response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void sendNotification(ObjectNode notification) {
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package better.jsonrpc.core;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class JsonRpcRequestExecutorTest {
+
+    @Test
+    public void testOrderWithinQueue() throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(8);
+        try {
+            JsonRpcRequestExecutor executor = new JsonRpcRequestExecutor(workers, 1000, 0);
+            JsonRpcRequestExecutor.Queue queue = executor.createQueue();
+            final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+            final CountDownLatch done = new CountDownLatch(100);
+            for (int i = 0; i < 100; i++) {
+                final int n = i;
+                assertTrue(queue.offer(new Runnable() {
+                    @Override
+                    public void run() {
+                        seen.add(n);
+                        done.countDown();
+                    }
+                }));
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 100; i++) {
+                assertEquals(Integer.valueOf(i), seen.get(i));
+            }
+            assertEquals(100, executor.getExecutedCount());
+            assertEquals(0, executor.getQueuedCount());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testQueuesRunInParallel() throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        try {
+            JsonRpcRequestExecutor executor = new JsonRpcRequestExecutor(workers, 10, 0);
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(1);
+            // the first queue is blocked, the second must still make progress
+            executor.createQueue().offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            executor.createQueue().offer(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            release.countDown();
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(1);
+        try {
+            JsonRpcRequestExecutor executor = new JsonRpcRequestExecutor(workers, 2, 50);
+            JsonRpcRequestExecutor.Queue queue = executor.createQueue();
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            Runnable blocker = new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            Runnable noop = new Runnable() {
+                @Override
+                public void run() {
+                }
+            };
+            assertTrue(queue.offer(blocker));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertTrue(queue.offer(noop));
+            assertTrue(queue.offer(noop));
+            assertFalse(queue.offer(noop));
+            assertEquals(1, executor.getRejectedCount());
+            assertEquals(2, queue.size());
+            release.countDown();
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+}
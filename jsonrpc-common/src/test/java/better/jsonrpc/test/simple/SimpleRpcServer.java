@@ -5,7 +5,9 @@ import better.jsonrpc.test.simple.model.SimplePerson;
 import better.jsonrpc.test.simple.rpc.ISimpleServer;
 
 import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 public class SimpleRpcServer implements ISimpleServer {
 
@@ -23,6 +25,21 @@ public class SimpleRpcServer implements ISimpleServer {
         return a + b;
     }
 
+    @Override
+    public int add(int a, int b, int c) {
+        return a + b + c;
+    }
+
+    @Override
+    public String describe(String text) {
+        return "text " + text;
+    }
+
+    @Override
+    public String describe(int number) {
+        return "number " + number;
+    }
+
     @Override
     public int mul(int a, int b) {
         return a * b;
@@ -64,4 +81,13 @@ public class SimpleRpcServer implements ISimpleServer {
         return person.getAddress();
     }
 
+    @Override
+    public List<SimpleAddress> extractAddresses(List<SimplePerson> persons) {
+        List<SimpleAddress> addresses = new ArrayList<SimpleAddress>();
+        for (SimplePerson person : persons) {
+            addresses.add(person.getAddress());
+        }
+        return addresses;
+    }
+
 }
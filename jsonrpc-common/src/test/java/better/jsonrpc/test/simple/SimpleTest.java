@@ -1,6 +1,8 @@
 package better.jsonrpc.test.simple;
 
 import better.jsonrpc.client.JsonRpcClient;
+import better.jsonrpc.client.JsonRpcClientCallback;
+import better.jsonrpc.client.JsonRpcClientFuture;
 import better.jsonrpc.client.JsonRpcClientTimeout;
 import better.jsonrpc.core.JsonRpcExecutorConnection;
 import better.jsonrpc.core.JsonRpcLocalConnection;
@@ -8,12 +10,18 @@ import better.jsonrpc.server.JsonRpcServer;
 import better.jsonrpc.test.simple.model.SimpleAddress;
 import better.jsonrpc.test.simple.model.SimplePerson;
 import better.jsonrpc.test.simple.rpc.ISimpleServer;
+import better.jsonrpc.test.simple.rpc.ISimpleServerAsync;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A simple functional test of the whole library in default configuration
@@ -27,6 +35,7 @@ public class SimpleTest {
     static JsonRpcServer server;
 
     static ISimpleServer proxy;
+    static ISimpleServerAsync asyncProxy;
 
     static {
         // create a pair of local connections
@@ -44,6 +53,7 @@ public class SimpleTest {
         client.setRequestTimeout(500);
         connectionB.bindClient(client);
         proxy = (ISimpleServer)connectionB.makeProxy(ISimpleServer.class);
+        asyncProxy = connectionB.makeProxy(ISimpleServerAsync.class);
     }
 
     @Test
@@ -58,6 +68,16 @@ public class SimpleTest {
         Assert.assertEquals(666, proxy.add(600, proxy.add(60, 6)));
     }
 
+    @Test
+    public void testOverloads() {
+        // resolved by number of parameters
+        Assert.assertEquals(5, proxy.add(2, 3));
+        Assert.assertEquals(6, proxy.add(1, 2, 3));
+        // resolved by parameter types
+        Assert.assertEquals("text 23", proxy.describe("23"));
+        Assert.assertEquals("number 23", proxy.describe(23));
+    }
+
     @Test
     public void testDate() {
         // get date
@@ -100,9 +120,90 @@ public class SimpleTest {
         Assert.assertTrue(address.equals(result));
     }
 
+    @Test
+    public void testPojoList() {
+        List<SimplePerson> persons = new ArrayList<SimplePerson>();
+        List<SimpleAddress> addresses = new ArrayList<SimpleAddress>();
+        for (int i = 0; i < 3; i++) {
+            SimpleAddress address = new SimpleAddress();
+            address.setCity("Aberdeen");
+            address.setStreet("Archer Alley");
+            address.setNumber(Integer.toString(i));
+            SimplePerson person = new SimplePerson("Alice", "Archer");
+            person.setAddress(address);
+            persons.add(person);
+            addresses.add(address);
+        }
+        List<SimpleAddress> result = proxy.extractAddresses(persons);
+        Assert.assertEquals(addresses.size(), result.size());
+        for (int i = 0; i < addresses.size(); i++) {
+            Assert.assertTrue(addresses.get(i).equals(result.get(i)));
+        }
+    }
+
     @Test(expected = JsonRpcClientTimeout.class)
     public void testTimeout() {
         proxy.timeout(5000);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testAsync() throws Exception {
+        // pipeline several calls before waiting for any of them
+        List<JsonRpcClientFuture<Integer>> futures = new ArrayList<JsonRpcClientFuture<Integer>>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(asyncProxy.add(i, i));
+        }
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(Integer.valueOf(2 * i), futures.get(i).get());
+        }
+        Assert.assertEquals(0, client.getOutstandingRequestCount());
+        Assert.assertNull(asyncProxy.ping().get());
+    }
+
+    @Test
+    public void testAsyncCallback() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger result = new AtomicInteger();
+        asyncProxy.add(20, 3).addCallback(new JsonRpcClientCallback<Integer>() {
+            @Override
+            public void onSuccess(Integer sum) {
+                result.set(sum);
+                done.countDown();
+            }
+            @Override
+            public void onFailure(Throwable cause) {
+                done.countDown();
+            }
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(23, result.get());
+    }
+
+    @Test
+    public void testAsyncPojoList() throws Exception {
+        List<SimplePerson> persons = new ArrayList<SimplePerson>();
+        SimpleAddress address = new SimpleAddress();
+        address.setCity("Aberdeen");
+        SimplePerson person = new SimplePerson("Alice", "Archer");
+        person.setAddress(address);
+        persons.add(person);
+        List<SimpleAddress> result = asyncProxy.extractAddresses(persons).get();
+        Assert.assertEquals(1, result.size());
+        Assert.assertTrue(address.equals(result.get(0)));
+    }
+
+    @Test
+    public void testAsyncTimeout() throws Exception {
+        long timeouts = client.getTotalRequestTimeoutCount();
+        JsonRpcClientFuture<Void> future = asyncProxy.timeout(5000);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("call did not time out");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof JsonRpcClientTimeout);
+        }
+        Assert.assertEquals(timeouts + 1, client.getTotalRequestTimeoutCount());
+        Assert.assertEquals(0, client.getOutstandingRequestCount());
+    }
+
+}
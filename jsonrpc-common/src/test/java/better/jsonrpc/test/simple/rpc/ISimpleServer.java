@@ -4,6 +4,7 @@ import better.jsonrpc.test.simple.model.SimpleAddress;
 import better.jsonrpc.test.simple.model.SimplePerson;
 
 import java.util.Date;
+import java.util.List;
 
 public interface ISimpleServer {
 
@@ -12,8 +13,12 @@ public interface ISimpleServer {
     String toString(Object object);
 
     int add(int a, int b);
+    int add(int a, int b, int c);
     int mul(int a, int b);
 
+    String describe(String text);
+    String describe(int number);
+
     Date inOneHour(Date from);
 
     void throwRuntimeException();
@@ -24,4 +29,6 @@ public interface ISimpleServer {
 
     SimpleAddress extractAddress(SimplePerson person);
 
+    List<SimpleAddress> extractAddresses(List<SimplePerson> persons);
+
 }
@@ -0,0 +1,19 @@
+package better.jsonrpc.test.simple.rpc;
+
+import better.jsonrpc.client.JsonRpcClientFuture;
+import better.jsonrpc.test.simple.model.SimpleAddress;
+import better.jsonrpc.test.simple.model.SimplePerson;
+
+import java.util.List;
+
+public interface ISimpleServerAsync {
+
+    JsonRpcClientFuture<Void> ping();
+
+    JsonRpcClientFuture<Integer> add(int a, int b);
+
+    JsonRpcClientFuture<Void> timeout(long msecsToBlock);
+
+    JsonRpcClientFuture<List<SimpleAddress>> extractAddresses(List<SimplePerson> persons);
+
+}
@@ -0,0 +1,68 @@
+package better.jsonrpc.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class TimerWheelTest {
+
+    private static class RecordingWheel extends TimerWheel<String> {
+        final List<String> expired = new ArrayList<String>();
+        final List<Integer> slots = new ArrayList<Integer>();
+
+        RecordingWheel() {
+            super(4, 100, 0);
+        }
+
+        @Override
+        protected void expire(String item, int slot) {
+            expired.add(item);
+            slots.add(slot);
+        }
+    }
+
+    @Test
+    public void testItemsExpireAtTheirTick() {
+        RecordingWheel wheel = new RecordingWheel();
+        wheel.schedule("soon", 150);
+        wheel.schedule("later", 1050);
+        wheel.schedule("past", -500);
+        assertEquals(3, wheel.size());
+
+        wheel.advanceTo(50);
+        assertEquals(Arrays.asList("past"), wheel.expired);
+
+        wheel.advanceTo(199);
+        assertEquals(1, wheel.expired.size());
+        wheel.advanceTo(200);
+        assertEquals(Arrays.asList("past", "soon"), wheel.expired);
+        assertEquals(Arrays.asList(0, 2), wheel.slots);
+
+        // more than two revolutions away
+        wheel.advanceTo(1000);
+        assertEquals(2, wheel.expired.size());
+        wheel.advanceTo(1100);
+        assertEquals(Arrays.asList("past", "soon", "later"), wheel.expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCancelledItemsDoNotExpire() {
+        RecordingWheel wheel = new RecordingWheel();
+        TimerWheel.Entry<String> entry = wheel.schedule("cancelled", 100);
+        wheel.schedule("kept", 100);
+        assertTrue(wheel.cancel(entry));
+        assertFalse(wheel.cancel(entry));
+
+        wheel.advanceTo(500);
+        assertEquals(Arrays.asList("kept"), wheel.expired);
+        assertEquals(0, wheel.size());
+    }
+}
@@ -87,6 +87,12 @@ public class JavaWebSocket implements JsonRpcWebSocket {
         }
     }
 
+    @Override
+    public void sendBinaryMessage(byte[] data, int offset, int length) throws IOException {
+        // frames are sent asynchronously, so the caller's buffer must be copied
+        sendBinaryMessage(Arrays.copyOfRange(data, offset, offset + length));
+    }
+
     private class Client extends WebSocketClient {
 
         private String[] filterSupportedCipherSuites(String[] supportedCipherSuites){
@@ -83,6 +83,16 @@ public class JettyWebSocket implements JsonRpcWebSocket, WebSocket, WebSocket.On
         }
     }
 
+    @Override
+    public void sendBinaryMessage(byte[] data, int offset, int length) throws IOException {
+        if (mConnection != null) {
+            // the frame is copied into the outgoing buffer of the connection
+            mConnection.sendMessage(data, offset, length);
+        } else {
+            LOG.error("Trying to send message over WebSocket that is not open");
+        }
+    }
+
     @Override
     public void onOpen(Connection connection) {
         LOG.debug("onOpen()");
@@ -10,4 +10,11 @@ public interface JsonRpcWebSocket {
 
     void sendTextMessage(String data) throws IOException;
     void sendBinaryMessage(byte[] data) throws IOException;
+
+    /**
+     * Send part of a buffer as a binary message
+     * <p/>
+     * The caller may reuse the buffer as soon as this returns.
+     */
+    void sendBinaryMessage(byte[] data, int offset, int length) throws IOException;
 }
@@ -1,11 +1,15 @@
 package better.jsonrpc.websocket;
 
 import better.jsonrpc.core.JsonRpcConnection;
+import better.jsonrpc.core.JsonRpcMessageReader;
+import better.jsonrpc.util.ProtocolUtils;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -16,6 +20,9 @@ public class JsonRpcWsConnection extends JsonRpcConnection implements JsonRpcWeb
     private static final String KEEPALIVE_RESPONSE_STRING = "a";
     private static final byte[] KEEPALIVE_RESPONSE_BINARY = new byte[]{'a'};
 
+    /** Output buffers growing beyond this are not kept for the next message */
+    private static final int MAX_RETAINED_OUTPUT_BUFFER = 64 * 1024;
+
     /**
      * Currently active websocket connection
      */
@@ -46,6 +53,16 @@ public class JsonRpcWsConnection extends JsonRpcConnection implements JsonRpcWeb
      */
     private boolean mAnswerKeepAlives = false;
 
+    /**
+     * Whether to read and write messages as streams
+     */
+    private boolean mStreamingCodec = false;
+
+    /**
+     * Reusable buffer for binary messages, guarded by itself
+     */
+    private final OutputBuffer mOutputBuffer = new OutputBuffer();
+
     public JsonRpcWsConnection(JsonRpcWebSocket webSocket, ObjectMapper mapper) {
         super(mapper);
         mWebSocket = webSocket;
@@ -92,6 +109,22 @@ public class JsonRpcWsConnection extends JsonRpcConnection implements JsonRpcWeb
         this.mAnswerKeepAlives = answerKeepAlives;
     }
 
+    @Override
+    public boolean isStreamingCodec() {
+        return mStreamingCodec;
+    }
+
+    /**
+     * Read and write messages as streams
+     * <p/>
+     * Params of requests are bound to their parameter types while
+     * reading, results and binary messages are serialized without
+     * building a tree first.
+     */
+    public void setStreamingCodec(boolean streamingCodec) {
+        this.mStreamingCodec = streamingCodec;
+    }
+
     @Override
     public boolean isConnected() {
         return mWebSocket.isOpen();
@@ -125,11 +158,28 @@ public class JsonRpcWsConnection extends JsonRpcConnection implements JsonRpcWeb
         }
     }
 
+    public void transmit(byte[] data, int offset, int length) throws IOException {
+        if (mWebSocket.isOpen()) {
+            mWebSocket.sendBinaryMessage(data, offset, length);
+        } else {
+            throw new IOException("Websocket not open");
+        }
+    }
+
     public void transmit(JsonNode node) throws IOException {
         if (LOG.isTraceEnabled()) {
-            LOG.trace("[" + mConnectionId + "] transmitting \"" + node.toString() + "\"");
+            LOG.trace("[" + mConnectionId + "] transmitting \"" + ProtocolUtils.describe(node) + "\"");
         }
-        if (mSendBinaryMessages) {
+        if (mSendBinaryMessages && mStreamingCodec) {
+            synchronized (mOutputBuffer) {
+                mOutputBuffer.reset();
+                getMapper().writeValue(mOutputBuffer, node);
+                transmit(mOutputBuffer.getBuffer(), 0, mOutputBuffer.size());
+                if (mOutputBuffer.getBuffer().length > MAX_RETAINED_OUTPUT_BUFFER) {
+                    mOutputBuffer.release();
+                }
+            }
+        } else if (mSendBinaryMessages) {
             byte[] data = getMapper().writeValueAsBytes(node);
             transmit(data);
         } else {
@@ -167,7 +217,7 @@ public class JsonRpcWsConnection extends JsonRpcConnection implements JsonRpcWeb
             }
             // handle normal payload
             try {
-                handleJsonMessage(getMapper().readTree(data));
+                handleJsonMessage(readMessage(data));
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -197,19 +247,62 @@ public class JsonRpcWsConnection extends JsonRpcConnection implements JsonRpcWeb
                 return;
             }
             // handle normal payload
-            InputStream is = new ByteArrayInputStream(data, offset, length);
             try {
-                handleJsonMessage(getMapper().readTree(is));
-                is.close();
+                handleJsonMessage(readMessage(data, offset, length));
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    private JsonNode readMessage(String data) throws IOException {
+        if (mStreamingCodec) {
+            JsonNode message = readStreaming(getMapper().getFactory().createJsonParser(data));
+            if (message != null) {
+                return message;
+            }
+        }
+        return getMapper().readTree(data);
+    }
+
+    private JsonNode readMessage(byte[] data, int offset, int length) throws IOException {
+        if (mStreamingCodec) {
+            InputStream is = new ByteArrayInputStream(data, offset, length);
+            JsonNode message = readStreaming(getMapper().getFactory().createJsonParser(is));
+            if (message != null) {
+                return message;
+            }
+        }
+        InputStream is = new ByteArrayInputStream(data, offset, length);
+        try {
+            return getMapper().readTree(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Read a message with the streaming reader
+     *
+     * @return the message or null if it has to be read as a tree
+     */
+    private JsonNode readStreaming(JsonParser parser) throws IOException {
+        try {
+            return JsonRpcMessageReader.readMessage(parser, getMapper(), isServer() ? getServer() : null);
+        } catch (IOException e) {
+            // read it again as a tree to report the error as usual
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("[" + mConnectionId + "] could not read message as stream", e);
+            }
+            return null;
+        } finally {
+            parser.close();
+        }
+    }
+
     private void handleJsonMessage(JsonNode message) {
         if (LOG.isTraceEnabled()) {
-            LOG.trace("[" + mConnectionId + "] received \"" + message.toString() + "\"");
+            LOG.trace("[" + mConnectionId + "] received \"" + ProtocolUtils.describe(message) + "\"");
         }
         if (message.isObject()) {
             ObjectNode messageObj = ObjectNode.class.cast(message);
@@ -256,4 +349,18 @@ public class JsonRpcWsConnection extends JsonRpcConnection implements JsonRpcWeb
         transmit(notification);
     }
 
+    /**
+     * Byte buffer that exposes its array, so messages can be sent without copying
+     */
+    private static class OutputBuffer extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+
+        void release() {
+            buf = new byte[32];
+            count = 0;
+        }
+    }
+
 }
@@ -5,6 +5,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Describes the interface of Talk database backends
@@ -12,13 +13,26 @@ import java.util.List;
  * There currently are two implementations:
  * <p/>
  * .database.JongoDatabase    -  Jongo-based persistent database
+ * .database.InMemoryDatabase -  Volatile database for tests (in the test sources)
  * .database.OrmLiteDatabase  -  Classical Relational persistent database (e.g. Postgresql) - currently unfinished
  */
 public interface ITalkServerDatabase {
 
+    /**
+     * Receives documents one at a time while a query result is walked
+     */
+    public interface DocumentVisitor<T> {
+        /** @return false to stop the walk */
+        boolean visit(T document);
+    }
+
     public Object getRawCollection(String name);
 
-    public List<TalkClient> findAllClients();
+    /**
+     * @return up to limit client ids following the given one in ascending order,
+     *         starting at the first one if clientId is null
+     */
+    public List<String> findClientIdsAfter(@Nullable String clientId, int limit);
 
     public TalkClient findClientById(String clientId);
 
@@ -32,6 +46,11 @@ public interface ITalkServerDatabase {
 
     public void saveClient(TalkClient client);
 
+    /**
+     * Write only timeLastPush, lastPushMessage and pushRetryCount of the client
+     */
+    public void updateClientPushState(TalkClient client);
+
     public void markClientDeleted(TalkClient client, String reason);
 
     public void unmarkClientDeleted(TalkClient client);
@@ -44,6 +63,8 @@ public interface ITalkServerDatabase {
 
     public TalkMessage findMessageById(String messageId);
 
+    public List<TalkMessage> findMessagesByIds(List<String> messageIds);
+
     public List<TalkMessage> findMessagesWithAttachmentFileId(String fileId);
 
     public List<TalkMessage> findMessagesFromClient(String senderId);
@@ -56,17 +77,14 @@ public interface ITalkServerDatabase {
 
     public List<TalkDelivery> findDeliveriesInState(String state);
 
-    List<TalkDelivery> findAllDeliveries();
-
-    public List<TalkDelivery> findDeliveriesInStates(String[] states);
-
-    public List<TalkDelivery> findDeliveriesInStatesAndAttachmentStates(String[] states, String[] attachmentStates);
     public long countDeliveriesInStatesAndAttachmentStates(String[] deliveryStates, String[] attachmentStates);
 
     public List<TalkDelivery> findDeliveriesForClient(String receiverId);
 
     public List<TalkDelivery> findDeliveriesForClientInState(String receiverId, String state);
 
+    public List<TalkDelivery> findDeliveriesForClientAndMessages(String receiverId, List<String> messageIds);
+
     public List<TalkDelivery> findDeliveriesForClientInGroupInState(String receiverId, String groupId, String state);
 
     public long countDeliveriesForClientInGroupInState(String receiverId, String groupId, String state);
@@ -89,14 +107,52 @@ public interface ITalkServerDatabase {
 
     public List<TalkDelivery> findDeliveriesFromClientForMessage(String senderId, String messageId);
 
-    public List<TalkDelivery> findDeliveriesAcceptedBefore(Date limit);
+    /**
+     * @return up to limit deliveries accepted before the given date and after the
+     *         delivery with acceptance time after and id afterId,
+     *         ordered by acceptance time and id
+     */
+    public List<TalkDelivery> findDeliveriesAcceptedBetween(@Nullable Date after, @Nullable String afterId, Date before, int limit);
+
+    /**
+     * Walks all deliveries, fetching batchSize documents at a time
+     * and only the fields in the projection unless it is null
+     */
+    public void visitAllDeliveries(@Nullable String projection, int batchSize, DocumentVisitor<TalkDelivery> visitor);
+
+    /**
+     * Walks up to limit deliveries in the given states with a message id following the
+     * given one, ordered by message id; attachment states are not checked if null
+     * and only the fields in the projection are fetched unless it is null
+     */
+    public void visitDeliveriesInStatesAfterMessageId(String[] states, @Nullable String[] attachmentStates,
+                                                      @Nullable String messageId, int limit, @Nullable String projection,
+                                                      DocumentVisitor<TalkDelivery> visitor);
 
     public void deleteDelivery(TalkDelivery delivery);
 
     public void saveDelivery(TalkDelivery delivery);
 
+    /**
+     * Save many deliveries at once; cheaper than calling saveDelivery() for each
+     * <p/>
+     * Throws if any of the deliveries could not be written.
+     */
+    public void saveDeliveries(List<TalkDelivery> deliveries);
+
+    public void deleteDeliveries(List<TalkDelivery> deliveries);
+
+    /**
+     * Move all deliveries towards the given client from one state to another in a single update
+     *
+     * @return number of deliveries changed
+     */
+    public int changeDeliveriesStateForClient(String receiverId, String fromState, String toState);
+
     public void updateDeliveryTimeClientNotified(TalkDelivery delivery);
 
+    public void updateDeliveriesTimeUpdatedIn(String receiverId, List<String> messageIds, Date timeUpdatedIn);
+
     public List<TalkToken> findTokensByClient(String clientId);
 
     public TalkToken findTokenByPurposeAndSecret(String purpose, String secret);
@@ -133,6 +189,11 @@ public interface ITalkServerDatabase {
 
     public List<TalkRelationship> findRelationshipsByOtherClient(String other);
 
+    /**
+     * @return ids of the clients having a related relationship to the given client
+     */
+    public Set<String> findRelatedClientIdsByOtherClient(String other);
+
     public List<TalkRelationship> findRelationshipsChangedAfter(String client, Date lastKnown);
 
     public List<TalkRelationship> findRelationshipsWithStatesChangedBefore(String[] states, Date lastChanged);
@@ -185,6 +246,16 @@ public interface ITalkServerDatabase {
 
     public List<TalkGroupMembership> findGroupMembershipsForClient(String clientId);
 
+    /**
+     * @return ids of the groups the client is a member of in one of the {@link TalkGroupMembership#PRESENCE_STATES}
+     */
+    public Set<String> findPresenceGroupIdsForClient(String clientId);
+
+    /**
+     * @return ids of the clients that are members of the group in one of the {@link TalkGroupMembership#PRESENCE_STATES}
+     */
+    public Set<String> findPresenceMemberIdsForGroup(String groupId);
+
     public List<TalkGroupMembership> findGroupMembershipsForClientWithStates(String clientId, String[] states);
 
     public List<TalkGroupMembership> findGroupMembershipsForClientWithStatesAndRoles(String clientId, String[] states, String[] roles);
@@ -193,6 +264,8 @@ public interface ITalkServerDatabase {
 
     public void saveGroupMembership(TalkGroupMembership membership);
 
+    public void saveGroupMemberships(List<TalkGroupMembership> memberships);
+
     public void deleteGroupMembership(TalkGroupMembership membership);
 
     public void saveEnvironment(TalkEnvironment environment);
@@ -229,5 +302,9 @@ public interface ITalkServerDatabase {
 
     public void saveDatabaseMigration(TalkDatabaseMigration migration);
 
+    public TalkCleaningCheckpoint findCleaningCheckpoint(String name);
+
+    public void saveCleaningCheckpoint(TalkCleaningCheckpoint checkpoint);
+
     public void changeDeliveryFieldValue(String fieldName, String oldFieldValue, String newFieldValue);
 }
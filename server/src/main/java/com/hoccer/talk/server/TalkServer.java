@@ -1,9 +1,13 @@
 package com.hoccer.talk.server;
 
+import better.jsonrpc.client.JsonRpcClient;
+import better.jsonrpc.core.JsonRpcRequestExecutor;
 import better.jsonrpc.server.JsonRpcServer;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
 import com.codahale.metrics.health.HealthCheckRegistry;
 import com.codahale.metrics.jvm.FileDescriptorRatioGauge;
 import com.codahale.metrics.jvm.GarbageCollectorMetricSet;
@@ -18,19 +22,24 @@ import com.hoccer.talk.model.TalkEnvironment;
 import com.hoccer.talk.model.TalkPresence;
 import com.hoccer.talk.rpc.ITalkRpcServer;
 import com.hoccer.talk.server.cleaning.CleaningAgent;
+import com.hoccer.talk.server.database.CachingDatabase;
 import com.hoccer.talk.server.database.DatabaseHealthCheck;
 import com.hoccer.talk.server.delivery.DeliveryAgent;
 import com.hoccer.talk.server.filecache.FilecacheClient;
+import com.hoccer.talk.server.locking.LockManager;
 import com.hoccer.talk.server.ping.PingAgent;
 import com.hoccer.talk.server.push.PushAgent;
 import com.hoccer.talk.server.rpc.TalkRpcConnection;
 import com.hoccer.talk.server.update.UpdateAgent;
-import com.hoccer.talk.util.CountedSet;
+import com.hoccer.talk.util.NamedThreadFactory;
 import de.undercouch.bson4jackson.BsonFactory;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 
@@ -66,6 +75,11 @@ public class TalkServer {
      */
     JsonRpcServer mRpcServer;
 
+    /**
+     * Executor for incoming calls, null if they run on the websocket thread
+     */
+    JsonRpcRequestExecutor mRequestExecutor;
+
     /**
      * Server configuration
      */
@@ -111,6 +125,11 @@ public class TalkServer {
      */
     FilecacheClient mFilecacheClient;
 
+    /**
+     * Locks for message, client, group and environment ids
+     */
+    LockManager mLockManager;
+
     /**
      * All connections (every connected websocket)
      */
@@ -144,8 +163,6 @@ public class TalkServer {
         return mConnectionsLoggedIn.get();
     }
 
-    Map<String,String> mIdLocks;
-
     boolean mReady = false;
     public void setReady() {
         mReady = true;
@@ -154,100 +171,10 @@ public class TalkServer {
         return mReady;
     }
 
-    public class NonReentrantLock{
-
-        private boolean mIsLocked;
-        private int mWaiting;
-        private CountedSet<String> mWaiterTypes;
-        public String mName;
-
-        NonReentrantLock() {
-            mIsLocked = false;
-            mWaiting = 0;
-            mName = "<unnamed>";
-            mWaiterTypes = new CountedSet<String>();
-        }
-
-        NonReentrantLock(String name) {
-            mIsLocked = false;
-            mWaiting = 0;
-            mName = name;
-            mWaiterTypes = new CountedSet<String>();
-        }
-
-        public String getName() {
-            return mName;
-        }
-
-        public boolean isLocked() {
-            return mIsLocked;
-        }
-
-        public int getWaiting() {
-            return mWaiting;
-        }
-
-        public synchronized boolean tryLock()  {
-            //System.out.println("NonReentrantLock +"+mName+" Thread " + Thread.currentThread()+" tryLock");
-            if (!mIsLocked) {
-                mIsLocked = true;
-                //System.out.println("NonReentrantLock +"+mName+" Thread " + Thread.currentThread()+" tryLock : acquired lock");
-                return true;
-            }
-            //System.out.println("NonReentrantLock +"+mName+" Thread " + Thread.currentThread()+" tryLock : not locking, is already locked");
-            return false;
-        }
-
-        public synchronized void lock() throws InterruptedException{
-            while (mIsLocked) {
-                //System.out.println("NonReentrantLock +"+mName+" Thread " + Thread.currentThread()+" wait");
-                ++mWaiting;
-                this.wait();
-                --mWaiting;
-                //System.out.println("NonReentrantLock +"+mName+" Thread " + Thread.currentThread()+" wakeup");
-            }
-            mIsLocked = true;
-            //System.out.println("NonReentrantLock +"+mName+" Thread " + Thread.currentThread()+" acquired lock");
-        }
-
-        public synchronized int getWaiting(String waiterType) {
-            if (mWaiting > 0) {
-                return mWaiterTypes.getCount(waiterType);
-            } else {
-                return 0;
-            }
-        }
-
-        public synchronized void lock(String waiterType) throws InterruptedException{
-            while (mIsLocked) {
-                //System.out.println("NonReentrantLock +"+mName+" Thread " + Thread.currentThread()+" lockWithWaiterType '"+waiterType+"' wait");
-                ++mWaiting;
-                mWaiterTypes.add(waiterType);
-                this.wait();
-                mWaiterTypes.remove(waiterType);
-                --mWaiting;
-                //System.out.println("NonReentrantLock +"+mName+" Thread " + Thread.currentThread()+" lockWithWaiterType '"+waiterType+"' wakeup");
-            }
-            mIsLocked = true;
-            //System.out.println("NonReentrantLock +"+mName+" Thread " + Thread.currentThread()+" lockWithWaiterType '"+waiterType+"' acquired lock");
-        }
-
-        public synchronized void unlock(){
-            mIsLocked = false;
-            //System.out.println("NonReentrantLock +"+mName+" Thread " + Thread.currentThread()+" unlock");
-            this.notify();
-        }
-    }
-
-    Map<String,NonReentrantLock> mNonReentrantIdLocks;
-
     /**
      * Create and initialize a Hoccer Talk server
      */
     public TalkServer(TalkServerConfiguration configuration, ITalkServerDatabase database) {
-        mIdLocks = new HashMap<String, String>();
-        mNonReentrantIdLocks = new HashMap<String, NonReentrantLock>();
-
         mConfiguration = configuration;
         mDatabase = database;
 
@@ -255,12 +182,21 @@ public class TalkServer {
         mBsonMapper = createObjectMapper(new BsonFactory());
 
         mMetricsRegistry = new MetricRegistry();
+        if (database instanceof MetricSet) {
+            // e.g. write latencies of the jongo backend
+            mMetricsRegistry.registerAll((MetricSet) database);
+        }
+        if (configuration.isDatabaseCacheEnabled()) {
+            mDatabase = new CachingDatabase(database, configuration, mMetricsRegistry);
+        }
         initializeMetrics();
         mHealthRegistry = new HealthCheckRegistry();
         initializeHealthChecks();
         mStatistics = new TalkMetricStats(mMetricsRegistry);
+        mLockManager = new LockManager(mMetricsRegistry);
 
         mRpcServer = new JsonRpcServer(ITalkRpcServer.class);
+        mRequestExecutor = createRequestExecutor();
         mDeliveryAgent = new DeliveryAgent(this);
         mPushAgent = new PushAgent(this);
         mUpdateAgent = new UpdateAgent(this);
@@ -275,101 +211,6 @@ public class TalkServer {
         */
     }
 
-    public NonReentrantLock idLockNonReentrant(String id) {
-        synchronized (mNonReentrantIdLocks) {
-            NonReentrantLock lock = mNonReentrantIdLocks.get(id);
-            if (lock == null) {
-                lock = new NonReentrantLock(id);
-                mNonReentrantIdLocks.put(id, lock);
-            }
-            return lock;
-        }
-    }
-
-    private String mMonitorId;
-    private String mMonitorCLientId;
-
-    public void monitorLock(String monitorId, String clientId) {
-        mMonitorId = monitorId;
-        mMonitorCLientId = clientId;
-        LOG.info("monitoring idLock:"+monitorId+" for client "+clientId);
-
-    }
-
-    public String idLock(String id) {
-        if (id == null || id.length() == 0) {
-            LOG.error("idLock: null id");
-            for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
-                LOG.error("idLock: null id:"+id+":"+ste);
-            }
-            throw new RuntimeException("idlock null");
-        }
-        synchronized (mIdLocks) {
-            String lock = mIdLocks.get(id);
-            if (lock == null) {
-                lock = new String(id);
-                mIdLocks.put(id, lock);
-            }
-            if (id.equals(mMonitorId)) {
-                LOG.info(">>>>>>> Accessing idLock:"+id+" for client "+ mMonitorCLientId + " from:");
-                for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
-                   LOG.info("idLock:"+id+":"+ste);
-                }
-            }
-            return lock;
-        }
-    }
-
-    // lock for two Ids at the same time; note that the individual id will not be locked that way
-    public Object dualIdLock(String prefix, String id1, String id2) {
-        if (id1.compareTo(id2) > 0)   {
-            return idLock(prefix + id1 + id2);
-        } else {
-            return idLock(prefix + id2 + id1);
-        }
-    }
-
-    private void cleanIdLocks() {
-        LOG.debug("cleanIdLocks removing locks");
-
-        synchronized (mIdLocks) {
-            long count = mIdLocks.size();
-            Iterator it = mIdLocks.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry pair = (Map.Entry)it.next();
-                synchronized (pair.getValue()) {
-                    it.remove();
-                }
-            }
-            LOG.debug("cleanIdLocks removed "+count+" locks");
-        }
-    }
-
-    private void cleanNonReentrantLocks() {
-        LOG.debug("cleanNonReentrantLocks removing locks");
-
-        synchronized (mNonReentrantIdLocks) {
-            long count = mNonReentrantIdLocks.size();
-            long removed = 0;
-            Iterator it = mNonReentrantIdLocks.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry pair = (Map.Entry)it.next();
-                NonReentrantLock lock =  (NonReentrantLock)pair.getValue();
-                if (lock.tryLock()) {
-                    it.remove();
-                    lock.unlock();
-                    ++removed;
-                }
-            }
-            LOG.debug("cleanNonReentrantLocks removed "+removed+" of "+count+" locks");
-        }
-    }
-
-    public void cleanAllLocks () {
-        cleanIdLocks();
-        cleanNonReentrantLocks();
-    }
-
     /**
      * @return the JSON mapper used by this server
      */
@@ -391,6 +232,13 @@ public class TalkServer {
         return mMetricsRegistry;
     }
 
+    /**
+     * @return the id lock manager of this server
+     */
+    public LockManager getLockManager() {
+        return mLockManager;
+    }
+
     /**
      * @return the JSON-RPC server
      */
@@ -398,6 +246,13 @@ public class TalkServer {
         return mRpcServer;
     }
 
+    /**
+     * @return the executor for incoming calls, null if they run on the websocket thread
+     */
+    public JsonRpcRequestExecutor getRequestExecutor() {
+        return mRequestExecutor;
+    }
+
     /**
      * @return the configuration of this server
      */
@@ -612,6 +467,7 @@ public class TalkServer {
             mConnectionsTotal.incrementAndGet();
             mConnectionsOpen.incrementAndGet();
             addConnection(connection);
+            mPingAgent.connectionOpened(connection);
             LOG.info("[connectionId: '" + connection.getConnectionId() + "'] opened" +
                     ", open: " + mConnectionsOpen.get() + ", inMap: " + numberOfConnections() +
                     ", loggedIn: " + mConnectionsLoggedIn.get() + ", inMapByCID: " + numberOfClientConnections() + ", ready: " + mConnectionsReady.get());
@@ -663,6 +519,7 @@ public class TalkServer {
                 }
                 // remove connection from list
                 removeConnection(connection);
+                mPingAgent.connectionClosed(connection);
                 LOG.debug("[connectionId: '" + connection.getConnectionId() + "'] closed (removed from list)" +
                         ", open: " + mConnectionsOpen.get() + ", inMap: " + numberOfConnections() + ", loggedIn: " + mConnectionsLoggedIn.get() + ", ready: " + mConnectionsReady.get());
             } else {
@@ -726,6 +583,40 @@ public class TalkServer {
         return result;
     }
 
+    private JsonRpcRequestExecutor createRequestExecutor() {
+        if (mConfiguration.getRpcThreadPoolSize() <= 0) {
+            return null;
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(
+                mConfiguration.getRpcThreadPoolSize(),
+                new NamedThreadFactory("rpc-worker"));
+        final Timer queueTime = mMetricsRegistry.timer(MetricRegistry.name(TalkServer.class, "rpcQueueTime"));
+        final JsonRpcRequestExecutor executor = new JsonRpcRequestExecutor(workers,
+                mConfiguration.getRpcQueueCapacity(), mConfiguration.getRpcQueueMaxWait()) {
+            @Override
+            protected void queueTimeRecorded(long nanos) {
+                queueTime.update(nanos, TimeUnit.NANOSECONDS);
+            }
+        };
+        mMetricsRegistry.register(MetricRegistry.name(TalkServer.class, "rpcQueued"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return executor.getQueuedCount();
+                    }
+                }
+        );
+        mMetricsRegistry.register(MetricRegistry.name(TalkServer.class, "rpcRejected"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return executor.getRejectedCount();
+                    }
+                }
+        );
+        return executor;
+    }
+
     /**
      * Set up server metrics
      */
@@ -762,6 +653,22 @@ public class TalkServer {
                     }
                 }
         );
+        mMetricsRegistry.register(MetricRegistry.name(TalkServer.class, "rpcRequestsOutstanding"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return JsonRpcClient.getGlobalOutstandingRequestCount();
+                    }
+                }
+        );
+        mMetricsRegistry.register(MetricRegistry.name(TalkServer.class, "rpcRequestTimeouts"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return JsonRpcClient.getGlobalRequestTimeoutCount();
+                    }
+                }
+        );
 
         // For instrumenting JMX via Metrics
         /*
@@ -794,41 +701,6 @@ public class TalkServer {
         }
     }
 
-    // get all connection that have not been logged in
-    public Vector<TalkRpcConnection> getStaleConnections() {
-        synchronized (mConnections) {
-            Vector<TalkRpcConnection> staleConnections = new Vector<TalkRpcConnection>();
-            Iterator<TalkRpcConnection> iterator = mConnections.iterator();
-            while (iterator.hasNext()) {
-                TalkRpcConnection connection = iterator.next();
-                if (connection.getClient() == null && !connection.isLoggedInFlag()) {
-                    Date intervalDate = new Date(new Date().getTime()-getConfiguration().getLoginTimeoutInterval()*1000);
-                    if (connection.getCreationTime().before(intervalDate)) {
-                        staleConnections.add(connection);
-                    }
-                }
-            }
-            return staleConnections;
-        }
-    }
-
-    public Vector<TalkRpcConnection> getPingConnections() {
-        synchronized (mConnections) {
-            Vector<TalkRpcConnection> pingClientConnections = new Vector<TalkRpcConnection>();
-            Iterator<TalkRpcConnection> iterator = mConnections.iterator();
-            while (iterator.hasNext()) {
-                TalkRpcConnection connection = iterator.next();
-                if (connection.getClient() != null && connection.getClient().isReady()) {
-                    Date intervalDate = new Date(new Date().getTime()-getConfiguration().getPingClientInterval()*1000);
-                    if (connection.getLastPingOccured() == null || connection.getLastPingOccured().before(intervalDate)) {
-                        pingClientConnections.add(connection);
-                    }
-                }
-            }
-            return pingClientConnections;
-        }
-    }
-
     public Vector<TalkRpcConnection> getConnectionsClone() {
         synchronized (mConnections) {
             return new Vector<TalkRpcConnection>(mConnections);
@@ -28,6 +28,8 @@ public class TalkServerConfiguration {
     // top level property prefix for all talk related properties, e.g. 'talk.foo.bar'
     private static final String PROPERTY_PREFIX = "talk";
 
+    private static final String JONGO_WRITE_CONCERN_PREFIX = PROPERTY_PREFIX + ".jongo.writeConcern.";
+
     private enum PropertyTypes {STRING, BOOLEAN, INTEGER}
 
     private enum ConfigurableProperties {
@@ -65,6 +67,56 @@ public class TalkServerConfiguration {
         JONGO_MAX_WAIT_TIME(PROPERTY_PREFIX + ".jongo.maxWaitTime",
                 PropertyTypes.INTEGER,
                 5 * 1000), // in milliseconds (5 seconds)
+        // write concerns per collection, any constant name of com.mongodb.WriteConcern
+        // documents that are recomputed or refreshed by clients do not need to wait for the journal
+        JONGO_WRITE_CONCERN_CLIENT(JONGO_WRITE_CONCERN_PREFIX + "client",
+                PropertyTypes.STRING,
+                "JOURNALED"),
+        JONGO_WRITE_CONCERN_MESSAGE(JONGO_WRITE_CONCERN_PREFIX + "message",
+                PropertyTypes.STRING,
+                "JOURNALED"),
+        JONGO_WRITE_CONCERN_DELIVERY(JONGO_WRITE_CONCERN_PREFIX + "delivery",
+                PropertyTypes.STRING,
+                "JOURNALED"),
+        JONGO_WRITE_CONCERN_TOKEN(JONGO_WRITE_CONCERN_PREFIX + "token",
+                PropertyTypes.STRING,
+                "JOURNALED"),
+        JONGO_WRITE_CONCERN_RELATIONSHIP(JONGO_WRITE_CONCERN_PREFIX + "relationship",
+                PropertyTypes.STRING,
+                "JOURNALED"),
+        JONGO_WRITE_CONCERN_KEY(JONGO_WRITE_CONCERN_PREFIX + "key",
+                PropertyTypes.STRING,
+                "JOURNALED"),
+        JONGO_WRITE_CONCERN_GROUP(JONGO_WRITE_CONCERN_PREFIX + "group",
+                PropertyTypes.STRING,
+                "JOURNALED"),
+        JONGO_WRITE_CONCERN_GROUP_MEMBER(JONGO_WRITE_CONCERN_PREFIX + "groupMember",
+                PropertyTypes.STRING,
+                "JOURNALED"),
+        JONGO_WRITE_CONCERN_MIGRATIONS(JONGO_WRITE_CONCERN_PREFIX + "migrations",
+                PropertyTypes.STRING,
+                "JOURNALED"),
+        JONGO_WRITE_CONCERN_CLEANING_CHECKPOINT(JONGO_WRITE_CONCERN_PREFIX + "cleaningCheckpoint",
+                PropertyTypes.STRING,
+                "ACKNOWLEDGED"),
+        JONGO_WRITE_CONCERN_PRESENCE(JONGO_WRITE_CONCERN_PREFIX + "presence",
+                PropertyTypes.STRING,
+                "ACKNOWLEDGED"),
+        JONGO_WRITE_CONCERN_ENVIRONMENT(JONGO_WRITE_CONCERN_PREFIX + "environment",
+                PropertyTypes.STRING,
+                "ACKNOWLEDGED"),
+        JONGO_WRITE_CONCERN_CLIENT_HOST_INFO(JONGO_WRITE_CONCERN_PREFIX + "clientHostInfo",
+                PropertyTypes.STRING,
+                "ACKNOWLEDGED"),
+        DATABASE_CACHE_ENABLED(PROPERTY_PREFIX + ".database.cache.enabled",
+                PropertyTypes.BOOLEAN,
+                false), // cache clients, presences and keys in front of the database, only safe with a single server writing to it
+        DATABASE_CACHE_MAX_SIZE(PROPERTY_PREFIX + ".database.cache.maxSize",
+                PropertyTypes.INTEGER,
+                10000), // maximum number of cached documents per collection
+        DATABASE_CACHE_TTL(PROPERTY_PREFIX + ".database.cache.ttl",
+                PropertyTypes.INTEGER,
+                60), // in seconds
 
         // PUSH AGENT GENERIC
         PUSH_RATE_LIMIT(PROPERTY_PREFIX + ".push.rateLimit",
@@ -73,6 +125,24 @@ public class TalkServerConfiguration {
         PUSH_THREAD_POOL_SIZE(PROPERTY_PREFIX + ".push.threadPoolSize",
                 PropertyTypes.INTEGER,
                 1), // ScheduledThreadPoolExecutor, number is also maximum Number of threads used
+        PUSH_SENDER_THREADS(PROPERTY_PREFIX + ".push.senderThreads",
+                PropertyTypes.INTEGER,
+                4), // threads sending to each push service
+        PUSH_QUEUE_CAPACITY(PROPERTY_PREFIX + ".push.queueCapacity",
+                PropertyTypes.INTEGER,
+                10000), // pushes waiting for each push service before new ones are dropped
+        PUSH_FLUSH_WINDOW(PROPERTY_PREFIX + ".push.flushWindow",
+                PropertyTypes.INTEGER,
+                50), // in milliseconds, pushes within this window are sent as one batch
+        PUSH_STAND_IN(PROPERTY_PREFIX + ".push.standIn",
+                PropertyTypes.BOOLEAN,
+                false), // send to local stand-ins instead of Apple and Google, for load tests only
+        PUSH_STAND_IN_LATENCY(PROPERTY_PREFIX + ".push.standIn.latency",
+                PropertyTypes.INTEGER,
+                50), // in milliseconds, response time of the stand-ins
+        PUSH_STAND_IN_FAILURE_RATE(PROPERTY_PREFIX + ".push.standIn.failureRate",
+                PropertyTypes.INTEGER,
+                0), // in percent, pushes failing at the stand-ins
 
         // APNS
         APNS_ENABLED(PROPERTY_PREFIX + ".apns.enabled",
@@ -252,6 +322,16 @@ public class TalkServerConfiguration {
                 PropertyTypes.INTEGER,
                 60), // in seconds
 
+        CLEANUP_SLICE_SIZE(PROPERTY_PREFIX + ".cleanup.sliceSize",
+                PropertyTypes.INTEGER,
+                500), // maximum number of documents per cleaning slice
+        CLEANUP_TARGET_LATENCY(PROPERTY_PREFIX + ".cleanup.targetLatency",
+                PropertyTypes.INTEGER,
+                200), // in milliseconds, slices shrink when a query takes longer
+        CLEANUP_DUTY_CYCLE(PROPERTY_PREFIX + ".cleanup.dutyCycle",
+                PropertyTypes.INTEGER,
+                25), // percentage of time the cleaner may keep the database busy
+
         CLEANUP_THREAD_POOL_SIZE(PROPERTY_PREFIX + ".cleanup.threadPoolSize",
                 PropertyTypes.INTEGER,
                 4), // ScheduledThreadPoolExecutor, number is also maximum Number of threads used
@@ -260,11 +340,17 @@ public class TalkServerConfiguration {
         UPDATE_THREAD_POOL_SIZE(PROPERTY_PREFIX + ".update.threadPoolSize",
                 PropertyTypes.INTEGER,
                 250), // ScheduledThreadPoolExecutor, number is also maximum Number of threads used
+        UPDATE_PRESENCE_COALESCE_WINDOW(PROPERTY_PREFIX + ".update.presenceCoalesceWindow",
+                PropertyTypes.INTEGER,
+                200), // in milliseconds, presence changes of a client within this window are sent once
 
         // DELIVERY AGENT
         DELIVERY_THREAD_POOL_SIZE(PROPERTY_PREFIX + ".delivery.threadPoolSize",
                 PropertyTypes.INTEGER,
                 100), // ScheduledThreadPoolExecutor, number is also maximum Number of threads used
+        DELIVERY_MAX_BATCH_SIZE(PROPERTY_PREFIX + ".delivery.maxBatchSize",
+                PropertyTypes.INTEGER,
+                50), // maximum number of deliveries sent in one incomingDeliveries() call, 0 disables batching
 
         // PING AGENT
         PING_THREAD_POOL_SIZE(PROPERTY_PREFIX + ".ping.threadPoolSize",
@@ -285,6 +371,12 @@ public class TalkServerConfiguration {
         LOGIN_TIMEOUT_INTERVAL(PROPERTY_PREFIX + ".ping.loginTimeoutInterval",
                 PropertyTypes.INTEGER,
                 60 * 2), // after 2 minutes a connection must be logged on or is closed
+        PING_WHEEL_SIZE(PROPERTY_PREFIX + ".ping.wheelSize",
+                PropertyTypes.INTEGER,
+                64), // number of slots of the liveness timer wheel, latency is reported per slot
+        PING_WHEEL_TICK(PROPERTY_PREFIX + ".ping.wheelTick",
+                PropertyTypes.INTEGER,
+                1000), // in milliseconds, resolution of the liveness timer wheel
 
 
         /*   // short intervals for testing
@@ -299,6 +391,18 @@ public class TalkServerConfiguration {
                 120), // after 2 minutes
         */
         // RPC HANDLER
+        RPC_THREAD_POOL_SIZE(PROPERTY_PREFIX + ".rpc.threadPoolSize",
+                PropertyTypes.INTEGER,
+                100), // workers shared by all connections for incoming calls, 0 handles them on the websocket thread
+        RPC_QUEUE_CAPACITY(PROPERTY_PREFIX + ".rpc.queueCapacity",
+                PropertyTypes.INTEGER,
+                100), // maximum number of incoming calls waiting per connection
+        RPC_QUEUE_MAX_WAIT(PROPERTY_PREFIX + ".rpc.queueMaxWait",
+                PropertyTypes.INTEGER,
+                1000), // in milliseconds, the websocket thread waits this long for space before rejecting a call
+        RPC_STREAMING_CODEC(PROPERTY_PREFIX + ".rpc.streamingCodec",
+                PropertyTypes.BOOLEAN,
+                true), // bind params while parsing and serialize results without building trees
         TOKEN_LIFETIME_MIN(PROPERTY_PREFIX + ".token.lifeTimeMin",
                 PropertyTypes.INTEGER,
                 60), // (seconds) at least 1 minute
@@ -421,8 +525,22 @@ public class TalkServerConfiguration {
         builder.append(MessageFormat.format("\n   * jongo database:                       ''{0}''", this.getJongoDb()));
         builder.append(MessageFormat.format("\n   * jongo connections/host:               {0}", this.getJongoConnectionsPerHost()));
         builder.append(MessageFormat.format("\n   * jongo max wait time (in ms):          {0}", this.getJongoMaxWaitTime()));
+        for (ConfigurableProperties property : ConfigurableProperties.values()) {
+            if (property.key.startsWith(JONGO_WRITE_CONCERN_PREFIX)) {
+                builder.append(MessageFormat.format("\n   * write concern ''{0}'': {1}", property.key.substring(JONGO_WRITE_CONCERN_PREFIX.length()), property.value));
+            }
+        }
+        builder.append(MessageFormat.format("\n   * cache enabled:                        {0}", this.isDatabaseCacheEnabled()));
+        builder.append(MessageFormat.format("\n   * cache max size:                       {0}", this.getDatabaseCacheMaxSize()));
+        builder.append(MessageFormat.format("\n   * cache ttl (in s):                     {0}", this.getDatabaseCacheTimeToLive()));
         builder.append(                     "\n - Push Configuration:");
         builder.append(MessageFormat.format("\n   * push rate limit (in milli-seconds):   {0}", Long.toString(this.getPushRateLimit())));
+        builder.append(MessageFormat.format("\n   * sender threads per service:           {0}", this.getPushSenderThreads()));
+        builder.append(MessageFormat.format("\n   * queue capacity per service:           {0}", this.getPushQueueCapacity()));
+        builder.append(MessageFormat.format("\n   * flush window (in milli-seconds):      {0}", this.getPushFlushWindow()));
+        builder.append(MessageFormat.format("\n   * stand-in services:                    {0}", this.isPushStandIn()));
+        builder.append(MessageFormat.format("\n   * stand-in latency (in milli-seconds):  {0}", this.getPushStandInLatency()));
+        builder.append(MessageFormat.format("\n   * stand-in failure rate (in %):         {0}", this.getPushStandInFailureRate()));
         builder.append(                     "\n   - APNS:");
         builder.append(MessageFormat.format("\n     * enabled:                            {0}", this.isApnsEnabled()));
         builder.append(MessageFormat.format("\n     * apns invalidate delay (in s):       {0}", Long.toString(this.getApnsInvalidateDelay())));
@@ -451,6 +569,9 @@ public class TalkServerConfiguration {
         builder.append(MessageFormat.format("\n   * clients cleanup interval (in s):      {0}", Long.toString(this.getCleanupAllClientsInterval())));
         builder.append(MessageFormat.format("\n   * environments cleanup delay (in s):    {0}", Long.toString(this.getCleanupEnvironmentsDelay())));
         builder.append(MessageFormat.format("\n   * clients cleanup interval (in s):      {0}", Long.toString(this.getCleanupEnvironmentsInterval())));
+        builder.append(MessageFormat.format("\n   * cleanup slice size:                   {0}", Long.toString(this.getCleanupSliceSize())));
+        builder.append(MessageFormat.format("\n   * cleanup target latency (in ms):       {0}", Long.toString(this.getCleanupTargetLatency())));
+        builder.append(MessageFormat.format("\n   * cleanup duty cycle (in %):            {0}", Long.toString(this.getCleanupDutyCycle())));
         /*
         builder.append(MessageFormat.format("\n   * deliveries cleanup delay (in s):      {0}", Long.toString(this.getCleanupAllDeliveriesDelay())));
         builder.append(MessageFormat.format("\n   * deliveries cleanup interval (in s):   {0}", Long.toString(this.getCleanupAllDeliveriesInterval())));
@@ -463,16 +584,24 @@ public class TalkServerConfiguration {
         builder.append(MessageFormat.format("\n   * support tag:                          ''{0}''", this.getSupportTag()));
         builder.append(                     "\n - Threads:");
         builder.append(MessageFormat.format("\n   * DeliveryAgent Threads Poolsize:       {0}", this.getDeliveryAgentThreadPoolSize()));
+        builder.append(MessageFormat.format("\n   * DeliveryAgent max batch size:         {0}", this.getDeliveryMaxBatchSize()));
         builder.append(MessageFormat.format("\n   * CleanupAgent  Threads Poolsize:       {0}", this.getCleaningAgentThreadPoolSize()));
         builder.append(MessageFormat.format("\n   * PushAgent     Threads Poolsize:       {0}", this.getPushAgentThreadPoolSize()));
         builder.append(MessageFormat.format("\n   * PingAgent     Threads Poolsize:       {0}", this.getPingAgentThreadPoolSize()));
         builder.append(MessageFormat.format("\n   * UpdateAgent   Threads Poolsize:       {0}", this.getUpdateAgentThreadPoolSize()));
+        builder.append(MessageFormat.format("\n   * UpdateAgent   presence window (ms):   {0}", this.getUpdatePresenceCoalesceWindow()));
+        builder.append(MessageFormat.format("\n   * RPC Workers   Threads Poolsize:       {0}", this.getRpcThreadPoolSize()));
+        builder.append(MessageFormat.format("\n   * RPC queue capacity per connection:    {0}", this.getRpcQueueCapacity()));
+        builder.append(MessageFormat.format("\n   * RPC queue max wait (ms):              {0}", this.getRpcQueueMaxWait()));
+        builder.append(MessageFormat.format("\n   * RPC streaming codec:                  {0}", this.isRpcStreamingCodec()));
         builder.append(                     "\n - Ping:");
         builder.append(MessageFormat.format("\n   * Ping interval (in s):                 {0}", this.getPingInterval()));
         builder.append(MessageFormat.format("\n   * ping each client at interval (in s):  {0}", this.getPingClientInterval()));
         builder.append(MessageFormat.format("\n   * perform ping at intervals:            {0}", this.getPerformPingAtInterval()));
         builder.append(MessageFormat.format("\n   * disconnect at ping after idle (in s) :{0}", this.getPingIdleTimeoutInterval()));
         builder.append(MessageFormat.format("\n   * disconnect if not logged in   (in s) :{0}", this.getLoginTimeoutInterval()));
+        builder.append(MessageFormat.format("\n   * timer wheel slots:                    {0}", this.getPingWheelSize()));
+        builder.append(MessageFormat.format("\n   * timer wheel tick (in ms):             {0}", this.getPingWheelTick()));
         builder.append(                     "\n - RPC-Handler-Token:");
         builder.append(MessageFormat.format("\n   * Min. Token Lifetime (in s):           {0}", this.getTokenLifeTimeMin()));
         builder.append(MessageFormat.format("\n   * Max. Token Lifetime (in s):           {0}", this.getTokenLifeTimeMax()));
@@ -615,10 +744,59 @@ public class TalkServerConfiguration {
         return (String) ConfigurableProperties.JONGO_HOST.value;
     }
 
+    /**
+     * @return the name of the write concern for the given collection
+     */
+    public String getJongoWriteConcern(String collection) {
+        String key = JONGO_WRITE_CONCERN_PREFIX + collection;
+        for (ConfigurableProperties property : ConfigurableProperties.values()) {
+            if (property.key.equals(key)) {
+                return (String) property.value;
+            }
+        }
+        return "JOURNALED";
+    }
+
+    public boolean isDatabaseCacheEnabled() {
+        return (Boolean) ConfigurableProperties.DATABASE_CACHE_ENABLED.value;
+    }
+
+    public int getDatabaseCacheMaxSize() {
+        return (Integer) ConfigurableProperties.DATABASE_CACHE_MAX_SIZE.value;
+    }
+
+    public int getDatabaseCacheTimeToLive() {
+        return (Integer) ConfigurableProperties.DATABASE_CACHE_TTL.value;
+    }
+
     public int getPushRateLimit() {
         return (Integer) ConfigurableProperties.PUSH_RATE_LIMIT.value;
     }
 
+    public int getPushSenderThreads() {
+        return (Integer) ConfigurableProperties.PUSH_SENDER_THREADS.value;
+    }
+
+    public int getPushQueueCapacity() {
+        return (Integer) ConfigurableProperties.PUSH_QUEUE_CAPACITY.value;
+    }
+
+    public int getPushFlushWindow() {
+        return (Integer) ConfigurableProperties.PUSH_FLUSH_WINDOW.value;
+    }
+
+    public boolean isPushStandIn() {
+        return (Boolean) ConfigurableProperties.PUSH_STAND_IN.value;
+    }
+
+    public int getPushStandInLatency() {
+        return (Integer) ConfigurableProperties.PUSH_STAND_IN_LATENCY.value;
+    }
+
+    public int getPushStandInFailureRate() {
+        return (Integer) ConfigurableProperties.PUSH_STAND_IN_FAILURE_RATE.value;
+    }
+
     public boolean isGcmEnabled() {
         return (Boolean) ConfigurableProperties.GCM_ENABLED.value;
     }
@@ -666,6 +844,18 @@ public class TalkServerConfiguration {
         return (Integer) ConfigurableProperties.CLEANUP_ENVIRONMENTS_DELAY.value;
     }
 
+    public int getCleanupSliceSize() {
+        return (Integer) ConfigurableProperties.CLEANUP_SLICE_SIZE.value;
+    }
+
+    public int getCleanupTargetLatency() {
+        return (Integer) ConfigurableProperties.CLEANUP_TARGET_LATENCY.value;
+    }
+
+    public int getCleanupDutyCycle() {
+        return (Integer) ConfigurableProperties.CLEANUP_DUTY_CYCLE.value;
+    }
+
     public URI getFilecacheControlUrl() {
         URI url = null;
         try {
@@ -732,10 +922,34 @@ public class TalkServerConfiguration {
         return (Integer) ConfigurableProperties.UPDATE_THREAD_POOL_SIZE.value;
     }
 
+    public int getUpdatePresenceCoalesceWindow() {
+        return (Integer) ConfigurableProperties.UPDATE_PRESENCE_COALESCE_WINDOW.value;
+    }
+
     public int getDeliveryAgentThreadPoolSize() {
         return (Integer) ConfigurableProperties.DELIVERY_THREAD_POOL_SIZE.value;
     }
 
+    public int getDeliveryMaxBatchSize() {
+        return (Integer) ConfigurableProperties.DELIVERY_MAX_BATCH_SIZE.value;
+    }
+
+    public int getRpcThreadPoolSize() {
+        return (Integer) ConfigurableProperties.RPC_THREAD_POOL_SIZE.value;
+    }
+
+    public int getRpcQueueCapacity() {
+        return (Integer) ConfigurableProperties.RPC_QUEUE_CAPACITY.value;
+    }
+
+    public int getRpcQueueMaxWait() {
+        return (Integer) ConfigurableProperties.RPC_QUEUE_MAX_WAIT.value;
+    }
+
+    public boolean isRpcStreamingCodec() {
+        return (Boolean) ConfigurableProperties.RPC_STREAMING_CODEC.value;
+    }
+
     public int getPingAgentThreadPoolSize() {
         return (Integer) ConfigurableProperties.PING_THREAD_POOL_SIZE.value;
     }
@@ -760,6 +974,12 @@ public class TalkServerConfiguration {
     public int getLoginTimeoutInterval() {
         return (Integer) ConfigurableProperties.LOGIN_TIMEOUT_INTERVAL.value;
     }
+    public int getPingWheelSize() {
+        return (Integer) ConfigurableProperties.PING_WHEEL_SIZE.value;
+    }
+    public int getPingWheelTick() {
+        return (Integer) ConfigurableProperties.PING_WHEEL_TICK.value;
+    }
     public int getTokenLifeTimeMin() {
         return (Integer) ConfigurableProperties.TOKEN_LIFETIME_MIN.value;
     }
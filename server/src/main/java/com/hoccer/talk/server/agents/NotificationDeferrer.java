@@ -4,12 +4,12 @@ import com.hoccer.talk.util.NamedThreadFactory;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
-import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class NotificationDeferrer {
 
-    private final Executor mExecutor;
+    private final ScheduledExecutorService mExecutor;
 
     public NotificationDeferrer(int poolSize, String poolName) {
         mExecutor = Executors.newScheduledThreadPool(
@@ -20,6 +20,10 @@ public class NotificationDeferrer {
 
     protected final Logger LOG = Logger.getLogger(getClass());
 
+    protected ScheduledExecutorService getExecutor() {
+        return mExecutor;
+    }
+
     protected void queueOrExecute(ThreadLocal<ArrayList<Runnable>> context, Runnable notificationGenerator) {
         // TODO: Maybe a Queue instead of an ArrayList would be more appropriate here.
 
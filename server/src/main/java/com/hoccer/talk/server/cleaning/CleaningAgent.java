@@ -1,14 +1,20 @@
 package com.hoccer.talk.server.cleaning;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.hoccer.talk.model.*;
 import com.hoccer.talk.server.ITalkServerDatabase;
 import com.hoccer.talk.server.TalkServer;
+import com.hoccer.talk.server.locking.IdLock;
 import com.hoccer.talk.server.TalkServerConfiguration;
 import com.hoccer.talk.server.filecache.FilecacheClient;
 import com.hoccer.talk.server.rpc.TalkRpcHandler;
 import com.hoccer.talk.util.NamedThreadFactory;
 import org.apache.log4j.Logger;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.Executors;
@@ -24,6 +30,10 @@ import java.util.concurrent.TimeUnit;
  * It is even more justified on mongodb where there is no transactionality.
  * <p/>
  * The various parts of it run in background and in other beneficial situations.
+ * <p/>
+ * Full passes over clients and deliveries are done incrementally in small
+ * slices paced by a {@link CleaningThrottle}. The position within the pass
+ * is persisted after every slice so a restart resumes where it stopped.
  */
 public class CleaningAgent {
 
@@ -65,12 +75,34 @@ public class CleaningAgent {
 
     private static final long UNFINISHED_DELIVERY_LIFE_TIME = 3 * MONTHS;
 
+    // fields of finished deliveries needed to find them again
+    private static final String DELIVERY_KEY_PROJECTION = "{messageId:1, receiverId:1}";
+
+    // name of the persisted resume position of the incremental cleaner
+    private static final String CHECKPOINT_NAME = "cleaningAgent";
+    // slices never shrink below this many documents
+    private static final int MIN_SLICE_SIZE = 10;
+
     private static final long NEARBY_ENVIRONMENT_OFFLINE_LIFETIME = 3 * MINUTES;
     private static final long WORLDWIDE_ENVIRONMENT_DANGLING_GROUP_LIFETIME = 48 * HOURS;
 
-    private boolean firstRunDone = false;
+    /** Phases of a full cleaning pass, in processing order */
+    private enum Phase {
+        EXPIRE_DELIVERIES,
+        FINISHED_DELIVERIES,
+        FAILED_DELIVERIES,
+        CLIENTS,
+        GROUPS
+    }
+
     private boolean firstEnvironmentRunDone = false;
 
+    private final CleaningThrottle mThrottle;
+    private TalkCleaningCheckpoint mCheckpoint;
+
+    private final Meter mItemsMeter;
+    private final Counter mPassesCounter;
+
     public CleaningAgent(TalkServer server) {
         mServer = server;
         mConfig = mServer.getConfiguration();
@@ -79,18 +111,42 @@ public class CleaningAgent {
                 mConfig.getCleaningAgentThreadPoolSize(),
                 new NamedThreadFactory("cleaning-agent")
         );
+        mThrottle = new CleaningThrottle(
+                Math.min(MIN_SLICE_SIZE, mConfig.getCleanupSliceSize()), mConfig.getCleanupSliceSize(),
+                mConfig.getCleanupTargetLatency(), mConfig.getCleanupDutyCycle());
+
+        MetricRegistry metrics = mServer.getMetrics();
+        mItemsMeter = metrics.meter(MetricRegistry.name(CleaningAgent.class, "items"));
+        mPassesCounter = metrics.counter(MetricRegistry.name(CleaningAgent.class, "passes"));
+        metrics.register(MetricRegistry.name(CleaningAgent.class, "sliceSize"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mThrottle.getSliceSize();
+                    }
+                }
+        );
+        metrics.register(MetricRegistry.name(CleaningAgent.class, "passItems"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        TalkCleaningCheckpoint checkpoint = mCheckpoint;
+                        return checkpoint == null ? 0 : checkpoint.getItemsProcessed();
+                    }
+                }
+        );
+        metrics.register(MetricRegistry.name(CleaningAgent.class, "phase"),
+                new Gauge<String>() {
+                    @Override
+                    public String getValue() {
+                        TalkCleaningCheckpoint checkpoint = mCheckpoint;
+                        return checkpoint == null ? null : checkpoint.getPhase();
+                    }
+                }
+        );
 
         LOG.info("Cleaning scheduling will start in '" + mConfig.getCleanupAllClientsDelay() + "' seconds.");
-        mExecutor.schedule(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    scheduleCleanAll();
-                } catch (Throwable t) {
-                    LOG.error("caught and swallowed exception escaping runnable", t);
-                }
-            }
-        }, mConfig.getCleanupAllClientsDelay(), TimeUnit.SECONDS);
+        scheduleCleaningSlice(mConfig.getCleanupAllClientsDelay() * SECONDS);
 
         mExecutor.schedule(new Runnable() {
             @Override
@@ -105,28 +161,98 @@ public class CleaningAgent {
 
     }
 
-    private void scheduleCleanAll() {
-
-        int cleanUpInInterval = firstRunDone ? mConfig.getCleanupAllClientsInterval() : 1;
-        LOG.info("scheduling full cleanup in '" + cleanUpInInterval + "' seconds.");
+    private void scheduleCleaningSlice(long delayMillis) {
         mExecutor.schedule(new Runnable() {
             @Override
             public void run() {
+                long nextDelay = mConfig.getCleanupAllClientsInterval() * SECONDS;
                 try {
-                    doCleanAllDeliveries();
-                    doCleanAllClients();
-                    doCleanGroups();
-                    doCleanSpecialGroups();
-                    doCleanRelationships();
-                    mServer.cleanAllLocks();
-                    firstRunDone = true;
+                    nextDelay = doCleaningSlice();
                 } catch (Throwable t) {
                     LOG.error("caught and swallowed exception escaping runnable", t);
                 } finally {
-                    scheduleCleanAll();
+                    scheduleCleaningSlice(nextDelay);
                 }
             }
-        } , cleanUpInInterval, TimeUnit.SECONDS);
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Process one bounded slice of the current cleaning pass and persist the new position
+     *
+     * @return the delay in milliseconds before the next slice
+     */
+    private long doCleaningSlice() {
+        if (mCheckpoint == null) {
+            mCheckpoint = mDatabase.findCleaningCheckpoint(CHECKPOINT_NAME);
+            if (mCheckpoint == null) {
+                mCheckpoint = new TalkCleaningCheckpoint(CHECKPOINT_NAME);
+            } else if (mCheckpoint.getPhase() != null) {
+                LOG.info("resuming cleaning pass in phase " + mCheckpoint.getPhase() + " after '" + mCheckpoint.getPosition() + "'");
+            }
+        }
+        TalkCleaningCheckpoint checkpoint = mCheckpoint;
+
+        long now = System.currentTimeMillis();
+        if (checkpoint.getPhase() == null) {
+            // between passes
+            if (checkpoint.getTimePassFinished() != null) {
+                long nextPass = checkpoint.getTimePassFinished().getTime() + mConfig.getCleanupAllClientsInterval() * SECONDS;
+                if (nextPass > now) {
+                    return nextPass - now;
+                }
+            }
+            LOG.info("starting cleaning pass");
+            checkpoint.setPhase(Phase.values()[0].name());
+            checkpoint.setPosition(null);
+            checkpoint.setItemsProcessed(0);
+            checkpoint.setTimePassStarted(new Date(now));
+        }
+
+        Phase phase = Phase.valueOf(checkpoint.getPhase());
+        int sliceSize = mThrottle.getSliceSize();
+        int fetched;
+        switch (phase) {
+            case EXPIRE_DELIVERIES:
+                fetched = doExpireDeliveriesSlice(checkpoint, sliceSize);
+                break;
+            case FINISHED_DELIVERIES:
+                fetched = doCleanDeliveriesSlice(checkpoint, TalkDelivery.FINAL_STATES, TalkDelivery.FINAL_ATTACHMENT_STATES, sliceSize);
+                break;
+            case FAILED_DELIVERIES:
+                // we need to clean failed deliveries regardless of attachment state
+                fetched = doCleanDeliveriesSlice(checkpoint, TalkDelivery.FINAL_FAILED_STATES, null, sliceSize);
+                break;
+            case CLIENTS:
+                fetched = doCleanClientsSlice(checkpoint, sliceSize);
+                break;
+            default:
+                doCleanGroups();
+                doCleanSpecialGroups();
+                doCleanRelationships();
+                fetched = 0;
+                break;
+        }
+        mItemsMeter.mark(fetched);
+        checkpoint.setItemsProcessed(checkpoint.getItemsProcessed() + fetched);
+
+        if (fetched < sliceSize) {
+            LOG.info("cleaning phase " + phase + " done, " + checkpoint.getItemsProcessed() + " items processed in this pass so far");
+            checkpoint.setPosition(null);
+            if (phase.ordinal() + 1 < Phase.values().length) {
+                checkpoint.setPhase(Phase.values()[phase.ordinal() + 1].name());
+            } else {
+                checkpoint.setPhase(null);
+                checkpoint.setTimePassFinished(new Date());
+                mPassesCounter.inc();
+                LOG.info("cleaning pass done, processed " + checkpoint.getItemsProcessed() + " items (took "
+                        + (checkpoint.getTimePassFinished().getTime() - checkpoint.getTimePassStarted().getTime()) + " ms)");
+            }
+        }
+        checkpoint.setTimeUpdated(new Date());
+        mDatabase.saveCleaningCheckpoint(checkpoint);
+
+        return mThrottle.getDelayMillis(System.currentTimeMillis() - now);
     }
 
     private void scheduleCleanEnvironments() {
@@ -221,71 +347,86 @@ public class CleaningAgent {
         });
     }
 
-    private void doCleanAllClients() {
-        long startTime = System.currentTimeMillis();
-        LOG.info("Cleaning all clients. Determining list of clients...");
-        List<TalkClient> allClients = mDatabase.findAllClients();
-        LOG.info("Cleaning '" + allClients.size() + "' clients...");
-        long current = 0;
-        for (TalkClient client : allClients) {
-            if (current++ % 10000 == 0) {
-                LOG.info("Clean client " + current + "/" + allClients.size() + " clients...");
-            }
-            cleanClientData(client.getClientId());
-        }
-        long endTime = System.currentTimeMillis();
-        LOG.info("Cleaning of " + allClients.size() + " clients done (took " + (endTime - startTime) + " ms')");
+    private int doExpireDeliveriesSlice(TalkCleaningCheckpoint checkpoint, int sliceSize) {
+        return expireDeliveriesSlice(mDatabase, mThrottle, checkpoint, sliceSize);
     }
 
-    private void doCleanAllDeliveries() {
-        long startTime = System.currentTimeMillis();
-        LOG.info("Cleaning all deliveries...");
+    static int expireDeliveriesSlice(ITalkServerDatabase database, CleaningThrottle throttle,
+                                     TalkCleaningCheckpoint checkpoint, int sliceSize) {
+        // the cutoff is fixed for the whole pass so the position stays meaningful
+        Date before = new Date(checkpoint.getTimePassStarted().getTime() - UNFINISHED_DELIVERY_LIFE_TIME);
+        // the position is "<timeAccepted>:<id>" of the last delivery seen, as deliveries
+        // of a group message share their acceptance time and may span slices
+        Date after = null;
+        String afterId = null;
+        String position = checkpoint.getPosition();
+        if (position != null) {
+            int separator = position.indexOf(':');
+            after = new Date(Long.parseLong(position.substring(0, separator)));
+            afterId = position.substring(separator + 1);
+        }
 
-        long counter = 0;
-        Date oldDate = new Date(new Date().getTime() - UNFINISHED_DELIVERY_LIFE_TIME);
+        long queryStart = System.currentTimeMillis();
+        List<TalkDelivery> deliveries = database.findDeliveriesAcceptedBetween(after, afterId, before, sliceSize);
+        throttle.onQuery(System.currentTimeMillis() - queryStart);
 
-        List<TalkDelivery> expiredDeliveries = mDatabase.findDeliveriesAcceptedBefore(oldDate);
-        LOG.info("cleanup found " + expiredDeliveries.size() + " expired unfinished deliveries");
-        counter = 0;
-        for (TalkDelivery delivery : expiredDeliveries) {
+        List<TalkDelivery> expired = new ArrayList<TalkDelivery>();
+        for (TalkDelivery delivery : deliveries) {
             if (!delivery.isFinished()) {
                 delivery.expireDelivery();
-                mDatabase.saveDelivery(delivery);
-            }
-            if (counter++ % 100 == 0) {
-                LOG.info("expiring unfinished deliveries: "+counter+ "/" + expiredDeliveries.size() + " done");
+                expired.add(delivery);
             }
         }
-
-        List<TalkDelivery> finishedDeliveries = mDatabase.findDeliveriesInStatesAndAttachmentStates(TalkDelivery.FINAL_STATES, TalkDelivery.FINAL_ATTACHMENT_STATES);
-        LOG.info("cleanup found " + finishedDeliveries.size() + " finished deliveries");
-        counter = 0;
-        for (TalkDelivery delivery : finishedDeliveries) {
-            doCleanFinishedDelivery(delivery);
-            if (counter++ % 100 == 0) {
-                LOG.info("cleanup finished deliveries: "+counter+ "/" + finishedDeliveries.size() + " done");
-            }
+        database.saveDeliveries(expired);
+        if (!deliveries.isEmpty()) {
+            TalkDelivery last = deliveries.get(deliveries.size() - 1);
+            checkpoint.setPosition(last.getTimeAccepted().getTime() + ":" + last.getId());
         }
+        return deliveries.size();
+    }
+
+    private int doCleanDeliveriesSlice(TalkCleaningCheckpoint checkpoint, String[] states, String[] attachmentStates, int sliceSize) {
+        // only fetch the keys, doCleanFinishedDelivery() reads the delivery again under the message lock
+        final List<TalkDelivery> deliveries = new ArrayList<TalkDelivery>();
+        long queryStart = System.currentTimeMillis();
+        mDatabase.visitDeliveriesInStatesAfterMessageId(states, attachmentStates, checkpoint.getPosition(), sliceSize,
+                DELIVERY_KEY_PROJECTION, new ITalkServerDatabase.DocumentVisitor<TalkDelivery>() {
+                    @Override
+                    public boolean visit(TalkDelivery delivery) {
+                        deliveries.add(delivery);
+                        return true;
+                    }
+                });
+        mThrottle.onQuery(System.currentTimeMillis() - queryStart);
 
-        // we need to clean failed deliveries regardless of attachment state
-        List<TalkDelivery> finalFailedDeliveries = mDatabase.findDeliveriesInStates(TalkDelivery.FINAL_FAILED_STATES);
-        LOG.info("cleanup found " + finalFailedDeliveries.size() + " final failed deliveries");
-        counter = 0;
-        for (TalkDelivery delivery : finalFailedDeliveries) {
+        // doCleanFinishedDelivery() cleans all finished deliveries of the message,
+        // so continuing after the last message id does not skip any of them
+        for (TalkDelivery delivery : deliveries) {
             doCleanFinishedDelivery(delivery);
-            if (counter++ % 100 == 0) {
-                LOG.info("cleanup failed deliveries: "+counter+ "/" + finalFailedDeliveries.size() + " done");
-            }
         }
+        if (!deliveries.isEmpty()) {
+            checkpoint.setPosition(deliveries.get(deliveries.size() - 1).getMessageId());
+        }
+        return deliveries.size();
+    }
 
-        int totalDeliveriesCleaned = finishedDeliveries.size() + finalFailedDeliveries.size();
+    private int doCleanClientsSlice(TalkCleaningCheckpoint checkpoint, int sliceSize) {
+        long queryStart = System.currentTimeMillis();
+        List<String> clientIds = mDatabase.findClientIdsAfter(checkpoint.getPosition(), sliceSize);
+        mThrottle.onQuery(System.currentTimeMillis() - queryStart);
 
-        long endTime = System.currentTimeMillis();
-        LOG.info("Cleaning of '" + totalDeliveriesCleaned + "' deliveries done (took '" + (endTime - startTime) + "ms'). rescheduling next run...");
+        for (String clientId : clientIds) {
+            cleanClientData(clientId);
+        }
+        if (!clientIds.isEmpty()) {
+            checkpoint.setPosition(clientIds.get(clientIds.size() - 1));
+        }
+        return clientIds.size();
     }
 
     private void doCleanFinishedDelivery(TalkDelivery finishedDelivery) {
-        synchronized (mServer.idLock(finishedDelivery.getMessageId())) {
+        IdLock messageLock = mServer.getLockManager().lock(finishedDelivery.getMessageId());
+        try {
             TalkDelivery delivery = mDatabase.findDelivery(finishedDelivery.getMessageId(), finishedDelivery.getReceiverId());
             if (delivery != null) {
                 String messageId = delivery.getMessageId();
@@ -307,23 +448,27 @@ public class CleaningAgent {
             } else {
                 //LOG.debug("doCleanFinishedDelivery: Delivery already deleted, messageId: " + finishedDelivery.getMessageId() + ", receiverId:" + finishedDelivery.getReceiverId());
             }
+        } finally {
+            messageLock.unlock();
         }
     }
 
     private void doCleanDeliveriesForMessage(String messageId, TalkMessage message) {
         boolean keepMessage = false;
         List<TalkDelivery> deliveries = mDatabase.findDeliveriesForMessage(messageId);
+        List<TalkDelivery> finishedDeliveries = new ArrayList<TalkDelivery>();
         //LOG.debug("Found " + deliveries.size() + " deliveries for messageId: " + messageId);
         for (TalkDelivery delivery : deliveries) {
             // confirmed and failed deliveries can always be deleted
             if (delivery.isFinished()) {
                 //LOG.debug("Deleting delivery with state '" + delivery.getState() + "' and attachmentState '" + delivery.getAttachmentState() + "', messageId: " + messageId + ", receiverId:" + delivery.getReceiverId());
-                mDatabase.deleteDelivery(delivery);
+                finishedDeliveries.add(delivery);
                 continue;
             }
             //LOG.debug("Keeping delivery with state '" + delivery.getState() + "' and attachmentState '" + delivery.getAttachmentState() + "', messageId: " + messageId + ", receiverId:" + delivery.getReceiverId());
             keepMessage = true;
         }
+        mDatabase.deleteDeliveries(finishedDeliveries);
         if (message != null && !keepMessage) {
             doDeleteMessage(message);
         }
@@ -0,0 +1,61 @@
+package com.hoccer.talk.server.cleaning;
+
+/**
+ * Paces the incremental cleaner against the database
+ * <p/>
+ * The slice size follows the measured query latency: it is halved whenever
+ * a query takes longer than the target and grows slowly while queries stay
+ * below it. The pause between slices keeps the cleaner busy for at most the
+ * configured fraction of wall clock time.
+ */
+public class CleaningThrottle {
+
+    private static final long MIN_DELAY_MILLIS = 10;
+
+    private final int mMinSliceSize;
+    private final int mMaxSliceSize;
+    private final int mSliceIncrement;
+    private final long mTargetLatencyMillis;
+    private final int mDutyCyclePercent;
+
+    private int mSliceSize;
+
+    public CleaningThrottle(int minSliceSize, int maxSliceSize, long targetLatencyMillis, int dutyCyclePercent) {
+        if (minSliceSize < 1 || maxSliceSize < minSliceSize) {
+            throw new IllegalArgumentException("invalid slice size range " + minSliceSize + ".." + maxSliceSize);
+        }
+        if (dutyCyclePercent < 1 || dutyCyclePercent > 100) {
+            throw new IllegalArgumentException("duty cycle must be between 1 and 100 percent, is " + dutyCyclePercent);
+        }
+        mMinSliceSize = minSliceSize;
+        mMaxSliceSize = maxSliceSize;
+        mSliceIncrement = Math.max(1, maxSliceSize / 10);
+        mTargetLatencyMillis = targetLatencyMillis;
+        mDutyCyclePercent = dutyCyclePercent;
+        mSliceSize = maxSliceSize;
+    }
+
+    public synchronized int getSliceSize() {
+        return mSliceSize;
+    }
+
+    /**
+     * Adapt the slice size to the latency of the query that fetched the last slice
+     */
+    public synchronized void onQuery(long queryMillis) {
+        if (queryMillis > mTargetLatencyMillis) {
+            mSliceSize = Math.max(mMinSliceSize, mSliceSize / 2);
+        } else {
+            mSliceSize = Math.min(mMaxSliceSize, mSliceSize + mSliceIncrement);
+        }
+    }
+
+    /**
+     * @param sliceMillis total time spent on the last slice
+     * @return the pause before the next slice in milliseconds
+     */
+    public long getDelayMillis(long sliceMillis) {
+        long delay = sliceMillis * (100 - mDutyCyclePercent) / mDutyCyclePercent;
+        return Math.max(MIN_DELAY_MILLIS, delay);
+    }
+}
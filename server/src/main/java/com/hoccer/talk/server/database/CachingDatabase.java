@@ -0,0 +1,795 @@
+package com.hoccer.talk.server.database;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hoccer.talk.model.*;
+import com.hoccer.talk.server.ITalkServerDatabase;
+import com.hoccer.talk.server.TalkServerConfiguration;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Database decorator caching clients, presences and keys
+ * <p/>
+ * It also keeps an index of who receives whose presence, made of the id sets
+ * returned by findRelatedClientIdsByOtherClient(), findPresenceGroupIdsForClient()
+ * and findPresenceMemberIdsForGroup(). These are returned as unmodifiable sets.
+ * <p/>
+ * These documents are read on nearly every request but change rarely.
+ * Entries expire after a configurable time and are invalidated after
+ * this server writes them, so readers see their own writes immediately.
+ * Writes done through getRawCollection() or by other processes become
+ * visible after the time to live at the latest.
+ * <p/>
+ * Cached objects are copied on the way in and out, so callers may modify
+ * returned objects just like the ones coming from the backend.
+ */
+public class CachingDatabase implements ITalkServerDatabase {
+
+    private static final Logger LOG = Logger.getLogger(CachingDatabase.class);
+
+    private final ITalkServerDatabase mBackend;
+
+    private final ObjectMapper mMapper;
+
+    private final ExpiringCache<String, TalkClient> mClients;
+    private final ExpiringCache<String, TalkPresence> mPresences;
+    private final ExpiringCache<String, TalkKey> mKeys;
+
+    private final ExpiringCache<String, Set<String>> mRelatedClientIds;
+    private final ExpiringCache<String, Set<String>> mPresenceGroupIds;
+    private final ExpiringCache<String, Set<String>> mPresenceMemberIds;
+
+    public CachingDatabase(ITalkServerDatabase backend, TalkServerConfiguration configuration, MetricRegistry metrics) {
+        mBackend = backend;
+
+        mMapper = new ObjectMapper();
+        mMapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
+        mMapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+        mMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        int maxSize = configuration.getDatabaseCacheMaxSize();
+        long timeToLive = configuration.getDatabaseCacheTimeToLive() * 1000L;
+        LOG.info("caching clients, presences and keys, max size " + maxSize + ", ttl " + timeToLive + "ms");
+        mClients = new ExpiringCache<String, TalkClient>("client", maxSize, timeToLive, metrics);
+        mPresences = new ExpiringCache<String, TalkPresence>("presence", maxSize, timeToLive, metrics);
+        mKeys = new ExpiringCache<String, TalkKey>("key", maxSize, timeToLive, metrics);
+        mRelatedClientIds = new ExpiringCache<String, Set<String>>("relatedClientIds", maxSize, timeToLive, metrics);
+        mPresenceGroupIds = new ExpiringCache<String, Set<String>>("presenceGroupIds", maxSize, timeToLive, metrics);
+        mPresenceMemberIds = new ExpiringCache<String, Set<String>>("presenceMemberIds", maxSize, timeToLive, metrics);
+    }
+
+    /**
+     * @return the database this cache is in front of
+     */
+    public ITalkServerDatabase getBackend() {
+        return mBackend;
+    }
+
+    private <T> T copy(T object, Class<T> type) {
+        if (object == null) {
+            return null;
+        }
+        // not convertValue(), which returns the object itself for matching types
+        try {
+            return mMapper.treeToValue(mMapper.valueToTree(object), type);
+        } catch (IOException e) {
+            throw new RuntimeException("could not copy " + type.getSimpleName(), e);
+        }
+    }
+
+    private void invalidateMembership(TalkGroupMembership membership) {
+        mPresenceGroupIds.invalidate(membership.getClientId());
+        mPresenceMemberIds.invalidate(membership.getGroupId());
+    }
+
+    private static String keyCacheId(String clientId, String keyId) {
+        return clientId + ":" + keyId;
+    }
+
+    // cached clients
+
+    @Override
+    public TalkClient findClientById(String clientId) {
+        TalkClient client = mClients.get(clientId);
+        if (client == null) {
+            long loadToken = mClients.startLoad(clientId);
+            client = mBackend.findClientById(clientId);
+            if (client != null) {
+                mClients.put(clientId, copy(client, TalkClient.class), loadToken);
+            }
+            return client;
+        }
+        return copy(client, TalkClient.class);
+    }
+
+    @Override
+    public void saveClient(TalkClient client) {
+        mBackend.saveClient(client);
+        mClients.invalidate(client.getClientId());
+    }
+
+    @Override
+    public void updateClientPushState(TalkClient client) {
+        mBackend.updateClientPushState(client);
+        mClients.invalidate(client.getClientId());
+    }
+
+    @Override
+    public void markClientDeleted(TalkClient client, String reason) {
+        // the client id changes, forget both the old and the new one
+        String clientId = client.getClientId();
+        mBackend.markClientDeleted(client, reason);
+        mClients.invalidate(clientId);
+        mClients.invalidate(client.getClientId());
+    }
+
+    @Override
+    public void unmarkClientDeleted(TalkClient client) {
+        String clientId = client.getClientId();
+        mBackend.unmarkClientDeleted(client);
+        mClients.invalidate(clientId);
+        mClients.invalidate(client.getClientId());
+    }
+
+    @Override
+    public void suspendClient(TalkClient client, Date when, long duration) {
+        mBackend.suspendClient(client, when, duration);
+        mClients.invalidate(client.getClientId());
+    }
+
+    @Override
+    public void unsuspendClient(TalkClient client) {
+        mBackend.unsuspendClient(client);
+        mClients.invalidate(client.getClientId());
+    }
+
+    @Override
+    public void deleteClient(TalkClient client) {
+        mBackend.deleteClient(client);
+        mClients.invalidate(client.getClientId());
+    }
+
+    // cached presences
+
+    @Override
+    public TalkPresence findPresenceForClient(String clientId) {
+        TalkPresence presence = mPresences.get(clientId);
+        if (presence == null) {
+            long loadToken = mPresences.startLoad(clientId);
+            presence = mBackend.findPresenceForClient(clientId);
+            if (presence != null) {
+                mPresences.put(clientId, copy(presence, TalkPresence.class), loadToken);
+            }
+            return presence;
+        }
+        return copy(presence, TalkPresence.class);
+    }
+
+    @Override
+    public void savePresence(TalkPresence presence) {
+        mBackend.savePresence(presence);
+        mPresences.invalidate(presence.getClientId());
+    }
+
+    @Override
+    public void deletePresence(TalkPresence presence) {
+        mBackend.deletePresence(presence);
+        mPresences.invalidate(presence.getClientId());
+    }
+
+    // cached keys
+
+    @Override
+    public TalkKey findKey(String clientId, String keyId) {
+        String cacheId = keyCacheId(clientId, keyId);
+        TalkKey key = mKeys.get(cacheId);
+        if (key == null) {
+            long loadToken = mKeys.startLoad(cacheId);
+            key = mBackend.findKey(clientId, keyId);
+            if (key != null) {
+                mKeys.put(cacheId, copy(key, TalkKey.class), loadToken);
+            }
+            return key;
+        }
+        return copy(key, TalkKey.class);
+    }
+
+    @Override
+    public void saveKey(TalkKey key) {
+        mBackend.saveKey(key);
+        mKeys.invalidate(keyCacheId(key.getClientId(), key.getKeyId()));
+    }
+
+    @Override
+    public void deleteKey(TalkKey key) {
+        mBackend.deleteKey(key);
+        mKeys.invalidate(keyCacheId(key.getClientId(), key.getKeyId()));
+    }
+
+    // everything else goes straight to the backend
+
+    @Override
+    public Object getRawCollection(String name) {
+        return mBackend.getRawCollection(name);
+    }
+
+    @Override
+    public List<String> findClientIdsAfter(String clientId, int limit) {
+        return mBackend.findClientIdsAfter(clientId, limit);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesAcceptedBetween(Date after, String afterId, Date before, int limit) {
+        return mBackend.findDeliveriesAcceptedBetween(after, afterId, before, limit);
+    }
+
+    @Override
+    public void visitDeliveriesInStatesAfterMessageId(String[] states, String[] attachmentStates, String messageId, int limit,
+                                                      String projection, DocumentVisitor<TalkDelivery> visitor) {
+        mBackend.visitDeliveriesInStatesAfterMessageId(states, attachmentStates, messageId, limit, projection, visitor);
+    }
+
+    @Override
+    public TalkClient findDeletedClientById(String clientId) {
+        return mBackend.findDeletedClientById(clientId);
+    }
+
+    @Override
+    public boolean isDeletedClient(String clientId) {
+        return mBackend.isDeletedClient(clientId);
+    }
+
+    @Override
+    public String beforeDeletedId(String clientId) {
+        return mBackend.beforeDeletedId(clientId);
+    }
+
+    @Override
+    public TalkClient findClientByApnsToken(String apnsToken) {
+        return mBackend.findClientByApnsToken(apnsToken);
+    }
+
+    @Override
+    public TalkMessage findMessageById(String messageId) {
+        return mBackend.findMessageById(messageId);
+    }
+
+    @Override
+    public List<TalkMessage> findMessagesByIds(List<String> messageIds) {
+        return mBackend.findMessagesByIds(messageIds);
+    }
+
+    @Override
+    public List<TalkMessage> findMessagesWithAttachmentFileId(String fileId) {
+        return mBackend.findMessagesWithAttachmentFileId(fileId);
+    }
+
+    @Override
+    public List<TalkMessage> findMessagesFromClient(String senderId) {
+        return mBackend.findMessagesFromClient(senderId);
+    }
+
+    @Override
+    public void deleteMessage(TalkMessage message) {
+        mBackend.deleteMessage(message);
+    }
+
+    @Override
+    public void saveMessage(TalkMessage message) {
+        mBackend.saveMessage(message);
+    }
+
+    @Override
+    public TalkDelivery findDelivery(String messageId, String receiverId) {
+        return mBackend.findDelivery(messageId, receiverId);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesInState(String state) {
+        return mBackend.findDeliveriesInState(state);
+    }
+
+    @Override
+    public void visitAllDeliveries(String projection, int batchSize, DocumentVisitor<TalkDelivery> visitor) {
+        mBackend.visitAllDeliveries(projection, batchSize, visitor);
+    }
+
+    @Override
+    public long countDeliveriesInStatesAndAttachmentStates(String[] deliveryStates, String[] attachmentStates) {
+        return mBackend.countDeliveriesInStatesAndAttachmentStates(deliveryStates, attachmentStates);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesForClient(String receiverId) {
+        return mBackend.findDeliveriesForClient(receiverId);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesForClientInState(String receiverId, String state) {
+        return mBackend.findDeliveriesForClientInState(receiverId, state);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesForClientAndMessages(String receiverId, List<String> messageIds) {
+        return mBackend.findDeliveriesForClientAndMessages(receiverId, messageIds);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesForClientInGroupInState(String receiverId, String groupId, String state) {
+        return mBackend.findDeliveriesForClientInGroupInState(receiverId, groupId, state);
+    }
+
+    @Override
+    public long countDeliveriesForClientInGroupInState(String receiverId, String groupId, String state) {
+        return mBackend.countDeliveriesForClientInGroupInState(receiverId, groupId, state);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesForClientInDeliveryAndAttachmentStates(String receiverId, String[] deliveryStates, String[] attachmentStates) {
+        return mBackend.findDeliveriesForClientInDeliveryAndAttachmentStates(receiverId, deliveryStates, attachmentStates);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesFromClient(String senderId) {
+        return mBackend.findDeliveriesFromClient(senderId);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesFromClientInState(String senderId, String state) {
+        return mBackend.findDeliveriesFromClientInState(senderId, state);
+    }
+
+    @Override
+    public long countDeliveriesFromClientInState(String senderId, String state) {
+        return mBackend.countDeliveriesFromClientInState(senderId, state);
+    }
+
+    @Override
+    public long countDeliveriesBetweenClientsInState(String senderId, String receiverId, String state) {
+        return mBackend.countDeliveriesBetweenClientsInState(senderId, receiverId, state);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesFromClientInStates(String senderId, String[] states) {
+        return mBackend.findDeliveriesFromClientInStates(senderId, states);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesFromClientInDeliveryAndAttachmentStates(String senderId, String[] deliveryStates, String[] attachmentStates) {
+        return mBackend.findDeliveriesFromClientInDeliveryAndAttachmentStates(senderId, deliveryStates, attachmentStates);
+    }
+
+    @Override
+    public long countDeliveriesFromClientInDeliveryAndAttachmentStates(String senderId, String[] deliveryStates, String[] attachmentStates) {
+        return mBackend.countDeliveriesFromClientInDeliveryAndAttachmentStates(senderId, deliveryStates, attachmentStates);
+    }
+
+    @Override
+    public long countDeliveriesBetweenClientsInDeliveryAndAttachmentStates(String senderId, String receiverId, String[] deliveryStates, String[] attachmentStates) {
+        return mBackend.countDeliveriesBetweenClientsInDeliveryAndAttachmentStates(senderId, receiverId, deliveryStates, attachmentStates);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesForMessage(String messageId) {
+        return mBackend.findDeliveriesForMessage(messageId);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesFromClientForMessage(String senderId, String messageId) {
+        return mBackend.findDeliveriesFromClientForMessage(senderId, messageId);
+    }
+
+    @Override
+    public void deleteDelivery(TalkDelivery delivery) {
+        mBackend.deleteDelivery(delivery);
+    }
+
+    @Override
+    public void saveDelivery(TalkDelivery delivery) {
+        mBackend.saveDelivery(delivery);
+    }
+
+    @Override
+    public void saveDeliveries(List<TalkDelivery> deliveries) {
+        mBackend.saveDeliveries(deliveries);
+    }
+
+    @Override
+    public void deleteDeliveries(List<TalkDelivery> deliveries) {
+        mBackend.deleteDeliveries(deliveries);
+    }
+
+    @Override
+    public int changeDeliveriesStateForClient(String receiverId, String fromState, String toState) {
+        return mBackend.changeDeliveriesStateForClient(receiverId, fromState, toState);
+    }
+
+    @Override
+    public void updateDeliveryTimeClientNotified(TalkDelivery delivery) {
+        mBackend.updateDeliveryTimeClientNotified(delivery);
+    }
+
+    @Override
+    public void updateDeliveriesTimeUpdatedIn(String receiverId, List<String> messageIds, Date timeUpdatedIn) {
+        mBackend.updateDeliveriesTimeUpdatedIn(receiverId, messageIds, timeUpdatedIn);
+    }
+
+    @Override
+    public List<TalkToken> findTokensByClient(String clientId) {
+        return mBackend.findTokensByClient(clientId);
+    }
+
+    @Override
+    public TalkToken findTokenByPurposeAndSecret(String purpose, String secret) {
+        return mBackend.findTokenByPurposeAndSecret(purpose, secret);
+    }
+
+    @Override
+    public void deleteToken(TalkToken token) {
+        mBackend.deleteToken(token);
+    }
+
+    @Override
+    public void saveToken(TalkToken token) {
+        mBackend.saveToken(token);
+    }
+
+    @Override
+    public List<TalkPresence> findPresencesChangedAfter(String clientId, Date lastKnown) {
+        return mBackend.findPresencesChangedAfter(clientId, lastKnown);
+    }
+
+    @Override
+    public List<TalkPresence> findPresencesWithStates(String[] states) {
+        return mBackend.findPresencesWithStates(states);
+    }
+
+    @Override
+    public List<TalkKey> findKeys(String clientId) {
+        return mBackend.findKeys(clientId);
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationships(String client) {
+        return mBackend.findRelationships(client);
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationshipsForClientInState(String clientId, String state) {
+        return mBackend.findRelationshipsForClientInState(clientId, state);
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationshipsForClientInStates(String clientId, String[] states) {
+        return mBackend.findRelationshipsForClientInStates(clientId, states);
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationshipsForOtherClientInStates(String clientId, String[] states) {
+        return mBackend.findRelationshipsForOtherClientInStates(clientId, states);
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationshipsByOtherClient(String other) {
+        return mBackend.findRelationshipsByOtherClient(other);
+    }
+
+    @Override
+    public Set<String> findRelatedClientIdsByOtherClient(String other) {
+        Set<String> clientIds = mRelatedClientIds.get(other);
+        if (clientIds == null) {
+            long loadToken = mRelatedClientIds.startLoad(other);
+            clientIds = Collections.unmodifiableSet(mBackend.findRelatedClientIdsByOtherClient(other));
+            mRelatedClientIds.put(other, clientIds, loadToken);
+        }
+        return clientIds;
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationshipsChangedAfter(String client, Date lastKnown) {
+        return mBackend.findRelationshipsChangedAfter(client, lastKnown);
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationshipsWithStatesChangedBefore(String[] states, Date lastChanged) {
+        return mBackend.findRelationshipsWithStatesChangedBefore(states, lastChanged);
+    }
+
+    @Override
+    public int deleteRelationshipsWithStatesChangedBefore(String[] states, Date lastChanged) {
+        int deleted = mBackend.deleteRelationshipsWithStatesChangedBefore(states, lastChanged);
+        mRelatedClientIds.invalidateAll();
+        return deleted;
+    }
+
+    @Override
+    public int deleteRelationshipsWithStatesAndNotNotificationsDisabledChangedBefore(String[] states, Date lastChanged) {
+        int deleted = mBackend.deleteRelationshipsWithStatesAndNotNotificationsDisabledChangedBefore(states, lastChanged);
+        mRelatedClientIds.invalidateAll();
+        return deleted;
+    }
+
+    @Override
+    public TalkRelationship findRelationshipBetween(String client, String otherClient) {
+        return mBackend.findRelationshipBetween(client, otherClient);
+    }
+
+    @Override
+    public void deleteRelationship(TalkRelationship relationship) {
+        mBackend.deleteRelationship(relationship);
+        mRelatedClientIds.invalidate(relationship.getOtherClientId());
+    }
+
+    @Override
+    public void saveRelationship(TalkRelationship relationship) {
+        mBackend.saveRelationship(relationship);
+        mRelatedClientIds.invalidate(relationship.getOtherClientId());
+    }
+
+    @Override
+    public TalkGroupPresence findGroupPresenceById(String groupId) {
+        return mBackend.findGroupPresenceById(groupId);
+    }
+
+    @Override
+    public void deleteGroupPresence(TalkGroupPresence groupPresence) {
+        mBackend.deleteGroupPresence(groupPresence);
+    }
+
+    @Override
+    public List<TalkGroupPresence> findGroupPresencesByClientIdChangedAfter(String clientId, Date lastKnown) {
+        return mBackend.findGroupPresencesByClientIdChangedAfter(clientId, lastKnown);
+    }
+
+    @Override
+    public List<TalkGroupMembership> findGroupMembershipsByIdWithStatesChangedAfter(String groupId, String[] states, Date lastKnown) {
+        return mBackend.findGroupMembershipsByIdWithStatesChangedAfter(groupId, states, lastKnown);
+    }
+
+    @Override
+    public List<TalkGroupMembership> findGroupMembershipsWithStatesChangedBefore(String[] states, Date lastChanged) {
+        return mBackend.findGroupMembershipsWithStatesChangedBefore(states, lastChanged);
+    }
+
+    @Override
+    public int deleteGroupMembershipsWithStatesChangedBefore(String[] states, Date lastChanged) {
+        int deleted = mBackend.deleteGroupMembershipsWithStatesChangedBefore(states, lastChanged);
+        mPresenceGroupIds.invalidateAll();
+        mPresenceMemberIds.invalidateAll();
+        return deleted;
+    }
+
+    @Override
+    public int deleteGroupMembershipsWithStatesAndRolesChangedBefore(String[] states, String[] roles, Date lastChanged) {
+        int deleted = mBackend.deleteGroupMembershipsWithStatesAndRolesChangedBefore(states, roles, lastChanged);
+        mPresenceGroupIds.invalidateAll();
+        mPresenceMemberIds.invalidateAll();
+        return deleted;
+    }
+
+    @Override
+    public List<TalkGroupPresence> findGroupPresencesWithState(String state) {
+        return mBackend.findGroupPresencesWithState(state);
+    }
+
+    @Override
+    public List<TalkGroupPresence> findGroupPresencesWithTypeAndState(String groupType, String state) {
+        return mBackend.findGroupPresencesWithTypeAndState(groupType, state);
+    }
+
+    @Override
+    public List<TalkGroupPresence> findGroupPresencesWithStateChangedBefore(String state, Date changedDate) {
+        return mBackend.findGroupPresencesWithStateChangedBefore(state, changedDate);
+    }
+
+    @Override
+    public int deleteGroupPresencesWithStateChangedBefore(String state, Date changedDate) {
+        return mBackend.deleteGroupPresencesWithStateChangedBefore(state, changedDate);
+    }
+
+    @Override
+    public int deleteGroupPresencesWithStateAndTypeChangedBefore(String state, String groupType, Date changedDate) {
+        return mBackend.deleteGroupPresencesWithStateAndTypeChangedBefore(state, groupType, changedDate);
+    }
+
+    @Override
+    public void saveGroupPresence(TalkGroupPresence groupPresence) {
+        mBackend.saveGroupPresence(groupPresence);
+    }
+
+    @Override
+    public List<TalkGroupMembership> findGroupMembershipsById(String groupId) {
+        return mBackend.findGroupMembershipsById(groupId);
+    }
+
+    @Override
+    public List<TalkGroupMembership> findGroupMembershipsByIdWithStates(String groupId, String[] states) {
+        return mBackend.findGroupMembershipsByIdWithStates(groupId, states);
+    }
+
+    @Override
+    public List<TalkGroupMembership> findGroupMembershipsByIdWithStatesAndRoles(String groupId, String[] states, String[] roles) {
+        return mBackend.findGroupMembershipsByIdWithStatesAndRoles(groupId, states, roles);
+    }
+
+    @Override
+    public List<TalkGroupMembership> findGroupMembershipsWithStatesAndRoles(String[] states, String[] roles) {
+        return mBackend.findGroupMembershipsWithStatesAndRoles(states, roles);
+    }
+
+    @Override
+    public List<TalkGroupMembership> findGroupMembershipsByIdChangedAfter(String groupId, Date lastKnown) {
+        return mBackend.findGroupMembershipsByIdChangedAfter(groupId, lastKnown);
+    }
+
+    @Override
+    public List<TalkGroupMembership> findGroupMembershipsForClient(String clientId) {
+        return mBackend.findGroupMembershipsForClient(clientId);
+    }
+
+    @Override
+    public Set<String> findPresenceGroupIdsForClient(String clientId) {
+        Set<String> groupIds = mPresenceGroupIds.get(clientId);
+        if (groupIds == null) {
+            long loadToken = mPresenceGroupIds.startLoad(clientId);
+            groupIds = Collections.unmodifiableSet(mBackend.findPresenceGroupIdsForClient(clientId));
+            mPresenceGroupIds.put(clientId, groupIds, loadToken);
+        }
+        return groupIds;
+    }
+
+    @Override
+    public Set<String> findPresenceMemberIdsForGroup(String groupId) {
+        Set<String> clientIds = mPresenceMemberIds.get(groupId);
+        if (clientIds == null) {
+            long loadToken = mPresenceMemberIds.startLoad(groupId);
+            clientIds = Collections.unmodifiableSet(mBackend.findPresenceMemberIdsForGroup(groupId));
+            mPresenceMemberIds.put(groupId, clientIds, loadToken);
+        }
+        return clientIds;
+    }
+
+    @Override
+    public List<TalkGroupMembership> findGroupMembershipsForClientWithStates(String clientId, String[] states) {
+        return mBackend.findGroupMembershipsForClientWithStates(clientId, states);
+    }
+
+    @Override
+    public List<TalkGroupMembership> findGroupMembershipsForClientWithStatesAndRoles(String clientId, String[] states, String[] roles) {
+        return mBackend.findGroupMembershipsForClientWithStatesAndRoles(clientId, states, roles);
+    }
+
+    @Override
+    public TalkGroupMembership findGroupMembershipForClient(String groupId, String clientId) {
+        return mBackend.findGroupMembershipForClient(groupId, clientId);
+    }
+
+    @Override
+    public void saveGroupMembership(TalkGroupMembership membership) {
+        mBackend.saveGroupMembership(membership);
+        invalidateMembership(membership);
+    }
+
+    @Override
+    public void saveGroupMemberships(List<TalkGroupMembership> memberships) {
+        mBackend.saveGroupMemberships(memberships);
+        for (TalkGroupMembership membership : memberships) {
+            invalidateMembership(membership);
+        }
+    }
+
+    @Override
+    public void deleteGroupMembership(TalkGroupMembership membership) {
+        mBackend.deleteGroupMembership(membership);
+        invalidateMembership(membership);
+    }
+
+    @Override
+    public void saveEnvironment(TalkEnvironment environment) {
+        mBackend.saveEnvironment(environment);
+    }
+
+    @Override
+    public TalkEnvironment findEnvironmentByClientId(String type, String clientId) {
+        return mBackend.findEnvironmentByClientId(type, clientId);
+    }
+
+    @Override
+    public TalkEnvironment findEnvironmentByClientIdForGroup(String clientId, String groupId) {
+        return mBackend.findEnvironmentByClientIdForGroup(clientId, groupId);
+    }
+
+    @Override
+    public List<TalkEnvironment> findEnvironmentsForGroup(String groupId) {
+        return mBackend.findEnvironmentsForGroup(groupId);
+    }
+
+    @Override
+    public List<TalkEnvironment> findEnvironmentsForClient(String clientId) {
+        return mBackend.findEnvironmentsForClient(clientId);
+    }
+
+    @Override
+    public List<TalkEnvironment> findEnvironmentsByType(String type) {
+        return mBackend.findEnvironmentsByType(type);
+    }
+
+    @Override
+    public List<TalkEnvironment> findEnvironmentsForClient(String clientId, String type) {
+        return mBackend.findEnvironmentsForClient(clientId, type);
+    }
+
+    @Override
+    public List<TalkEnvironment> findEnvironmentsMatching(TalkEnvironment environment) {
+        return mBackend.findEnvironmentsMatching(environment);
+    }
+
+    @Override
+    public void deleteEnvironment(TalkEnvironment environment) {
+        mBackend.deleteEnvironment(environment);
+    }
+
+    @Override
+    public boolean ping() {
+        return mBackend.ping();
+    }
+
+    @Override
+    public void reportPing() {
+        mBackend.reportPing();
+    }
+
+    @Override
+    public TalkClientHostInfo findClientHostInfoForClient(String clientId) {
+        return mBackend.findClientHostInfoForClient(clientId);
+    }
+
+    @Override
+    public List<TalkClientHostInfo> findClientHostInfoByClientLanguageAndClientName(String clientLanguage, String clientName) {
+        return mBackend.findClientHostInfoByClientLanguageAndClientName(clientLanguage, clientName);
+    }
+
+    @Override
+    public void saveClientHostInfo(TalkClientHostInfo clientHostInfo) {
+        mBackend.saveClientHostInfo(clientHostInfo);
+    }
+
+    @Override
+    public void deleteClientHostInfo(TalkClientHostInfo clientHostInfo) {
+        mBackend.deleteClientHostInfo(clientHostInfo);
+    }
+
+    @Override
+    public List<TalkDatabaseMigration> findDatabaseMigrations() {
+        return mBackend.findDatabaseMigrations();
+    }
+
+    @Override
+    public void saveDatabaseMigration(TalkDatabaseMigration migration) {
+        mBackend.saveDatabaseMigration(migration);
+    }
+
+    @Override
+    public void changeDeliveryFieldValue(String fieldName, String oldFieldValue, String newFieldValue) {
+        mBackend.changeDeliveryFieldValue(fieldName, oldFieldValue, newFieldValue);
+    }
+
+    @Override
+    public TalkCleaningCheckpoint findCleaningCheckpoint(String name) {
+        return mBackend.findCleaningCheckpoint(name);
+    }
+
+    @Override
+    public void saveCleaningCheckpoint(TalkCleaningCheckpoint checkpoint) {
+        mBackend.saveCleaningCheckpoint(checkpoint);
+    }
+}
@@ -0,0 +1,124 @@
+package com.hoccer.talk.server.database;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache whose entries expire after a fixed time
+ * <p/>
+ * Loads are guarded against racing invalidations: a value read from the
+ * database before an invalidation of its key happened is not put into the cache.
+ * Invalidations are counted per stripe of keys, so writes only discard loads
+ * of keys that share a stripe with the written one.
+ */
+public class ExpiringCache<K, V> {
+
+    private static class CacheEntry<V> {
+        final V value;
+        final long expires;
+
+        CacheEntry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private static final int STRIPES = 64;
+
+    private final int mMaxSize;
+
+    private final long mTimeToLiveMillis;
+
+    private final LinkedHashMap<K, CacheEntry<V>> mEntries;
+
+    /** Number of invalidations so far per stripe, used to detect loads overtaken by writes */
+    private final long[] mGenerations = new long[STRIPES];
+
+    private final Meter mHitMeter;
+    private final Meter mMissMeter;
+    private final Meter mEvictionMeter;
+
+    public ExpiringCache(String name, int maxSize, long timeToLiveMillis, MetricRegistry metrics) {
+        mMaxSize = maxSize;
+        mTimeToLiveMillis = timeToLiveMillis;
+        mEntries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                if (size() > mMaxSize) {
+                    mEvictionMeter.mark();
+                    return true;
+                }
+                return false;
+            }
+        };
+        mHitMeter = metrics.meter(MetricRegistry.name(ExpiringCache.class, name, "hits"));
+        mMissMeter = metrics.meter(MetricRegistry.name(ExpiringCache.class, name, "misses"));
+        mEvictionMeter = metrics.meter(MetricRegistry.name(ExpiringCache.class, name, "evictions"));
+        metrics.register(MetricRegistry.name(ExpiringCache.class, name, "size"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return size();
+                    }
+                }
+        );
+    }
+
+    /**
+     * @return the cached value or null if absent or expired
+     */
+    public synchronized V get(K key) {
+        CacheEntry<V> entry = mEntries.get(key);
+        if (entry != null && entry.expires <= System.currentTimeMillis()) {
+            mEntries.remove(key);
+            mEvictionMeter.mark();
+            entry = null;
+        }
+        if (entry == null) {
+            mMissMeter.mark();
+            return null;
+        }
+        mHitMeter.mark();
+        return entry.value;
+    }
+
+    private static int stripe(Object key) {
+        return (key.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    /**
+     * @return a token to pass to {@link #put} after loading a missed value
+     */
+    public synchronized long startLoad(K key) {
+        return mGenerations[stripe(key)];
+    }
+
+    /**
+     * Cache a loaded value unless its key was invalidated since the load started
+     */
+    public synchronized void put(K key, V value, long loadToken) {
+        if (loadToken == mGenerations[stripe(key)]) {
+            mEntries.put(key, new CacheEntry<V>(value, System.currentTimeMillis() + mTimeToLiveMillis));
+        }
+    }
+
+    public synchronized void invalidate(K key) {
+        mGenerations[stripe(key)]++;
+        mEntries.remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            mGenerations[i]++;
+        }
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+}
@@ -1,16 +1,25 @@
 package com.hoccer.talk.server.database;
 
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
 import com.hoccer.talk.model.*;
 import com.hoccer.talk.server.ITalkServerDatabase;
 import com.hoccer.talk.server.TalkServerConfiguration;
 import com.mongodb.*;
 import org.apache.commons.collections4.IteratorUtils;
 import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jongo.Find;
 import org.jongo.Jongo;
+import org.jongo.Mapper;
 import org.jongo.MongoCollection;
 import org.jongo.Update;
+import org.jongo.bson.Bson;
+import org.jongo.marshall.jackson.JacksonMapper;
 
 import java.net.UnknownHostException;
 import java.util.*;
@@ -20,12 +29,21 @@ import java.util.*;
  * <p/>
  * This is intended as the production backend.
  * <p/>
+ * Each collection is written with the write concern configured for it, and
+ * the latency of writes is tracked per collection. These timers are exposed
+ * as a metric set for the server to register.
+ * <p/>
  * TODO: this should use findOne() instead of find() where appropriate
  */
-public class JongoDatabase implements ITalkServerDatabase {
+public class JongoDatabase implements ITalkServerDatabase, MetricSet {
 
     private static final Logger LOG = Logger.getLogger(JongoDatabase.class);
 
+    /**
+     * Maximum number of deliveries removed with one query
+     */
+    private static final int DELETE_CHUNK_SIZE = 500;
+
     /**
      * Mongo connection pool
      */
@@ -41,8 +59,16 @@ public class JongoDatabase implements ITalkServerDatabase {
      */
     private Jongo mJongo;
 
+    /**
+     * Mapper used by jongo
+     */
+    private Mapper mMapper;
+
+    private final TalkServerConfiguration mConfiguration;
+
     private final List<MongoCollection> mCollections;
     private final Map<String, MongoCollection> mCollectionsByName = new HashMap<String, MongoCollection>();
+    private final Map<String, Timer> mWriteTimers = new HashMap<String, Timer>();
 
     private MongoCollection mClients;
     private MongoCollection mMessages;
@@ -56,20 +82,35 @@ public class JongoDatabase implements ITalkServerDatabase {
     private MongoCollection mEnvironments;
     private MongoCollection mClientHostInfos;
     private MongoCollection mMigrations;
+    private MongoCollection mCleaningCheckpoints;
     private MongoCollection mStatistics;
 
     public JongoDatabase(TalkServerConfiguration configuration) {
+        mConfiguration = configuration;
         mCollections = new ArrayList<MongoCollection>();
         mMongo = createMongoClient(configuration);
         initialize(configuration.getJongoDb());
     }
 
     public JongoDatabase(TalkServerConfiguration configuration, Mongo mongodb) {
+        mConfiguration = configuration;
         mCollections = new ArrayList<MongoCollection>();
         mMongo = mongodb;
         initialize(configuration.getJongoDb());
     }
 
+    /**
+     * @return the write latency timers, one per collection
+     */
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<String, Metric>();
+        for (Map.Entry<String, Timer> entry : mWriteTimers.entrySet()) {
+            metrics.put(MetricRegistry.name(JongoDatabase.class, "writes", entry.getKey()), entry.getValue());
+        }
+        return metrics;
+    }
+
     public Object getRawCollection(String name) {
         return mCollectionsByName.get(name);
     }
@@ -94,7 +135,8 @@ public class JongoDatabase implements ITalkServerDatabase {
         // create db accessor
         mDb = mMongo.getDB(dbName);
         // create object mapper
-        mJongo = new Jongo(mDb);
+        mMapper = new JacksonMapper.Builder().build();
+        mJongo = new Jongo(mDb, mMapper);
         // create collection accessors
         mClients = getCollection("client");
         mMessages = getCollection("message");
@@ -108,12 +150,15 @@ public class JongoDatabase implements ITalkServerDatabase {
         mEnvironments = getCollection("environment");
         mClientHostInfos = getCollection("clientHostInfo");
         mMigrations = getCollection("migrations");
+        mCleaningCheckpoints = getCollection("cleaningCheckpoint");
 
         LOG.info("Ensuring database indices for database " + dbName);
         mClients.ensureIndex("{clientId:1}");
         mClients.ensureIndex("{apnsToken:1}");
         mClients.ensureIndex("{timeRegistered:1}"); // for external statistics gathering
 
+        mCleaningCheckpoints.ensureIndex("{name:1}");
+
         mTokens.ensureIndex("{clientId:1}");
         mTokens.ensureIndex("{clientId:1, secret:1}");
         mTokens.ensureIndex("{purpose:1, secret:1}");
@@ -173,6 +218,7 @@ public class JongoDatabase implements ITalkServerDatabase {
         mDeliveries.ensureIndex("{attachmentState:1}");
         mDeliveries.ensureIndex("{state:1, attachmentState:1}");
         mDeliveries.ensureIndex("{timeAccepted:1}");
+        mDeliveries.ensureIndex("{timeAccepted:1, _id:1}");
 
         mEnvironments.ensureIndex("{geoLocation: '2dsphere'}");
         mEnvironments.ensureIndex("{groupId: 1}");
@@ -217,22 +263,140 @@ public class JongoDatabase implements ITalkServerDatabase {
         LOG.info("Cleanup database state on startup done.");
     }
 
-     private MongoCollection getCollection(String name) {
-        MongoCollection res = mJongo.getCollection(name).withWriteConcern(WriteConcern.JOURNALED);
+    /**
+     * Save all documents, failing if any of them could not be written
+     * <p/>
+     * New documents are inserted in one batch with the collection write concern.
+     * Mongo stops a batch insert at the first document that fails and reports that
+     * failure, so the batch is only acknowledged if all of it has been written.
+     * Documents that already exist are saved one by one, each acknowledged on its own.
+     */
+    private void saveAll(MongoCollection collection, List<?> documents) {
+        final List<Object> inserts = new ArrayList<Object>(documents.size());
+        for (Object document : documents) {
+            if (mMapper.getObjectIdUpdater().isNew(document)) {
+                inserts.add(document);
+            } else {
+                timedSave(collection, document);
+            }
+        }
+        if (inserts.size() == 1) {
+            timedSave(collection, inserts.get(0));
+        } else if (!inserts.isEmpty()) {
+            timedWrite(collection, new Write() {
+                @Override
+                public WriteResult write(MongoCollection collection) {
+                    Object[] batch = inserts.toArray();
+                    return collection.insert(batch);
+                }
+            });
+        }
+    }
+
+    private MongoCollection getCollection(String name) {
+        String writeConcernName = mConfiguration.getJongoWriteConcern(name);
+        WriteConcern writeConcern = WriteConcern.valueOf(writeConcernName);
+        if (writeConcern == null) {
+            throw new IllegalArgumentException("unknown write concern '" + writeConcernName + "' for collection " + name);
+        }
+        LOG.info("Using write concern " + writeConcernName + " for collection " + name);
+        MongoCollection res = mJongo.getCollection(name).withWriteConcern(writeConcern);
         mCollections.add(res);
         mCollectionsByName.put(name, res);
+        mWriteTimers.put(name, new Timer());
         return res;
     }
 
+    /**
+     * A single write to a collection
+     */
+    private interface Write {
+        WriteResult write(MongoCollection collection);
+    }
+
+    /**
+     * Save a document, recording the duration of the write
+     */
+    private void timedSave(MongoCollection collection, final Object document) {
+        timedWrite(collection, new Write() {
+            @Override
+            public WriteResult write(MongoCollection collection) {
+                return collection.save(document);
+            }
+        });
+    }
+
+    /**
+     * Remove the documents matching a query, recording the duration of the write
+     */
+    private WriteResult timedRemove(MongoCollection collection, final String query, final Object... parameters) {
+        return timedWrite(collection, new Write() {
+            @Override
+            public WriteResult write(MongoCollection collection) {
+                return collection.remove(query, parameters);
+            }
+        });
+    }
+
+    /**
+     * Perform a write, recording its duration whether it succeeds or fails
+     */
+    /**
+     * Stream the documents matching a query to a visitor
+     * <p/>
+     * Unlike jongo finds this allows to control the cursor batch size
+     * and closes the cursor when the visitor stops early.
+     * A limit of zero means no limit.
+     */
+    private <T> void visit(MongoCollection collection, Class<T> type, String query, Object[] parameters,
+                           @Nullable String projection, @Nullable String sort, int limit, int batchSize,
+                           DocumentVisitor<T> visitor) {
+        DBObject queryObject = mJongo.createQuery(query, parameters).toDBObject();
+        DBObject projectionObject = projection == null ? null : mJongo.createQuery(projection).toDBObject();
+        DBCursor cursor = collection.getDBCollection().find(queryObject, projectionObject).batchSize(batchSize);
+        if (sort != null) {
+            cursor.sort(mJongo.createQuery(sort).toDBObject());
+        }
+        if (limit > 0) {
+            cursor.limit(limit);
+        }
+        try {
+            while (cursor.hasNext()) {
+                T document = mMapper.getUnmarshaller().unmarshall(Bson.createDocument(cursor.next()), type);
+                if (!visitor.visit(document)) {
+                    break;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private WriteResult timedWrite(MongoCollection collection, Write operation) {
+        Timer.Context timer = mWriteTimers.get(collection.getName()).time();
+        try {
+            return operation.write(collection);
+        } finally {
+            timer.stop();
+        }
+    }
+
     @Override
     @NotNull
-    public List<TalkClient> findAllClients() {
+    public List<String> findClientIdsAfter(@Nullable String clientId, int limit) {
         Iterator<TalkClient> it = mClients
-                .find()
+                .find("{clientId: { $gt: # } }", clientId == null ? "" : clientId)
+                .projection("{clientId:1}")
+                .sort("{clientId:1}")
+                .limit(limit)
                 .as(TalkClient.class)
                 .iterator();
 
-        return IteratorUtils.toList(it);
+        List<String> clientIds = new ArrayList<String>();
+        while (it.hasNext()) {
+            clientIds.add(it.next().getClientId());
+        }
+        return clientIds;
     }
 
     @Override
@@ -272,7 +436,19 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void saveClient(@NotNull TalkClient client) {
-        mClients.save(client);
+        timedSave(mClients, client);
+    }
+
+    @Override
+    public void updateClientPushState(@NotNull final TalkClient client) {
+        timedWrite(mClients, new Write() {
+            @Override
+            public WriteResult write(MongoCollection collection) {
+                return collection.update("{clientId:#}", client.getClientId())
+                        .with("{$set: {timeLastPush:#, lastPushMessage:#, pushRetryCount:#}}",
+                                client.getTimeLastPush(), client.getLastPushMessage(), client.getPushRetryCount());
+            }
+        });
     }
 
     @Override
@@ -283,7 +459,7 @@ public class JongoDatabase implements ITalkServerDatabase {
             client.setReasonDeleted(reason);
             client.setClientId(client.getClientId()+"-DELETED");
             client.setTimeDeleted(new Date());
-            mClients.save(client);
+            timedSave(mClients, client);
         }
     }
 
@@ -295,7 +471,7 @@ public class JongoDatabase implements ITalkServerDatabase {
             client.setReasonDeleted("");
             client.setClientId(client.getClientId().substring(0,36));
             client.setTimeDeleted(null);
-            mClients.save(client);
+            timedSave(mClients, client);
         }
     }
 
@@ -303,7 +479,7 @@ public class JongoDatabase implements ITalkServerDatabase {
     public void suspendClient(@NotNull TalkClient client, @Nullable Date when, long duration) {
         client.setTimeSuspended(when);
         client.setDurationSuspended(duration);
-        mClients.save(client);
+        timedSave(mClients, client);
     }
 
     @Override
@@ -314,7 +490,7 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void deleteClient(@NotNull TalkClient client) {
-        mClients.remove("{clientId:#}", client.getClientId());
+        timedRemove(mClients, "{clientId:#}", client.getClientId());
     }
 
     @Override
@@ -324,6 +500,17 @@ public class JongoDatabase implements ITalkServerDatabase {
                 .as(TalkMessage.class);
     }
 
+    @Override
+    @NotNull
+    public List<TalkMessage> findMessagesByIds(List<String> messageIds) {
+        Iterator<TalkMessage> it = mMessages
+                .find("{messageId: { $in: # } }", messageIds)
+                .as(TalkMessage.class)
+                .iterator();
+
+        return IteratorUtils.toList(it);
+    }
+
     @Override
     @NotNull
     public List<TalkMessage> findMessagesWithAttachmentFileId(String fileId) {
@@ -348,12 +535,12 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void deleteMessage(@Nullable TalkMessage message) {
-        mMessages.remove("{messageId:#}", message.getMessageId());
+        timedRemove(mMessages, "{messageId:#}", message.getMessageId());
     }
 
     @Override
     public void saveMessage(TalkMessage message) {
-        mMessages.save(message);
+        timedSave(mMessages, message);
     }
 
     @Override
@@ -375,36 +562,8 @@ public class JongoDatabase implements ITalkServerDatabase {
     }
 
     @Override
-    @NotNull
-    public List<TalkDelivery> findAllDeliveries() {
-        Iterator<TalkDelivery> it = mDeliveries
-                .find()
-                .as(TalkDelivery.class)
-                .iterator();
-
-        return IteratorUtils.toList(it);
-    }
-
-    @Override
-    @NotNull
-    public List<TalkDelivery> findDeliveriesInStates(String[] states) {
-        Iterator<TalkDelivery> it = mDeliveries
-                .find("{state: { $in: # } }", Arrays.asList(states))
-                .as(TalkDelivery.class)
-                .iterator();
-
-        return IteratorUtils.toList(it);
-    }
-
-    @Override
-    @NotNull
-    public List<TalkDelivery> findDeliveriesInStatesAndAttachmentStates(String[] deliveryStates, String[] attachmentStates) {
-        Iterator<TalkDelivery> it = mDeliveries
-                .find("{state: { $in: # }, attachmentState: {$in: # } }", Arrays.asList(deliveryStates), Arrays.asList(attachmentStates))
-                .as(TalkDelivery.class)
-                .iterator();
-
-        return IteratorUtils.toList(it);
+    public void visitAllDeliveries(@Nullable String projection, int batchSize, DocumentVisitor<TalkDelivery> visitor) {
+        visit(mDeliveries, TalkDelivery.class, "{}", new Object[0], projection, null, 0, batchSize, visitor);
     }
 
     @Override
@@ -446,6 +605,17 @@ public class JongoDatabase implements ITalkServerDatabase {
         return IteratorUtils.toList(it);
     }
 
+    @Override
+    @NotNull
+    public List<TalkDelivery> findDeliveriesForClientAndMessages(String receiverId, List<String> messageIds) {
+        Iterator<TalkDelivery> it = mDeliveries
+                .find("{receiverId:#, messageId: { $in: # } }", receiverId, messageIds)
+                .as(TalkDelivery.class)
+                .iterator();
+
+        return IteratorUtils.toList(it);
+    }
+
     @Override
     @NotNull
     public List<TalkDelivery> findDeliveriesForClientInGroupInState(String receiverId, String groupId, String state) {
@@ -549,29 +719,113 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     @NotNull
-    public List<TalkDelivery> findDeliveriesAcceptedBefore(Date limit) {
-        Iterator<TalkDelivery> it = mDeliveries
-                .find("{timeAccepted: { $lt:# } }", limit)
+    public List<TalkDelivery> findDeliveriesAcceptedBetween(@Nullable Date after, @Nullable String afterId, Date before, int limit) {
+        // page on (timeAccepted, _id) - group deliveries share their acceptance time
+        Find find;
+        if (after == null) {
+            find = mDeliveries.find("{timeAccepted: { $lt:# } }", before);
+        } else if (afterId == null) {
+            find = mDeliveries.find("{timeAccepted: { $gte:#, $lt:# } }", after, before);
+        } else {
+            // _id is stored as an ObjectId, which never compares equal to or greater than a string
+            find = mDeliveries.find("{timeAccepted: { $lt:# }, $or: [ { timeAccepted: { $gt:# } }, { timeAccepted:#, _id: { $gt:# } } ] }",
+                    before, after, after, new ObjectId(afterId));
+        }
+        Iterator<TalkDelivery> it = find
+                .sort("{timeAccepted:1, _id:1}")
+                .limit(limit)
                 .as(TalkDelivery.class)
                 .iterator();
 
         return IteratorUtils.toList(it);
     }
 
+    @Override
+    public void visitDeliveriesInStatesAfterMessageId(String[] states, @Nullable String[] attachmentStates,
+                                                      @Nullable String messageId, int limit, @Nullable String projection,
+                                                      DocumentVisitor<TalkDelivery> visitor) {
+        String afterMessageId = messageId == null ? "" : messageId;
+        if (attachmentStates == null) {
+            visit(mDeliveries, TalkDelivery.class, "{messageId: { $gt:# }, state: { $in: # } }",
+                    new Object[]{afterMessageId, Arrays.asList(states)},
+                    projection, "{messageId:1}", limit, limit, visitor);
+        } else {
+            visit(mDeliveries, TalkDelivery.class, "{messageId: { $gt:# }, state: { $in: # }, attachmentState: { $in: # } }",
+                    new Object[]{afterMessageId, Arrays.asList(states), Arrays.asList(attachmentStates)},
+                    projection, "{messageId:1}", limit, limit, visitor);
+        }
+    }
+
 
     @Override
     public void deleteDelivery(TalkDelivery delivery) {
-        mDeliveries.remove("{messageId:#,receiverId:#}", delivery.getMessageId(), delivery.getReceiverId());
+        timedRemove(mDeliveries, "{messageId:#,receiverId:#}", delivery.getMessageId(), delivery.getReceiverId());
     }
 
     @Override
     public void saveDelivery(TalkDelivery delivery) {
-        mDeliveries.save(delivery);
+        timedSave(mDeliveries, delivery);
     }
 
     @Override
-    public void updateDeliveryTimeClientNotified(TalkDelivery delivery) {
-        mDeliveries.update("{ _id:# }", delivery.getId()).with("{$set: { timeClientNotified:# }}", delivery.getTimeClientNotified());
+    public void saveDeliveries(List<TalkDelivery> deliveries) {
+        saveAll(mDeliveries, deliveries);
+    }
+
+    @Override
+    public void deleteDeliveries(List<TalkDelivery> deliveries) {
+        // one acknowledged removal per chunk, keeping the query size bounded
+        for (int start = 0; start < deliveries.size(); start += DELETE_CHUNK_SIZE) {
+            List<TalkDelivery> chunk = deliveries.subList(start, Math.min(start + DELETE_CHUNK_SIZE, deliveries.size()));
+            StringBuilder query = new StringBuilder("{$or: [");
+            Object[] parameters = new Object[chunk.size() * 2];
+            for (int i = 0; i < chunk.size(); i++) {
+                TalkDelivery delivery = chunk.get(i);
+                query.append(i == 0 ? "{messageId:#,receiverId:#}" : ",{messageId:#,receiverId:#}");
+                parameters[2 * i] = delivery.getMessageId();
+                parameters[2 * i + 1] = delivery.getReceiverId();
+            }
+            query.append("]}");
+            timedRemove(mDeliveries, query.toString(), parameters);
+        }
+    }
+
+    @Override
+    public int changeDeliveriesStateForClient(final String receiverId, final String fromState, final String toState) {
+        WriteResult result = timedWrite(mDeliveries, new Write() {
+            @Override
+            public WriteResult write(MongoCollection collection) {
+                return collection.update("{receiverId:#, state:#}", receiverId, fromState)
+                        .multi()
+                        .with("{$set: { state:# }}", toState);
+            }
+        });
+        return result.getN();
+    }
+
+    @Override
+    public void updateDeliveryTimeClientNotified(final TalkDelivery delivery) {
+        timedWrite(mDeliveries, new Write() {
+            @Override
+            public WriteResult write(MongoCollection collection) {
+                return collection.update("{ _id:# }", delivery.getId()).with("{$set: { timeClientNotified:# }}", delivery.getTimeClientNotified());
+            }
+        });
+    }
+
+    @Override
+    public void updateDeliveriesTimeUpdatedIn(final String receiverId, final List<String> messageIds, final Date timeUpdatedIn) {
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        timedWrite(mDeliveries, new Write() {
+            @Override
+            public WriteResult write(MongoCollection collection) {
+                return collection.update("{receiverId:#, messageId: { $in: # } }", receiverId, messageIds)
+                        .multi()
+                        .with("{$set: { timeUpdatedIn:# }}", timeUpdatedIn);
+            }
+        });
     }
 
     @Override
@@ -608,12 +862,12 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void deleteToken(TalkToken token) {
-        mTokens.remove("{clientId:#,secret:#}", token.getClientId(), token.getSecret());
+        timedRemove(mTokens, "{clientId:#,secret:#}", token.getClientId(), token.getSecret());
     }
 
     @Override
     public void saveToken(TalkToken token) {
-        mTokens.save(token);
+        timedSave(mTokens, token);
     }
 
     @Override
@@ -640,7 +894,7 @@ public class JongoDatabase implements ITalkServerDatabase {
         /*
         // With the following (former) variant in this comment we will also get presences
         // for clients that have (only) blocked us which is not what we want. Note that this is
-        // however the same code used in performPresenceUpdate() to determine to which
+        // however the same code used in PresenceFanout.findAudience() to determine to which
         // clients a presence update should be sent, but this is a different case.
 
         List<TalkRelationship> relationships = findRelationshipsByOtherClient(clientId);
@@ -659,7 +913,7 @@ public class JongoDatabase implements ITalkServerDatabase {
         that we also have to perform for clients we block. Semantically it is also ok because
         we might want to unblock them, so we actually have a relationship.
 
-        Note that this code needs to behave the same way like performPresenceUpdate() regarding
+        Note that this code needs to behave the same way like PresenceFanout.findAudience() regarding
         the decision if a particular presence is sent to a particular client.
 
         It also has to play well with the isContactOf() call which will also return true for a
@@ -741,12 +995,12 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void savePresence(TalkPresence presence) {
-        mPresences.save(presence);
+        timedSave(mPresences, presence);
     }
 
     @Override
     public void deletePresence(TalkPresence presence) {
-        mPresences.remove("{clientId:#}", presence.getClientId());
+        timedRemove(mPresences, "{clientId:#}", presence.getClientId());
     }
 
     @Override
@@ -769,12 +1023,12 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void deleteKey(TalkKey key) {
-        mKeys.remove("{clientId:#,keyId:#}", key.getClientId(), key.getKeyId());
+        timedRemove(mKeys, "{clientId:#,keyId:#}", key.getClientId(), key.getKeyId());
     }
 
     @Override
     public void saveKey(TalkKey key) {
-        mKeys.save(key);
+        timedSave(mKeys, key);
     }
 
     @Override
@@ -832,6 +1086,21 @@ public class JongoDatabase implements ITalkServerDatabase {
         return IteratorUtils.toList(it);
     }
 
+    @Override
+    public Set<String> findRelatedClientIdsByOtherClient(String other) {
+        Iterator<TalkRelationship> it = mRelationships
+                .find("{otherClientId:#, state: { $in: # }}", other, Arrays.asList(TalkRelationship.STATES_RELATED))
+                .projection("{clientId:1}")
+                .as(TalkRelationship.class)
+                .iterator();
+
+        Set<String> clientIds = new HashSet<String>();
+        while (it.hasNext()) {
+            clientIds.add(it.next().getClientId());
+        }
+        return clientIds;
+    }
+
     @Override
     @Nullable
     public TalkRelationship findRelationshipBetween(String client, String otherClient) {
@@ -861,25 +1130,24 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public int deleteRelationshipsWithStatesChangedBefore(String[] states, Date lastChanged) {
-        WriteResult result = mRelationships.remove("{state: { $in: # }, lastChanged: { $lt:# } }", Arrays.asList(states), lastChanged);
+        WriteResult result = timedRemove(mRelationships, "{state: { $in: # }, lastChanged: { $lt:# } }", Arrays.asList(states), lastChanged);
         return result.getN();
     }
 
     @Override
     public int deleteRelationshipsWithStatesAndNotNotificationsDisabledChangedBefore(String[] states, Date lastChanged) {
-        WriteResult result = mRelationships.remove("{state: { $in: # }, lastChanged: { $lt:# } , notificationPreference: { $ne:#} }", Arrays.asList(states), lastChanged, TalkRelationship.NOTIFICATIONS_DISABLED);
+        WriteResult result = timedRemove(mRelationships, "{state: { $in: # }, lastChanged: { $lt:# } , notificationPreference: { $ne:#} }", Arrays.asList(states), lastChanged, TalkRelationship.NOTIFICATIONS_DISABLED);
         return result.getN();
     }
 
     @Override
     public void deleteRelationship(TalkRelationship relationship) {
-        mRelationships.remove("{clientId:#,otherClientId:#}",
-                relationship.getClientId(), relationship.getOtherClientId());
+        timedRemove(mRelationships, "{clientId:#,otherClientId:#}", relationship.getClientId(), relationship.getOtherClientId());
     }
 
     @Override
     public void saveRelationship(TalkRelationship relationship) {
-        mRelationships.save(relationship);
+        timedSave(mRelationships, relationship);
     }
 
     @Override
@@ -889,7 +1157,7 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void deleteGroupPresence(TalkGroupPresence groupPresence) {
-        mGroupPresences.remove("{groupId:#}", groupPresence.getGroupId());
+        timedRemove(mGroupPresences, "{groupId:#}", groupPresence.getGroupId());
     }
 
 
@@ -965,19 +1233,19 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public int deleteGroupPresencesWithStateChangedBefore(String state, Date changedDate) {
-        WriteResult result = mGroupPresences.remove("{state:#, lastChanged: {$lt:#} }", state, changedDate);
+        WriteResult result = timedRemove(mGroupPresences, "{state:#, lastChanged: {$lt:#} }", state, changedDate);
         return result.getN();
     }
 
     @Override
     public int deleteGroupPresencesWithStateAndTypeChangedBefore(String state, String groupType, Date changedDate) {
-        WriteResult result = mGroupPresences.remove("{state:#, groupType:#, lastChanged: {$lt:#} }", state, groupType, changedDate);
+        WriteResult result = timedRemove(mGroupPresences, "{state:#, groupType:#, lastChanged: {$lt:#} }", state, groupType, changedDate);
         return result.getN();
     }
 
     @Override
     public void saveGroupPresence(TalkGroupPresence groupPresence) {
-        mGroupPresences.save(groupPresence);
+        timedSave(mGroupPresences, groupPresence);
     }
 
     @Override
@@ -1053,13 +1321,13 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public int deleteGroupMembershipsWithStatesChangedBefore(String[] states, Date lastChanged) {
-        WriteResult result = mGroupMemberships.remove("{state: { $in: # }, lastChanged: { $lt:# } }", Arrays.asList(states), lastChanged);
+        WriteResult result = timedRemove(mGroupMemberships, "{state: { $in: # }, lastChanged: { $lt:# } }", Arrays.asList(states), lastChanged);
         return result.getN();
     }
 
     @Override
     public int deleteGroupMembershipsWithStatesAndRolesChangedBefore(String[] states, String[] roles, Date lastChanged) {
-        WriteResult result = mGroupMemberships.remove("{state: { $in: # }, role: { $in: # }, lastChanged: { $lt:# } }", Arrays.asList(states), Arrays.asList(roles), lastChanged);
+        WriteResult result = timedRemove(mGroupMemberships, "{state: { $in: # }, role: { $in: # }, lastChanged: { $lt:# } }", Arrays.asList(states), Arrays.asList(roles), lastChanged);
         return result.getN();
     }
 
@@ -1073,6 +1341,36 @@ public class JongoDatabase implements ITalkServerDatabase {
         return IteratorUtils.toList(it);
     }
 
+    @Override
+    public Set<String> findPresenceGroupIdsForClient(String clientId) {
+        Iterator<TalkGroupMembership> it = mGroupMemberships
+                .find("{clientId:#, state: { $in: # }}", clientId, Arrays.asList(TalkGroupMembership.PRESENCE_STATES))
+                .projection("{groupId:1}")
+                .as(TalkGroupMembership.class)
+                .iterator();
+
+        Set<String> groupIds = new HashSet<String>();
+        while (it.hasNext()) {
+            groupIds.add(it.next().getGroupId());
+        }
+        return groupIds;
+    }
+
+    @Override
+    public Set<String> findPresenceMemberIdsForGroup(String groupId) {
+        Iterator<TalkGroupMembership> it = mGroupMemberships
+                .find("{groupId:#, state: { $in: # }}", groupId, Arrays.asList(TalkGroupMembership.PRESENCE_STATES))
+                .projection("{clientId:1}")
+                .as(TalkGroupMembership.class)
+                .iterator();
+
+        Set<String> clientIds = new HashSet<String>();
+        while (it.hasNext()) {
+            clientIds.add(it.next().getClientId());
+        }
+        return clientIds;
+    }
+
     @Override
     public List<TalkGroupMembership> findGroupMembershipsForClientWithStates(String clientId, String[] states) {
         Iterator<TalkGroupMembership> it = mGroupMemberships
@@ -1101,18 +1399,23 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void saveGroupMembership(TalkGroupMembership membership) {
-        mGroupMemberships.save(membership);
+        timedSave(mGroupMemberships, membership);
+    }
+
+    @Override
+    public void saveGroupMemberships(List<TalkGroupMembership> memberships) {
+        saveAll(mGroupMemberships, memberships);
     }
 
     @Override
     public void deleteGroupMembership(TalkGroupMembership membership) {
-        mGroupMemberships.remove("{groupId:#,clientId:#}", membership.getGroupId(), membership.getClientId());
+        timedRemove(mGroupMemberships, "{groupId:#,clientId:#}", membership.getGroupId(), membership.getClientId());
     }
 
     @Override
     public void saveEnvironment(TalkEnvironment environment) {
         if (environment.getClientId() != null) {
-            mEnvironments.save(environment);
+            timedSave(mEnvironments, environment);
         } else {
             LOG.warn("Not saving environment without clientId (groupId == " + environment.getGroupId() + ")");
         }
@@ -1257,7 +1560,7 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void deleteEnvironment(TalkEnvironment environment) {
-        mEnvironments.remove("{type:#, clientId:#}", environment.getType(), environment.getClientId());
+        timedRemove(mEnvironments, "{type:#, clientId:#}", environment.getType(), environment.getClientId());
     }
 
     @Override
@@ -1293,12 +1596,12 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void saveClientHostInfo(TalkClientHostInfo clientHostInfo) {
-        mClientHostInfos.save(clientHostInfo);
+        timedSave(mClientHostInfos, clientHostInfo);
     }
 
     @Override
     public void deleteClientHostInfo(TalkClientHostInfo clientHostInfo) {
-        mClientHostInfos.remove("{clientId:#}", clientHostInfo.getClientId());
+        timedRemove(mClientHostInfos, "{clientId:#}", clientHostInfo.getClientId());
     }
 
     @Override
@@ -1314,15 +1617,31 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     // Used for migrations - it bulk updates all specific field values encountered of the field specified with the given new value
     // *Note:* This is brutally fast
-    public void changeDeliveryFieldValue(String fieldName, String oldFieldValue, String newFieldValue) {
-        mDeliveries.update("{" + fieldName + ": '" + oldFieldValue + "'}")
-                .multi()
-                .with("{$set: {" + fieldName + ": '" + newFieldValue + "'}}");
+    public void changeDeliveryFieldValue(final String fieldName, final String oldFieldValue, final String newFieldValue) {
+        timedWrite(mDeliveries, new Write() {
+            @Override
+            public WriteResult write(MongoCollection collection) {
+                return collection.update("{" + fieldName + ": '" + oldFieldValue + "'}")
+                        .multi()
+                        .with("{$set: {" + fieldName + ": '" + newFieldValue + "'}}");
+            }
+        });
         mDeliveries.findAndModify();
     }
 
     @Override
     public void saveDatabaseMigration(TalkDatabaseMigration migration) {
-        mMigrations.save(migration);
+        timedSave(mMigrations, migration);
+    }
+
+    @Override
+    @Nullable
+    public TalkCleaningCheckpoint findCleaningCheckpoint(String name) {
+        return mCleaningCheckpoints.findOne("{name:#}", name).as(TalkCleaningCheckpoint.class);
+    }
+
+    @Override
+    public void saveCleaningCheckpoint(TalkCleaningCheckpoint checkpoint) {
+        timedSave(mCleaningCheckpoints, checkpoint);
     }
 }
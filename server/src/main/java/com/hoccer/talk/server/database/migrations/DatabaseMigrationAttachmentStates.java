@@ -2,9 +2,10 @@ package com.hoccer.talk.server.database.migrations;
 
 import com.hoccer.talk.model.TalkDelivery;
 import com.hoccer.talk.model.TalkMessage;
+import com.hoccer.talk.server.ITalkServerDatabase;
 import org.apache.log4j.Logger;
 
-import java.util.List;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -15,40 +16,53 @@ public class DatabaseMigrationAttachmentStates extends BaseDatabaseMigration  im
 
     private static final Logger LOG = Logger.getLogger(DatabaseMigrationAttachmentStates.class);
 
+    // deliveries fetched from the database at a time
+    private static final int BATCH_SIZE = 1000;
+    // deliveries waiting for the executor at most
+    private static final int MAX_IN_FLIGHT = 2 * BATCH_SIZE;
+
     @Override
     public void up() throws Exception {
-        List<TalkDelivery> deliveries = mDatabase.findAllDeliveries();
-        LOG.info("migrating attachment state for " + deliveries.size() + " deliveries");
+        LOG.info("migrating attachment state of all deliveries");
         final AtomicInteger deliveriesWithoutAttachmentCounter = new AtomicInteger();
         final AtomicInteger deliveriesWithAttachmentsCounter = new AtomicInteger();
-        for (final TalkDelivery delivery : deliveries) {
-            mExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        final TalkMessage message = mDatabase.findMessageById(delivery.getMessageId());
-                        if (message == null) {
-                            // Doesn't even have a message associated? Something went wrong with this delivery?
-                            LOG.warn("Delivery " + delivery.getId() + " has no message associated - cannot migrate attachment state");
-                        } else {
-                            if (message.getAttachmentFileId() != null) {
-                                // has attachment
-                                delivery.setAttachmentState(TalkDelivery.ATTACHMENT_STATE_RECEIVED_ACKNOWLEDGED);
-                                mDatabase.saveDelivery(delivery);
-                                deliveriesWithAttachmentsCounter.incrementAndGet();
+        // bounds the deliveries read from the cursor but not yet migrated
+        final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        mDatabase.visitAllDeliveries(null, BATCH_SIZE, new ITalkServerDatabase.DocumentVisitor<TalkDelivery>() {
+            @Override
+            public boolean visit(final TalkDelivery delivery) {
+                inFlight.acquireUninterruptibly();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            final TalkMessage message = mDatabase.findMessageById(delivery.getMessageId());
+                            if (message == null) {
+                                // Doesn't even have a message associated? Something went wrong with this delivery?
+                                LOG.warn("Delivery " + delivery.getId() + " has no message associated - cannot migrate attachment state");
                             } else {
-                                // has no attachment
-                                delivery.setAttachmentState(TalkDelivery.ATTACHMENT_STATE_NONE);
-                                mDatabase.saveDelivery(delivery);
-                                deliveriesWithoutAttachmentCounter.incrementAndGet();
+                                if (message.getAttachmentFileId() != null) {
+                                    // has attachment
+                                    delivery.setAttachmentState(TalkDelivery.ATTACHMENT_STATE_RECEIVED_ACKNOWLEDGED);
+                                    mDatabase.saveDelivery(delivery);
+                                    deliveriesWithAttachmentsCounter.incrementAndGet();
+                                } else {
+                                    // has no attachment
+                                    delivery.setAttachmentState(TalkDelivery.ATTACHMENT_STATE_NONE);
+                                    mDatabase.saveDelivery(delivery);
+                                    deliveriesWithoutAttachmentCounter.incrementAndGet();
+                                }
                             }
+                        } catch (Throwable t) {
+                            LOG.error("caught and swallowed exception escaping runnable", t);
+                        } finally {
+                            inFlight.release();
                         }
-                    } catch (Throwable t) {
-                        LOG.error("caught and swallowed exception escaping runnable", t);
                     }
-                }
-            });
-        }
+                });
+                return true;
+            }
+        });
 
         mExecutor.shutdown();
         mExecutor.awaitTermination(25, TimeUnit.MINUTES);
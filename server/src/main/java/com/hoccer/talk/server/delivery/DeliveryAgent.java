@@ -13,8 +13,7 @@ public class DeliveryAgent extends NotificationDeferrer {
 
     private final TalkServer mServer;
 
-    private final static String FORCE_ALL = "forceAll";
-    private final static String NO_FORCE = "noForce";
+    private final DeliveryScheduler mScheduler;
 
     public DeliveryAgent(TalkServer server) {
         super(
@@ -22,90 +21,57 @@ public class DeliveryAgent extends NotificationDeferrer {
                 "delivery-agent"
         );
         mServer = server;
+        mScheduler = new DeliveryScheduler(getExecutor(), server.getLockManager(), server.getMetrics()) {
+            @Override
+            protected void performDelivery(String clientId, boolean forceAll) {
+                DeliveryAgent.this.performDelivery(clientId, forceAll);
+            }
+        };
     }
 
     public TalkServer getServer() {
         return mServer;
     }
 
-    public void requestDelivery(final String clientId, boolean forceAll) {
+    public void requestDelivery(final String clientId, final boolean forceAll) {
         LOG.debug("requestDelivery: for client:'" + clientId + ", force=" + String.valueOf(forceAll));
 
         if (clientId == null) {
             throw new IllegalArgumentException("no clientId");
         }
 
-        final DeliveryRequest deliveryRequest = new DeliveryRequest(this, clientId, forceAll);
-        LOG.debug("requestDelivery: created deliveryRequest for client:'" + clientId + ", force=" + String.valueOf(forceAll));
-
         Runnable notificationGenerator = new Runnable() {
             @Override
             public void run() {
-                long ngstart = new Date().getTime();
-                LOG.debug("requestDelivery: notificationGenerator started for client:'" + deliveryRequest.mClientId + ", force=" + String.valueOf(deliveryRequest.mForceAll));
-
-                try {
-                    TalkClient client = mServer.getDatabase().findClientById(deliveryRequest.mClientId);
-                    if (client == null) {
-                        throw new RuntimeException("requestDelivery: client "+deliveryRequest.mClientId+" not found");
-                    }
-                    if (client.isConnected() &&  !client.isReady()) {
-                        LOG.debug("requestDelivery: client connected but not ready:'" + deliveryRequest.mClientId + ", not performing delivery");
-                        return;
-                    }
-
-                    TalkServer.NonReentrantLock lock = mServer.idLockNonReentrant("deliveryRequest-"+deliveryRequest.mClientId);
-
-                    boolean acquired = lock.tryLock();
-                    LOG.debug("requestDelivery trylock for mClientId: '" + deliveryRequest.mClientId + "' with id " + lock + ", hash=" + lock.hashCode()+",thread="+Thread.currentThread()+"acquired="+acquired+" waiting="+lock.getWaiting()+" withNoForce="+lock.getWaiting(NO_FORCE)+" withForceAll="+lock.getWaiting(FORCE_ALL));
-
-                    if (!acquired && lock.getWaiting(FORCE_ALL) > 0) {
-                        // we are sure that that there are other threads waiting to be performed
-                        // with a forceAll so we can just throw away this request
-                        LOG.debug("requestDelivery enough forceAll waiters, throwing away request for mClientId: '" + deliveryRequest.mClientId + "' with id " + lock + ", hash=" + lock.hashCode()+",thread="+Thread.currentThread()+"acquired="+acquired+" waiting withForceAll="+lock.getWaiting(FORCE_ALL));
-                        return;
-                    }
-
-                    if (!deliveryRequest.mForceAll && !acquired && lock.getWaiting(NO_FORCE) > 0) {
-                        // we are sure that that there are other threads waiting to be performed
-                        // so we can just throw away this request
-                        LOG.debug("requestDelivery enough waiters, throwing away request for mClientId: '" + deliveryRequest.mClientId + "' with id " + lock + ", hash=" + lock.hashCode()+",thread="+Thread.currentThread()+"acquired="+acquired+" waiting withNoForce="+lock.getWaiting(NO_FORCE));
-                        return;
-                    }
-
-                    try {
-                        String waiterType = deliveryRequest.mForceAll ? FORCE_ALL : NO_FORCE;
-                        LOG.debug("requestDelivery will lock mClientId: '" + deliveryRequest.mClientId + "' with id " + lock + ", hash=" + lock.hashCode()+",thread="+Thread.currentThread()+", waiterType="+waiterType);
-                        if (!acquired) {
-                            lock.lock(waiterType);
-                        }
-                        long start = new Date().getTime();
-
-                        LOG.debug("requestDelivery acquired lock for mClientId: '" + deliveryRequest.mClientId + "' with id " + lock + ", hash=" + lock.hashCode()+",thread="+Thread.currentThread()+", waiterType="+waiterType);
-                        deliveryRequest.perform();
-                        long stop = new Date().getTime();
-                        LOG.debug("requestDelivery ready after "+(stop-start)+" msec for mClientId: '" + deliveryRequest.mClientId + "' with id " + lock + ", hash=" + lock.hashCode()+",thread="+Thread.currentThread()+", waiterType="+waiterType);
-                    } catch (InterruptedException e) {
-                        LOG.debug("requestDelivery: interrupted" + e);
-                    } finally {
-                        LOG.debug("requestDelivery releasing lock for mClientId: '" + deliveryRequest.mClientId + "' with id "+lock+", hash="+lock.hashCode()+",thread="+Thread.currentThread());
-                        lock.unlock();
-                    }
-
-                } catch (Throwable t) {
-                    LOG.error("caught and swallowed exception escaping runnable", t);
-                }
-                long ngstop = new Date().getTime();
-
-                LOG.debug("requestDelivery: notificationGenerator finished in "+(ngstop-ngstart)+" msec for client:'" + deliveryRequest.mClientId + ", force=" + String.valueOf(deliveryRequest.mForceAll));
-
+                mScheduler.schedule(clientId, forceAll);
             }
         };
-        LOG.debug("requestDelivery: queueOrExecute notificationGenerator in deliveryRequest for client:'" + clientId + ", force=" + String.valueOf(forceAll));
-
         queueOrExecute(context, notificationGenerator);
     }
 
+    /**
+     * @return number of clients with a delivery run waiting to be started
+     */
+    public int getPendingDeliveries() {
+        return mScheduler.getPendingCount();
+    }
+
+    private void performDelivery(String clientId, boolean forceAll) {
+        long start = new Date().getTime();
+        TalkClient client = mServer.getDatabase().findClientById(clientId);
+        if (client == null) {
+            throw new RuntimeException("requestDelivery: client " + clientId + " not found");
+        }
+        if (client.isConnected() && !client.isReady()) {
+            LOG.debug("requestDelivery: client connected but not ready:'" + clientId + ", not performing delivery");
+            return;
+        }
+        DeliveryRequest deliveryRequest = new DeliveryRequest(this, clientId, forceAll);
+        deliveryRequest.perform();
+        long stop = new Date().getTime();
+        LOG.debug("requestDelivery ready after " + (stop - start) + " msec for client: '" + clientId + "', force=" + forceAll);
+    }
+
     public void setRequestContext() {
         setRequestContext(context);
     }
@@ -4,12 +4,15 @@ import com.hoccer.talk.model.*;
 import com.hoccer.talk.rpc.ITalkRpcClient;
 import com.hoccer.talk.server.ITalkServerDatabase;
 import com.hoccer.talk.server.TalkServer;
+import com.hoccer.talk.server.locking.IdLock;
 import com.hoccer.talk.server.rpc.TalkRpcConnection;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Delivery requests encapsulate a delivery run for a given client
@@ -17,6 +20,8 @@ import java.util.List;
  * Both incoming and outgoing deliveries are handled in one go.
  * If clients are not connected the request is passed on to the push agent.
  * Deliveries are rate-limited to one update every 5 seconds.
+ * <p/>
+ * Deliveries are sent as rpc notifications, which do not wait for the client.
  */
 public class DeliveryRequest {
 
@@ -40,13 +45,22 @@ public class DeliveryRequest {
     }
 
 
-    private boolean performIncoming(List<TalkDelivery> inDeliveries, ITalkRpcClient rpc, TalkRpcConnection connection) {
-        boolean currentlyConnected = true;
+    private Date getLastLogin(TalkRpcConnection connection) {
         Date lastLogin = connection.getClient().getTimeLastLogin();
         if (lastLogin == null) {
             LOG.error("performIncoming: clientId: '" + mClientId + "has no last login time, assuming now");
             lastLogin = new Date();
         }
+        return lastLogin;
+    }
+
+    private boolean performIncoming(List<TalkDelivery> inDeliveries, ITalkRpcClient rpc, TalkRpcConnection connection) {
+        int batchSize = connection.getDeliveryBatchSize();
+        if (batchSize > 1) {
+            return performIncomingBatched(inDeliveries, rpc, connection, batchSize);
+        }
+        boolean currentlyConnected = true;
+        Date lastLogin = getLastLogin(connection);
         for (TalkDelivery delivery : inDeliveries) {
             // we lost the connection somehow
             if (!currentlyConnected) {
@@ -62,7 +76,8 @@ public class DeliveryRequest {
 
             LOG.debug("performIncoming: clientId: '" + mClientId + " synchronizing on idLock with message id "+delivery.getMessageId());
 
-            synchronized (mServer.idLock(delivery.getMessageId())) {
+            IdLock messageLock = mServer.getLockManager().lock(delivery.getMessageId());
+            try {
                 // get the matching message
                 LOG.debug("performIncoming: clientId: '" + mClientId + " enter idLock with message id "+delivery.getMessageId());
                 TalkMessage message = mDatabase.findMessageById(delivery.getMessageId());
@@ -129,6 +144,8 @@ public class DeliveryRequest {
                     //currentlyConnected = false; XXX do this when we can differentiate
                 }
                 LOG.debug("performIncoming: clientId: '" + mClientId + " done delivery with id "+delivery.getMessageId());
+            } finally {
+                messageLock.unlock();
             }
             LOG.debug("performIncoming: clientId: '" + mClientId + " done all deliveries");
 
@@ -141,6 +158,91 @@ public class DeliveryRequest {
         return currentlyConnected;
     }
 
+    /**
+     * Batched variant of performIncoming for clients that negotiated a delivery batch size
+     * <p/>
+     * Deliveries are sent in pages using one incomingDeliveries() call per page.
+     * Messages and latest delivery states are fetched per page and timeUpdatedIn is
+     * set with a single update, so a page costs three database round trips.
+     * No message locks are taken since only timeUpdatedIn is written.
+     */
+    private boolean performIncomingBatched(List<TalkDelivery> inDeliveries, ITalkRpcClient rpc, TalkRpcConnection connection, int batchSize) {
+        Date lastLogin = getLastLogin(connection);
+
+        List<String> messageIds = new ArrayList<String>();
+        for (TalkDelivery delivery : inDeliveries) {
+            delivery.ensureDates();
+            if (!mForceAll && (delivery.getTimeUpdatedIn().getTime() > delivery.getTimeChanged().getTime())) {
+                continue;
+            }
+            messageIds.add(delivery.getMessageId());
+        }
+
+        for (int start = 0; start < messageIds.size(); start += batchSize) {
+            if (!connection.isConnected()) {
+                LOG.debug("performIncomingBatched: clientId: '" + mClientId + "no longer connected");
+                return false;
+            }
+            List<String> page = messageIds.subList(start, Math.min(start + batchSize, messageIds.size()));
+            try {
+                performIncomingPage(page, rpc, lastLogin);
+            } catch (Exception e) {
+                LOG.warn("Exception calling incomingDeliveries() for clientId: '" + mClientId + "'", e);
+            }
+        }
+        return connection.isConnected();
+    }
+
+    private void performIncomingPage(List<String> messageIds, ITalkRpcClient rpc, Date lastLogin) {
+        List<TalkDelivery> latestDeliveries = mDatabase.findDeliveriesForClientAndMessages(mClientId, messageIds);
+        Map<String, TalkMessage> messages = new HashMap<String, TalkMessage>();
+        for (TalkMessage message : mDatabase.findMessagesByIds(messageIds)) {
+            messages.put(message.getMessageId(), message);
+        }
+
+        List<TalkDelivery> sendDeliveries = new ArrayList<TalkDelivery>();
+        List<TalkMessage> sendMessages = new ArrayList<TalkMessage>();
+        List<String> updatedIds = new ArrayList<String>();
+        long now = new Date().getTime();
+
+        for (TalkDelivery latestDelivery : latestDeliveries) {
+            TalkMessage message = messages.get(latestDelivery.getMessageId());
+            if (message == null) {
+                LOG.warn("performIncomingPage: clientId: '" + mClientId + ", message not found: " + latestDelivery.getMessageId());
+                continue;
+            }
+            latestDelivery.ensureDates();
+
+            boolean updatedInDuringThisLoginSession = latestDelivery.getTimeUpdatedIn().getTime() > lastLogin.getTime();
+            if (!mForceAll && (latestDelivery.getTimeUpdatedIn().getTime() > latestDelivery.getTimeChanged().getTime())
+                    && updatedInDuringThisLoginSession) {
+                continue;
+            }
+            boolean recentlyDelivered = updatedInDuringThisLoginSession &&
+                    latestDelivery.getTimeUpdatedIn().getTime() + 15 * 1000 > now;
+
+            TalkDelivery filtered = new TalkDelivery();
+            if (!recentlyDelivered && TalkDelivery.STATE_DELIVERING.equals(latestDelivery.getState())) {
+                filtered.updateWith(latestDelivery);
+                filtered.setTimeUpdatedIn(null);
+                filtered.setTimeUpdatedOut(null);
+                sendDeliveries.add(filtered);
+                sendMessages.add(message);
+            } else {
+                filtered.updateWith(latestDelivery, TalkDelivery.REQUIRED_IN_UPDATE_FIELDS_SET);
+                rpc.incomingDeliveryUpdated(filtered);
+            }
+            updatedIds.add(latestDelivery.getMessageId());
+        }
+
+        if (!sendDeliveries.isEmpty()) {
+            LOG.debug("performIncomingPage: clientId: '" + mClientId + " sending " + sendDeliveries.size() + " deliveries");
+            rpc.incomingDeliveries(sendDeliveries.toArray(new TalkDelivery[sendDeliveries.size()]),
+                    sendMessages.toArray(new TalkMessage[sendMessages.size()]));
+        }
+        mDatabase.updateDeliveriesTimeUpdatedIn(mClientId, updatedIds, new Date());
+    }
+
     private boolean performOutgoing(List<TalkDelivery> outDeliveries, ITalkRpcClient rpc, TalkRpcConnection connection) {
         boolean currentlyConnected = true;
         for (TalkDelivery delivery : outDeliveries) {
@@ -149,7 +251,8 @@ public class DeliveryRequest {
                 LOG.debug("performOutgoing: clientId: '" + mClientId + "no longer connected");
                 break;
             }
-            synchronized (mServer.idLock(delivery.getMessageId())) {
+            IdLock messageLock = mServer.getLockManager().lock(delivery.getMessageId());
+            try {
                 LOG.debug("performOutgoing: starting for clientId: '" + mClientId + delivery.getMessageId());
 
                 delivery.ensureDates();
@@ -202,6 +305,8 @@ public class DeliveryRequest {
                 } catch (Exception e) {
                     LOG.warn("Exception calling outgoingDelivery() for clientId: '" + mClientId + "'", e);
                 }
+            } finally {
+                messageLock.unlock();
             }
             LOG.debug("performOutgoing: done for clientId: '" + mClientId + delivery.getMessageId());
             // check for disconnects
@@ -307,7 +412,8 @@ public class DeliveryRequest {
             mForceAll = false;
         } else {
 
-            synchronized (mServer.idLock(mClientId)) {
+            IdLock clientLock = mServer.getLockManager().lock(mClientId);
+            try {
 
                 long start = new Date().getTime();
                 inDeliveries = mDatabase.findDeliveriesForClientInState(mClientId, TalkDelivery.STATE_DELIVERING);
@@ -357,6 +463,8 @@ public class DeliveryRequest {
                         LOG.debug("DeliveryRequest.perform pushing " + mClientId + " took "+(pstop-pstart)+" msec");
                     }
                 }
+            } finally {
+                clientLock.unlock();
             }
         }
         if (currentlyConnected && inDeliveries.isEmpty()) {
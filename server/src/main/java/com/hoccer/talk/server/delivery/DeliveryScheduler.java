@@ -0,0 +1,212 @@
+package com.hoccer.talk.server.delivery;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.hoccer.talk.server.locking.IdLock;
+import com.hoccer.talk.server.locking.LockManager;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scheduler for delivery runs that coalesces requests per client
+ * <p/>
+ * For every client there is at most one run executing and one run pending.
+ * Requests arriving while a run is pending are merged into it, so a burst
+ * of requests for one client results in at most two delivery runs.
+ * <p/>
+ * Worker threads never block: if the delivery lock of a client is held
+ * elsewhere the run is put back and retried after a short delay.
+ */
+public abstract class DeliveryScheduler {
+
+    private static final Logger LOG = Logger.getLogger(DeliveryScheduler.class);
+
+    /** Delay before retrying a run whose client lock was busy */
+    private static final long LOCK_RETRY_DELAY_MILLIS = 100;
+
+    private final ScheduledExecutorService mExecutor;
+
+    private final LockManager mLockManager;
+
+    private final ConcurrentHashMap<String, ClientState> mClients = new ConcurrentHashMap<String, ClientState>();
+
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final AtomicInteger mRunning = new AtomicInteger();
+
+    private final Meter mRequestedMeter;
+    private final Meter mCoalescedMeter;
+    private final Meter mLockBusyMeter;
+    private final Timer mRunTimer;
+
+    /**
+     * Scheduling state of a single client, guarded by itself
+     */
+    private static class ClientState {
+        final String clientId;
+        /** a run has been submitted to the executor and has not finished yet */
+        boolean running;
+        /** a further run has been requested */
+        boolean pending;
+        boolean pendingForceAll;
+        /** state has been removed from the map and must not be used anymore */
+        boolean dead;
+
+        ClientState(String clientId) {
+            this.clientId = clientId;
+        }
+    }
+
+    public DeliveryScheduler(ScheduledExecutorService executor, LockManager lockManager, MetricRegistry metrics) {
+        mExecutor = executor;
+        mLockManager = lockManager;
+        mRequestedMeter = metrics.meter(MetricRegistry.name(DeliveryScheduler.class, "requested"));
+        mCoalescedMeter = metrics.meter(MetricRegistry.name(DeliveryScheduler.class, "coalesced"));
+        mLockBusyMeter = metrics.meter(MetricRegistry.name(DeliveryScheduler.class, "lockBusy"));
+        mRunTimer = metrics.timer(MetricRegistry.name(DeliveryScheduler.class, "runTime"));
+        metrics.register(MetricRegistry.name(DeliveryScheduler.class, "pending"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mPending.intValue();
+                    }
+                }
+        );
+        metrics.register(MetricRegistry.name(DeliveryScheduler.class, "running"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mRunning.intValue();
+                    }
+                }
+        );
+        metrics.register(MetricRegistry.name(DeliveryScheduler.class, "clients"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mClients.size();
+                    }
+                }
+        );
+    }
+
+    /**
+     * Perform a delivery run, called with the client delivery lock held
+     */
+    protected abstract void performDelivery(String clientId, boolean forceAll);
+
+    /**
+     * @return the id locked around every run of the given client
+     */
+    public static String getLockId(String clientId) {
+        return "deliveryRequest-" + clientId;
+    }
+
+    /**
+     * Request a delivery run for the given client
+     * <p/>
+     * Returns immediately. If a run for this client is already pending the
+     * request is merged into it, upgrading it to forceAll if requested.
+     */
+    public void schedule(String clientId, boolean forceAll) {
+        mRequestedMeter.mark();
+        for (;;) {
+            ClientState state = mClients.get(clientId);
+            if (state == null) {
+                ClientState created = new ClientState(clientId);
+                state = mClients.putIfAbsent(clientId, created);
+                if (state == null) {
+                    state = created;
+                }
+            }
+            synchronized (state) {
+                if (state.dead) {
+                    // lost the race against removal, retry with a fresh state
+                    continue;
+                }
+                if (state.pending) {
+                    LOG.debug("schedule: coalescing request for client '" + clientId + "', force=" + forceAll);
+                    state.pendingForceAll |= forceAll;
+                    mCoalescedMeter.mark();
+                    return;
+                }
+                state.pending = true;
+                state.pendingForceAll = forceAll;
+                mPending.incrementAndGet();
+                if (state.running) {
+                    // the running run will resubmit when it finishes
+                    return;
+                }
+                state.running = true;
+            }
+            submit(state, 0);
+            return;
+        }
+    }
+
+    /**
+     * @return number of clients with a delivery run waiting to be started
+     */
+    public int getPendingCount() {
+        return mPending.intValue();
+    }
+
+    private void submit(final ClientState state, long delayMillis) {
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    execute(state);
+                } catch (Throwable t) {
+                    LOG.error("caught and swallowed exception escaping runnable", t);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void execute(ClientState state) {
+        IdLock lock = mLockManager.tryLock(getLockId(state.clientId));
+        if (lock == null) {
+            // someone else is working on this client, come back later without blocking a worker
+            LOG.debug("execute: delivery lock busy for client '" + state.clientId + "', retrying");
+            mLockBusyMeter.mark();
+            submit(state, LOCK_RETRY_DELAY_MILLIS);
+            return;
+        }
+
+        boolean forceAll;
+        synchronized (state) {
+            forceAll = state.pendingForceAll;
+            state.pending = false;
+            state.pendingForceAll = false;
+            mPending.decrementAndGet();
+        }
+
+        mRunning.incrementAndGet();
+        Timer.Context timer = mRunTimer.time();
+        try {
+            performDelivery(state.clientId, forceAll);
+        } catch (Throwable t) {
+            LOG.error("execute: delivery run failed for client '" + state.clientId + "'", t);
+        } finally {
+            timer.stop();
+            mRunning.decrementAndGet();
+            lock.unlock();
+        }
+
+        synchronized (state) {
+            if (!state.pending) {
+                state.running = false;
+                state.dead = true;
+                mClients.remove(state.clientId, state);
+                return;
+            }
+        }
+        submit(state, 0);
+    }
+}
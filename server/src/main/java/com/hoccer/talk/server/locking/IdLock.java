@@ -0,0 +1,102 @@
+package com.hoccer.talk.server.locking;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock for a single id, handed out by the {@link LockManager}
+ * <p/>
+ * Instances are reference counted by their manager and evicted as soon
+ * as no thread holds or waits for them anymore. Every successful lock
+ * operation must therefore be paired with exactly one {@link #unlock()},
+ * preferably in a finally block.
+ */
+public class IdLock {
+
+    private final LockManager mManager;
+
+    private final String mId;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /**
+     * Number of threads holding or waiting for this lock, zero means evicted
+     */
+    private final AtomicInteger mReferences = new AtomicInteger(1);
+
+    /**
+     * Time of outermost acquisition, only touched by the owning thread
+     */
+    private long mLockedAt;
+
+    IdLock(LockManager manager, String id) {
+        mManager = manager;
+        mId = id;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public boolean isLocked() {
+        return mLock.isLocked();
+    }
+
+    public boolean isHeldByCurrentThread() {
+        return mLock.isHeldByCurrentThread();
+    }
+
+    public int getWaiting() {
+        return mLock.getQueueLength();
+    }
+
+    /**
+     * Release the lock and the reference taken when it was acquired
+     */
+    public void unlock() {
+        mManager.unlock(this);
+    }
+
+    ReentrantLock getLock() {
+        return mLock;
+    }
+
+    long getLockedAt() {
+        return mLockedAt;
+    }
+
+    void setLockedAt(long lockedAt) {
+        mLockedAt = lockedAt;
+    }
+
+    /**
+     * Take another reference unless the lock has already been evicted
+     *
+     * @return false if the lock is dead and must not be used anymore
+     */
+    boolean retain() {
+        for (;;) {
+            int references = mReferences.get();
+            if (references <= 0) {
+                return false;
+            }
+            if (mReferences.compareAndSet(references, references + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop a reference
+     *
+     * @return true if this was the last reference and the lock is now dead
+     */
+    boolean release() {
+        return mReferences.decrementAndGet() == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "IdLock[" + mId + ", locked=" + mLock.isLocked() + ", waiting=" + mLock.getQueueLength() + "]";
+    }
+}
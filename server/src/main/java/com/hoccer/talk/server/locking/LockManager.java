@@ -0,0 +1,164 @@
+package com.hoccer.talk.server.locking;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manager for locks on message, client, group and environment ids
+ * <p/>
+ * Locks are created on demand and reference counted, so an id only
+ * occupies memory while some thread holds or waits for its lock.
+ * There is no global monitor; lookups go through a concurrent map.
+ * <p/>
+ * All locks are reentrant. Usage:
+ * <pre>
+ *     IdLock lock = lockManager.lock(messageId);
+ *     try {
+ *         ...
+ *     } finally {
+ *         lock.unlock();
+ *     }
+ * </pre>
+ */
+public class LockManager {
+
+    private static final Logger LOG = Logger.getLogger(LockManager.class);
+
+    private final ConcurrentHashMap<String, IdLock> mLocks = new ConcurrentHashMap<String, IdLock>();
+
+    private final Meter mAcquiredMeter;
+    private final Meter mContendedMeter;
+    private final Timer mWaitTimer;
+    private final Timer mHoldTimer;
+
+    public LockManager(MetricRegistry metrics) {
+        mAcquiredMeter = metrics.meter(MetricRegistry.name(LockManager.class, "acquired"));
+        mContendedMeter = metrics.meter(MetricRegistry.name(LockManager.class, "contended"));
+        mWaitTimer = metrics.timer(MetricRegistry.name(LockManager.class, "waitTime"));
+        mHoldTimer = metrics.timer(MetricRegistry.name(LockManager.class, "holdTime"));
+        metrics.register(MetricRegistry.name(LockManager.class, "activeLocks"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mLocks.size();
+                    }
+                }
+        );
+    }
+
+    /**
+     * Lock the given id, blocking until the lock is available
+     *
+     * @param id to lock
+     * @return the acquired lock, to be released with {@link IdLock#unlock()}
+     */
+    public IdLock lock(String id) {
+        IdLock lock = reference(id);
+        acquire(lock);
+        return lock;
+    }
+
+    /**
+     * Lock two ids at the same time
+     * <p/>
+     * The ids are ordered so both parties of a relationship get the same lock.
+     * Note that the individual ids will not be locked this way.
+     */
+    public IdLock dualLock(String prefix, String id1, String id2) {
+        if (id1.compareTo(id2) > 0) {
+            return lock(prefix + id1 + id2);
+        } else {
+            return lock(prefix + id2 + id1);
+        }
+    }
+
+    /**
+     * Lock the given id if it is available right now
+     *
+     * @return the acquired lock or null if it is held by another thread
+     */
+    public IdLock tryLock(String id) {
+        IdLock lock = reference(id);
+        if (lock.getLock().tryLock()) {
+            acquired(lock);
+            return lock;
+        }
+        dereference(lock);
+        return null;
+    }
+
+    /**
+     * @return number of locks currently held or waited for
+     */
+    public int getActiveLocks() {
+        return mLocks.size();
+    }
+
+    void unlock(IdLock lock) {
+        if (lock.getLock().getHoldCount() == 1) {
+            mHoldTimer.update(System.nanoTime() - lock.getLockedAt(), TimeUnit.NANOSECONDS);
+        }
+        lock.getLock().unlock();
+        dereference(lock);
+    }
+
+    private void acquire(IdLock lock) {
+        if (lock.getLock().tryLock()) {
+            acquired(lock);
+        } else {
+            acquireContended(lock);
+        }
+    }
+
+    private void acquireContended(IdLock lock) {
+        mContendedMeter.mark();
+        Timer.Context timer = mWaitTimer.time();
+        lock.getLock().lock();
+        timer.stop();
+        acquired(lock);
+    }
+
+    private void acquired(IdLock lock) {
+        mAcquiredMeter.mark();
+        if (lock.getLock().getHoldCount() == 1) {
+            lock.setLockedAt(System.nanoTime());
+        }
+    }
+
+    private IdLock reference(String id) {
+        if (id == null || id.length() == 0) {
+            LOG.error("idLock: null id");
+            for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
+                LOG.error("idLock: null id:" + id + ":" + ste);
+            }
+            throw new RuntimeException("idlock null");
+        }
+        for (;;) {
+            IdLock lock = mLocks.get(id);
+            if (lock == null) {
+                IdLock created = new IdLock(this, id);
+                lock = mLocks.putIfAbsent(id, created);
+                if (lock == null) {
+                    return created;
+                }
+            }
+            if (lock.retain()) {
+                return lock;
+            }
+            // the last user is just evicting this lock, help out and retry
+            mLocks.remove(id, lock);
+        }
+    }
+
+    private void dereference(IdLock lock) {
+        if (lock.release()) {
+            mLocks.remove(lock.getId(), lock);
+        }
+    }
+}
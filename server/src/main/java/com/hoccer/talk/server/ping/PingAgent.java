@@ -1,11 +1,12 @@
 package com.hoccer.talk.server.ping;
 
+import better.jsonrpc.client.JsonRpcClientCallback;
 import better.jsonrpc.client.JsonRpcClientDisconnect;
 import better.jsonrpc.client.JsonRpcClientTimeout;
+import better.jsonrpc.util.TimerWheel;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
-import com.hoccer.talk.rpc.ITalkRpcClient;
 import com.hoccer.talk.server.TalkServer;
 import com.hoccer.talk.server.TalkServerConfiguration;
 import com.hoccer.talk.server.rpc.TalkRpcConnection;
@@ -13,24 +14,33 @@ import com.hoccer.talk.util.NamedThreadFactory;
 import org.apache.log4j.Logger;
 
 import java.util.Date;
-import java.util.Vector;
+import java.util.Random;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Ping measurement agent
+ * Ping measurement and connection liveness agent
  * <p/>
  * This gets kicked on login and reports the round-trip call latency
  * from the server to the client and back.
  * <p/>
- * It is intended purely for monitoring.
+ * Every open connection also gets a liveness check on a timer wheel.
+ * Connections that do not log in are closed after the login timeout,
+ * logged in clients are pinged once per client interval at a random phase
+ * so pings are spread evenly, and idle clients are disconnected.
  */
 public class PingAgent {
 
     private static final Logger LOG = Logger.getLogger(PingAgent.class);
 
+    /** Delay of the ping requested after a client became ready */
+    private static final long READY_PING_DELAY = 3000;
+
+    /** Do not ping a client again within this time */
+    private static final long MIN_PING_SPACING = 10 * 1000;
+
     private final TalkServer mServer;
 
     private final ScheduledExecutorService mExecutor;
@@ -42,8 +52,31 @@ public class PingAgent {
     private final AtomicInteger mPingSuccesses = new AtomicInteger();
     private final TalkServerConfiguration mConfig;
 
+    private final TimerWheel<Check> mWheel;
+
+    private final Random mRandom = new Random();
+
     private Timer mPingLatency;
+    private Timer[] mSlotPingLatency;
+
+    private enum CheckType {
+        /** ping requested after the client became ready */
+        READY_PING,
+        /** connection has to be logged in */
+        LOGIN_TIMEOUT,
+        /** periodic ping and idle check */
+        LIVENESS
+    }
 
+    private static class Check {
+        final TalkRpcConnection connection;
+        final CheckType type;
+
+        Check(TalkRpcConnection connection, CheckType type) {
+            this.connection = connection;
+            this.type = type;
+        }
+    }
 
     public PingAgent(TalkServer server) {
         mServer = server;
@@ -52,31 +85,54 @@ public class PingAgent {
                 mConfig.getPingAgentThreadPoolSize(),
                 new NamedThreadFactory("ping-agent")
         );
+        mWheel = new TimerWheel<Check>(mConfig.getPingWheelSize(), mConfig.getPingWheelTick(), System.currentTimeMillis()) {
+            @Override
+            protected void expire(final Check check, final int slot) {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            performCheck(check, slot);
+                        } catch (Throwable t) {
+                            LOG.error("caught and swallowed exception escaping runnable", t);
+                        }
+                    }
+                });
+            }
+        };
         initializeMetrics(mServer.getMetrics());
 
+        mExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mWheel.advanceTo(System.currentTimeMillis());
+                } catch (Throwable t) {
+                    LOG.error("caught and swallowed exception escaping runnable", t);
+                }
+            }
+        }, mWheel.getTickMillis(), mWheel.getTickMillis(), TimeUnit.MILLISECONDS);
+
         if (mConfig.getPerformPingAtInterval()) {
-            schedulePingAllReadyClients();
+            scheduleMonitorExpiry();
         } else {
             LOG.warn("Not scheduling regular ping since it is deactivated by configuration.");
         }
     }
 
-    private void schedulePingAllReadyClients() {
-        LOG.info("Scheduling pinging of all ready clients to occur in '" + mConfig.getPingInterval() + "' seconds.");
-        mExecutor.schedule(new Runnable() {
+    private void scheduleMonitorExpiry() {
+        LOG.info("Scheduling push monitor expiry every '" + mConfig.getPingInterval() + "' seconds.");
+        mExecutor.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
                 try {
-                    pingReadyClients();
-                    disconnectStaleClients();
                     mServer.getPushAgent().expireMonitorTables();
                     //mServer.getPushAgent().performPushRetries(); // push retries have not improved notification delivery
                 } catch (Throwable t) {
                     LOG.error("caught and swallowed exception escaping runnable", t);
                 }
-                schedulePingAllReadyClients();
             }
-        }, mConfig.getPingInterval(), TimeUnit.SECONDS);
+        }, mConfig.getPingInterval(), mConfig.getPingInterval(), TimeUnit.SECONDS);
     }
 
     private void initializeMetrics(MetricRegistry metrics) {
@@ -112,85 +168,134 @@ public class PingAgent {
                     }
                 }
         );
+        metrics.register(MetricRegistry.name(PingAgent.class, "scheduledChecks"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mWheel.size();
+                    }
+                }
+        );
         mPingLatency = metrics.timer(MetricRegistry.name(PingAgent.class, "latency"));
+        mSlotPingLatency = new Timer[mWheel.getSlotCount()];
+        for (int i = 0; i < mSlotPingLatency.length; i++) {
+            mSlotPingLatency[i] = metrics.timer(MetricRegistry.name(PingAgent.class, "latency", "slot" + i));
+        }
+    }
+
+    /**
+     * Start checking the liveness of a new connection
+     */
+    public void connectionOpened(TalkRpcConnection connection) {
+        if (!mConfig.getPerformPingAtInterval()) {
+            return;
+        }
+        long deadline = connection.getCreationTime().getTime() + mConfig.getLoginTimeoutInterval() * 1000L;
+        connection.setLivenessCheck(mWheel.schedule(new Check(connection, CheckType.LOGIN_TIMEOUT), deadline));
+    }
+
+    /**
+     * Stop checking the liveness of a closed connection
+     */
+    @SuppressWarnings("unchecked")
+    public void connectionClosed(TalkRpcConnection connection) {
+        TimerWheel.Entry<?> check = connection.getLivenessCheck();
+        if (check != null) {
+            mWheel.cancel((TimerWheel.Entry<Check>) check);
+            connection.setLivenessCheck(null);
+        }
     }
 
     public void requestPing(final String clientId) {
         mPingRequests.incrementAndGet();
-        mExecutor.schedule(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    performPing(clientId);
-                } catch (Throwable t) {
-                    LOG.error("caught and swallowed exception escaping runnable", t);
+        TalkRpcConnection conn = mServer.getClientConnection(clientId);
+        if (conn != null) {
+            mWheel.schedule(new Check(conn, CheckType.READY_PING), System.currentTimeMillis() + READY_PING_DELAY);
+        }
+    }
+
+    private void performCheck(Check check, int slot) {
+        TalkRpcConnection connection = check.connection;
+        if (!connection.isConnected()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        switch (check.type) {
+            case READY_PING:
+                performPing(connection, slot);
+                break;
+            case LOGIN_TIMEOUT:
+                if (connection.getClient() == null && !connection.isLoggedInFlag()) {
+                    LOG.info("disconnecting stale connection: '" + connection.getConnectionId() + "'");
+                    connection.disconnect();
+                } else {
+                    // first regular check at a random phase of the interval
+                    long interval = mConfig.getPingClientInterval() * 1000L;
+                    scheduleLiveness(connection, now + (long) (mRandom.nextDouble() * interval));
                 }
-            }
-        }, 3, TimeUnit.SECONDS);
+                break;
+            case LIVENESS:
+                if (connection.isReady()) {
+                    Date idleTimeoutDate = new Date(now - mConfig.getPingIdleTimeoutInterval() * 1000L);
+                    if (connection.getLastRequestFinished() != null && connection.getLastRequestFinished().before(idleTimeoutDate)) {
+                        LOG.info("disconnecting idle client: '" + connection.getConnectionId() + "' (clientId: '" + connection.getClientId() + "')");
+                        connection.disconnect();
+                        return;
+                    }
+                    performPing(connection, slot);
+                }
+                scheduleLiveness(connection, now + mConfig.getPingClientInterval() * 1000L);
+                break;
+        }
     }
 
-    private void performPing(String clientId) {
+    private void scheduleLiveness(TalkRpcConnection connection, long deadline) {
+        connection.setLivenessCheck(mWheel.schedule(new Check(connection, CheckType.LIVENESS), deadline));
+        if (!connection.isConnected()) {
+            // closed while we were checking
+            connectionClosed(connection);
+        }
+    }
+
+    private void performPing(final TalkRpcConnection conn, final int slot) {
+        final String clientId = conn.getClientId();
         if (clientId == null) {
             return;
         }
-        TalkRpcConnection conn = mServer.getClientConnection(clientId);
-        if (conn != null) {
-            Date intervalDate = new Date(new Date().getTime()-10*1000); // do not ping if already pinged in the last 10 sec.
-            if (conn.getLastPingOccured() == null || conn.getLastPingOccured().before(intervalDate)) {
-                LOG.info("pinging client: '" + conn.getConnectionId() + "' (clientId: '" + clientId + "')");
+        Date intervalDate = new Date(new Date().getTime() - MIN_PING_SPACING); // do not ping if already pinged in the last 10 sec.
+        if (conn.getLastPingOccured() == null || conn.getLastPingOccured().before(intervalDate)) {
+            LOG.info("pinging client: '" + conn.getConnectionId() + "' (clientId: '" + clientId + "')");
 
-                ITalkRpcClient rpc = conn.getClientRpc();
-                mPingAttempts.incrementAndGet();
-                Timer.Context timer = mPingLatency.time();
-                try {
-                    rpc.ping();
-                    long elapsed = (timer.stop() / 1000000);
+            mPingAttempts.incrementAndGet();
+            final long start = System.nanoTime();
+            // the result arrives on a callback, no ping agent thread waits for the client
+            conn.getClientRpcAsync().ping().addCallback(new JsonRpcClientCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    long elapsedNanos = System.nanoTime() - start;
+                    mPingLatency.update(elapsedNanos, TimeUnit.NANOSECONDS);
+                    mSlotPingLatency[slot].update(elapsedNanos, TimeUnit.NANOSECONDS);
+                    long elapsed = elapsedNanos / 1000000;
                     conn.setLastPingOccured(new Date());
                     conn.setLastPingLatency(elapsed);
                     LOG.info("ping on " + clientId + " took " + elapsed + " msecs, [id:"+conn.getConnectionId()+"]");
                     mPingSuccesses.incrementAndGet();
-                } catch (JsonRpcClientDisconnect e) {
-                    LOG.info("ping on " + clientId + " disconnect [id:"+conn.getConnectionId()+"]");
-                    mPingFailures.incrementAndGet();
-                } catch (JsonRpcClientTimeout e) {
-                    LOG.info("ping on " + clientId + " timeout [id:"+conn.getConnectionId()+"]");
-                    mPingFailures.incrementAndGet();
-                } catch (Throwable t) {
-                    LOG.error("exception in ping on " + clientId+" [id:"+conn.getConnectionId()+"] ", t);
-                    mPingFailures.incrementAndGet();
                 }
-            } else {
-                LOG.info("has been pinged recently, not pinging client: '" + conn.getConnectionId() + "' (clientId: '" + clientId + "')");
-            }
-        }
-    }
 
-    private void pingReadyClients() {
-        Vector<TalkRpcConnection> pingConnections = mServer.getPingConnections();
-        LOG.info("pingReadyClients checking for ping on " + pingConnections.size() + " pingable connections");
-        for (TalkRpcConnection connection : pingConnections) {
-            String clientId = connection.getClientId();
-            if (clientId != null) {
-                Date idleTimeoutDate = new Date(new Date().getTime() - mConfig.getPingIdleTimeoutInterval()*1000);
-                if (connection.getLastRequestFinished() != null && connection.getLastRequestFinished().before(idleTimeoutDate)) {
-                    LOG.info("disconnecting idle client: '" + connection.getConnectionId() + "' (clientId: '" + clientId + "')");
-                    connection.disconnect();
-                } else {
-                    LOG.trace("pinging ready client: '" + connection.getConnectionId() + "' (clientId: '" + clientId + "')");
-                    requestPing(clientId);
+                @Override
+                public void onFailure(Throwable cause) {
+                    if (cause instanceof JsonRpcClientDisconnect) {
+                        LOG.info("ping on " + clientId + " disconnect [id:"+conn.getConnectionId()+"]");
+                    } else if (cause instanceof JsonRpcClientTimeout) {
+                        LOG.info("ping on " + clientId + " timeout [id:"+conn.getConnectionId()+"]");
+                    } else {
+                        LOG.error("exception in ping on " + clientId+" [id:"+conn.getConnectionId()+"] ", cause);
+                    }
+                    mPingFailures.incrementAndGet();
                 }
-            }
-        }
-    }
-    private void disconnectStaleClients() {
-        Vector<TalkRpcConnection> staleConnections = mServer.getStaleConnections();
-        LOG.info("disconnectStaleClients checking " + staleConnections.size() + " connections");
-        for (TalkRpcConnection connection : staleConnections) {
-            String clientId = connection.getClientId();
-            if (clientId == null && !connection.isLoggedInFlag()) {
-                LOG.info("disconnecting stale connection: '" + connection.getConnectionId() + "'");
-                connection.disconnect();
-            }
+            });
+        } else {
+            LOG.info("has been pinged recently, not pinging client: '" + conn.getConnectionId() + "' (clientId: '" + clientId + "')");
         }
     }
 }
@@ -3,6 +3,7 @@ package com.hoccer.talk.server.push;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.google.android.gcm.server.Result;
 import com.google.android.gcm.server.Sender;
 import com.hoccer.talk.model.TalkClient;
 import com.hoccer.talk.model.TalkDelivery;
@@ -13,11 +14,13 @@ import com.hoccer.talk.util.MapUtil;
 import com.hoccer.talk.util.NamedThreadFactory;
 import com.notnoop.apns.APNS;
 import com.notnoop.apns.ApnsService;
+import org.apache.commons.collections4.map.MultiValueMap;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -39,6 +42,7 @@ public class PushAgent {
     private final ITalkServerDatabase mDatabase;
 
     private Sender mGcmSender;
+    private StandInGcmEndpoint mGcmStandIn;
     private List<PushProvider> mPushProviders;
 
     public enum APNS_SERVICE_TYPE {
@@ -49,7 +53,17 @@ public class PushAgent {
 
     private final HashMap<ApnsPushProvider.Target, ApnsService> mApnsServices = new HashMap<ApnsPushProvider.Target, ApnsService>();
 
-    private final Map<String, PushRequest> mOutstanding;
+    private final ConcurrentHashMap<String, PushRequest> mOutstanding;
+
+    /** Placeholder in mOutstanding while the request of a client is being built */
+    private final PushRequest mClaim;
+
+    // largest multicast GCM accepts
+    private static final int GCM_MAX_BATCH_SIZE = 1000;
+    private static final int APNS_MAX_BATCH_SIZE = 100;
+
+    private final PushBatcher<PushRequest> mGcmBatcher;
+    private final PushBatcher<PushRequest> mApnsBatcher;
 
     private final Map<String, PushRequest> mNotAnswered;
     private final Map<String, PushRequest> mAnswered;
@@ -71,7 +85,8 @@ public class PushAgent {
         mServer = server;
         mDatabase = mServer.getDatabase();
         mConfig = mServer.getConfiguration();
-        mOutstanding = new Hashtable<String, PushRequest>();
+        mOutstanding = new ConcurrentHashMap<String, PushRequest>();
+        mClaim = new PushRequest(this, null, null, 0, null);
         mNotAnswered = new Hashtable<String, PushRequest>();
         mAnswered = new Hashtable<String, PushRequest>();
 
@@ -85,6 +100,21 @@ public class PushAgent {
             initializeApns();
         }
 
+        mGcmBatcher = new PushBatcher<PushRequest>("gcm", mExecutor, mConfig.getPushSenderThreads(),
+                mConfig.getPushQueueCapacity(), mConfig.getPushFlushWindow(), GCM_MAX_BATCH_SIZE, mServer.getMetrics()) {
+            @Override
+            protected void send(List<PushRequest> batch) {
+                sendGcmBatch(batch);
+            }
+        };
+        mApnsBatcher = new PushBatcher<PushRequest>("apns", mExecutor, mConfig.getPushSenderThreads(),
+                mConfig.getPushQueueCapacity(), mConfig.getPushFlushWindow(), APNS_MAX_BATCH_SIZE, mServer.getMetrics()) {
+            @Override
+            protected void send(List<PushRequest> batch) {
+                sendApnsBatch(batch);
+            }
+        };
+
         initializeMetrics(mServer.getMetrics());
         pushRequestsMeter = mServer.getMetrics().meter(name(PushAgent.class, "pushRequestsMeter"));
         pushDelayedMeter = mServer.getMetrics().meter(name(PushAgent.class, "pushDelayedMeter"));
@@ -93,6 +123,13 @@ public class PushAgent {
     }
 
     private void initializeMetrics(MetricRegistry metrics) {
+        metrics.register(MetricRegistry.name(PushAgent.class, "pushOutstanding"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mOutstanding.size();
+                    }
+                });
         metrics.register(MetricRegistry.name(PushAgent.class, "pushRequests"),
                 new Gauge<Integer>() {
                     @Override
@@ -192,45 +229,169 @@ public class PushAgent {
             delay = Math.max(0, limit - delta);
         }
 
-        // update timestamp
-        Date pushTime = new Date();
-        client.setTimeLastPush(pushTime);
-        mDatabase.saveClient(client);
-
-        // only perform push when we aren't doing so already
+        // only perform push when we aren't doing so already,
+        // claim the client before loading anything for the request
         final String clientId = client.getClientId();
-        synchronized (mOutstanding) {
-            if (mOutstanding.containsKey(clientId)) {
-                // request has been batched
-                mPushBatched.incrementAndGet();
-                pushBatchedMeter.mark();
-            } else {
-                List<TalkDelivery> newDeliveries = deliveriesSortedByAcceptedTime(notifyDeliveries);
-
-                // schedule the request
-                final PushRequest request = new PushRequest(this,
-                        clientId,
-                        mDatabase.findClientHostInfoForClient(clientId),
-                        deliveries.size(),
-                        newDeliveries);
-                mExecutor.schedule(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            // no longer outstanding
-                            synchronized (mOutstanding) {
-                                // perform the request
-                                if (request.perform()) {
-                                    remember(clientId, request);
-                                }
-                                mOutstanding.remove(clientId);
-                            }
-                        } catch (Throwable t) {
-                            LOG.error("caught and swallowed exception escaping runnable", t);
+        if (mOutstanding.putIfAbsent(clientId, mClaim) != null) {
+            // request has been batched
+            mPushBatched.incrementAndGet();
+            pushBatchedMeter.mark();
+            return;
+        }
+
+        final PushRequest request;
+        try {
+            request = new PushRequest(this,
+                    clientId,
+                    mDatabase.findClientHostInfoForClient(clientId),
+                    deliveries.size(),
+                    deliveriesSortedByAcceptedTime(notifyDeliveries));
+            mOutstanding.put(clientId, request);
+
+            // update timestamp
+            client.setTimeLastPush(new Date());
+            mDatabase.updateClientPushState(client);
+        } catch (RuntimeException e) {
+            mOutstanding.remove(clientId);
+            throw e;
+        }
+
+        // schedule the request
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dispatchRequest(request);
+                } catch (Throwable t) {
+                    LOG.error("caught and swallowed exception escaping runnable", t);
+                    mOutstanding.remove(clientId);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatchRequest(PushRequest request) {
+        if (!request.prepare()) {
+            mOutstanding.remove(request.getClientId());
+        } else if (request.isGcm()) {
+            if (!mGcmBatcher.submit(request)) {
+                mOutstanding.remove(request.getClientId());
+            }
+        } else {
+            if (!mApnsBatcher.submit(request)) {
+                mOutstanding.remove(request.getClientId());
+            }
+        }
+    }
+
+    /**
+     * Called by a request after it has been sent
+     */
+    void completeRequest(PushRequest request, boolean didWakeupPush) {
+        if (didWakeupPush) {
+            remember(request.getClientId(), request);
+        }
+        mOutstanding.remove(request.getClientId());
+    }
+
+    private void sendGcmBatch(List<PushRequest> batch) {
+        // one multicast per package, the wake up message is the same for all clients
+        MultiValueMap<String, PushRequest> requestsByPackage = new MultiValueMap<String, PushRequest>();
+        for (PushRequest request : batch) {
+            requestsByPackage.put(request.getClient().getGcmPackage(), request);
+        }
+        for (String gcmPackage : requestsByPackage.keySet()) {
+            List<PushRequest> requests = new ArrayList<PushRequest>(requestsByPackage.getCollection(gcmPackage));
+            List<String> registrations = new ArrayList<String>(requests.size());
+            for (PushRequest request : requests) {
+                registrations.add(request.getClient().getGcmRegistration());
+            }
+            List<Result> results = null;
+            try {
+                LOG.debug("GCM multicast push for " + requests.size() + " clients of package " + gcmPackage);
+                results = mGcmSender.send(PushRequest.buildGcmMessage(gcmPackage), registrations, 10).getResults();
+            } catch (Throwable t) {
+                LOG.error("GCM multicast push failed for package " + gcmPackage, t);
+            }
+            for (int i = 0; i < requests.size(); i++) {
+                boolean success = false;
+                if (results != null && i < results.size()) {
+                    Result res = results.get(i);
+                    if (res.getMessageId() != null) {
+                        if (res.getCanonicalRegistrationId() != null) {
+                            LOG.warn("GCM returned a canonical registration id - we should do something with it");
                         }
+                        success = true;
+                    } else {
+                        LOG.error("GCM push returned error '" + res.getErrorCodeName() + "'");
                     }
-                }, delay, TimeUnit.MILLISECONDS);
-                mOutstanding.put(clientId, request);
+                }
+                completeSafely(requests.get(i), success);
+            }
+        }
+    }
+
+    private void sendApnsBatch(List<PushRequest> batch) {
+        // clients getting the same payload from the same service are pushed together
+        Map<ApnsService, MultiValueMap<String, String>> tokensByPayload = new HashMap<ApnsService, MultiValueMap<String, String>>();
+        List<PushRequest> built = new ArrayList<PushRequest>(batch.size());
+        for (PushRequest request : batch) {
+            List<String> payloads = null;
+            try {
+                payloads = request.buildApnsPayloads();
+            } catch (Throwable t) {
+                LOG.error("building APNS push failed for client " + request.getClientId(), t);
+            }
+            if (payloads == null) {
+                completeSafely(request, false);
+                continue;
+            }
+            MultiValueMap<String, String> serviceTokens = tokensByPayload.get(request.getApnsService());
+            if (serviceTokens == null) {
+                serviceTokens = new MultiValueMap<String, String>();
+                tokensByPayload.put(request.getApnsService(), serviceTokens);
+            }
+            for (String payload : payloads) {
+                serviceTokens.put(payload, request.getClient().getApnsToken());
+            }
+            built.add(request);
+        }
+        for (Map.Entry<ApnsService, MultiValueMap<String, String>> entry : tokensByPayload.entrySet()) {
+            ApnsService service = entry.getKey();
+            for (String payload : entry.getValue().keySet()) {
+                try {
+                    service.push(new ArrayList<String>(entry.getValue().getCollection(payload)), payload);
+                } catch (Throwable t) {
+                    LOG.error("APNS push failed", t);
+                }
+            }
+        }
+        for (PushRequest request : built) {
+            completeSafely(request, request.isApnsWakeup());
+        }
+    }
+
+    private void completeSafely(PushRequest request, boolean didWakeupPush) {
+        try {
+            request.complete(didWakeupPush);
+        } catch (Throwable t) {
+            LOG.error("completing push request failed for client " + request.getClientId(), t);
+            mOutstanding.remove(request.getClientId());
+        }
+    }
+
+    /**
+     * Stop the agent and the sender threads of its batchers
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+        mGcmBatcher.shutdown();
+        mApnsBatcher.shutdown();
+        if (mGcmStandIn != null) {
+            try {
+                mGcmStandIn.stop();
+            } catch (Exception e) {
+                LOG.error("could not stop GCM stand-in", e);
             }
         }
     }
@@ -253,7 +414,18 @@ public class PushAgent {
 
     private void initializeGcm() {
         LOG.info("GCM support enabled");
-        mGcmSender = new Sender(mConfig.getGcmApiKey());
+        if (mConfig.isPushStandIn()) {
+            LOG.warn("GCM pushes go to a local stand-in");
+            mGcmStandIn = new StandInGcmEndpoint(mConfig.getPushStandInLatency(), mConfig.getPushStandInFailureRate());
+            try {
+                mGcmStandIn.start();
+            } catch (Exception e) {
+                throw new RuntimeException("could not start GCM stand-in", e);
+            }
+            mGcmSender = new StandInGcmSender(mGcmStandIn.getUrl());
+        } else {
+            mGcmSender = new Sender(mConfig.getGcmApiKey());
+        }
         mPushProviders.add(new GcmPushProvider(mGcmSender));
     }
 
@@ -261,6 +433,33 @@ public class PushAgent {
         LOG.info("APNS support enabled");
 
         // set up services
+        if (mConfig.isPushStandIn()) {
+            initializeApnsStandIns();
+        } else {
+            initializeApnsServices();
+        }
+
+        // set up invalidation
+        int delay = mConfig.getApnsInvalidateDelay();
+        int interval = mConfig.getApnsInvalidateInterval();
+        if (interval > 0) {
+            LOG.info("APNS will check for invalidations every " + interval + " seconds");
+            mExecutor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        invalidateApns();
+                    } catch (Throwable t) {
+                        LOG.error("caught and swallowed exception escaping runnable", t);
+                    }
+                }
+            }, delay, interval, TimeUnit.SECONDS);
+        }
+
+        mPushProviders.add(new ApnsPushProvider(mApnsServices, mServer, mConfig.getApnsDefaultClientName()));
+    }
+
+    private void initializeApnsServices() {
         for (Map.Entry<String, ApnsConfiguration> entry : mConfig.getApnsConfigurations().entrySet()) {
             String clientName = entry.getKey();
 
@@ -280,25 +479,19 @@ public class PushAgent {
                     .withSandboxDestination()
                     .build());
         }
+    }
 
-        // set up invalidation
-        int delay = mConfig.getApnsInvalidateDelay();
-        int interval = mConfig.getApnsInvalidateInterval();
-        if (interval > 0) {
-            LOG.info("APNS will check for invalidations every " + interval + " seconds");
-            mExecutor.scheduleAtFixedRate(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        invalidateApns();
-                    } catch (Throwable t) {
-                        LOG.error("caught and swallowed exception escaping runnable", t);
-                    }
-                }
-            }, delay, interval, TimeUnit.SECONDS);
+    private void initializeApnsStandIns() {
+        LOG.warn("APNS pushes go to local stand-ins");
+        Set<String> clientNames = new HashSet<String>(mConfig.getApnsConfigurations().keySet());
+        clientNames.add(mConfig.getApnsDefaultClientName());
+        for (String clientName : clientNames) {
+            for (APNS_SERVICE_TYPE type : APNS_SERVICE_TYPE.values()) {
+                LOG.info("  * setting up APNS stand-in (clientName: '" + clientName + "', type: '" + type + "')");
+                mApnsServices.put(new ApnsPushProvider.Target(clientName, type),
+                        new StandInApnsService(mConfig.getPushStandInLatency(), mConfig.getPushStandInFailureRate()));
+            }
         }
-
-        mPushProviders.add(new ApnsPushProvider(mApnsServices, mServer, mConfig.getApnsDefaultClientName()));
     }
 
     private void invalidateApns() {
@@ -0,0 +1,179 @@
+package com.hoccer.talk.server.push;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.hoccer.talk.util.NamedThreadFactory;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects pushes for one push service and sends them in batches
+ * <p/>
+ * Pushes submitted within the flush window, or until the maximum batch
+ * size is reached, are handed to {@link #send} together on a pool of
+ * sender threads owned by this batcher, so a slow service does not hold
+ * up the others. The number of waiting pushes is bounded.
+ */
+public abstract class PushBatcher<T> {
+
+    private static final Logger LOG = Logger.getLogger(PushBatcher.class);
+
+    private final String mName;
+    private final ScheduledExecutorService mTimer;
+    private final ExecutorService mSenders;
+    private final long mFlushWindowMillis;
+    private final int mMaxBatchSize;
+    private final int mCapacity;
+
+    /** Pushes waiting for the next flush, guarded by this */
+    private List<Entry<T>> mPending = new ArrayList<Entry<T>>();
+
+    /** Pushes submitted but not sent yet */
+    private final AtomicInteger mQueued = new AtomicInteger();
+
+    private final Meter mRejectedMeter;
+    private final Histogram mBatchSizeHistogram;
+    private final Timer mLatencyTimer;
+    private final Timer mSendTimer;
+
+    private static class Entry<T> {
+        final T item;
+        final long submitted = System.nanoTime();
+
+        Entry(T item) {
+            this.item = item;
+        }
+    }
+
+    public PushBatcher(String name, ScheduledExecutorService timer, int threads, int capacity,
+                       long flushWindowMillis, int maxBatchSize, MetricRegistry metrics) {
+        mName = name;
+        mTimer = timer;
+        mSenders = Executors.newFixedThreadPool(threads, new NamedThreadFactory("push-" + name));
+        mCapacity = capacity;
+        mFlushWindowMillis = flushWindowMillis;
+        mMaxBatchSize = maxBatchSize;
+        mRejectedMeter = metrics.meter(MetricRegistry.name(PushBatcher.class, name, "rejected"));
+        mBatchSizeHistogram = metrics.histogram(MetricRegistry.name(PushBatcher.class, name, "batchSize"));
+        mLatencyTimer = metrics.timer(MetricRegistry.name(PushBatcher.class, name, "latency"));
+        mSendTimer = metrics.timer(MetricRegistry.name(PushBatcher.class, name, "sendTime"));
+        metrics.register(MetricRegistry.name(PushBatcher.class, name, "queued"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mQueued.intValue();
+                    }
+                }
+        );
+    }
+
+    /**
+     * Send a batch of pushes, called on a sender thread
+     */
+    protected abstract void send(List<T> batch);
+
+    /**
+     * Queue a push for sending
+     *
+     * @return false if the queue is full and the push has been dropped
+     */
+    public boolean submit(T item) {
+        if (mQueued.incrementAndGet() > mCapacity) {
+            mQueued.decrementAndGet();
+            mRejectedMeter.mark();
+            LOG.warn(mName + ": queue full, dropping push");
+            return false;
+        }
+        List<Entry<T>> batch = null;
+        boolean scheduleFlush = false;
+        synchronized (this) {
+            mPending.add(new Entry<T>(item));
+            if (mPending.size() >= mMaxBatchSize) {
+                batch = mPending;
+                mPending = new ArrayList<Entry<T>>();
+            } else if (mPending.size() == 1) {
+                scheduleFlush = true;
+            }
+        }
+        if (batch != null) {
+            dispatch(batch);
+        } else if (scheduleFlush) {
+            mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (Throwable t) {
+                        LOG.error("caught and swallowed exception escaping runnable", t);
+                    }
+                }
+            }, mFlushWindowMillis, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    private void flush() {
+        List<Entry<T>> batch;
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                // already sent because the batch became full
+                return;
+            }
+            batch = mPending;
+            mPending = new ArrayList<Entry<T>>();
+        }
+        dispatch(batch);
+    }
+
+    private void dispatch(final List<Entry<T>> batch) {
+        mSenders.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<T> items = new ArrayList<T>(batch.size());
+                for (Entry<T> entry : batch) {
+                    items.add(entry.item);
+                }
+                mBatchSizeHistogram.update(items.size());
+                Timer.Context timer = mSendTimer.time();
+                try {
+                    send(items);
+                } catch (Throwable t) {
+                    LOG.error("caught and swallowed exception escaping runnable", t);
+                } finally {
+                    timer.stop();
+                    long now = System.nanoTime();
+                    for (Entry<T> entry : batch) {
+                        mLatencyTimer.update(now - entry.submitted, TimeUnit.NANOSECONDS);
+                    }
+                    mQueued.addAndGet(-batch.size());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return number of pushes submitted but not sent yet
+     */
+    public int getQueued() {
+        return mQueued.intValue();
+    }
+
+    /**
+     * Stop the sender threads once the batches handed to them are sent
+     * <p/>
+     * The flush timer belongs to the caller, pushes waiting for it are not sent.
+     */
+    public void shutdown() {
+        mSenders.shutdown();
+    }
+}
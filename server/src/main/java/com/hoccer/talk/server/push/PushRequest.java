@@ -1,8 +1,6 @@
 package com.hoccer.talk.server.push;
 
 import com.google.android.gcm.server.Message;
-import com.google.android.gcm.server.Result;
-import com.google.android.gcm.server.Sender;
 import com.hoccer.talk.model.TalkClient;
 import com.hoccer.talk.model.TalkClientHostInfo;
 import com.hoccer.talk.model.TalkDelivery;
@@ -15,7 +13,6 @@ import com.notnoop.apns.PayloadBuilder;
 import org.apache.log4j.Logger;
 import org.apache.log4j.filter.StringMatchFilter;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -38,6 +35,10 @@ public class PushRequest {
     private final Date mCreatedTime = new Date();
     private List<TalkDelivery> mNewDeliveries;
     private int mDeliveringCount;
+    private String mMessageInfo;
+
+    private ApnsService mApnsService;
+    private boolean mApnsWakeup;
 
     public Date getCreatedTime() {
         return mCreatedTime;
@@ -64,7 +65,12 @@ public class PushRequest {
         return mClientHostInfo;
     }
 
-    public boolean perform() {
+    /**
+     * Load the client and decide whether there is anything new to push
+     *
+     * @return true if the push should be sent through {@link #isGcm()} or {@link #isApns()}
+     */
+    public boolean prepare() {
         LOG.debug("try perform push for client " + mClientId);
         // get up-to-date client object
         ITalkServerDatabase database = mAgent.getDatabase();
@@ -74,35 +80,6 @@ public class PushRequest {
             LOG.warn("client " + mClientId + " does not exist");
             return false;
         }
-        /*
-        List<TalkDelivery> deliveries =
-                database.findDeliveriesForClientInState(
-                        mClient.getClientId(),
-                        TalkDelivery.STATE_DELIVERING);
-
-        int deliveringCount = (deliveries == null) ? 0 : deliveries.size();
-
-        if (deliveringCount == 0) {
-            LOG.debug("no messages to be delivered for " + mClientId);
-            return false;
-        }
-
-        mNewDeliveries = new ArrayList<TalkDelivery>();
-        Date latest = new Date(0);
-        Date lastLatest = new Date(0);
-        if (mClient.getLatestPushMessageTime() != null) {
-            lastLatest = mClient.getLatestPushMessageTime();
-        }
-        for (TalkDelivery delivery : deliveries) {
-            if (delivery.getTimeAccepted().after(lastLatest)) {
-                // add only deliveries that arrived after latest message of last push batch; only relevant for direct APNS push
-                mNewDeliveries.add(delivery);
-                if (delivery.getTimeAccepted().after(latest)) {
-                    latest = delivery.getTimeAccepted();
-                }
-            }
-        }
-        */
         long firstNewDeliveryAcceptedTime = 0;
         long lastNewDeliveryAcceptedTime = 0;
 
@@ -119,23 +96,36 @@ public class PushRequest {
             return false;
         }
 
-        boolean didWakeupPush = false;
+        mMessageInfo = messageInfo;
 
-        // try to perform push
-        if (mConfig.isGcmEnabled() && mClient.isGcmCapable()) {
-            didWakeupPush = performGcm();
-        } else if (mConfig.isApnsEnabled() && mClient.isApnsCapable()) {
-            didWakeupPush = performApns();
+        if (isGcm() || isApns()) {
+            return true;
+        }
+        if (mClient.isPushCapable()) {
+            LOG.warn("PushRequest.prepare: client " + mClient + " push not available");
         } else {
-            if (mClient.isPushCapable()) {
-                LOG.warn("PushRequest.perform: client " + mClient + " push not available");
-            } else {
-                LOG.warn("PushRequest.perform: client " + mClientId + " has no registration");
-            }
-            return false;
+            LOG.warn("PushRequest.prepare: client " + mClientId + " has no registration");
         }
-        mClient.setLastPushMessage(messageInfo);
-        database.saveClient(mClient);
+        return false;
+    }
+
+    public boolean isGcm() {
+        return mConfig.isGcmEnabled() && mClient.isGcmCapable();
+    }
+
+    public boolean isApns() {
+        return !isGcm() && mConfig.isApnsEnabled() && mClient.isApnsCapable();
+    }
+
+    /**
+     * Record that the push has been sent
+     *
+     * @param didWakeupPush true if the push should wake up the client
+     */
+    public void complete(boolean didWakeupPush) {
+        ITalkServerDatabase database = mAgent.getDatabase();
+        mClient.setLastPushMessage(mMessageInfo);
+        database.updateClientPushState(mClient);
         Date pushTime = new Date();
         for (TalkDelivery delivery : mNewDeliveries) {
             if (delivery.getTimeClientNotified() == null) {
@@ -145,36 +135,26 @@ public class PushRequest {
                 database.updateDeliveryTimeClientNotified(delivery);
             }
         }
-        return didWakeupPush;
+        mAgent.completeRequest(this, didWakeupPush);
     }
 
-    private boolean performGcm() {
-        LOG.debug("GCM push for " + mClientId);
-        Message message = new Message.Builder()
+    /**
+     * @return the wake up message for all GCM pushes to the given package
+     */
+    public static Message buildGcmMessage(String gcmPackage) {
+        return new Message.Builder()
                 .collapseKey("com.hoccer.talk.wake")
                 .timeToLive(TalkServerConfiguration.GCM_WAKE_TTL)
-                .restrictedPackageName(mClient.getGcmPackage())
+                .restrictedPackageName(gcmPackage)
                 .build();
-        Sender gcmSender = mAgent.getGcmSender();
-        try {
-            Result res = gcmSender.send(message, mClient.getGcmRegistration(), 10);
-            if (res.getMessageId() != null) {
-                if (res.getCanonicalRegistrationId() != null) {
-                    LOG.warn("GCM returned a canonical registration id - we should do something with it");
-                }
-                LOG.debug("GCM push successful, return message id " + res.getMessageId());
-                return true;
-            } else {
-                LOG.error("GCM push returned error '" + res.getErrorCodeName() + "'");
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return false;
     }
 
-    // return true if push should wake up client
-    private boolean performApns() {
+    /**
+     * Build the APNS payloads for this request
+     *
+     * @return the payloads to push or null if no service is configured for the client
+     */
+    public List<String> buildApnsPayloads() {
         String clientName = mConfig.getApnsDefaultClientName();
 
         PushAgent.APNS_SERVICE_TYPE type = ApnsPushProvider.apnsServiceType(mClient, mClientHostInfo);
@@ -188,6 +168,7 @@ public class PushRequest {
         if (apnsService != null) {
 
             boolean done = false;
+            List<String> payloads = new ArrayList<String>();
             LOG.debug("APNS push for " + mClientId + " using " + type + " type, token "+mClient.getApnsToken());
 
             PayloadBuilder b = APNS.newPayload();
@@ -233,7 +214,7 @@ public class PushRequest {
                                 groupAttr+saltAttr+attachmentAttr+"}";
                         if (apnMessage.length() < 4096) {
                             LOG.debug("APNS direct push for " + mClientId + ", message:" + apnMessage);
-                            apnsService.push(mClient.getApnsToken(), apnMessage);
+                            payloads.add(apnMessage);
                             done = true;
                         } else {
                             LOG.debug("APNS message too long for direct push for client " + mClientId + ", message:" + apnMessage);
@@ -256,13 +237,29 @@ public class PushRequest {
             if (!done) {
                 String message = b.build();
                 LOG.debug("APNS push for " + mClientId + "message:" + message);
-                apnsService.push(mClient.getApnsToken(), message);
+                payloads.add(message);
             }
 
-            return backgroundPush;
+            mApnsService = apnsService;
+            mApnsWakeup = backgroundPush;
+            return payloads;
         } else {
             LOG.error("APNS push skipped, no service configured for clientName '" + clientName + "' and type '" + type + "'");
         }
-        return false;
+        return null;
+    }
+
+    /**
+     * @return the service selected by {@link #buildApnsPayloads()}
+     */
+    public ApnsService getApnsService() {
+        return mApnsService;
+    }
+
+    /**
+     * @return true if the payloads built by {@link #buildApnsPayloads()} wake up the client
+     */
+    public boolean isApnsWakeup() {
+        return mApnsWakeup;
     }
 }
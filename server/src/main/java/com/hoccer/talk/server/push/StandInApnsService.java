@@ -0,0 +1,144 @@
+package com.hoccer.talk.server.push;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.exceptions.NetworkIOException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * APNS service that only counts notifications instead of sending them
+ * <p/>
+ * Used instead of Apple for load tests. Every call is delayed by the
+ * configured latency and fails with the given probability, like a
+ * dropped gateway connection would.
+ */
+public class StandInApnsService implements ApnsService {
+
+    private final int mLatencyMillis;
+    private final int mFailureRate;
+
+    private final Random mRandom = new Random();
+    private final AtomicLong mPushed = new AtomicLong();
+
+    /**
+     * @param latencyMillis delay of each call
+     * @param failureRate   percentage of calls failing
+     */
+    public StandInApnsService(int latencyMillis, int failureRate) {
+        mLatencyMillis = latencyMillis;
+        mFailureRate = failureRate;
+    }
+
+    /**
+     * @return number of notifications accepted
+     */
+    public long getPushed() {
+        return mPushed.get();
+    }
+
+    private void transmit(int count) throws NetworkIOException {
+        if (mLatencyMillis > 0) {
+            try {
+                Thread.sleep(mLatencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mRandom.nextInt(100) < mFailureRate) {
+            throw new NetworkIOException("stand-in failure");
+        }
+        mPushed.addAndGet(count);
+    }
+
+    private static EnhancedApnsNotification notification(String deviceToken, String payload, Date expiry) {
+        int expirySeconds = (int) (expiry.getTime() / 1000);
+        return new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), expirySeconds, deviceToken, payload);
+    }
+
+    private static EnhancedApnsNotification notification(byte[] deviceToken, byte[] payload, int expiry) {
+        return new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), expiry, deviceToken, payload);
+    }
+
+    @Override
+    public ApnsNotification push(String deviceToken, String payload) throws NetworkIOException {
+        return push(deviceToken, payload, EnhancedApnsNotification.MAXIMUM_DATE);
+    }
+
+    @Override
+    public EnhancedApnsNotification push(String deviceToken, String payload, Date expiry) throws NetworkIOException {
+        transmit(1);
+        return notification(deviceToken, payload, expiry);
+    }
+
+    @Override
+    public ApnsNotification push(byte[] deviceToken, byte[] payload) throws NetworkIOException {
+        return push(deviceToken, payload, EnhancedApnsNotification.MAXIMUM_EXPIRY);
+    }
+
+    @Override
+    public EnhancedApnsNotification push(byte[] deviceToken, byte[] payload, int expiry) throws NetworkIOException {
+        transmit(1);
+        return notification(deviceToken, payload, expiry);
+    }
+
+    @Override
+    public Collection<? extends ApnsNotification> push(Collection<String> deviceTokens, String payload) throws NetworkIOException {
+        return push(deviceTokens, payload, EnhancedApnsNotification.MAXIMUM_DATE);
+    }
+
+    @Override
+    public Collection<? extends EnhancedApnsNotification> push(Collection<String> deviceTokens, String payload, Date expiry) throws NetworkIOException {
+        transmit(deviceTokens.size());
+        List<EnhancedApnsNotification> notifications = new ArrayList<EnhancedApnsNotification>(deviceTokens.size());
+        for (String deviceToken : deviceTokens) {
+            notifications.add(notification(deviceToken, payload, expiry));
+        }
+        return notifications;
+    }
+
+    @Override
+    public Collection<? extends ApnsNotification> push(Collection<byte[]> deviceTokens, byte[] payload) throws NetworkIOException {
+        return push(deviceTokens, payload, EnhancedApnsNotification.MAXIMUM_EXPIRY);
+    }
+
+    @Override
+    public Collection<? extends EnhancedApnsNotification> push(Collection<byte[]> deviceTokens, byte[] payload, int expiry) throws NetworkIOException {
+        transmit(deviceTokens.size());
+        List<EnhancedApnsNotification> notifications = new ArrayList<EnhancedApnsNotification>(deviceTokens.size());
+        for (byte[] deviceToken : deviceTokens) {
+            notifications.add(notification(deviceToken, payload, expiry));
+        }
+        return notifications;
+    }
+
+    @Override
+    public void push(ApnsNotification message) throws NetworkIOException {
+        transmit(1);
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void testConnection() throws NetworkIOException {
+    }
+}
@@ -0,0 +1,133 @@
+package com.hoccer.talk.server.push;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP endpoint answering like the GCM send service
+ * <p/>
+ * Used instead of Google for load tests. Every request is delayed by the
+ * configured latency and each registration fails with the given
+ * probability. Failures are reported as invalid registrations so the
+ * sender does not retry them.
+ */
+public class StandInGcmEndpoint {
+
+    private static final Logger LOG = Logger.getLogger(StandInGcmEndpoint.class);
+
+    private final Server mServer;
+    private final SelectChannelConnector mConnector;
+
+    private final int mLatencyMillis;
+    private final int mFailureRate;
+
+    private final Random mRandom = new Random();
+    private final AtomicLong mMessageIds = new AtomicLong();
+    private final AtomicLong mReceived = new AtomicLong();
+
+    /**
+     * @param latencyMillis delay of each response
+     * @param failureRate   percentage of registrations failing
+     */
+    public StandInGcmEndpoint(int latencyMillis, int failureRate) {
+        mLatencyMillis = latencyMillis;
+        mFailureRate = failureRate;
+        mServer = new Server();
+        mConnector = new SelectChannelConnector();
+        mConnector.setHost("127.0.0.1");
+        mConnector.setPort(0);
+        mServer.addConnector(mConnector);
+        mServer.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+                    throws IOException {
+                baseRequest.setHandled(true);
+                handleSend(request, response);
+            }
+        });
+    }
+
+    public void start() throws Exception {
+        mServer.start();
+        LOG.info("GCM stand-in listening on " + getUrl());
+    }
+
+    public void stop() throws Exception {
+        mServer.stop();
+    }
+
+    /**
+     * @return URL of the send service, valid after start
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mConnector.getLocalPort() + "/gcm/send";
+    }
+
+    /**
+     * @return number of registrations received
+     */
+    public long getReceived() {
+        return mReceived.get();
+    }
+
+    private void handleSend(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Object body = JSONValue.parse(new InputStreamReader(request.getInputStream(), "UTF-8"));
+        if (!(body instanceof JSONObject) || !(((JSONObject) body).get("registration_ids") instanceof List)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        List<?> registrations = (List<?>) ((JSONObject) body).get("registration_ids");
+        mReceived.addAndGet(registrations.size());
+
+        if (mLatencyMillis > 0) {
+            try {
+                Thread.sleep(mLatencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int success = 0;
+        int failure = 0;
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < registrations.size(); i++) {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            if (mRandom.nextInt(100) < mFailureRate) {
+                result.put("error", "InvalidRegistration");
+                failure++;
+            } else {
+                result.put("message_id", "0:" + mMessageIds.incrementAndGet());
+                success++;
+            }
+            results.add(result);
+        }
+
+        Map<String, Object> answer = new LinkedHashMap<String, Object>();
+        answer.put("multicast_id", mMessageIds.incrementAndGet());
+        answer.put("success", success);
+        answer.put("failure", failure);
+        answer.put("canonical_ids", 0);
+        answer.put("results", results);
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(JSONValue.toJSONString(answer));
+    }
+}
@@ -0,0 +1,25 @@
+package com.hoccer.talk.server.push;
+
+import com.google.android.gcm.server.Sender;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * GCM sender talking to a {@link StandInGcmEndpoint} instead of Google
+ */
+public class StandInGcmSender extends Sender {
+
+    private final String mUrl;
+
+    public StandInGcmSender(String url) {
+        super("stand-in");
+        mUrl = url;
+    }
+
+    @Override
+    protected HttpURLConnection getConnection(String url) throws IOException {
+        return (HttpURLConnection) new URL(mUrl).openConnection();
+    }
+}
@@ -0,0 +1,24 @@
+package com.hoccer.talk.server.rpc;
+
+import better.jsonrpc.client.JsonRpcClientFuture;
+import com.hoccer.talk.rpc.ITalkRpcClient;
+
+/**
+ * Non-blocking variants of calls in {@link ITalkRpcClient}
+ *
+ * Calls return immediately, the result arrives through the
+ * returned future. This lets the server keep calls to many
+ * clients in flight without holding a thread for each.
+ *
+ * Only calls the client answers need a variant here. Notifications
+ * such as incomingDelivery() are never answered, so calling them
+ * through {@link ITalkRpcClient} returns as soon as they are sent.
+ */
+public interface ITalkRpcClientAsync {
+
+    /**
+     * @see ITalkRpcClient#ping()
+     */
+    JsonRpcClientFuture<Void> ping();
+
+}
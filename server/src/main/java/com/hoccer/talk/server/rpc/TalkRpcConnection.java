@@ -2,6 +2,7 @@ package com.hoccer.talk.server.rpc;
 
 import better.jsonrpc.core.JsonRpcConnection;
 import better.jsonrpc.util.ProtocolUtils;
+import better.jsonrpc.util.TimerWheel;
 import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -57,6 +58,11 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
      */
     private final ITalkRpcClient mClientRpc;
 
+    /**
+     * Non-blocking RPC interface to client
+     */
+    private final ITalkRpcClientAsync mClientRpcAsync;
+
     /**
      * Client object (if logged in)
      */
@@ -72,6 +78,11 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
      */
     private boolean mSupportMode;
 
+    /**
+     * Number of deliveries to send per incomingDeliveries() call as negotiated in hello(), 0 for one by one
+     */
+    private volatile int mDeliveryBatchSize;
+
     /**
      * User data associated to requests
      */
@@ -81,6 +92,9 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
     private Long mLastPingLatency;
     private Date mLastPingOccured;
 
+    /** Next liveness check of the ping agent */
+    private volatile TimerWheel.Entry<?> mLivenessCheck;
+
     private Date mCreationTime;
     private Date mLastRequestStarted;
     private Date mLastRequestFinished;
@@ -137,6 +151,7 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
 
         // create a json-rpc proxy for client notifications and rpc calls
         mClientRpc = connection.makeProxy(ITalkRpcClient.class);
+        mClientRpcAsync = connection.makeProxy(ITalkRpcClientAsync.class);
         // register ourselves for connection events
         mConnection.addListener(this);
         mConnection.addConnectionEventListener(this);
@@ -225,6 +240,13 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
         return mClientRpc;
     }
 
+    /**
+     * Returns the non-blocking RPC interface to the client
+     */
+    public ITalkRpcClientAsync getClientRpcAsync() {
+        return mClientRpcAsync;
+    }
+
     /**
      *  returns the connections server call handler
      */
@@ -516,6 +538,14 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
         return mLegacyMode;
     }
 
+    public int getDeliveryBatchSize() {
+        return mDeliveryBatchSize;
+    }
+
+    public void setDeliveryBatchSize(int deliveryBatchSize) {
+        mDeliveryBatchSize = deliveryBatchSize;
+    }
+
     public Long getLastPingLatency() {
         return mLastPingLatency;
     }
@@ -532,6 +562,14 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
         return mLastPingOccured;
     }
 
+    public TimerWheel.Entry<?> getLivenessCheck() {
+        return mLivenessCheck;
+    }
+
+    public void setLivenessCheck(TimerWheel.Entry<?> livenessCheck) {
+        mLivenessCheck = livenessCheck;
+    }
+
     public long getCurrentPriorityPenalty() {
         return mCurrentPriorityPenalty;
     }
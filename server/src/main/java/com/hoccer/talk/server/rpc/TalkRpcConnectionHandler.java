@@ -122,8 +122,10 @@ public class TalkRpcConnectionHandler extends WebSocketHandler {
 
         connection.setSendBinaryMessages(binary);
         connection.setAnswerKeepAlives(true);
+        connection.setStreamingCodec(mTalkServer.getConfiguration().isRpcStreamingCodec());
         connection.bindClient(new JsonRpcClient());
         connection.bindServer(mJsonRpcServer, new TalkRpcHandler(mTalkServer, rpcConnection));
+        connection.setRequestExecutor(mTalkServer.getRequestExecutor());
 
         return webSocket;
     }
@@ -5,6 +5,8 @@ import com.hoccer.talk.rpc.ITalkRpcServer;
 import com.hoccer.talk.server.ITalkServerDatabase;
 import com.hoccer.talk.server.ITalkServerStatistics;
 import com.hoccer.talk.server.TalkServer;
+import com.hoccer.talk.server.delivery.DeliveryScheduler;
+import com.hoccer.talk.server.locking.IdLock;
 import com.hoccer.talk.server.message.StaticSystemMessage;
 import com.hoccer.talk.srp.SRP6Parameters;
 import com.hoccer.talk.srp.SRP6VerifyingServer;
@@ -182,11 +184,16 @@ public class TalkRpcHandler implements ITalkRpcServer {
 
         updateClientHostInfo(clientInfo);
 
+        // clients not knowing about batches send 0 here and keep getting single deliveries
+        int batchSize = Math.min(clientInfo.getDeliveryBatchSize(), mServer.getConfiguration().getDeliveryMaxBatchSize());
+        mConnection.setDeliveryBatchSize(batchSize > 1 ? batchSize : 0);
+
         TalkServerInfo serverInfo = new TalkServerInfo();
         serverInfo.setServerTime(new Date());
         serverInfo.setSupportMode(mConnection.isSupportMode());
         serverInfo.setVersion(mServer.getConfiguration().getVersion());
         serverInfo.setCommitId(mServer.getConfiguration().getGitInfo().commitId);
+        serverInfo.setDeliveryBatchSize(mConnection.getDeliveryBatchSize());
 
         List<String> protcolVersions = TalkRpcConnectionHandler.getCurrentProtocolVersions();
         for (String protcolVersion : protcolVersions) {
@@ -1090,7 +1097,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             return false;
         }
 
-        synchronized (mServer.dualIdLock(TalkRelationship.LOCK_PREFIX, myId, otherId)) {
+        IdLock relationshipLock = mServer.getLockManager().dualLock(TalkRelationship.LOCK_PREFIX, myId, otherId);
+        try {
             LOG.debug("performing token-based pairing between clients with id '" + myId + "' and '" + token.getClientId() + "'");
 
             // set up relationships
@@ -1109,6 +1117,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             // give both users an initial presence
             mServer.getUpdateAgent().requestPresenceUpdateForClient(otherId, myId);
             mServer.getUpdateAgent().requestPresenceUpdateForClient(myId, otherId);
+        } finally {
+            relationshipLock.unlock();
         }
 
         return true;
@@ -1138,7 +1148,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
 
         String myId = mConnection.getClientId();
 
-        synchronized (mServer.dualIdLock(TalkRelationship.LOCK_PREFIX, myId, clientId)) {
+        IdLock relationshipLock = mServer.getLockManager().dualLock(TalkRelationship.LOCK_PREFIX, myId, clientId);
+        try {
             logCall("performing blockClient(id '" + clientId + "')");
             TalkRelationship rel = mDatabase.findRelationshipBetween(mConnection.getClientId(), clientId);
             if (rel == null || rel.isNone()) {
@@ -1156,6 +1167,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             } else {
                 throw new RuntimeException("illegal state");
             }
+        } finally {
+            relationshipLock.unlock();
         }
     }
 
@@ -1168,7 +1181,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
 
         String myId = mConnection.getClientId();
 
-        synchronized (mServer.dualIdLock(TalkRelationship.LOCK_PREFIX, myId, clientId)) {
+        IdLock relationshipLock = mServer.getLockManager().dualLock(TalkRelationship.LOCK_PREFIX, myId, clientId);
+        try {
             logCall("performing unblockClient(id '" + clientId + "')");
             TalkRelationship rel = mDatabase.findRelationshipBetween(myId, clientId);
             if (rel == null) {
@@ -1186,6 +1200,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             } else {
                 throw new RuntimeException("You have not blocked the client with id '" + clientId + "'");
             }
+        } finally {
+            relationshipLock.unlock();
         }
     }
 
@@ -1200,7 +1216,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
 
         String myId = mConnection.getClientId();
 
-        synchronized (mServer.dualIdLock(TalkRelationship.LOCK_PREFIX, myId, clientId)) {
+        IdLock relationshipLock = mServer.getLockManager().dualLock(TalkRelationship.LOCK_PREFIX, myId, clientId);
+        try {
 
             TalkRelationship rel = mDatabase.findRelationshipBetween(myId, clientId);
             TalkRelationship reverse_rel = mDatabase.findRelationshipBetween(clientId,myId);
@@ -1242,6 +1259,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
 
             setRelationship(myId, clientId, TalkRelationship.STATE_INVITED, TalkRelationship.STATE_NONE, true);
             setRelationship(clientId, myId, TalkRelationship.STATE_INVITED_ME, TalkRelationship.STATE_NONE, true);
+        } finally {
+            relationshipLock.unlock();
         }
         // give only invited user a presence update from inviting client
         //mServer.getUpdateAgent().requestPresenceUpdateForClient(clientId, myId);
@@ -1255,7 +1274,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
 
         String myId = mConnection.getClientId();
 
-        synchronized (mServer.dualIdLock(TalkRelationship.LOCK_PREFIX, myId, clientId)) {
+        IdLock relationshipLock = mServer.getLockManager().dualLock(TalkRelationship.LOCK_PREFIX, myId, clientId);
+        try {
             logCall("performing disinviteFriend(id '" + clientId + "')");
 
             TalkRelationship rel = mDatabase.findRelationshipBetween(myId, clientId);
@@ -1274,6 +1294,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             if (reverse_rel.invitedMe()) {
                 setRelationship(clientId, myId, TalkRelationship.STATE_NONE, TalkRelationship.STATE_NONE, true);
             }
+        } finally {
+            relationshipLock.unlock();
         }
     }
 
@@ -1284,7 +1306,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
 
         String myId = mConnection.getClientId();
 
-        synchronized (mServer.dualIdLock(TalkRelationship.LOCK_PREFIX, myId, clientId)) {
+        IdLock relationshipLock = mServer.getLockManager().dualLock(TalkRelationship.LOCK_PREFIX, myId, clientId);
+        try {
             logCall("performing acceptFriend(id '" + clientId + "')");
             TalkRelationship rel = mDatabase.findRelationshipBetween(myId, clientId);
             TalkRelationship reverse_rel = mDatabase.findRelationshipBetween(clientId,myId);
@@ -1307,6 +1330,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             // send each other current presence to new befriended pair
             mServer.getUpdateAgent().requestPresenceUpdateForClient(clientId, myId);
             mServer.getUpdateAgent().requestPresenceUpdateForClient(myId, clientId);
+        } finally {
+            relationshipLock.unlock();
         }
     }
 
@@ -1317,7 +1342,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
 
         String myId = mConnection.getClientId();
 
-        synchronized (mServer.dualIdLock(TalkRelationship.LOCK_PREFIX, myId, clientId)) {
+        IdLock relationshipLock = mServer.getLockManager().dualLock(TalkRelationship.LOCK_PREFIX, myId, clientId);
+        try {
             logCall("performing acceptFriend(id '" + clientId + "')");
             TalkRelationship rel = mDatabase.findRelationshipBetween(myId, clientId);
             TalkRelationship reverse_rel = mDatabase.findRelationshipBetween(clientId,myId);
@@ -1336,6 +1362,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             }
             setRelationship(clientId, myId, TalkRelationship.STATE_NONE, TalkRelationship.STATE_NONE, true);
             setRelationship(myId, clientId, TalkRelationship.STATE_NONE, TalkRelationship.STATE_NONE, true);
+        } finally {
+            relationshipLock.unlock();
         }
     }
 
@@ -1352,7 +1380,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
 
         String myId = mConnection.getClientId();
 
-        synchronized (mServer.dualIdLock(TalkRelationship.LOCK_PREFIX, myId, clientId)) {
+        IdLock relationshipLock = mServer.getLockManager().dualLock(TalkRelationship.LOCK_PREFIX, myId, clientId);
+        try {
             logCall("performing depairClient(id '" + clientId + "')");
             TalkRelationship rel = mDatabase.findRelationshipBetween(myId, clientId);
             if (rel == null) {
@@ -1373,6 +1402,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
                     setRelationship(clientId, myId, TalkRelationship.STATE_NONE, TalkRelationship.STATE_NONE, true);
                 }
             }
+        } finally {
+            relationshipLock.unlock();
         }
     }
 
@@ -1383,7 +1414,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
         if (TalkGroupMembership.isValidNotificationPreference(preference)) {
             String myId = mConnection.getClientId();
 
-            synchronized (mServer.dualIdLock(TalkRelationship.LOCK_PREFIX, myId, otherClientId)) {
+            IdLock relationshipLock = mServer.getLockManager().dualLock(TalkRelationship.LOCK_PREFIX, myId, otherClientId);
+            try {
                 logCall("performing setClientNotifications(otherClientId: '" + otherClientId + ","+preference+"')");
                 TalkRelationship relationship = mDatabase.findRelationshipBetween(myId, otherClientId);
 
@@ -1395,6 +1427,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
                 relationship.setNotificationPreference(preference);
                 mDatabase.saveRelationship(relationship);
                 mServer.getUpdateAgent().requestRelationshipUpdate(relationship);
+            } finally {
+                relationshipLock.unlock();
             }
         } else {
             throw new RuntimeException("Illegal notification preference:"+preference);
@@ -1472,10 +1506,6 @@ public class TalkRpcHandler implements ITalkRpcServer {
             delivery.setMessageId(message.getMessageId());
             delivery.setSenderId(clientId);
 
-            //if ("185bc899-0b1f-4fdb-b2d6-095d7e4fa404".equals(delivery.getReceiverId())) {
-            //    mServer.monitorLock(messageId, delivery.getReceiverId());
-            //}
-
             boolean hasAttachmentState = delivery.getAttachmentState() != null && !TalkDelivery.ATTACHMENT_STATE_NONE.equals(delivery.getAttachmentState());
 
             if (!attachmentError) {
@@ -1536,9 +1566,7 @@ public class TalkRpcHandler implements ITalkRpcServer {
         // process all accepted deliveries
         if (!acceptedDeliveries.isEmpty()) {
             // save deliveries first so messages get collected
-            for (TalkDelivery ds : acceptedDeliveries) {
-                mDatabase.saveDelivery(ds);
-            }
+            mDatabase.saveDeliveries(acceptedDeliveries);
             mDatabase.saveMessage(message);
             // initiate delivery for all recipients
             for (TalkDelivery ds : acceptedDeliveries) {
@@ -1652,7 +1680,7 @@ public class TalkRpcHandler implements ITalkRpcServer {
                     // set delivery timestamps
                     memberDelivery.setTimeAccepted(currentDate);
                     memberDelivery.setTimeChanged(currentDate);
-                    mDatabase.saveDelivery(memberDelivery);
+                    // saved together with the other accepted deliveries by outDeliveryRequest
                     result.add(memberDelivery);
                 }
                 return result;
@@ -1779,7 +1807,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
 
     private TalkDelivery inDeliveryConfirm(String messageId, String confirmationState) {
         requireIdentification(true);
-        synchronized (mServer.idLock(messageId)) {
+        IdLock messageLock = mServer.getLockManager().lock(messageId);
+        try {
             String clientId = mConnection.getClientId();
             TalkDelivery delivery = mDatabase.findDelivery(messageId, clientId);
             if (delivery != null) {
@@ -1797,6 +1826,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             } else {
                 throw new RuntimeException("inDeliveryConfirm '"+confirmationState+"': no delivery found for message with id '" + messageId + "' for client with id '" + clientId + "'");
             }
+        } finally {
+            messageLock.unlock();
         }
     }
 
@@ -1821,7 +1852,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
     private TalkDelivery outDeliveryAcknowledge(String messageId, String recipientId, String acknowledgeState, String acknowledgedState) {
         requireIdentification(true);
         logCall("outDeliveryAcknowledge '"+acknowledgeState+"' (messageId: '" + messageId + "', recipientId: '" + recipientId + "')");
-        synchronized (mServer.idLock(messageId)) {
+        IdLock messageLock = mServer.getLockManager().lock(messageId);
+        try {
             TalkDelivery delivery = findDelivery(messageId, recipientId);
             TalkDelivery result = new TalkDelivery();
             if (delivery != null) {
@@ -1840,6 +1872,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             }
             LOG.debug("Done outDeliveryAcknowledge for messageId "+messageId);
             return result;
+        } finally {
+            messageLock.unlock();
         }
     }
 
@@ -1880,7 +1914,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
     }
 
     private TalkDelivery deliverySenderChangeState(String messageId, String recipientId, String newState) {
-        synchronized (mServer.idLock(messageId)) {
+        IdLock messageLock = mServer.getLockManager().lock(messageId);
+        try {
             String clientId = mConnection.getClientId();
             TalkDelivery delivery = findDelivery(messageId, recipientId);
             if (delivery != null) {
@@ -1902,6 +1937,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             } else {
                 throw new RuntimeException("no delivery found for message with id '" + messageId + "' for recipient with id '" + recipientId + "'");
             }
+        } finally {
+            messageLock.unlock();
         }
     }
 
@@ -1916,7 +1953,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
     public void outDeliveryUnknown(String messageId, String recipientId) {
         requireIdentification(true);
         logCall("outDeliveryUnknown(messageId: '" + messageId + "', recipientId: '" + recipientId + "'");
-        synchronized (mServer.idLock(messageId)) {
+        IdLock messageLock = mServer.getLockManager().lock(messageId);
+        try {
             String clientId = mConnection.getClientId();
             TalkDelivery delivery = findDelivery(messageId, recipientId);
             if (delivery != null) {
@@ -1947,6 +1985,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             } else {
                 LOG.warn("no delivery found for message with id '" + messageId + "' for recipient with id '" + recipientId + "', probably already also deleted on server");
             }
+        } finally {
+            messageLock.unlock();
         }
         LOG.debug("Done outDeliveryUnknown for messageId "+messageId);
 
@@ -1956,7 +1996,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
     public void inDeliveryUnknown(String messageId) {
         requireIdentification(true);
         logCall("inDeliveryUnknown(messageId: '" + messageId);
-        synchronized (mServer.idLock(messageId)) {
+        IdLock messageLock = mServer.getLockManager().lock(messageId);
+        try {
             String clientId = mConnection.getClientId();
             TalkDelivery delivery = mDatabase.findDelivery(messageId, clientId);
             if (delivery != null) {
@@ -1990,6 +2031,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             } else {
                 LOG.warn("no delivery found for message with id '" + messageId + "' for recipient with id '" + clientId + "', probably already also deleted on server");
             }
+        } finally {
+            messageLock.unlock();
         }
         LOG.debug("Done inDeliveryUnknown for messageId "+messageId);
     }
@@ -2012,7 +2055,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
     public TalkDelivery inDeliveryReject(String messageId, String reason) {
         requireIdentification(true);
         logCall("inDeliveryReject(messageId: '" + messageId+", reason:"+reason);
-        synchronized (mServer.idLock(messageId)) {
+        IdLock messageLock = mServer.getLockManager().lock(messageId);
+        try {
             String clientId = mConnection.getClientId();
             TalkDelivery delivery = mDatabase.findDelivery(messageId, clientId);
             if (delivery != null) {
@@ -2025,6 +2069,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             } else {
                 throw new RuntimeException("deliveryReject(): no delivery found for message with id '" + messageId + "' for recipient with id '" + clientId + "'");
             }
+        } finally {
+            messageLock.unlock();
         }
     }
 
@@ -2247,7 +2293,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
     private static void suspendGroupMember(TalkServer server, String groupId, String clientId) {
         LOG.debug("suspendGroupMember:" + groupId + " client:" + clientId);
 
-        synchronized (server.dualIdLock(TalkGroupMembership.LOCK_PREFIX, groupId, clientId)) {
+        IdLock membershipLock = server.getLockManager().dualLock(TalkGroupMembership.LOCK_PREFIX, groupId, clientId);
+        try {
 
             TalkGroupMembership membership = server.getDatabase().findGroupMembershipForClient(groupId, clientId);
             if (membership == null) {
@@ -2264,6 +2311,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             } else {
                 LOG.warn("suspendGroupMember:  membership already suspended for group:" + groupId + " client:" + clientId);
             }
+        } finally {
+            membershipLock.unlock();
         }
     }
 
@@ -2541,9 +2590,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
         final String clientId = mConnection.getClientId();
         logCall("processFileDownloadMessage(fileId: '" + fileId + "') for client "+clientId + ", nextState='"+nextState+"'");
 
-        TalkServer.NonReentrantLock lock = mServer.idLockNonReentrant("deliveryRequest-"+clientId);
+        IdLock lock = mServer.getLockManager().lock(DeliveryScheduler.getLockId(clientId));
         try {
-            lock.lock("processFileDownloadMessage");
             List<TalkMessage> messages = mDatabase.findMessagesWithAttachmentFileId(fileId);
             if (messages.isEmpty()) {
                 throw new RuntimeException("No message found with file id "+fileId);
@@ -2555,7 +2603,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
                 if (clientId.equals(message.getSenderId())) {
                     throw new RuntimeException("Sender must not mess with download, messageId="+message.getMessageId());
                 }
-                synchronized (mServer.idLock(message.getMessageId())) {
+                IdLock messageLock = mServer.getLockManager().lock(message.getMessageId());
+                try {
                     TalkDelivery delivery = mDatabase.findDelivery(message.getMessageId(), clientId);
                     if (delivery != null) {
                         LOG.debug("AttachmentState '" + delivery.getAttachmentState() + "' --> '" + nextState + "' (download), messageId=" + message.getMessageId() + ", delivery=" + delivery.getId());
@@ -2570,11 +2619,11 @@ public class TalkRpcHandler implements ITalkRpcServer {
                     } else {
                         throw new RuntimeException("delivery not found, messageId="+message.getMessageId());
                     }
+                } finally {
+                    messageLock.unlock();
                 }
             }
             return nextState;
-        } catch (InterruptedException e) {
-            throw new RuntimeException("processFileDownloadMessage ",e);
         } finally {
             lock.unlock();
         }
@@ -2651,12 +2700,12 @@ public class TalkRpcHandler implements ITalkRpcServer {
         }
 
         String result = nextState;
-        TalkServer.NonReentrantLock lock = mServer.idLockNonReentrant("deliveryRequest-"+clientId);
+        IdLock lock = mServer.getLockManager().lock(DeliveryScheduler.getLockId(clientId));
         try {
-            lock.lock("processFileUploadMessage");
             for (TalkMessage message : messages) {
                 if (clientId.equals(message.getSenderId())) {
-                    synchronized (mServer.idLock(message.getMessageId())) {
+                    IdLock messageLock = mServer.getLockManager().lock(message.getMessageId());
+                    try {
                         boolean messageChanged = false;
                         if (message.getAttachmentUploadStarted() == null &&
                                 (TalkDelivery.ATTACHMENT_STATE_UPLOADING.equals(nextState) || TalkDelivery.ATTACHMENT_STATE_UPLOADED.equals(nextState) )) {
@@ -2698,14 +2747,14 @@ public class TalkRpcHandler implements ITalkRpcServer {
                                 mServer.getDeliveryAgent().requestDelivery(delivery.getReceiverId(), false);
                             }
                         }
+                    } finally {
+                        messageLock.unlock();
                     }
                 } else {
                     throw new RuntimeException("you are not the sender of this file with messageId="+message.getMessageId());
                 }
             }
             return result;
-        } catch (InterruptedException e) {
-            throw new RuntimeException("processFileDownloadMessage ",e);
         } finally {
             lock.unlock();
         }
@@ -3041,7 +3090,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             lockId = "env-nearby-"+clientId;
         }
 
-        synchronized (mServer.idLock(lockId)) {
+        IdLock environmentLock = mServer.getLockManager().lock(lockId);
+        try {
 
             List<TalkEnvironment> matching = mDatabase.findEnvironmentsMatching(environment);
 
@@ -3313,6 +3363,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
             createGroupWithEnvironment(environment);
             LOG.info("updateEnvironment: created new group type:" + environment.getType() + ", clientId: " + clientId + ", groupId="+environment.getGroupId());
             return environment.getGroupId();
+        } finally {
+            environmentLock.unlock();
         }
     }
 
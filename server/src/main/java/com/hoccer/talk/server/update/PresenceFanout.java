@@ -0,0 +1,236 @@
+package com.hoccer.talk.server.update;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.hoccer.talk.model.TalkPresence;
+import com.hoccer.talk.server.ITalkServerDatabase;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distributes presence changes to every client that can see them
+ * <p/>
+ * Changes of one client arriving within the coalescing window are merged
+ * into a single update. The audience is computed from the presence index
+ * of the database and the sends are split into chunks running in parallel.
+ * The next update of a client is only dispatched after all chunks of the
+ * previous one are done, so every receiver sees them in order.
+ */
+public abstract class PresenceFanout {
+
+    private static final Logger LOG = Logger.getLogger(PresenceFanout.class);
+
+    /** Number of receivers handled by one send task */
+    private static final int RECEIVERS_PER_TASK = 64;
+
+    private final ScheduledExecutorService mExecutor;
+
+    private final ITalkServerDatabase mDatabase;
+
+    private final long mWindowMillis;
+
+    /** Fan-out state by client id, guarded by itself */
+    private final Map<String, SourceState> mSources = new HashMap<String, SourceState>();
+
+    private final Meter mRequestedMeter;
+    private final Meter mCoalescedMeter;
+    private final Meter mSentMeter;
+    private final Histogram mAudienceHistogram;
+
+    private static class SourceState {
+        /** a flush has been scheduled and not started yet */
+        boolean scheduled;
+        /** the full presence has to be sent */
+        boolean full;
+        /** changed fields if not full */
+        Set<String> fields;
+        /** send tasks of the previous update still running */
+        int dispatching;
+    }
+
+    public PresenceFanout(ScheduledExecutorService executor, ITalkServerDatabase database, long windowMillis, MetricRegistry metrics) {
+        mExecutor = executor;
+        mDatabase = database;
+        mWindowMillis = windowMillis;
+        mRequestedMeter = metrics.meter(MetricRegistry.name(PresenceFanout.class, "requested"));
+        mCoalescedMeter = metrics.meter(MetricRegistry.name(PresenceFanout.class, "coalesced"));
+        mSentMeter = metrics.meter(MetricRegistry.name(PresenceFanout.class, "sent"));
+        mAudienceHistogram = metrics.histogram(MetricRegistry.name(PresenceFanout.class, "audience"));
+        metrics.register(MetricRegistry.name(PresenceFanout.class, "clients"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        synchronized (mSources) {
+                            return mSources.size();
+                        }
+                    }
+                }
+        );
+    }
+
+    /**
+     * Load the current presence of a client before it is distributed
+     *
+     * @param fields changed fields or null if the whole presence changed
+     * @return the presence or null if there is nothing to distribute
+     */
+    protected abstract TalkPresence loadPresence(String clientId, Set<String> fields);
+
+    /**
+     * Send a presence to a receiver if it is connected
+     *
+     * @param modified true if presence only contains the changed fields
+     */
+    protected abstract void send(String receiverId, TalkPresence presence, boolean modified);
+
+    /**
+     * Request distribution of a presence change
+     *
+     * @param fields changed fields or null if the whole presence changed
+     */
+    public void request(String clientId, Set<String> fields) {
+        mRequestedMeter.mark();
+        synchronized (mSources) {
+            SourceState state = mSources.get(clientId);
+            if (state == null) {
+                state = new SourceState();
+                mSources.put(clientId, state);
+            }
+            if (fields == null) {
+                state.full = true;
+                state.fields = null;
+            } else if (!state.full) {
+                if (state.fields == null) {
+                    state.fields = new HashSet<String>();
+                }
+                state.fields.addAll(fields);
+            }
+            if (state.scheduled) {
+                mCoalescedMeter.mark();
+                return;
+            }
+            state.scheduled = true;
+        }
+        scheduleFlush(clientId);
+    }
+
+    /**
+     * @return ids of the clients receiving presence changes of the given client
+     *         <p/>
+     *         Clients that blocked the given one are included, they still need
+     *         the connection status and key changes.
+     */
+    public Set<String> findAudience(String clientId) {
+        Set<String> audience = new HashSet<String>(mDatabase.findRelatedClientIdsByOtherClient(clientId));
+        for (String groupId : mDatabase.findPresenceGroupIdsForClient(clientId)) {
+            audience.addAll(mDatabase.findPresenceMemberIdsForGroup(groupId));
+        }
+        audience.remove(clientId);
+        return audience;
+    }
+
+    private void scheduleFlush(final String clientId) {
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush(clientId);
+                } catch (Throwable t) {
+                    LOG.error("caught and swallowed exception escaping runnable", t);
+                }
+            }
+        }, mWindowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush(String clientId) {
+        Set<String> fields;
+        synchronized (mSources) {
+            SourceState state = mSources.get(clientId);
+            if (state.dispatching > 0) {
+                // previous update still being sent, keep merging into this one
+                scheduleFlush(clientId);
+                return;
+            }
+            fields = state.full ? null : state.fields;
+            state.scheduled = false;
+            state.full = false;
+            state.fields = null;
+        }
+
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        TalkPresence presence = null;
+        try {
+            presence = loadPresence(clientId, fields);
+            if (presence != null) {
+                if (fields != null) {
+                    TalkPresence modifiedPresence = new TalkPresence();
+                    modifiedPresence.updateWith(presence, fields);
+                    presence = modifiedPresence;
+                }
+                Set<String> audience = findAudience(clientId);
+                mAudienceHistogram.update(audience.size());
+                LOG.trace("RPU-" + clientId + ": sending to " + audience.size() + " clients");
+                List<String> chunk = null;
+                for (String receiverId : audience) {
+                    if (chunk == null || chunk.size() == RECEIVERS_PER_TASK) {
+                        chunk = new ArrayList<String>(RECEIVERS_PER_TASK);
+                        chunks.add(chunk);
+                    }
+                    chunk.add(receiverId);
+                }
+            }
+        } finally {
+            synchronized (mSources) {
+                mSources.get(clientId).dispatching = chunks.size();
+            }
+            if (chunks.isEmpty()) {
+                finishChunk(clientId, false);
+            }
+        }
+        for (List<String> chunk : chunks) {
+            dispatch(clientId, presence, fields != null, chunk);
+        }
+    }
+
+    private void dispatch(final String clientId, final TalkPresence presence, final boolean modified, final List<String> receiverIds) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (String receiverId : receiverIds) {
+                        try {
+                            send(receiverId, presence, modified);
+                            mSentMeter.mark();
+                        } catch (Throwable t) {
+                            LOG.error("sending presence of " + clientId + " to " + receiverId + " failed", t);
+                        }
+                    }
+                } finally {
+                    finishChunk(clientId, true);
+                }
+            }
+        });
+    }
+
+    private void finishChunk(String clientId, boolean counted) {
+        synchronized (mSources) {
+            SourceState state = mSources.get(clientId);
+            if (counted) {
+                state.dispatching--;
+            }
+            if (state.dispatching == 0 && !state.scheduled) {
+                mSources.remove(clientId);
+            }
+        }
+    }
+}
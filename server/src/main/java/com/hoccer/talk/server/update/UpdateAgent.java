@@ -1,9 +1,14 @@
 package com.hoccer.talk.server.update;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.hoccer.talk.model.*;
 import com.hoccer.talk.rpc.ITalkRpcClient;
 import com.hoccer.talk.server.ITalkServerDatabase;
 import com.hoccer.talk.server.TalkServer;
+import com.hoccer.talk.server.locking.IdLock;
 import com.hoccer.talk.server.agents.NotificationDeferrer;
 import com.hoccer.talk.server.message.StaticSystemMessage;
 import com.hoccer.talk.server.rpc.TalkRpcConnection;
@@ -12,6 +17,7 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Agent for simple updates (presence, group presence, relationship)
@@ -21,10 +27,23 @@ public class UpdateAgent extends NotificationDeferrer {
 
     private final ITalkServerDatabase mDatabase;
 
+    private final PresenceFanout mPresenceFanout;
+
     private static final ThreadLocal<ArrayList<Runnable>> context = new ThreadLocal<ArrayList<Runnable>>();
 
     private final static Long MAX_ALLOWED_KEY_REQUEST_LATENCY = 10000L;
 
+    // delay before asking again after a client failed to supply group keys
+    private final static long KEY_REQUEST_RETRY_DELAY = 2000;
+
+    /** Outstanding key checks by group id */
+    private final Map<String, GroupKeyRequest> mGroupKeyRequests = new HashMap<String, GroupKeyRequest>();
+
+    private final Meter mKeyRequestMeter;
+    private final Meter mKeyRequestFailureMeter;
+    private final Meter mKeyCheckCoalescedMeter;
+    private final Timer mTimeToKeyTimer;
+
     public UpdateAgent(TalkServer server) {
         super(
             server.getConfiguration().getUpdateAgentThreadPoolSize(),
@@ -32,6 +51,46 @@ public class UpdateAgent extends NotificationDeferrer {
         );
         mServer = server;
         mDatabase = mServer.getDatabase();
+
+        MetricRegistry metrics = mServer.getMetrics();
+        mPresenceFanout = new PresenceFanout(getExecutor(), mDatabase,
+                mServer.getConfiguration().getUpdatePresenceCoalesceWindow(), metrics) {
+            @Override
+            protected TalkPresence loadPresence(String clientId, Set<String> fields) {
+                TalkPresence presence = mDatabase.findPresenceForClient(clientId);
+                if (presence != null && (fields == null || fields.contains(TalkPresence.FIELD_CONNECTION_STATUS))) {
+                    updateConnectionStatus(presence);
+                }
+                return presence;
+            }
+
+            @Override
+            protected void send(String receiverId, TalkPresence presence, boolean modified) {
+                TalkRpcConnection connection = mServer.getClientConnection(receiverId);
+                if (connection != null && connection.isLoggedIn()) {
+                    // Calling Client via RPC
+                    if (modified) {
+                        connection.getClientRpc().presenceModified(presence);
+                    } else {
+                        connection.getClientRpc().presenceUpdated(presence);
+                    }
+                }
+            }
+        };
+        mKeyRequestMeter = metrics.meter(MetricRegistry.name(UpdateAgent.class, "keyRequests"));
+        mKeyRequestFailureMeter = metrics.meter(MetricRegistry.name(UpdateAgent.class, "keyRequestFailures"));
+        mKeyCheckCoalescedMeter = metrics.meter(MetricRegistry.name(UpdateAgent.class, "keyChecksCoalesced"));
+        mTimeToKeyTimer = metrics.timer(MetricRegistry.name(UpdateAgent.class, "timeToKey"));
+        metrics.register(MetricRegistry.name(UpdateAgent.class, "pendingKeyChecks"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        synchronized (mGroupKeyRequests) {
+                            return mGroupKeyRequests.size();
+                        }
+                    }
+                }
+        );
     }
 
     private void updateConnectionStatus(TalkPresence presence) {
@@ -128,16 +187,7 @@ public class UpdateAgent extends NotificationDeferrer {
             @Override
             public void run() {
                 try {
-                    // retrieve the current presence of the client
-                    TalkPresence presence = mDatabase.findPresenceForClient(clientId);
-                    // if we actually have a presence
-                    if (presence != null) {
-                        if (fields == null || fields.contains(TalkPresence.FIELD_CONNECTION_STATUS)) {
-                            updateConnectionStatus(presence);
-                        }
-                        // propagate the presence to all friends
-                        performPresenceUpdate(presence, fields);
-                    }
+                    mPresenceFanout.request(clientId, fields);
                 } catch (Throwable t) {
                     LOG.error("caught and swallowed exception escaping runnable", t);
                 }
@@ -146,102 +196,6 @@ public class UpdateAgent extends NotificationDeferrer {
         queueOrExecute(context, notificationGenerator);
     }
 
-    // send presence updates to all related clients of the client denoted by <presence>
-    private void performPresenceUpdate(TalkPresence presence, final Set<String> fields) {
-        String tag = "RPU-" + presence.getClientId() + ": ";
-        LOG.trace(tag + "commencing");
-
-        // own client id
-        String selfClientId = presence.getClientId();
-
-        // set to collect clientIds into
-        Set<String> clientIds = new HashSet<String>();
-
-        // collect clientIds known through relationships (have a relationship to me)
-        List<TalkRelationship> relationships = mDatabase.findRelationshipsByOtherClient(selfClientId);
-        for (TalkRelationship relationship : relationships) {
-            if (relationship.isRelated()) {
-                // if the other clients relation is anything but 'none'
-                // Clients that have blocked present client therefore will also be included here
-                LOG.trace(tag + "including friend " + relationship.getClientId());
-                clientIds.add(relationship.getClientId());
-            }
-        }
-        // collect clientIds known through groups
-        List<TalkGroupMembership> ownMemberships = mDatabase.findGroupMembershipsForClient(selfClientId);
-        for (TalkGroupMembership ownMembership : ownMemberships) {
-            String groupId = ownMembership.getGroupId();
-            if (ownMembership.isJoined() || ownMembership.isInvited() || ownMembership.isSuspended()) {
-                LOG.trace(tag + "scanning group " + groupId);
-                List<TalkGroupMembership> otherMemberships = mDatabase.findGroupMembershipsById(groupId);
-                for (TalkGroupMembership otherMembership : otherMemberships) {
-                    if (otherMembership.isJoined() || otherMembership.isInvited() || otherMembership.isSuspended()) {
-                        LOG.trace(tag + "including group member " + otherMembership.getClientId());
-                        clientIds.add(otherMembership.getClientId());
-                    } else {
-                        LOG.trace(tag + "not including group member " + otherMembership.getClientId() + " in state " + otherMembership.getState());
-                    }
-                }
-            }
-        }
-/*
-        // It is better to distribute the presence even to blocking clients
-        // because there are some corner cases like the connection flag and
-        // possibly others that need to be handled; we can better live
-        // with updating the presence to blocking clients and request from
-        // the user to delete a contact when he does not want to know anything
-        // about it.
-
-        // The main hazard is that a client might change it's avatar frequently
-        // causing a blocker to unnecessarily download the avatar.
-        // TODO: implement some countermeasures against this (this might as well be done on the client side by not retrieving avatars of blocked clients)
-
-        // do not send presence to clients the present client has blocked
-        List<TalkRelationship> my_relationships = mDatabase.findRelationships(selfClientId);
-        for (TalkRelationship relationship : my_relationships) {
-            if (relationship.isBlocked()) {
-                if (clientIds.contains(relationship.getClientId())) {
-                    LOG.trace(tag + "excluding blocked contact " + relationship.getClientId());
-                    clientIds.remove(relationship.getClientId());
-                }
-            }
-        }
-*/
-        // remove self
-        LOG.trace(tag + "excluding self " + selfClientId);
-        clientIds.remove(selfClientId);
-
-        TalkPresence modifiedPresence = null;
-        if (fields != null) {
-            modifiedPresence = new TalkPresence();
-            modifiedPresence.updateWith(presence, fields);
-        }
-
-        // send presence updates
-        for (String clientId : clientIds) {
-            // look for a connection by the other clientId
-            TalkRpcConnection connection = mServer.getClientConnection(clientId);
-            // and if the corresponding clientId is online
-            if (connection != null && connection.isLoggedIn()) {
-                LOG.trace(tag + "clientId " + clientId + " is connected");
-                try {
-                    // Calling Client via RPC
-                    // tell the clientId about the new presence
-                    if (fields == null) {
-                        connection.getClientRpc().presenceUpdated(presence);
-                    } else {
-                        connection.getClientRpc().presenceModified(modifiedPresence);
-                    }
-                } catch (Throwable t) {
-                    t.printStackTrace();
-                }
-            } else {
-                LOG.trace(tag + "clientId " + clientId + " is disconnected");
-            }
-        }
-        LOG.trace(tag + "complete");
-    }
-
     public void requestRelationshipUpdate(final TalkRelationship relationship) {
         Runnable notificationGenerator = new Runnable() {
             @Override
@@ -471,45 +425,102 @@ public class UpdateAgent extends NotificationDeferrer {
 
     public void checkAndRequestGroupMemberKeys(final String groupId) {
         LOG.debug("checkAndRequestGroupMemberKeys for group " + groupId);
-        Runnable checker = new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    TalkServer.NonReentrantLock lock = mServer.idLockNonReentrant("groupKeyCheck-"+groupId);
+        synchronized (mGroupKeyRequests) {
+            GroupKeyRequest request = mGroupKeyRequests.get(groupId);
+            if (request != null) {
+                // a check is already queued, running or scheduled for retry, it will pick up this change
+                if (request.running) {
+                    request.recheck = true;
+                }
+                mKeyCheckCoalescedMeter.mark();
+                LOG.debug("checkAndRequestGroupMemberKeys coalesced with outstanding check for group " + groupId);
+                return;
+            }
+            mGroupKeyRequests.put(groupId, new GroupKeyRequest());
+        }
+        queueOrExecute(context, new GroupKeyChecker(groupId));
+    }
 
-                    boolean acquired = lock.tryLock();
-                    LOG.debug("checkAndRequestGroupMemberKeys trylock groupId: '" + groupId + "' with id " + lock + ", hash=" + lock.hashCode()+",thread="+Thread.currentThread()+"acquired="+acquired+" waiting="+lock.getWaiting());
+    /**
+     * State of the outstanding key check for one group, guarded by mGroupKeyRequests
+     */
+    private static class GroupKeyRequest {
+        /** Marks the time the group was first found needing a check */
+        final long timeCreated = System.currentTimeMillis();
+        /** True while a checker is executing */
+        boolean running;
+        /** Another check was requested while running */
+        boolean recheck;
+        /** Keys have been requested from a client since timeCreated */
+        boolean keysRequested;
+    }
+
+    /** Outcome of one group key check */
+    private enum GroupKeyCheckResult {
+        /** Group is gone or every member has the current key */
+        UP_TO_DATE,
+        /** Keys were received, members need to be checked again */
+        KEYS_RECEIVED,
+        /** Requesting keys failed, try again after a delay */
+        FAILED,
+        /** Members lack a key but no client can supply one */
+        NO_KEYMASTER
+    }
 
-                    if (!acquired && lock.getWaiting() > 0) {
-                        // we are sure that that there are other threads waiting to be performed
-                        // so we can just throw away this request
-                        LOG.debug("checkAndRequestGroupMemberKeys enough waiters, throwing away request: '" + groupId + "' with id " + lock + ", hash=" + lock.hashCode()+",thread="+Thread.currentThread()+"acquired="+acquired+" waiting="+lock.getWaiting());
+    private class GroupKeyChecker implements Runnable {
+        private final String mGroupId;
+
+        GroupKeyChecker(String groupId) {
+            mGroupId = groupId;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mGroupKeyRequests) {
+                GroupKeyRequest request = mGroupKeyRequests.get(mGroupId);
+                request.running = true;
+                request.recheck = false;
+            }
+            GroupKeyCheckResult result = GroupKeyCheckResult.FAILED;
+            try {
+                result = performCheckAndRequestGroupMemberKeys(mGroupId);
+            } catch (Throwable t) {
+                LOG.error("caught and swallowed exception escaping runnable", t);
+            } finally {
+                finishGroupKeyCheck(mGroupId, result);
+            }
+        }
+    }
+
+    private void finishGroupKeyCheck(String groupId, GroupKeyCheckResult result) {
+        synchronized (mGroupKeyRequests) {
+            GroupKeyRequest request = mGroupKeyRequests.get(groupId);
+            request.running = false;
+            switch (result) {
+                case FAILED:
+                    request.keysRequested = true;
+                    LOG.debug("finishGroupKeyCheck: retrying group " + groupId + " in " + KEY_REQUEST_RETRY_DELAY + " ms");
+                    getExecutor().schedule(new GroupKeyChecker(groupId), KEY_REQUEST_RETRY_DELAY, TimeUnit.MILLISECONDS);
+                    return;
+                case KEYS_RECEIVED:
+                    // check again even when succeeded, a key renewal might have invalidated other member data
+                    request.keysRequested = true;
+                    getExecutor().execute(new GroupKeyChecker(groupId));
+                    return;
+                default:
+                    if (request.recheck) {
+                        getExecutor().execute(new GroupKeyChecker(groupId));
                         return;
                     }
-
-                    try {
-                        LOG.debug("checkAndRequestGroupMemberKeys will lock groupId: '" + groupId + "' with id " + lock + ", hash=" + lock.hashCode()+",thread="+Thread.currentThread());
-                        if (!acquired) {
-                            lock.lock();
-                        }
-                        LOG.debug("checkAndRequestGroupMemberKeys acquired lock for groupId: '" + groupId + "' with id " + lock + ", hash=" + lock.hashCode()+",thread="+Thread.currentThread());
-                        performCheckAndRequestGroupMemberKeys(groupId);
-                        LOG.debug("checkAndRequestGroupMemberKeys ready for groupId: '" + groupId + "' with id " + lock + ", hash=" + lock.hashCode()+",thread="+Thread.currentThread());
-                    } catch (InterruptedException e) {
-                        LOG.debug("checkAndRequestGroupMemberKeys: interrupted" + e);
-                    } finally {
-                        LOG.debug("checkAndRequestGroupMemberKeys releasing lock for groupId: '" + groupId + "' with id "+lock+", hash="+lock.hashCode()+",thread="+Thread.currentThread());
-                        lock.unlock();
+                    mGroupKeyRequests.remove(groupId);
+                    if (result == GroupKeyCheckResult.UP_TO_DATE && request.keysRequested) {
+                        mTimeToKeyTimer.update(System.currentTimeMillis() - request.timeCreated, TimeUnit.MILLISECONDS);
                     }
-                } catch (Throwable t) {
-                    LOG.error("caught and swallowed exception escaping runnable", t);
-               }
             }
-        };
-        queueOrExecute(context, checker);
+        }
     }
 
-    private void performCheckAndRequestGroupMemberKeys(String groupId) {
+    private GroupKeyCheckResult performCheckAndRequestGroupMemberKeys(String groupId) {
         LOG.debug("performCheckAndRequestGroupMemberKeys for groupId: '" + groupId + "'");
         TalkGroupPresence groupPresence = mDatabase.findGroupPresenceById(groupId);
         if (groupPresence != null && groupPresence.exists()) {
@@ -573,8 +584,7 @@ public class UpdateAgent extends NotificationDeferrer {
                         TalkGroupMembership newKeymaster;
                         if (candidatesByLatency.get(0).getRight() < MAX_ALLOWED_KEY_REQUEST_LATENCY) {
                             newKeymaster = candidatesByLatency.get(0).getLeft(); // get the lowest latency candidate
-                            requestGroupKeys(newKeymaster.getClientId(), groupPresence.getGroupId(), sharedKeyId, sharedKeyIdSalt, outOfDateMemberships);
-                            return;
+                            return requestGroupKeys(newKeymaster.getClientId(), groupPresence.getGroupId(), sharedKeyId, sharedKeyIdSalt, outOfDateMemberships);
                         }
                         // fall through to next block if best candidate does not meet MAX_ALLOWED_KEY_REQUEST_LATENCY
                     }
@@ -584,19 +594,20 @@ public class UpdateAgent extends NotificationDeferrer {
                         TalkGroupMembership newKeymaster;
                         if (candidatesByLatency.get(0).getRight() < MAX_ALLOWED_KEY_REQUEST_LATENCY) {
                             newKeymaster = candidatesByLatency.get(0).getLeft(); // get the lowest latency candidate
-                            requestGroupKeys(newKeymaster.getClientId(), groupPresence.getGroupId(), null, null, outOfDateMemberships);
-                            return;
+                            return requestGroupKeys(newKeymaster.getClientId(), groupPresence.getGroupId(), null, null, outOfDateMemberships);
                         }
                         // fall through to next block if best candidate does not meet MAX_ALLOWED_KEY_REQUEST_LATENCY
                     }
                     // we have out of date key members, but no suitable candidate for group key generation
                     LOG.warn("performCheckAndRequestGroupMemberKeys:" + outOfDateMemberships.size() + " members have no key in group " + groupId + ", but no suitable keymaster available");
+                    return GroupKeyCheckResult.NO_KEYMASTER;
                 }
             }
         }
+        return GroupKeyCheckResult.UP_TO_DATE;
     }
 
-    private void requestGroupKeys(String fromClientId, String forGroupId, String forSharedKeyId, String withSharedKeyIdSalt, List<TalkGroupMembership> forOutOfDateMemberships) {
+    private GroupKeyCheckResult requestGroupKeys(String fromClientId, String forGroupId, String forSharedKeyId, String withSharedKeyIdSalt, List<TalkGroupMembership> forOutOfDateMemberships) {
         ArrayList<String> forClientIdsList = new ArrayList<String>();
         ArrayList<String> withPublicKeyIdsList = new ArrayList<String>();
         for (TalkGroupMembership membership : forOutOfDateMemberships) {
@@ -618,6 +629,7 @@ public class UpdateAgent extends NotificationDeferrer {
                 withSharedKeyIdSalt = "RENEW";
             }
             ITalkRpcClient rpc = connection.getClientRpc();
+            mKeyRequestMeter.mark();
             LOG.debug("requestGroupKeys, acquiring lock for calling getEncryptedGroupKeys(" + forGroupId + ") on client for " + forClientIds.length + " client(s)");
             String[] newKeyBoxes = null;
             // serialize encrypted key request for one client
@@ -683,30 +695,20 @@ public class UpdateAgent extends NotificationDeferrer {
                             }
                         }
                     }
+                    return GroupKeyCheckResult.KEYS_RECEIVED;
                 } else {
                     LOG.error("requestGroupKeys, bad number of keys returned for group " + forGroupId);
                     connection.penalizePriorization(300L); // penalize this client in selection
-                    sleepForMillis(2000); // TODO: schedule with delay instead of sleep
                 }
             } else {
                 LOG.error("requestGroupKeys, no keys returned for group " + forGroupId);
                 connection.penalizePriorization(300L); // penalize this client in selection
-                sleepForMillis(2000);  // TODO: schedule with delay instead of sleep
             }
         } else {
-            sleepForMillis(2000); // TODO: schedule with delay instead of sleep
             LOG.error("requestGroupKeys, no presence for any outdated member of group " + forGroupId);
         }
-        checkAndRequestGroupMemberKeys(forGroupId); // try again even when succeeded, a key renewal might have invalidated other member data
-    }
-
-    private void sleepForMillis(long millis) {
-        try {
-            Thread.sleep(millis);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
+        mKeyRequestFailureMeter.mark();
+        return GroupKeyCheckResult.FAILED;
     }
 
     public void setRequestContext() {
@@ -770,21 +772,46 @@ public class UpdateAgent extends NotificationDeferrer {
 
     public void removeMembership(TalkGroupMembership membership, Date changedDate, String removalState) {
         LOG.debug("removeMembership group "+membership.getGroupId()+" removing membership for client "+membership.getClientId());
-        if (!(removalState.equals(membership.getState()) &&
-                TalkGroupMembership.ROLE_NONE.equals(membership.getRole())))
-        {
-            // set membership state to removalState
-            membership.setState(removalState);
-            // degrade anyone who leaves to member
-            membership.setRole(TalkGroupMembership.ROLE_NONE);
-            // trash keys
-            membership.trashPrivate();
-            membership.setLastChanged(changedDate);
+        if (applyMembershipRemoval(membership, changedDate, removalState)) {
             mDatabase.saveGroupMembership(membership);
             requestGroupMembershipUpdate(membership.getGroupId(), membership.getClientId());
         }
     }
 
+    /**
+     * Remove several memberships, saving all changed ones in one bulk write
+     *
+     * @return number of memberships changed
+     */
+    public int removeMemberships(List<TalkGroupMembership> memberships, Date changedDate, String removalState) {
+        List<TalkGroupMembership> changed = new ArrayList<TalkGroupMembership>();
+        for (TalkGroupMembership membership : memberships) {
+            if (applyMembershipRemoval(membership, changedDate, removalState)) {
+                changed.add(membership);
+            }
+        }
+        mDatabase.saveGroupMemberships(changed);
+        for (TalkGroupMembership membership : changed) {
+            requestGroupMembershipUpdate(membership.getGroupId(), membership.getClientId());
+        }
+        return changed.size();
+    }
+
+    private boolean applyMembershipRemoval(TalkGroupMembership membership, Date changedDate, String removalState) {
+        if (removalState.equals(membership.getState()) &&
+                TalkGroupMembership.ROLE_NONE.equals(membership.getRole())) {
+            return false;
+        }
+        // set membership state to removalState
+        membership.setState(removalState);
+        // degrade anyone who leaves to member
+        membership.setRole(TalkGroupMembership.ROLE_NONE);
+        // trash keys
+        membership.trashPrivate();
+        membership.setLastChanged(changedDate);
+        return true;
+    }
+
     public void nullifyRelationship(TalkRelationship relationship, Date changedDate) {
         if (!(TalkRelationship.STATE_NONE.equals(relationship.getState()) &&
                 TalkRelationship.STATE_NONE.equals(relationship.getUnblockState()) &&
@@ -805,7 +832,8 @@ public class UpdateAgent extends NotificationDeferrer {
         int count = 0;
         int otherCount = 0;
         for (TalkRelationship relationship : relationships) {
-            synchronized (mServer.dualIdLock(TalkRelationship.LOCK_PREFIX, relationship.getClientId(), relationship.getOtherClientId())) {
+            IdLock relationshipLock = mServer.getLockManager().dualLock(TalkRelationship.LOCK_PREFIX, relationship.getClientId(), relationship.getOtherClientId());
+            try {
                 Date deletionMarkDate = new Date();
                 nullifyRelationship(relationship, deletionMarkDate);
                 ++count;
@@ -817,6 +845,8 @@ public class UpdateAgent extends NotificationDeferrer {
                         break;
                     }
                 }
+            } finally {
+                relationshipLock.unlock();
             }
         }
         if (count != otherCount) {
@@ -870,12 +900,14 @@ public class UpdateAgent extends NotificationDeferrer {
 
                         // walk the group and make everyone have a "none" relationship to it
                         List<TalkGroupMembership> otherMemberships = mDatabase.findGroupMembershipsById(groupPresence.getGroupId());
+                        List<TalkGroupMembership> activeMemberships = new ArrayList<TalkGroupMembership>();
                         for (TalkGroupMembership otherMembership : otherMemberships) {
                             if (otherMembership.isInvited() || otherMembership.isJoined() || otherMembership.isSuspended()) {
-                                removeMembership(otherMembership, groupPresence.getLastChanged(), TalkGroupMembership.STATE_GROUP_REMOVED);
+                                activeMemberships.add(otherMembership);
                                 ++acquaintances;
                             }
                         }
+                        removeMemberships(activeMemberships, groupPresence.getLastChanged(), TalkGroupMembership.STATE_GROUP_REMOVED);
                     } else {
                         LOG.warn("performAccountDeletion no presence for group " + membership.getGroupId() + " for client " + clientId);
                     }
@@ -912,26 +944,27 @@ public class UpdateAgent extends NotificationDeferrer {
         // expire outgoing deliveries
         final List<TalkDelivery> outDeliveries = mDatabase.findDeliveriesFromClient(clientId);
         LOG.info("performAccountDeletion: expiring " +outDeliveries.size() +" deliveries from client " + clientId);
+        final List<TalkDelivery> expiredDeliveries = new ArrayList<TalkDelivery>();
         for (TalkDelivery delivery : outDeliveries) {
             if (!delivery.isFinished()) {
                 delivery.expireDelivery();
-                mDatabase.saveDelivery(delivery);
+                expiredDeliveries.add(delivery);
             }
         }
+        mDatabase.saveDeliveries(expiredDeliveries);
 
-        // reject or expire undelivered incoming deliveries
+        // expire unfinished incoming deliveries, then reject the undelivered ones in one go
         final List<TalkDelivery> inDeliveries = mDatabase.findDeliveriesForClient(clientId);
         LOG.info("performAccountDeletion: rejecting/expiring " +inDeliveries.size() +" messages for client " + clientId);
+        expiredDeliveries.clear();
         for (TalkDelivery delivery : inDeliveries) {
-            if (!delivery.isFinished()) {
-                if (TalkDelivery.STATE_DELIVERING.equals(delivery.getState())) {
-                    delivery.setState(TalkDelivery.STATE_REJECTED);
-                } else {
-                    delivery.expireDelivery();
-                }
+            if (!delivery.isFinished() && !TalkDelivery.STATE_DELIVERING.equals(delivery.getState())) {
+                delivery.expireDelivery();
+                expiredDeliveries.add(delivery);
             }
-            mDatabase.saveDelivery(delivery);
         }
+        mDatabase.saveDeliveries(expiredDeliveries);
+        mDatabase.changeDeliveriesStateForClient(clientId, TalkDelivery.STATE_DELIVERING, TalkDelivery.STATE_REJECTED);
 
         // delete messages from client immediately
         final List<TalkMessage> messages = mDatabase.findMessagesFromClient(clientId);
@@ -101,30 +101,30 @@ public class DatabaseInfoServlet extends HttpServlet {
         w.write("Presences online        : " + presences.count("{connectionStatus : 'online'}")+ "\n");
         w.write("Presences background    : " + presences.count("{connectionStatus : 'background'}")+ "\n");
         w.write("Presences typing        : " + presences.count("{connectionStatus : 'typing'}")+ "\n");
-        w.write("\n");
+        endSection(w);
 
         MongoCollection client = getCollection("client");
         w.write("Clients Total     : " + client.count()+ "\n");
         w.write("Clients APNS      : " + client.count("{apnsToken : {$exists : true}}")+ "\n");
         w.write("Clients GCM       : " + client.count("{gcmRegistration : {$exists : true}}")+ "\n");
         w.write("Clients w/o push  : " + client.count("{apnsToken : {$exists : false}, gcmRegistration : {$exists : false}}")+ "\n");
-        w.write("\n");
+        endSection(w);
 
         MongoCollection groups = getCollection("group");
         w.write("Groups Total         : " + groups.count()+ "\n");
         w.write("Groups state exists  : " + groups.count("{state : 'exists' }")+ "\n");
         w.write("Groups state none    : " + groups.count("{state : 'none' }")+ "\n");
-        w.write("\n");
+        endSection(w);
         w.write("Groups type user     : " + groups.count("{groupType : 'user' }")+ "\n");
         w.write("Groups type nearby   : " + groups.count("{groupType : 'nearby' }")+ "\n");
         w.write("Groups type worldwide: " + groups.count("{groupType : 'worldwide' }")+ "\n");
-        w.write("\n");
+        endSection(w);
 
         MongoCollection environments = getCollection("environment");
         w.write("Environments Total    : " + environments.count()+ "\n");
         w.write("Environments nearby   : " + environments.count("{type : 'nearby' }")+ "\n");
         w.write("Environments worldwide: " + environments.count("{type : 'worldwide' }")+ "\n");
-        w.write("\n");
+        endSection(w);
 
         MongoCollection groupMembers = getCollection("groupMember");
         w.write("Group Members Total       : " + groupMembers.count()+ "\n");
@@ -133,15 +133,15 @@ public class DatabaseInfoServlet extends HttpServlet {
         w.write("Members state joined      : " + groupMembers.count("{state : 'joined' }")+ "\n");
         w.write("Members state groupRemoved: " + groupMembers.count("{state : 'groupRemoved' }")+ "\n");
         w.write("Members state suspended   : " + groupMembers.count("{state : 'suspended' }")+ "\n");
-        w.write("\n");
+        endSection(w);
         w.write("Members role none           : " + groupMembers.count("{role : 'none' }")+ "\n");
         w.write("Members role admin          : " + groupMembers.count("{role : 'admin' }")+ "\n");
         w.write("Members role member         : " + groupMembers.count("{role : 'member' }")+ "\n");
         w.write("Members role nearbyMember   : " + groupMembers.count("{role : 'nearbyMember' }")+ "\n");
         w.write("Members role worldwideMember: " + groupMembers.count("{role : 'worldwideMember' }")+ "\n");
-        w.write("\n");
+        endSection(w);
         w.write("Members notifications disabled: " + groupMembers.count("{notificationPreference : 'disabled' }")+ "\n");
-        w.write("\n");
+        endSection(w);
 
         MongoCollection relationships = getCollection("relationship");
         w.write("Relationships Total          : " + relationships.count()+ "\n");
@@ -150,9 +150,9 @@ public class DatabaseInfoServlet extends HttpServlet {
         w.write("Relationships state invitedMe: " + relationships.count("{state : 'invitedMe' }")+ "\n");
         w.write("Relationships state friend   : " + relationships.count("{state : 'friend' }")+ "\n");
         w.write("Relationships state blocked  : " + relationships.count("{state : 'blocked' }")+ "\n");
-        w.write("\n");
+        endSection(w);
         w.write("Relationships notifications disabled: " + relationships.count("{notificationPreference : 'disabled' }")+ "\n");
-        w.write("\n");
+        endSection(w);
 
         MongoCollection messages = getCollection("message");
         w.write("Messages Total          : " + messages.count()+ "\n");
@@ -162,7 +162,7 @@ public class DatabaseInfoServlet extends HttpServlet {
         w.write("Messages w. upload started & finished  : " + messages.count("{attachmentUploadStarted : {$exists : true}, attachmentUploadFinished : {$exists : true}}")+ "\n");
         w.write("Messages w. upload not started but finished: " + messages.count("{attachmentUploadStarted : {$exists : false}, attachmentUploadFinished : {$exists : true}}")+ "\n");
         w.write("Messages w. upload started & not finished  : " + messages.count("{attachmentUploadStarted : {$exists : true}, attachmentUploadFinished : {$exists : false}}")+ "\n");
-        w.write("\n");
+        endSection(w);
 
         MongoCollection deliveries = getCollection("delivery");
         w.write("Deliveries Total         : " + deliveries.count()+ "\n");
@@ -170,60 +170,60 @@ public class DatabaseInfoServlet extends HttpServlet {
         for (String deliveryState : deliveryStates) {
             w.write("Deliveries in state "+String.format("%-28s" , deliveryState)+" : " + deliveries.count("{ state: # }", deliveryState)+ "\n");
         }
-        w.write("\n");
+        endSection(w);
         w.write("Deliveries without attachments:\n");
         for (String deliveryState : deliveryStates) {
             w.write("Deliveries w/o attachment in state "+String.format("%-28s" , deliveryState)+" : " + deliveries.count("{ state: #, attachmentState: 'none' }", deliveryState)+ "\n");
         }
-        w.write("\n");
+        endSection(w);
         List<String> attachmentDeliveryStates = deliveries.distinct("attachmentState").as(String.class);
         for (String attachmentDeliveryState : attachmentDeliveryStates) {
             w.write("Deliveries in attachment state "+String.format("%-28s" , attachmentDeliveryState)+" : " + deliveries.count("{ attachmentState: # }", attachmentDeliveryState)+ "\n");
         }
-        w.write("\n");
+        endSection(w);
         w.write("Deliveries in final state w. attachments:\n");
         for (String attachmentDeliveryState : attachmentDeliveryStates) {
             String[] attachmentDeliveryStateArray = new String[]{attachmentDeliveryState};
             w.write("Deliveries in final state and attachment state "+String.format("%-28s" , attachmentDeliveryState)+" : "
                     + db.countDeliveriesInStatesAndAttachmentStates(TalkDelivery.FINAL_STATES, attachmentDeliveryStateArray) + "\n");
         }
-        w.write("\n");
+        endSection(w);
 
         MongoCollection tokens = getCollection("token");
         w.write("Tokens Total: " + tokens.count()+ "\n");
-        w.write("\n");
+        endSection(w);
 
         MongoCollection keys = getCollection("key");
         w.write("Keys Total: " + keys.count()+ "\n");
-        w.write("\n");
+        endSection(w);
 
         MongoCollection clientHostInfo = getCollection("clientHostInfo");
         List<String> systemNames = clientHostInfo.distinct("systemName").as(String.class);
         for (String systemName : systemNames) {
             w.write("Client system "+String.format("%-10s" , systemName)+" : " + clientHostInfo.count("{ systemName: # }", systemName)+ "\n");
         }
-        w.write("\n");
+        endSection(w);
 
         printActive(w,clientHostInfo,systemNames,1);
         printActive(w,clientHostInfo,systemNames,7);
         printActive(w,clientHostInfo,systemNames,30);
         printActive(w,clientHostInfo,systemNames,90);
         printActive(w,clientHostInfo,systemNames,365);
-        w.write("\n");
+        endSection(w);
 
         printRegistered(w,client,1);
         printRegistered(w,client,7);
         printRegistered(w,client,30);
         printRegistered(w,client,90);
         printRegistered(w,client,365);
-        w.write("\n");
+        endSection(w);
 
         printDeleted(w,client,1);
         printDeleted(w,client,7);
         printDeleted(w,client,30);
         printDeleted(w,client,90);
         printDeleted(w,client,365);
-        w.write("\n");
+        endSection(w);
 
         long day = 24 * 60 * 60 * 1000;
         long sinceDaysAgo = 30;
@@ -242,7 +242,7 @@ public class DatabaseInfoServlet extends HttpServlet {
             for (String namedClient : clientsByNameSorted.keySet()) {
                 w.write(String.format("%-33s", namedClient) + " : " + clientsByNameSorted.get(namedClient) + "\n");
             }
-            w.write("\n");
+            endSection(w);
         }
 
         //-------------------------------
@@ -261,7 +261,7 @@ public class DatabaseInfoServlet extends HttpServlet {
             for (String fullClient : sortedClients.keySet()) {
                 w.write(String.format("%-38s", fullClient) + " : " + sortedClients.get(fullClient) + "\n");
             }
-            w.write("\n");
+            endSection(w);
         }
         //-------------------------------
         {
@@ -279,7 +279,7 @@ public class DatabaseInfoServlet extends HttpServlet {
             for (String key : sorted.keySet()) {
                 w.write(String.format("%-20s", key) + " : " + sorted.get(key) + "\n");
             }
-            w.write("\n");
+            endSection(w);
         }
         //-------------------------------
         {
@@ -297,13 +297,22 @@ public class DatabaseInfoServlet extends HttpServlet {
             for (String key : sorted.keySet()) {
                 w.write(String.format("%-20s", key) + " : " + sorted.get(key) + "\n");
             }
-            w.write("\n");
+            endSection(w);
         }
         //-------------------------------
 
         w.close();
     }
 
+    /**
+     * Finish a block of statistics and send it right away,
+     * the counts of the next block may take a while on large collections
+     */
+    private void endSection(OutputStreamWriter w) throws IOException {
+        w.write("\n");
+        w.flush();
+    }
+
     void printActive(OutputStreamWriter w, MongoCollection clientHostInfo, List<String> systemNames, int sinceDaysAgo) throws ServletException, IOException{
         long day = 24 * 60 * 60 * 1000;
         Date since = new Date(new Date().getTime() - day * sinceDaysAgo);
@@ -0,0 +1,61 @@
+package com.hoccer.talk.server.cleaning;
+
+import com.hoccer.talk.model.TalkCleaningCheckpoint;
+import com.hoccer.talk.model.TalkDelivery;
+import com.hoccer.talk.server.database.InMemoryDatabase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class CleaningAgentTest {
+
+    private static final long YEAR = 365L * 24 * 60 * 60 * 1000;
+
+    private final InMemoryDatabase mDatabase = new InMemoryDatabase();
+
+    private void saveDelivery(String messageId, String receiverId, Date timeAccepted) {
+        TalkDelivery delivery = new TalkDelivery(true);
+        delivery.setMessageId(messageId);
+        delivery.setReceiverId(receiverId);
+        delivery.setState(TalkDelivery.STATE_DELIVERING);
+        delivery.setTimeAccepted(timeAccepted);
+        mDatabase.saveDelivery(delivery);
+    }
+
+    @Test
+    public void testExpireSlicesDoNotSkipSameAcceptanceTime() {
+        Date now = new Date();
+        Date groupMessageAccepted = new Date(now.getTime() - YEAR);
+        saveDelivery("early", "receiver", new Date(groupMessageAccepted.getTime() - 1));
+        // a group message gives all its deliveries the same acceptance time
+        for (int i = 0; i < 25; i++) {
+            saveDelivery("group", "member" + i, groupMessageAccepted);
+        }
+        saveDelivery("late", "receiver", new Date(groupMessageAccepted.getTime() + 1));
+        saveDelivery("recent", "receiver", now);
+
+        TalkCleaningCheckpoint checkpoint = new TalkCleaningCheckpoint("test");
+        checkpoint.setTimePassStarted(now);
+        CleaningThrottle throttle = new CleaningThrottle(10, 10, 1000, 100);
+
+        int slices = 0;
+        int fetched;
+        do {
+            fetched = CleaningAgent.expireDeliveriesSlice(mDatabase, throttle, checkpoint, 10);
+            slices++;
+        } while (fetched == 10);
+        assertEquals(3, slices);
+
+        assertEquals(TalkDelivery.STATE_EXPIRED, mDatabase.findDelivery("early", "receiver").getState());
+        for (int i = 0; i < 25; i++) {
+            assertEquals(TalkDelivery.STATE_EXPIRED, mDatabase.findDelivery("group", "member" + i).getState());
+        }
+        assertEquals(TalkDelivery.STATE_EXPIRED, mDatabase.findDelivery("late", "receiver").getState());
+        assertEquals(TalkDelivery.STATE_DELIVERING, mDatabase.findDelivery("recent", "receiver").getState());
+    }
+}
@@ -0,0 +1,41 @@
+package com.hoccer.talk.server.cleaning;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class CleaningThrottleTest {
+
+    @Test
+    public void testSliceSizeFollowsLatency() {
+        CleaningThrottle throttle = new CleaningThrottle(10, 100, 200, 25);
+        assertEquals(100, throttle.getSliceSize());
+
+        throttle.onQuery(500);
+        assertEquals(50, throttle.getSliceSize());
+        throttle.onQuery(500);
+        throttle.onQuery(500);
+        throttle.onQuery(500);
+        assertEquals(10, throttle.getSliceSize());
+
+        throttle.onQuery(50);
+        assertEquals(20, throttle.getSliceSize());
+        for (int i = 0; i < 20; i++) {
+            throttle.onQuery(50);
+        }
+        assertEquals(100, throttle.getSliceSize());
+    }
+
+    @Test
+    public void testDelayKeepsDutyCycle() {
+        CleaningThrottle throttle = new CleaningThrottle(10, 100, 200, 25);
+        assertEquals(300, throttle.getDelayMillis(100));
+        assertEquals(10, throttle.getDelayMillis(0));
+
+        CleaningThrottle unthrottled = new CleaningThrottle(10, 100, 200, 100);
+        assertEquals(10, unthrottled.getDelayMillis(100));
+    }
+}
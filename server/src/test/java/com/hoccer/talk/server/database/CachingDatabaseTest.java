@@ -0,0 +1,114 @@
+package com.hoccer.talk.server.database;
+
+import com.codahale.metrics.MetricRegistry;
+import com.hoccer.talk.model.TalkClient;
+import com.hoccer.talk.model.TalkGroupMembership;
+import com.hoccer.talk.model.TalkKey;
+import com.hoccer.talk.model.TalkPresence;
+import com.hoccer.talk.server.TalkServerConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class CachingDatabaseTest {
+
+    private InMemoryDatabase mBackend;
+    private MetricRegistry mMetrics;
+    private CachingDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mBackend = new InMemoryDatabase();
+        mMetrics = new MetricRegistry();
+        mDatabase = new CachingDatabase(mBackend, new TalkServerConfiguration(), mMetrics);
+    }
+
+    private long hits(String name) {
+        return mMetrics.meter(MetricRegistry.name(ExpiringCache.class, name, "hits")).getCount();
+    }
+
+    private long misses(String name) {
+        return mMetrics.meter(MetricRegistry.name(ExpiringCache.class, name, "misses")).getCount();
+    }
+
+    @Test
+    public void testClientIsCachedAndInvalidatedOnSave() {
+        TalkClient client = new TalkClient("client");
+        client.setApnsToken("first");
+        mDatabase.saveClient(client);
+
+        assertEquals("first", mDatabase.findClientById("client").getApnsToken());
+        assertEquals("first", mDatabase.findClientById("client").getApnsToken());
+        assertEquals(1, misses("client"));
+        assertEquals(1, hits("client"));
+
+        client = mDatabase.findClientById("client");
+        client.setApnsToken("second");
+        mDatabase.saveClient(client);
+        assertEquals("second", mDatabase.findClientById("client").getApnsToken());
+        assertEquals(2, misses("client"));
+    }
+
+    @Test
+    public void testReturnedObjectsAreCopies() {
+        mDatabase.saveClient(new TalkClient("client"));
+        mDatabase.findClientById("client");
+
+        // modifying a returned object without saving must not leak into the cache
+        mDatabase.findClientById("client").setApnsToken("unsaved");
+        assertNull(mDatabase.findClientById("client").getApnsToken());
+    }
+
+    @Test
+    public void testDeletedClientIsNotFoundById() {
+        TalkClient client = new TalkClient("client");
+        mDatabase.saveClient(client);
+        assertNotNull(mDatabase.findClientById("client"));
+
+        mDatabase.markClientDeleted(mDatabase.findClientById("client"), "test");
+        assertNull(mDatabase.findClientById("client"));
+        assertNotNull(mDatabase.findDeletedClientById("client"));
+    }
+
+    @Test
+    public void testPresenceAndKeyInvalidation() {
+        TalkPresence presence = new TalkPresence();
+        presence.setClientId("client");
+        presence.setClientName("first");
+        mDatabase.savePresence(presence);
+        assertEquals("first", mDatabase.findPresenceForClient("client").getClientName());
+
+        presence = mDatabase.findPresenceForClient("client");
+        presence.setClientName("second");
+        mDatabase.savePresence(presence);
+        assertEquals("second", mDatabase.findPresenceForClient("client").getClientName());
+
+        TalkKey key = new TalkKey();
+        key.setClientId("client");
+        key.setKeyId("key");
+        mDatabase.saveKey(key);
+        assertNotNull(mDatabase.findKey("client", "key"));
+        mDatabase.deleteKey(key);
+        assertNull(mDatabase.findKey("client", "key"));
+    }
+
+    @Test
+    public void testPresenceIndexInvalidation() {
+        TalkGroupMembership membership = new TalkGroupMembership();
+        membership.setGroupId("group");
+        membership.setClientId("client");
+        membership.setState(TalkGroupMembership.STATE_INVITED);
+        mDatabase.saveGroupMembership(membership);
+        assertTrue(mDatabase.findPresenceMemberIdsForGroup("group").contains("client"));
+        assertTrue(mDatabase.findPresenceGroupIdsForClient("client").contains("group"));
+
+        membership.setState(TalkGroupMembership.STATE_GROUP_REMOVED);
+        mDatabase.saveGroupMembership(membership);
+        assertTrue(mDatabase.findPresenceMemberIdsForGroup("group").isEmpty());
+        assertTrue(mDatabase.findPresenceGroupIdsForClient("client").isEmpty());
+    }
+}
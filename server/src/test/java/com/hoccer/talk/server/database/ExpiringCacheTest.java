@@ -0,0 +1,36 @@
+package com.hoccer.talk.server.database;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ExpiringCacheTest {
+
+    private final ExpiringCache<String, String> mCache =
+            new ExpiringCache<String, String>("test", 100, 60000, new MetricRegistry());
+
+    @Test
+    public void testLoadOvertakenByInvalidationIsDropped() {
+        long token = mCache.startLoad("a");
+        mCache.invalidate("a");
+        mCache.put("a", "stale", token);
+        assertNull(mCache.get("a"));
+
+        token = mCache.startLoad("a");
+        mCache.invalidateAll();
+        mCache.put("a", "stale", token);
+        assertNull(mCache.get("a"));
+    }
+
+    @Test
+    public void testInvalidationOfOtherKeyKeepsLoad() {
+        long token = mCache.startLoad("a");
+        mCache.invalidate("b");
+        mCache.put("a", "fresh", token);
+        assertEquals("fresh", mCache.get("a"));
+    }
+}
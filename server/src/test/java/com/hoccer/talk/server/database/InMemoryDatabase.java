@@ -0,0 +1,1332 @@
+package com.hoccer.talk.server.database;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hoccer.talk.model.*;
+import com.hoccer.talk.server.ITalkServerDatabase;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Volatile implementation of the talk database for tests
+ * <p/>
+ * Queries mirror the ones issued by {@link JongoDatabase}. Objects are copied
+ * on the way in and out, so like with a real database changes only become
+ * visible after saving them.
+ */
+public class InMemoryDatabase implements ITalkServerDatabase {
+
+    private static final String DELETED_SUFFIX = "-DELETED";
+
+    private static final TypeReference<Map<String, Object>> FIELDS = new TypeReference<Map<String, Object>>() {
+    };
+
+    private final ObjectMapper mMapper;
+
+    private final Table<TalkClient> mClients = new Table<TalkClient>(TalkClient.class);
+    private final Table<TalkMessage> mMessages = new Table<TalkMessage>(TalkMessage.class);
+    private final Table<TalkDelivery> mDeliveries = new Table<TalkDelivery>(TalkDelivery.class);
+    private final Table<TalkToken> mTokens = new Table<TalkToken>(TalkToken.class);
+    private final Table<TalkRelationship> mRelationships = new Table<TalkRelationship>(TalkRelationship.class);
+    private final Table<TalkPresence> mPresences = new Table<TalkPresence>(TalkPresence.class);
+    private final Table<TalkKey> mKeys = new Table<TalkKey>(TalkKey.class);
+    private final Table<TalkGroupPresence> mGroupPresences = new Table<TalkGroupPresence>(TalkGroupPresence.class);
+    private final Table<TalkGroupMembership> mGroupMemberships = new Table<TalkGroupMembership>(TalkGroupMembership.class);
+    private final Table<TalkEnvironment> mEnvironments = new Table<TalkEnvironment>(TalkEnvironment.class);
+    private final Table<TalkClientHostInfo> mClientHostInfos = new Table<TalkClientHostInfo>(TalkClientHostInfo.class);
+    private final Table<TalkDatabaseMigration> mMigrations = new Table<TalkDatabaseMigration>(TalkDatabaseMigration.class);
+    private final Table<TalkCleaningCheckpoint> mCleaningCheckpoints = new Table<TalkCleaningCheckpoint>(TalkCleaningCheckpoint.class);
+
+    private final Map<String, Table<?>> mTablesByName = new HashMap<String, Table<?>>();
+
+    /**
+     * Number of write operations performed, bulk writes count once
+     */
+    private int mWriteCount;
+
+    public InMemoryDatabase() {
+        mMapper = new ObjectMapper();
+        mMapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
+        mMapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+        mMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        mTablesByName.put("client", mClients);
+        mTablesByName.put("message", mMessages);
+        mTablesByName.put("delivery", mDeliveries);
+        mTablesByName.put("token", mTokens);
+        mTablesByName.put("relationship", mRelationships);
+        mTablesByName.put("presence", mPresences);
+        mTablesByName.put("key", mKeys);
+        mTablesByName.put("group", mGroupPresences);
+        mTablesByName.put("groupMember", mGroupMemberships);
+        mTablesByName.put("environment", mEnvironments);
+        mTablesByName.put("clientHostInfo", mClientHostInfos);
+        mTablesByName.put("migrations", mMigrations);
+        mTablesByName.put("cleaningCheckpoint", mCleaningCheckpoints);
+    }
+
+    public synchronized int getWriteCount() {
+        return mWriteCount;
+    }
+
+    private interface Filter<T> {
+        boolean accept(T document);
+    }
+
+    /**
+     * Documents of one type keyed by their database id
+     */
+    private class Table<T> {
+        private final Class<T> mType;
+        private final Field mIdField;
+        private final Map<String, T> mDocuments = new LinkedHashMap<String, T>();
+
+        Table(Class<T> type) {
+            mType = type;
+            try {
+                mIdField = type.getDeclaredField("_id");
+                mIdField.setAccessible(true);
+            } catch (NoSuchFieldException e) {
+                throw new RuntimeException("no _id field in " + type.getName(), e);
+            }
+        }
+
+        int size() {
+            return mDocuments.size();
+        }
+
+        void save(T document) {
+            try {
+                String id = (String) mIdField.get(document);
+                if (id == null) {
+                    // ids as assigned by jongo, so they order like in mongo
+                    id = new ObjectId().toString();
+                    mIdField.set(document, id);
+                }
+                mDocuments.put(id, copy(document));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        List<T> find(Filter<T> filter) {
+            List<T> result = new ArrayList<T>();
+            for (T document : mDocuments.values()) {
+                if (filter.accept(document)) {
+                    result.add(copy(document));
+                }
+            }
+            return result;
+        }
+
+        T findOne(Filter<T> filter) {
+            for (T document : mDocuments.values()) {
+                if (filter.accept(document)) {
+                    return copy(document);
+                }
+            }
+            return null;
+        }
+
+        long count(Filter<T> filter) {
+            long count = 0;
+            for (T document : mDocuments.values()) {
+                if (filter.accept(document)) {
+                    ++count;
+                }
+            }
+            return count;
+        }
+
+        int remove(Filter<T> filter) {
+            int removed = 0;
+            Iterator<T> it = mDocuments.values().iterator();
+            while (it.hasNext()) {
+                if (filter.accept(it.next())) {
+                    it.remove();
+                    ++removed;
+                }
+            }
+            return removed;
+        }
+
+        List<T> all() {
+            return find(new Filter<T>() {
+                @Override
+                public boolean accept(T document) {
+                    return true;
+                }
+            });
+        }
+
+        private T copy(T document) {
+            // convertValue() would hand back the same instance
+            try {
+                return mMapper.treeToValue(mMapper.valueToTree(document), mType);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static boolean in(Object value, String[] values) {
+        return Arrays.asList(values).contains(value);
+    }
+
+    private static boolean before(Date date, Date limit) {
+        return date != null && date.before(limit);
+    }
+
+    private static boolean after(Date date, Date limit) {
+        return date != null && date.after(limit);
+    }
+
+    private void wrote() {
+        ++mWriteCount;
+    }
+
+    @Override
+    public synchronized Object getRawCollection(String name) {
+        return mTablesByName.get(name);
+    }
+
+    // clients
+
+    @Override
+    public synchronized TalkClient findClientById(final String clientId) {
+        return mClients.findOne(new Filter<TalkClient>() {
+            @Override
+            public boolean accept(TalkClient client) {
+                return eq(client.getClientId(), clientId);
+            }
+        });
+    }
+
+    /**
+     * Visitors are called on a snapshot taken under the lock, so they may
+     * write to the database. Projections are ignored.
+     */
+    private static <T> void visitAll(List<T> documents, DocumentVisitor<T> visitor) {
+        for (T document : documents) {
+            if (!visitor.visit(document)) {
+                break;
+            }
+        }
+    }
+
+    private static <T> List<T> head(List<T> documents, int limit) {
+        return new ArrayList<T>(documents.subList(0, Math.min(limit, documents.size())));
+    }
+
+    @Override
+    public synchronized List<String> findClientIdsAfter(final String clientId, int limit) {
+        List<String> clientIds = new ArrayList<String>();
+        for (TalkClient client : mClients.find(new Filter<TalkClient>() {
+            @Override
+            public boolean accept(TalkClient client) {
+                return clientId == null || client.getClientId().compareTo(clientId) > 0;
+            }
+        })) {
+            clientIds.add(client.getClientId());
+        }
+        Collections.sort(clientIds);
+        return head(clientIds, limit);
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesAcceptedBetween(final Date after, final String afterId, final Date before, int limit) {
+        final Comparator<TalkDelivery> byAcceptance = new Comparator<TalkDelivery>() {
+            @Override
+            public int compare(TalkDelivery a, TalkDelivery b) {
+                int result = a.getTimeAccepted().compareTo(b.getTimeAccepted());
+                return result != 0 ? result : a.getId().compareTo(b.getId());
+            }
+        };
+        List<TalkDelivery> deliveries = mDeliveries.find(new Filter<TalkDelivery>() {
+            @Override
+            public boolean accept(TalkDelivery delivery) {
+                if (!before(delivery.getTimeAccepted(), before)) {
+                    return false;
+                }
+                if (after == null) {
+                    return true;
+                }
+                int result = delivery.getTimeAccepted().compareTo(after);
+                return result > 0 || (result == 0 && delivery.getId().compareTo(afterId == null ? "" : afterId) > 0);
+            }
+        });
+        Collections.sort(deliveries, byAcceptance);
+        return head(deliveries, limit);
+    }
+
+    @Override
+    public void visitDeliveriesInStatesAfterMessageId(String[] states, String[] attachmentStates, final String messageId, int limit,
+                                                      String projection, DocumentVisitor<TalkDelivery> visitor) {
+        final Filter<TalkDelivery> stateFilter = deliveryFilter(null, null, states, attachmentStates);
+        List<TalkDelivery> deliveries;
+        synchronized (this) {
+            deliveries = mDeliveries.find(new Filter<TalkDelivery>() {
+                @Override
+                public boolean accept(TalkDelivery delivery) {
+                    return stateFilter.accept(delivery) && (messageId == null || delivery.getMessageId().compareTo(messageId) > 0);
+                }
+            });
+        }
+        Collections.sort(deliveries, new Comparator<TalkDelivery>() {
+            @Override
+            public int compare(TalkDelivery a, TalkDelivery b) {
+                return a.getMessageId().compareTo(b.getMessageId());
+            }
+        });
+        visitAll(head(deliveries, limit), visitor);
+    }
+
+    @Override
+    public synchronized TalkClient findDeletedClientById(String clientId) {
+        return findClientById(clientId + DELETED_SUFFIX);
+    }
+
+    @Override
+    public boolean isDeletedClient(String clientId) {
+        return clientId.endsWith(DELETED_SUFFIX);
+    }
+
+    @Override
+    public String beforeDeletedId(String clientId) {
+        if (isDeletedClient(clientId)) {
+            return clientId.substring(0, clientId.length() - DELETED_SUFFIX.length());
+        } else {
+            return clientId;
+        }
+    }
+
+    @Override
+    public synchronized TalkClient findClientByApnsToken(final String apnsToken) {
+        return mClients.findOne(new Filter<TalkClient>() {
+            @Override
+            public boolean accept(TalkClient client) {
+                return eq(client.getApnsToken(), apnsToken);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void saveClient(TalkClient client) {
+        mClients.save(client);
+        wrote();
+    }
+
+    @Override
+    public synchronized void updateClientPushState(TalkClient client) {
+        TalkClient stored = findClientById(client.getClientId());
+        if (stored != null) {
+            stored.setTimeLastPush(client.getTimeLastPush());
+            stored.setLastPushMessage(client.getLastPushMessage());
+            stored.setPushRetryCount(client.getPushRetryCount());
+            mClients.save(stored);
+        }
+        wrote();
+    }
+
+    @Override
+    public synchronized void markClientDeleted(TalkClient client, String reason) {
+        if (!isDeletedClient(client.getClientId())) {
+            client.setSrpSavedVerifier(client.getSrpVerifier());
+            client.setSrpVerifier("");
+            client.setReasonDeleted(reason);
+            client.setClientId(client.getClientId() + DELETED_SUFFIX);
+            client.setTimeDeleted(new Date());
+            saveClient(client);
+        }
+    }
+
+    @Override
+    public synchronized void unmarkClientDeleted(TalkClient client) {
+        if (isDeletedClient(client.getClientId()) && client.getSrpSavedVerifier() != null) {
+            client.setSrpVerifier(client.getSrpSavedVerifier());
+            client.setSrpSavedVerifier("");
+            client.setReasonDeleted("");
+            client.setClientId(beforeDeletedId(client.getClientId()));
+            client.setTimeDeleted(null);
+            saveClient(client);
+        }
+    }
+
+    @Override
+    public synchronized void suspendClient(TalkClient client, Date when, long duration) {
+        client.setTimeSuspended(when);
+        client.setDurationSuspended(duration);
+        saveClient(client);
+    }
+
+    @Override
+    public synchronized void unsuspendClient(TalkClient client) {
+        suspendClient(client, null, 0);
+    }
+
+    @Override
+    public synchronized void deleteClient(final TalkClient client) {
+        mClients.remove(new Filter<TalkClient>() {
+            @Override
+            public boolean accept(TalkClient document) {
+                return eq(document.getClientId(), client.getClientId());
+            }
+        });
+        wrote();
+    }
+
+    // messages
+
+    @Override
+    public synchronized TalkMessage findMessageById(final String messageId) {
+        return mMessages.findOne(new Filter<TalkMessage>() {
+            @Override
+            public boolean accept(TalkMessage message) {
+                return eq(message.getMessageId(), messageId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized List<TalkMessage> findMessagesByIds(final List<String> messageIds) {
+        return mMessages.find(new Filter<TalkMessage>() {
+            @Override
+            public boolean accept(TalkMessage message) {
+                return messageIds.contains(message.getMessageId());
+            }
+        });
+    }
+
+    @Override
+    public synchronized List<TalkMessage> findMessagesWithAttachmentFileId(final String fileId) {
+        return mMessages.find(new Filter<TalkMessage>() {
+            @Override
+            public boolean accept(TalkMessage message) {
+                return eq(message.getAttachmentFileId(), fileId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized List<TalkMessage> findMessagesFromClient(final String senderId) {
+        return mMessages.find(new Filter<TalkMessage>() {
+            @Override
+            public boolean accept(TalkMessage message) {
+                return eq(message.getSenderId(), senderId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void deleteMessage(final TalkMessage message) {
+        mMessages.remove(new Filter<TalkMessage>() {
+            @Override
+            public boolean accept(TalkMessage document) {
+                return eq(document.getMessageId(), message.getMessageId());
+            }
+        });
+        wrote();
+    }
+
+    @Override
+    public synchronized void saveMessage(TalkMessage message) {
+        mMessages.save(message);
+        wrote();
+    }
+
+    // deliveries
+
+    private Filter<TalkDelivery> deliveryFilter(final String senderId, final String receiverId, final String[] states, final String[] attachmentStates) {
+        return new Filter<TalkDelivery>() {
+            @Override
+            public boolean accept(TalkDelivery delivery) {
+                return (senderId == null || eq(delivery.getSenderId(), senderId))
+                        && (receiverId == null || eq(delivery.getReceiverId(), receiverId))
+                        && (states == null || in(delivery.getState(), states))
+                        && (attachmentStates == null || in(delivery.getAttachmentState(), attachmentStates));
+            }
+        };
+    }
+
+    @Override
+    public synchronized TalkDelivery findDelivery(final String messageId, final String receiverId) {
+        return mDeliveries.findOne(new Filter<TalkDelivery>() {
+            @Override
+            public boolean accept(TalkDelivery delivery) {
+                return eq(delivery.getMessageId(), messageId) && eq(delivery.getReceiverId(), receiverId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesInState(String state) {
+        return mDeliveries.find(deliveryFilter(null, null, new String[]{state}, null));
+    }
+
+    @Override
+    public void visitAllDeliveries(String projection, int batchSize, DocumentVisitor<TalkDelivery> visitor) {
+        List<TalkDelivery> deliveries;
+        synchronized (this) {
+            deliveries = mDeliveries.all();
+        }
+        visitAll(deliveries, visitor);
+    }
+
+    @Override
+    public synchronized long countDeliveriesInStatesAndAttachmentStates(String[] deliveryStates, String[] attachmentStates) {
+        return mDeliveries.count(deliveryFilter(null, null, deliveryStates, attachmentStates));
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesForClient(String receiverId) {
+        return mDeliveries.find(deliveryFilter(null, receiverId, null, null));
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesForClientInState(String receiverId, String state) {
+        return mDeliveries.find(deliveryFilter(null, receiverId, new String[]{state}, null));
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesForClientAndMessages(final String receiverId, final List<String> messageIds) {
+        return mDeliveries.find(new Filter<TalkDelivery>() {
+            @Override
+            public boolean accept(TalkDelivery delivery) {
+                return eq(delivery.getReceiverId(), receiverId) && messageIds.contains(delivery.getMessageId());
+            }
+        });
+    }
+
+    private Filter<TalkDelivery> groupDeliveryFilter(final String receiverId, final String groupId, final String state) {
+        return new Filter<TalkDelivery>() {
+            @Override
+            public boolean accept(TalkDelivery delivery) {
+                return eq(delivery.getReceiverId(), receiverId) && eq(delivery.getGroupId(), groupId) && eq(delivery.getState(), state);
+            }
+        };
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesForClientInGroupInState(String receiverId, String groupId, String state) {
+        return mDeliveries.find(groupDeliveryFilter(receiverId, groupId, state));
+    }
+
+    @Override
+    public synchronized long countDeliveriesForClientInGroupInState(String receiverId, String groupId, String state) {
+        return mDeliveries.count(groupDeliveryFilter(receiverId, groupId, state));
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesForClientInDeliveryAndAttachmentStates(String receiverId, String[] deliveryStates, String[] attachmentStates) {
+        return mDeliveries.find(deliveryFilter(null, receiverId, deliveryStates, attachmentStates));
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesFromClient(String senderId) {
+        return mDeliveries.find(deliveryFilter(senderId, null, null, null));
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesFromClientInState(String senderId, String state) {
+        return mDeliveries.find(deliveryFilter(senderId, null, new String[]{state}, null));
+    }
+
+    @Override
+    public synchronized long countDeliveriesFromClientInState(String senderId, String state) {
+        return mDeliveries.count(deliveryFilter(senderId, null, new String[]{state}, null));
+    }
+
+    @Override
+    public synchronized long countDeliveriesBetweenClientsInState(String senderId, String receiverId, String state) {
+        return mDeliveries.count(deliveryFilter(senderId, receiverId, new String[]{state}, null));
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesFromClientInStates(String senderId, String[] states) {
+        return mDeliveries.find(deliveryFilter(senderId, null, states, null));
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesFromClientInDeliveryAndAttachmentStates(String senderId, String[] deliveryStates, String[] attachmentStates) {
+        return mDeliveries.find(deliveryFilter(senderId, null, deliveryStates, attachmentStates));
+    }
+
+    @Override
+    public synchronized long countDeliveriesFromClientInDeliveryAndAttachmentStates(String senderId, String[] deliveryStates, String[] attachmentStates) {
+        return mDeliveries.count(deliveryFilter(senderId, null, deliveryStates, attachmentStates));
+    }
+
+    @Override
+    public synchronized long countDeliveriesBetweenClientsInDeliveryAndAttachmentStates(String senderId, String receiverId, String[] deliveryStates, String[] attachmentStates) {
+        return mDeliveries.count(deliveryFilter(senderId, receiverId, deliveryStates, attachmentStates));
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesForMessage(final String messageId) {
+        return mDeliveries.find(new Filter<TalkDelivery>() {
+            @Override
+            public boolean accept(TalkDelivery delivery) {
+                return eq(delivery.getMessageId(), messageId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized List<TalkDelivery> findDeliveriesFromClientForMessage(final String senderId, final String messageId) {
+        return mDeliveries.find(new Filter<TalkDelivery>() {
+            @Override
+            public boolean accept(TalkDelivery delivery) {
+                return eq(delivery.getSenderId(), senderId) && eq(delivery.getMessageId(), messageId);
+            }
+        });
+    }
+
+    private void removeDelivery(final TalkDelivery delivery) {
+        mDeliveries.remove(new Filter<TalkDelivery>() {
+            @Override
+            public boolean accept(TalkDelivery document) {
+                return eq(document.getMessageId(), delivery.getMessageId()) && eq(document.getReceiverId(), delivery.getReceiverId());
+            }
+        });
+    }
+
+    @Override
+    public synchronized void deleteDelivery(TalkDelivery delivery) {
+        removeDelivery(delivery);
+        wrote();
+    }
+
+    @Override
+    public synchronized void saveDelivery(TalkDelivery delivery) {
+        mDeliveries.save(delivery);
+        wrote();
+    }
+
+    @Override
+    public synchronized void saveDeliveries(List<TalkDelivery> deliveries) {
+        if (deliveries.isEmpty()) {
+            return;
+        }
+        for (TalkDelivery delivery : deliveries) {
+            mDeliveries.save(delivery);
+        }
+        wrote();
+    }
+
+    @Override
+    public synchronized void deleteDeliveries(List<TalkDelivery> deliveries) {
+        if (deliveries.isEmpty()) {
+            return;
+        }
+        for (TalkDelivery delivery : deliveries) {
+            removeDelivery(delivery);
+        }
+        wrote();
+    }
+
+    @Override
+    public synchronized int changeDeliveriesStateForClient(String receiverId, String fromState, String toState) {
+        List<TalkDelivery> deliveries = findDeliveriesForClientInState(receiverId, fromState);
+        for (TalkDelivery delivery : deliveries) {
+            // like the database update this bypasses the state transition checks
+            Map<String, Object> fields = mMapper.convertValue(delivery, FIELDS);
+            fields.put("state", toState);
+            mDeliveries.save(mMapper.convertValue(fields, TalkDelivery.class));
+        }
+        wrote();
+        return deliveries.size();
+    }
+
+    @Override
+    public synchronized void updateDeliveryTimeClientNotified(TalkDelivery delivery) {
+        TalkDelivery stored = findDelivery(delivery.getMessageId(), delivery.getReceiverId());
+        if (stored != null) {
+            stored.setTimeClientNotified(delivery.getTimeClientNotified());
+            mDeliveries.save(stored);
+        }
+        wrote();
+    }
+
+    @Override
+    public synchronized void updateDeliveriesTimeUpdatedIn(String receiverId, List<String> messageIds, Date timeUpdatedIn) {
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        for (TalkDelivery delivery : findDeliveriesForClientAndMessages(receiverId, messageIds)) {
+            delivery.setTimeUpdatedIn(timeUpdatedIn);
+            mDeliveries.save(delivery);
+        }
+        wrote();
+    }
+
+    // tokens
+
+    @Override
+    public synchronized List<TalkToken> findTokensByClient(final String clientId) {
+        return mTokens.find(new Filter<TalkToken>() {
+            @Override
+            public boolean accept(TalkToken token) {
+                return eq(token.getClientId(), clientId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized TalkToken findTokenByPurposeAndSecret(final String purpose, final String secret) {
+        List<TalkToken> tokens = mTokens.find(new Filter<TalkToken>() {
+            @Override
+            public boolean accept(TalkToken token) {
+                return eq(token.getPurpose(), purpose) && eq(token.getSecret(), secret);
+            }
+        });
+        if (tokens.size() > 1) {
+            throw new RuntimeException("Duplicate token");
+        }
+        return tokens.isEmpty() ? null : tokens.get(0);
+    }
+
+    @Override
+    public synchronized void deleteToken(final TalkToken token) {
+        mTokens.remove(new Filter<TalkToken>() {
+            @Override
+            public boolean accept(TalkToken document) {
+                return eq(document.getClientId(), token.getClientId()) && eq(document.getSecret(), token.getSecret());
+            }
+        });
+        wrote();
+    }
+
+    @Override
+    public synchronized void saveToken(TalkToken token) {
+        mTokens.save(token);
+        wrote();
+    }
+
+    // presences
+
+    @Override
+    public synchronized TalkPresence findPresenceForClient(final String clientId) {
+        return mPresences.findOne(new Filter<TalkPresence>() {
+            @Override
+            public boolean accept(TalkPresence presence) {
+                return eq(presence.getClientId(), clientId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void savePresence(TalkPresence presence) {
+        mPresences.save(presence);
+        wrote();
+    }
+
+    @Override
+    public synchronized void deletePresence(final TalkPresence presence) {
+        mPresences.remove(new Filter<TalkPresence>() {
+            @Override
+            public boolean accept(TalkPresence document) {
+                return eq(document.getClientId(), presence.getClientId());
+            }
+        });
+        wrote();
+    }
+
+    @Override
+    public synchronized List<TalkPresence> findPresencesChangedAfter(String clientId, Date lastKnown) {
+        // same audience rules as JongoDatabase.findPresencesChangedAfter()
+        Set<String> clients = new HashSet<String>();
+        Set<String> mustInclude = new HashSet<String>();
+
+        for (TalkRelationship relationship : findRelationships(clientId)) {
+            if (relationship.isRelated()) {
+                clients.add(relationship.getOtherClientId());
+                if (after(relationship.getLastChanged(), lastKnown)) {
+                    mustInclude.add(relationship.getOtherClientId());
+                }
+            }
+        }
+        for (TalkGroupMembership ownMembership : findGroupMembershipsForClient(clientId)) {
+            if (ownMembership.isInvited() || ownMembership.isJoined() || ownMembership.isSuspended()) {
+                for (TalkGroupMembership otherMembership : findGroupMembershipsById(ownMembership.getGroupId())) {
+                    if (otherMembership.isInvited() || otherMembership.isJoined() || otherMembership.isSuspended()) {
+                        clients.add(otherMembership.getClientId());
+                        if (after(otherMembership.getLastChanged(), lastKnown) || after(ownMembership.getLastChanged(), lastKnown)) {
+                            mustInclude.add(otherMembership.getClientId());
+                        }
+                    }
+                }
+            }
+        }
+        List<TalkDelivery> deliveries = new ArrayList<TalkDelivery>(findDeliveriesForClientInState(clientId, TalkDelivery.STATE_DELIVERING));
+        deliveries.addAll(findDeliveriesForClientInDeliveryAndAttachmentStates(clientId,
+                TalkDelivery.IN_ATTACHMENT_DELIVERY_STATES, TalkDelivery.IN_ATTACHMENT_STATES));
+        for (TalkDelivery delivery : deliveries) {
+            clients.add(delivery.getSenderId());
+            if (after(delivery.getTimeChanged(), lastKnown)) {
+                mustInclude.add(delivery.getSenderId());
+            }
+        }
+        clients.remove(clientId);
+
+        List<TalkPresence> result = new ArrayList<TalkPresence>();
+        for (String client : clients) {
+            TalkPresence presence = findPresenceForClient(client);
+            if (presence != null && (presence.getTimestamp().after(lastKnown) || mustInclude.contains(client))) {
+                result.add(presence);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized List<TalkPresence> findPresencesWithStates(final String[] states) {
+        return mPresences.find(new Filter<TalkPresence>() {
+            @Override
+            public boolean accept(TalkPresence presence) {
+                return in(presence.getConnectionStatus(), states);
+            }
+        });
+    }
+
+    // keys
+
+    @Override
+    public synchronized TalkKey findKey(final String clientId, final String keyId) {
+        return mKeys.findOne(new Filter<TalkKey>() {
+            @Override
+            public boolean accept(TalkKey key) {
+                return eq(key.getClientId(), clientId) && eq(key.getKeyId(), keyId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized List<TalkKey> findKeys(final String clientId) {
+        return mKeys.find(new Filter<TalkKey>() {
+            @Override
+            public boolean accept(TalkKey key) {
+                return eq(key.getClientId(), clientId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void deleteKey(final TalkKey key) {
+        mKeys.remove(new Filter<TalkKey>() {
+            @Override
+            public boolean accept(TalkKey document) {
+                return eq(document.getClientId(), key.getClientId()) && eq(document.getKeyId(), key.getKeyId());
+            }
+        });
+        wrote();
+    }
+
+    @Override
+    public synchronized void saveKey(TalkKey key) {
+        mKeys.save(key);
+        wrote();
+    }
+
+    // relationships
+
+    private Filter<TalkRelationship> relationshipFilter(final String clientId, final String otherClientId, final String[] states) {
+        return new Filter<TalkRelationship>() {
+            @Override
+            public boolean accept(TalkRelationship relationship) {
+                return (clientId == null || eq(relationship.getClientId(), clientId))
+                        && (otherClientId == null || eq(relationship.getOtherClientId(), otherClientId))
+                        && (states == null || in(relationship.getState(), states));
+            }
+        };
+    }
+
+    private Filter<TalkRelationship> relationshipChangedBeforeFilter(final String[] states, final Date lastChanged, final boolean keepNotificationsDisabled) {
+        return new Filter<TalkRelationship>() {
+            @Override
+            public boolean accept(TalkRelationship relationship) {
+                return in(relationship.getState(), states) && before(relationship.getLastChanged(), lastChanged)
+                        && !(keepNotificationsDisabled && TalkRelationship.NOTIFICATIONS_DISABLED.equals(relationship.getNotificationPreference()));
+            }
+        };
+    }
+
+    @Override
+    public synchronized List<TalkRelationship> findRelationships(String client) {
+        return mRelationships.find(relationshipFilter(client, null, null));
+    }
+
+    @Override
+    public synchronized List<TalkRelationship> findRelationshipsForClientInState(String clientId, String state) {
+        return mRelationships.find(relationshipFilter(clientId, null, new String[]{state}));
+    }
+
+    @Override
+    public synchronized List<TalkRelationship> findRelationshipsForClientInStates(String clientId, String[] states) {
+        return mRelationships.find(relationshipFilter(clientId, null, states));
+    }
+
+    @Override
+    public synchronized List<TalkRelationship> findRelationshipsForOtherClientInStates(String clientId, String[] states) {
+        return mRelationships.find(relationshipFilter(null, clientId, states));
+    }
+
+    @Override
+    public synchronized List<TalkRelationship> findRelationshipsByOtherClient(String other) {
+        return mRelationships.find(relationshipFilter(null, other, null));
+    }
+
+    @Override
+    public synchronized Set<String> findRelatedClientIdsByOtherClient(String other) {
+        Set<String> clientIds = new HashSet<String>();
+        for (TalkRelationship relationship : mRelationships.find(relationshipFilter(null, other, TalkRelationship.STATES_RELATED))) {
+            clientIds.add(relationship.getClientId());
+        }
+        return clientIds;
+    }
+
+    @Override
+    public synchronized List<TalkRelationship> findRelationshipsChangedAfter(final String client, final Date lastKnown) {
+        return mRelationships.find(new Filter<TalkRelationship>() {
+            @Override
+            public boolean accept(TalkRelationship relationship) {
+                return eq(relationship.getClientId(), client) && after(relationship.getLastChanged(), lastKnown);
+            }
+        });
+    }
+
+    @Override
+    public synchronized List<TalkRelationship> findRelationshipsWithStatesChangedBefore(String[] states, Date lastChanged) {
+        return mRelationships.find(relationshipChangedBeforeFilter(states, lastChanged, false));
+    }
+
+    @Override
+    public synchronized int deleteRelationshipsWithStatesChangedBefore(String[] states, Date lastChanged) {
+        wrote();
+        return mRelationships.remove(relationshipChangedBeforeFilter(states, lastChanged, false));
+    }
+
+    @Override
+    public synchronized int deleteRelationshipsWithStatesAndNotNotificationsDisabledChangedBefore(String[] states, Date lastChanged) {
+        wrote();
+        return mRelationships.remove(relationshipChangedBeforeFilter(states, lastChanged, true));
+    }
+
+    @Override
+    public synchronized TalkRelationship findRelationshipBetween(String client, String otherClient) {
+        return mRelationships.findOne(relationshipFilter(client, otherClient, null));
+    }
+
+    @Override
+    public synchronized void deleteRelationship(TalkRelationship relationship) {
+        mRelationships.remove(relationshipFilter(relationship.getClientId(), relationship.getOtherClientId(), null));
+        wrote();
+    }
+
+    @Override
+    public synchronized void saveRelationship(TalkRelationship relationship) {
+        mRelationships.save(relationship);
+        wrote();
+    }
+
+    // groups
+
+    private Filter<TalkGroupPresence> groupPresenceFilter(final String state, final String groupType, final Date changedBefore) {
+        return new Filter<TalkGroupPresence>() {
+            @Override
+            public boolean accept(TalkGroupPresence groupPresence) {
+                return eq(groupPresence.getState(), state)
+                        && (groupType == null || eq(groupPresence.getGroupType(), groupType))
+                        && (changedBefore == null || before(groupPresence.getLastChanged(), changedBefore));
+            }
+        };
+    }
+
+    @Override
+    public synchronized TalkGroupPresence findGroupPresenceById(final String groupId) {
+        return mGroupPresences.findOne(new Filter<TalkGroupPresence>() {
+            @Override
+            public boolean accept(TalkGroupPresence groupPresence) {
+                return eq(groupPresence.getGroupId(), groupId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void deleteGroupPresence(final TalkGroupPresence groupPresence) {
+        mGroupPresences.remove(new Filter<TalkGroupPresence>() {
+            @Override
+            public boolean accept(TalkGroupPresence document) {
+                return eq(document.getGroupId(), groupPresence.getGroupId());
+            }
+        });
+        wrote();
+    }
+
+    @Override
+    public synchronized List<TalkGroupPresence> findGroupPresencesByClientIdChangedAfter(String clientId, Date lastKnown) {
+        List<TalkGroupPresence> result = new ArrayList<TalkGroupPresence>();
+        for (TalkGroupMembership membership : findGroupMembershipsForClient(clientId)) {
+            if (membership.isMember() || membership.isInvited() || membership.isSuspended()) {
+                TalkGroupPresence groupPresence = findGroupPresenceById(membership.getGroupId());
+                if (groupPresence == null) {
+                    throw new RuntimeException("Internal inconsistency, could not find group " + membership.getGroupId() + "for member client " + clientId);
+                }
+                if (groupPresence.getLastChanged() == null || lastKnown == null || lastKnown.getTime() == 0 || groupPresence.getLastChanged().after(lastKnown)) {
+                    result.add(groupPresence);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized List<TalkGroupPresence> findGroupPresencesWithState(String state) {
+        return mGroupPresences.find(groupPresenceFilter(state, null, null));
+    }
+
+    @Override
+    public synchronized List<TalkGroupPresence> findGroupPresencesWithTypeAndState(String groupType, String state) {
+        return mGroupPresences.find(groupPresenceFilter(state, groupType, null));
+    }
+
+    @Override
+    public synchronized List<TalkGroupPresence> findGroupPresencesWithStateChangedBefore(String state, Date changedDate) {
+        return mGroupPresences.find(groupPresenceFilter(state, null, changedDate));
+    }
+
+    @Override
+    public synchronized int deleteGroupPresencesWithStateChangedBefore(String state, Date changedDate) {
+        wrote();
+        return mGroupPresences.remove(groupPresenceFilter(state, null, changedDate));
+    }
+
+    @Override
+    public synchronized int deleteGroupPresencesWithStateAndTypeChangedBefore(String state, String groupType, Date changedDate) {
+        wrote();
+        return mGroupPresences.remove(groupPresenceFilter(state, groupType, changedDate));
+    }
+
+    @Override
+    public synchronized void saveGroupPresence(TalkGroupPresence groupPresence) {
+        mGroupPresences.save(groupPresence);
+        wrote();
+    }
+
+    // group memberships
+
+    private Filter<TalkGroupMembership> membershipFilter(final String groupId, final String clientId, final String[] states, final String[] roles,
+                                                         final Date changedAfter, final Date changedBefore) {
+        return new Filter<TalkGroupMembership>() {
+            @Override
+            public boolean accept(TalkGroupMembership membership) {
+                return (groupId == null || eq(membership.getGroupId(), groupId))
+                        && (clientId == null || eq(membership.getClientId(), clientId))
+                        && (states == null || in(membership.getState(), states))
+                        && (roles == null || in(membership.getRole(), roles))
+                        && (changedAfter == null || after(membership.getLastChanged(), changedAfter))
+                        && (changedBefore == null || before(membership.getLastChanged(), changedBefore));
+            }
+        };
+    }
+
+    @Override
+    public synchronized List<TalkGroupMembership> findGroupMembershipsByIdWithStatesChangedAfter(String groupId, String[] states, Date lastKnown) {
+        return mGroupMemberships.find(membershipFilter(groupId, null, states, null, lastKnown, null));
+    }
+
+    @Override
+    public synchronized List<TalkGroupMembership> findGroupMembershipsWithStatesChangedBefore(String[] states, Date lastChanged) {
+        return mGroupMemberships.find(membershipFilter(null, null, states, null, null, lastChanged));
+    }
+
+    @Override
+    public synchronized int deleteGroupMembershipsWithStatesChangedBefore(String[] states, Date lastChanged) {
+        wrote();
+        return mGroupMemberships.remove(membershipFilter(null, null, states, null, null, lastChanged));
+    }
+
+    @Override
+    public synchronized int deleteGroupMembershipsWithStatesAndRolesChangedBefore(String[] states, String[] roles, Date lastChanged) {
+        wrote();
+        return mGroupMemberships.remove(membershipFilter(null, null, states, roles, null, lastChanged));
+    }
+
+    @Override
+    public synchronized List<TalkGroupMembership> findGroupMembershipsById(String groupId) {
+        return mGroupMemberships.find(membershipFilter(groupId, null, null, null, null, null));
+    }
+
+    @Override
+    public synchronized List<TalkGroupMembership> findGroupMembershipsByIdWithStates(String groupId, String[] states) {
+        return mGroupMemberships.find(membershipFilter(groupId, null, states, null, null, null));
+    }
+
+    @Override
+    public synchronized List<TalkGroupMembership> findGroupMembershipsByIdWithStatesAndRoles(String groupId, String[] states, String[] roles) {
+        return mGroupMemberships.find(membershipFilter(groupId, null, states, roles, null, null));
+    }
+
+    @Override
+    public synchronized List<TalkGroupMembership> findGroupMembershipsWithStatesAndRoles(String[] states, String[] roles) {
+        return mGroupMemberships.find(membershipFilter(null, null, states, roles, null, null));
+    }
+
+    @Override
+    public synchronized List<TalkGroupMembership> findGroupMembershipsByIdChangedAfter(String groupId, Date lastKnown) {
+        return mGroupMemberships.find(membershipFilter(groupId, null, null, null, lastKnown, null));
+    }
+
+    @Override
+    public synchronized List<TalkGroupMembership> findGroupMembershipsForClient(String clientId) {
+        return mGroupMemberships.find(membershipFilter(null, clientId, null, null, null, null));
+    }
+
+    @Override
+    public synchronized Set<String> findPresenceGroupIdsForClient(String clientId) {
+        Set<String> groupIds = new HashSet<String>();
+        for (TalkGroupMembership membership : mGroupMemberships.find(membershipFilter(null, clientId, TalkGroupMembership.PRESENCE_STATES, null, null, null))) {
+            groupIds.add(membership.getGroupId());
+        }
+        return groupIds;
+    }
+
+    @Override
+    public synchronized Set<String> findPresenceMemberIdsForGroup(String groupId) {
+        Set<String> clientIds = new HashSet<String>();
+        for (TalkGroupMembership membership : mGroupMemberships.find(membershipFilter(groupId, null, TalkGroupMembership.PRESENCE_STATES, null, null, null))) {
+            clientIds.add(membership.getClientId());
+        }
+        return clientIds;
+    }
+
+    @Override
+    public synchronized List<TalkGroupMembership> findGroupMembershipsForClientWithStates(String clientId, String[] states) {
+        return mGroupMemberships.find(membershipFilter(null, clientId, states, null, null, null));
+    }
+
+    @Override
+    public synchronized List<TalkGroupMembership> findGroupMembershipsForClientWithStatesAndRoles(String clientId, String[] states, String[] roles) {
+        return mGroupMemberships.find(membershipFilter(null, clientId, states, roles, null, null));
+    }
+
+    @Override
+    public synchronized TalkGroupMembership findGroupMembershipForClient(String groupId, String clientId) {
+        return mGroupMemberships.findOne(membershipFilter(groupId, clientId, null, null, null, null));
+    }
+
+    @Override
+    public synchronized void saveGroupMembership(TalkGroupMembership membership) {
+        mGroupMemberships.save(membership);
+        wrote();
+    }
+
+    @Override
+    public synchronized void saveGroupMemberships(List<TalkGroupMembership> memberships) {
+        if (memberships.isEmpty()) {
+            return;
+        }
+        for (TalkGroupMembership membership : memberships) {
+            mGroupMemberships.save(membership);
+        }
+        wrote();
+    }
+
+    @Override
+    public synchronized void deleteGroupMembership(TalkGroupMembership membership) {
+        mGroupMemberships.remove(membershipFilter(membership.getGroupId(), membership.getClientId(), null, null, null, null));
+        wrote();
+    }
+
+    // environments
+
+    private Filter<TalkEnvironment> environmentFilter(final String type, final String clientId, final String groupId) {
+        return new Filter<TalkEnvironment>() {
+            @Override
+            public boolean accept(TalkEnvironment environment) {
+                return (type == null || eq(environment.getType(), type))
+                        && (clientId == null || eq(environment.getClientId(), clientId))
+                        && (groupId == null || eq(environment.getGroupId(), groupId));
+            }
+        };
+    }
+
+    @Override
+    public synchronized void saveEnvironment(TalkEnvironment environment) {
+        if (environment.getClientId() != null) {
+            mEnvironments.save(environment);
+            wrote();
+        }
+    }
+
+    @Override
+    public synchronized TalkEnvironment findEnvironmentByClientId(String type, String clientId) {
+        return mEnvironments.findOne(environmentFilter(type, clientId, null));
+    }
+
+    @Override
+    public synchronized TalkEnvironment findEnvironmentByClientIdForGroup(String clientId, String groupId) {
+        return mEnvironments.findOne(environmentFilter(null, clientId, groupId));
+    }
+
+    @Override
+    public synchronized List<TalkEnvironment> findEnvironmentsForGroup(String groupId) {
+        return mEnvironments.find(environmentFilter(null, null, groupId));
+    }
+
+    @Override
+    public synchronized List<TalkEnvironment> findEnvironmentsForClient(String clientId) {
+        return mEnvironments.find(environmentFilter(null, clientId, null));
+    }
+
+    @Override
+    public synchronized List<TalkEnvironment> findEnvironmentsByType(String type) {
+        return mEnvironments.find(environmentFilter(type, null, null));
+    }
+
+    @Override
+    public synchronized List<TalkEnvironment> findEnvironmentsForClient(String clientId, String type) {
+        return mEnvironments.find(environmentFilter(type, clientId, null));
+    }
+
+    /**
+     * Matches worldwide environments by tag and nearby environments by bssid;
+     * geolocation search is not supported in memory.
+     */
+    @Override
+    public synchronized List<TalkEnvironment> findEnvironmentsMatching(final TalkEnvironment environment) {
+        if (TalkEnvironment.TYPE_NEARBY.equals(environment.getType())) {
+            if (environment.getBssids() == null) {
+                return new ArrayList<TalkEnvironment>();
+            }
+            final List<String> bssids = Arrays.asList(environment.getBssids());
+            return mEnvironments.find(new Filter<TalkEnvironment>() {
+                @Override
+                public boolean accept(TalkEnvironment candidate) {
+                    if (!eq(candidate.getType(), environment.getType()) || candidate.getBssids() == null) {
+                        return false;
+                    }
+                    for (String bssid : candidate.getBssids()) {
+                        if (bssids.contains(bssid)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            });
+        } else if (TalkEnvironment.TYPE_WORLDWIDE.equals(environment.getType())) {
+            if (environment.getTag() == null) {
+                return new ArrayList<TalkEnvironment>();
+            }
+            return mEnvironments.find(new Filter<TalkEnvironment>() {
+                @Override
+                public boolean accept(TalkEnvironment candidate) {
+                    return eq(candidate.getType(), environment.getType()) && eq(candidate.getTag(), environment.getTag());
+                }
+            });
+        }
+        throw new RuntimeException("findEnvironmentsMatching: unknown environment type " + environment.getType());
+    }
+
+    @Override
+    public synchronized void deleteEnvironment(TalkEnvironment environment) {
+        mEnvironments.remove(environmentFilter(environment.getType(), environment.getClientId(), null));
+        wrote();
+    }
+
+    // misc
+
+    @Override
+    public boolean ping() {
+        return true;
+    }
+
+    @Override
+    public void reportPing() {
+    }
+
+    @Override
+    public synchronized TalkClientHostInfo findClientHostInfoForClient(final String clientId) {
+        return mClientHostInfos.findOne(new Filter<TalkClientHostInfo>() {
+            @Override
+            public boolean accept(TalkClientHostInfo hostInfo) {
+                return eq(hostInfo.getClientId(), clientId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized List<TalkClientHostInfo> findClientHostInfoByClientLanguageAndClientName(final String clientLanguage, final String clientName) {
+        return mClientHostInfos.find(new Filter<TalkClientHostInfo>() {
+            @Override
+            public boolean accept(TalkClientHostInfo hostInfo) {
+                return eq(hostInfo.getClientLanguage(), clientLanguage) && eq(hostInfo.getClientName(), clientName);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void saveClientHostInfo(TalkClientHostInfo clientHostInfo) {
+        mClientHostInfos.save(clientHostInfo);
+        wrote();
+    }
+
+    @Override
+    public synchronized void deleteClientHostInfo(final TalkClientHostInfo clientHostInfo) {
+        mClientHostInfos.remove(new Filter<TalkClientHostInfo>() {
+            @Override
+            public boolean accept(TalkClientHostInfo document) {
+                return eq(document.getClientId(), clientHostInfo.getClientId());
+            }
+        });
+        wrote();
+    }
+
+    @Override
+    public synchronized List<TalkDatabaseMigration> findDatabaseMigrations() {
+        return mMigrations.all();
+    }
+
+    @Override
+    public synchronized void saveDatabaseMigration(TalkDatabaseMigration migration) {
+        mMigrations.save(migration);
+        wrote();
+    }
+
+    @Override
+    public synchronized TalkCleaningCheckpoint findCleaningCheckpoint(final String name) {
+        return mCleaningCheckpoints.findOne(new Filter<TalkCleaningCheckpoint>() {
+            @Override
+            public boolean accept(TalkCleaningCheckpoint checkpoint) {
+                return eq(checkpoint.getName(), name);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void saveCleaningCheckpoint(TalkCleaningCheckpoint checkpoint) {
+        mCleaningCheckpoints.save(checkpoint);
+        wrote();
+    }
+
+    @Override
+    public synchronized void changeDeliveryFieldValue(String fieldName, String oldFieldValue, String newFieldValue) {
+        for (TalkDelivery delivery : mDeliveries.all()) {
+            Map<String, Object> fields = mMapper.convertValue(delivery, FIELDS);
+            if (eq(fields.get(fieldName), oldFieldValue)) {
+                fields.put(fieldName, newFieldValue);
+                mDeliveries.save(mMapper.convertValue(fields, TalkDelivery.class));
+            }
+        }
+        wrote();
+    }
+}
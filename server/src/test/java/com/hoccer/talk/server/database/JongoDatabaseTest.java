@@ -3,6 +3,7 @@ package com.hoccer.talk.server.database;
 import com.hoccer.talk.model.TalkClient;
 import com.hoccer.talk.model.TalkDelivery;
 import com.hoccer.talk.model.TalkMessage;
+import com.hoccer.talk.server.ITalkServerDatabase;
 import com.hoccer.talk.server.TalkServerConfiguration;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
@@ -19,11 +20,15 @@ import de.flapdoodle.embed.process.config.IRuntimeConfig;
 import de.flapdoodle.embed.process.config.io.ProcessOutput;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.jongo.MongoCollection;
 import org.junit.*;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -93,6 +98,10 @@ public class JongoDatabaseTest {
         database.ping();
     }
 
+    private long countClients() {
+        return ((MongoCollection) database.getRawCollection("client")).count();
+    }
+
     /*
     * TalkClient related methods
     * */
@@ -103,19 +112,16 @@ public class JongoDatabaseTest {
 
         database.saveClient(transientClient);
 
-        List<TalkClient> clients;
-
-        clients = database.findAllClients();
-        assertEquals(1, clients.size());
-        final TalkClient persistedClient = clients.get(0);
+        assertEquals(1, countClients());
+        final TalkClient persistedClient = database.findClientById("foo");
+        assertNotNull(persistedClient);
         assertEquals("foo", persistedClient.getClientId());
 
         final TalkClient anotherTransientClient = new TalkClient();
         transientClient.setClientId("bar");
 
         database.saveClient(anotherTransientClient);
-        clients = database.findAllClients();
-        assertEquals(2, clients.size());
+        assertEquals(2, countClients());
     }
 
     @Test
@@ -140,8 +146,7 @@ public class JongoDatabaseTest {
         assertEquals("1", client.getApnsToken());
 
         // ...although two are in the database
-        final List<TalkClient> clients = database.findAllClients();
-        assertEquals(2, clients.size());
+        assertEquals(2, countClients());
     }
 
     @Test
@@ -165,8 +170,7 @@ public class JongoDatabaseTest {
         assertEquals("1", client.getClientId());
 
         // ...although two are in the database
-        final List<TalkClient> clients = database.findAllClients();
-        assertEquals(2, clients.size());
+        assertEquals(2, countClients());
     }
 
     /*
@@ -309,7 +313,7 @@ public class JongoDatabaseTest {
     }
 
     @Test
-    public void testFindAllDeliveries() throws Exception {
+    public void testVisitAllDeliveries() throws Exception {
         final List<TalkDelivery> emptyResult = database.findDeliveriesInState("crocodile_hunting");
         assertNotNull(emptyResult);
         assertEquals(0, emptyResult.size());
@@ -325,11 +329,141 @@ public class JongoDatabaseTest {
         createDeliveryInState(TalkDelivery.STATE_FAILED);
         createDeliveryInState(TalkDelivery.STATE_FAILED_ACKNOWLEDGED);
 
-        final List<TalkDelivery> fullResult = database.findAllDeliveries();
-        assertNotNull(fullResult);
+        final List<TalkDelivery> fullResult = new ArrayList<TalkDelivery>();
+        database.visitAllDeliveries(null, 3, new ITalkServerDatabase.DocumentVisitor<TalkDelivery>() {
+            @Override
+            public boolean visit(TalkDelivery delivery) {
+                fullResult.add(delivery);
+                return true;
+            }
+        });
         assertEquals(10, fullResult.size());
+
+        // the walk stops when the visitor asks for it
+        final List<TalkDelivery> partialResult = new ArrayList<TalkDelivery>();
+        database.visitAllDeliveries(null, 3, new ITalkServerDatabase.DocumentVisitor<TalkDelivery>() {
+            @Override
+            public boolean visit(TalkDelivery delivery) {
+                partialResult.add(delivery);
+                return partialResult.size() < 4;
+            }
+        });
+        assertEquals(4, partialResult.size());
+    }
+
+    @Test
+    public void testVisitDeliveriesInStatesAfterMessageIdWithProjection() throws Exception {
+        for (String messageId : new String[]{"m3", "m1", "m2", "m4"}) {
+            final TalkDelivery delivery = new TalkDelivery(true);
+            delivery.setMessageId(messageId);
+            delivery.setReceiverId("r");
+            delivery.setState(messageId.equals("m4") ? TalkDelivery.STATE_DELIVERING : TalkDelivery.STATE_ABORTED_ACKNOWLEDGED);
+            database.saveDelivery(delivery);
+        }
+
+        final List<TalkDelivery> result = new ArrayList<TalkDelivery>();
+        database.visitDeliveriesInStatesAfterMessageId(new String[]{TalkDelivery.STATE_ABORTED_ACKNOWLEDGED}, null, "m1", 10,
+                "{messageId:1, receiverId:1}", new ITalkServerDatabase.DocumentVisitor<TalkDelivery>() {
+                    @Override
+                    public boolean visit(TalkDelivery delivery) {
+                        result.add(delivery);
+                        return true;
+                    }
+                });
+        assertEquals(2, result.size());
+        assertEquals("m2", result.get(0).getMessageId());
+        assertEquals("m3", result.get(1).getMessageId());
+        assertEquals("r", result.get(0).getReceiverId());
+        // fields outside the projection are not fetched
+        assertNull(result.get(0).getState());
+    }
+
+    @Test
+    public void testFindMessagesByIds() throws Exception {
+        for (String messageId : new String[]{"m1", "m2", "m3"}) {
+            final TalkMessage message = new TalkMessage();
+            message.setMessageId(messageId);
+            database.saveMessage(message);
+        }
+
+        final List<TalkMessage> messages = database.findMessagesByIds(Arrays.asList("m1", "m3", "doesnotexist"));
+        assertEquals(2, messages.size());
+        assertTrue(database.findMessagesByIds(new ArrayList<String>()).isEmpty());
     }
 
+    @Test
+    public void testUpdateDeliveriesTimeUpdatedIn() throws Exception {
+        for (String messageId : new String[]{"m1", "m2", "m3"}) {
+            final TalkDelivery delivery = new TalkDelivery(true);
+            delivery.setMessageId(messageId);
+            delivery.setReceiverId("receiver");
+            database.saveDelivery(delivery);
+        }
+
+        final Date timeUpdatedIn = new Date();
+        database.updateDeliveriesTimeUpdatedIn("receiver", Arrays.asList("m1", "m2"), timeUpdatedIn);
+
+        final List<TalkDelivery> deliveries = database.findDeliveriesForClientAndMessages("receiver", Arrays.asList("m1", "m2", "m3"));
+        assertEquals(3, deliveries.size());
+        for (TalkDelivery delivery : deliveries) {
+            if ("m3".equals(delivery.getMessageId())) {
+                assertFalse(timeUpdatedIn.equals(delivery.getTimeUpdatedIn()));
+            } else {
+                assertEquals(timeUpdatedIn, delivery.getTimeUpdatedIn());
+            }
+        }
+    }
 
+    @Test
+    public void testSaveDeliveriesAndChangeState() throws Exception {
+        final List<TalkDelivery> deliveries = new ArrayList<TalkDelivery>();
+        for (String messageId : new String[]{"m1", "m2", "m3"}) {
+            final TalkDelivery delivery = new TalkDelivery(true);
+            delivery.setMessageId(messageId);
+            delivery.setReceiverId("receiver");
+            delivery.setState(TalkDelivery.STATE_DELIVERING);
+            deliveries.add(delivery);
+        }
+        database.saveDeliveries(deliveries);
+        assertEquals(3, database.findDeliveriesForClientInState("receiver", TalkDelivery.STATE_DELIVERING).size());
+
+        assertEquals(3, database.changeDeliveriesStateForClient("receiver", TalkDelivery.STATE_DELIVERING, TalkDelivery.STATE_REJECTED));
+        assertEquals(0, database.findDeliveriesForClientInState("receiver", TalkDelivery.STATE_DELIVERING).size());
+        assertEquals(3, database.findDeliveriesForClientInState("receiver", TalkDelivery.STATE_REJECTED).size());
+
+        database.deleteDeliveries(deliveries.subList(0, 2));
+        assertEquals(1, database.findDeliveriesForClient("receiver").size());
+    }
 
+    @Test
+    public void testFindDeliveriesAcceptedBetweenPagesThroughSameTime() throws Exception {
+        // deliveries of a group message share their acceptance time
+        final Date accepted = new Date(1000000);
+        for (int i = 0; i < 25; i++) {
+            final TalkDelivery delivery = new TalkDelivery(true);
+            delivery.setMessageId("group-message");
+            delivery.setReceiverId("receiver-" + i);
+            delivery.setTimeAccepted(accepted);
+            database.saveDelivery(delivery);
+        }
+        final Date before = new Date(2000000);
+
+        final List<String> seen = new ArrayList<String>();
+        Date after = null;
+        String afterId = null;
+        List<TalkDelivery> page;
+        do {
+            page = database.findDeliveriesAcceptedBetween(after, afterId, before, 10);
+            for (TalkDelivery delivery : page) {
+                assertFalse(seen.contains(delivery.getId()));
+                seen.add(delivery.getId());
+            }
+            if (!page.isEmpty()) {
+                after = page.get(page.size() - 1).getTimeAccepted();
+                afterId = page.get(page.size() - 1).getId();
+            }
+        } while (!page.isEmpty());
+
+        assertEquals(25, seen.size());
+    }
 }
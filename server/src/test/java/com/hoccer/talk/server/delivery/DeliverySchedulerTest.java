@@ -0,0 +1,116 @@
+package com.hoccer.talk.server.delivery;
+
+import com.codahale.metrics.MetricRegistry;
+import com.hoccer.talk.server.locking.IdLock;
+import com.hoccer.talk.server.locking.LockManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class DeliverySchedulerTest {
+
+    private ScheduledExecutorService mExecutor;
+    private LockManager mLockManager;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newScheduledThreadPool(4);
+        mLockManager = new LockManager(new MetricRegistry());
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testBurstIsCoalescedWhileRunning() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(2);
+        final List<Boolean> runs = Collections.synchronizedList(new ArrayList<Boolean>());
+        DeliveryScheduler scheduler = new DeliveryScheduler(mExecutor, mLockManager, new MetricRegistry()) {
+            @Override
+            protected void performDelivery(String clientId, boolean forceAll) {
+                runs.add(forceAll);
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finished.countDown();
+            }
+        };
+
+        scheduler.schedule("client", false);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // all of these merge into a single pending run
+        for (int i = 0; i < 100; i++) {
+            scheduler.schedule("client", i == 50);
+        }
+        assertEquals(1, scheduler.getPendingCount());
+
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+
+        assertEquals(2, runs.size());
+        assertFalse(runs.get(0));
+        assertTrue(runs.get(1));
+        assertEquals(0, scheduler.getPendingCount());
+        assertEquals(0, mLockManager.getActiveLocks());
+    }
+
+    @Test
+    public void testRunIsDeferredWhileLockIsBusy() throws Exception {
+        final CountDownLatch performed = new CountDownLatch(1);
+        DeliveryScheduler scheduler = new DeliveryScheduler(mExecutor, mLockManager, new MetricRegistry()) {
+            @Override
+            protected void performDelivery(String clientId, boolean forceAll) {
+                performed.countDown();
+            }
+        };
+
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                IdLock lock = mLockManager.lock(DeliveryScheduler.getLockId("client"));
+                try {
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        holder.start();
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+        scheduler.schedule("client", false);
+        assertFalse(performed.await(300, TimeUnit.MILLISECONDS));
+        assertEquals(1, scheduler.getPendingCount());
+
+        release.countDown();
+        holder.join();
+        assertTrue(performed.await(5, TimeUnit.SECONDS));
+    }
+}
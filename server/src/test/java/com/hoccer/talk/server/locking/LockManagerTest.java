@@ -0,0 +1,113 @@
+package com.hoccer.talk.server.locking;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class LockManagerTest {
+
+    private LockManager mLockManager;
+
+    @Before
+    public void setUp() {
+        mLockManager = new LockManager(new MetricRegistry());
+    }
+
+    @Test
+    public void testLocksAreEvictedWhenUnused() {
+        IdLock lock = mLockManager.lock("message-1");
+        assertEquals(1, mLockManager.getActiveLocks());
+        assertTrue(lock.isHeldByCurrentThread());
+
+        // reentrant acquisition shares the same lock
+        IdLock again = mLockManager.lock("message-1");
+        assertSame(lock, again);
+        again.unlock();
+        assertEquals(1, mLockManager.getActiveLocks());
+
+        lock.unlock();
+        assertEquals(0, mLockManager.getActiveLocks());
+    }
+
+    @Test
+    public void testDualLockOrdersIds() {
+        IdLock lock = mLockManager.dualLock("rel-", "a", "b");
+        try {
+            assertEquals("rel-ba", lock.getId());
+            IdLock reverse = mLockManager.dualLock("rel-", "b", "a");
+            assertSame(lock, reverse);
+            reverse.unlock();
+        } finally {
+            lock.unlock();
+        }
+        assertEquals(0, mLockManager.getActiveLocks());
+    }
+
+    @Test
+    public void testTryLockFailsWhileHeldByOtherThread() throws Exception {
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                IdLock lock = mLockManager.lock("client-1");
+                try {
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        holder.start();
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+        assertNull(mLockManager.tryLock("client-1"));
+        assertEquals(1, mLockManager.getActiveLocks());
+
+        release.countDown();
+        holder.join();
+        assertEquals(0, mLockManager.getActiveLocks());
+
+        IdLock lock = mLockManager.tryLock("client-1");
+        assertNotNull(lock);
+        lock.unlock();
+    }
+
+    @Test
+    public void testConcurrentLockingKeepsMutualExclusion() throws Exception {
+        final int threads = 8;
+        final int rounds = 2000;
+        final int[] counter = new int[1];
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; ++i) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < rounds; ++j) {
+                        IdLock lock = mLockManager.lock("shared");
+                        try {
+                            counter[0]++;
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(threads * rounds, counter[0]);
+        assertEquals(0, mLockManager.getActiveLocks());
+    }
+}
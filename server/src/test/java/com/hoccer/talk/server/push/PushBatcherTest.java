@@ -0,0 +1,73 @@
+package com.hoccer.talk.server.push;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class PushBatcherTest {
+
+    private ScheduledExecutorService mTimer;
+
+    @Before
+    public void setUp() {
+        mTimer = Executors.newScheduledThreadPool(1);
+    }
+
+    @After
+    public void tearDown() {
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void testPushesAreBatchedBySizeAndWindow() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(5);
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        PushBatcher<String> batcher = new PushBatcher<String>("test", mTimer, 1, 100, 200, 3, new MetricRegistry()) {
+            @Override
+            protected void send(List<String> batch) {
+                batchSizes.add(batch.size());
+                for (String ignored : batch) {
+                    sent.countDown();
+                }
+            }
+        };
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(batcher.submit("push" + i));
+        }
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        // the first three fill a batch, the other two wait for the window
+        assertEquals(2, batchSizes.size());
+        assertTrue(batchSizes.contains(3));
+        assertTrue(batchSizes.contains(2));
+        batcher.shutdown();
+    }
+
+    @Test
+    public void testFullQueueRejects() {
+        PushBatcher<String> batcher = new PushBatcher<String>("test", mTimer, 1, 2, 10000, 100, new MetricRegistry()) {
+            @Override
+            protected void send(List<String> batch) {
+            }
+        };
+        assertTrue(batcher.submit("first"));
+        assertTrue(batcher.submit("second"));
+        assertFalse(batcher.submit("third"));
+        assertEquals(2, batcher.getQueued());
+        batcher.shutdown();
+    }
+}
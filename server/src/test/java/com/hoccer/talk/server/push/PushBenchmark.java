@@ -0,0 +1,118 @@
+package com.hoccer.talk.server.push;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.hoccer.talk.model.TalkClient;
+import com.hoccer.talk.model.TalkDelivery;
+import com.hoccer.talk.server.TalkServer;
+import com.hoccer.talk.server.TalkServerConfiguration;
+import com.hoccer.talk.server.database.InMemoryDatabase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures push throughput against the local push service stand-ins
+ * <p/>
+ * Creates offline clients, half of them on GCM and half on APNS, submits
+ * one push for each and waits until all of them are done. Any "talk.*"
+ * system property overrides the configuration, e.g. the stand-in latency.
+ * <p/>
+ * Run with:
+ * mvn -pl server exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.hoccer.talk.server.push.PushBenchmark
+ * -Dexec.args="10000" -Dtalk.push.standIn.latency=50
+ */
+public class PushBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+
+        Properties properties = new Properties();
+        properties.setProperty("talk.gcm.enabled", "true");
+        properties.setProperty("talk.apns.enabled", "true");
+        properties.setProperty("talk.apns.invalidate.interval", "0");
+        properties.setProperty("talk.push.standIn", "true");
+        properties.setProperty("talk.push.rateLimit", "0");
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("talk.")) {
+                properties.setProperty(key, System.getProperty(key));
+            }
+        }
+        TalkServerConfiguration configuration = new TalkServerConfiguration();
+        configuration.configureFromProperties(properties);
+
+        InMemoryDatabase database = new InMemoryDatabase();
+        TalkServer server = new TalkServer(configuration, database);
+        PushAgent agent = server.getPushAgent();
+
+        List<TalkClient> clients = new ArrayList<TalkClient>(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            TalkClient client = new TalkClient();
+            client.setClientId("client-" + i);
+            if (i % 2 == 0) {
+                client.setGcmPackage("com.hoccer.xo.release");
+                client.setGcmRegistration("registration-" + i);
+            } else {
+                client.setApnsToken(String.format("%064x", i));
+            }
+            database.saveClient(client);
+            clients.add(client);
+        }
+
+        System.out.println("pushing to " + clientCount + " clients");
+        long start = System.nanoTime();
+        for (TalkClient client : clients) {
+            TalkDelivery delivery = new TalkDelivery(true);
+            delivery.setMessageId("message-" + client.getClientId());
+            delivery.setReceiverId(client.getClientId());
+            delivery.setTimeAccepted(new Date());
+            agent.submitRequest(client, false,
+                    Collections.singletonList(delivery), Collections.singletonList(delivery));
+        }
+        long submitted = System.nanoTime();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!agent.getOutstanding().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        long done = System.nanoTime();
+        int unfinished = agent.getOutstanding().size();
+        agent.shutdown();
+
+        double seconds = (done - start) / 1e9;
+        System.out.println(String.format("submitted in %.1f ms, finished in %.1f ms",
+                (submitted - start) / 1e6, (done - start) / 1e6));
+        if (unfinished > 0) {
+            System.out.println(unfinished + " pushes did not finish within the timeout");
+        }
+        System.out.println(String.format("throughput: %.0f pushes/s", (clientCount - unfinished) / seconds));
+
+        Map<String, Timer> timers = server.getMetrics().getTimers();
+        for (String service : new String[]{"gcm", "apns"}) {
+            report(service + " latency", timers.get(MetricRegistry.name(PushBatcher.class, service, "latency")));
+            report(service + " send time", timers.get(MetricRegistry.name(PushBatcher.class, service, "sendTime")));
+        }
+        System.exit(0);
+    }
+
+    private static void report(String label, Timer timer) {
+        Snapshot snapshot = timer.getSnapshot();
+        System.out.println(String.format("%-16s count %7d  p50 %8.1f ms  p99 %8.1f ms  p99.9 %8.1f ms  max %8.1f ms",
+                label, timer.getCount(),
+                toMillis(snapshot.getMedian()), toMillis(snapshot.get99thPercentile()),
+                toMillis(snapshot.get999thPercentile()), toMillis(snapshot.getMax())));
+    }
+
+    private static double toMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,200 @@
+package com.hoccer.talk.server.rpc;
+
+import better.jsonrpc.core.JsonRpcConnection;
+import better.jsonrpc.core.JsonRpcMessageReader;
+import better.jsonrpc.server.JsonRpcServer;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.hoccer.talk.model.TalkDelivery;
+import com.hoccer.talk.model.TalkMessage;
+import com.hoccer.talk.rpc.ITalkRpcServer;
+import de.undercouch.bson4jackson.BsonFactory;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Measures allocation and time per call of the tree and the streaming rpc codec
+ * <p/>
+ * Decodes an outDeliveryRequest carrying a message and three deliveries,
+ * dispatches it to a handler that echoes the deliveries and encodes the
+ * response, once in JSON and once in BSON. Both codecs must produce the
+ * same bytes. Allocation is taken from the per-thread counter of the JVM.
+ * <p/>
+ * Run with:
+ * mvn -pl server exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.hoccer.talk.server.rpc.RpcCodecBenchmark
+ * -Dexec.args="50000"
+ */
+public class RpcCodecBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Throwable {
+        int callCount = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+
+        Logger.getRootLogger().setLevel(Level.WARN);
+
+        JsonRpcServer server = new JsonRpcServer(ITalkRpcServer.class);
+        server.setRethrowExceptions(true);
+        Object handler = Proxy.newProxyInstance(RpcCodecBenchmark.class.getClassLoader(),
+                new Class<?>[]{ITalkRpcServer.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                // outDeliveryRequest returns the deliveries it was given
+                return args[1];
+            }
+        });
+
+        TalkMessage message = createMessage();
+        TalkDelivery[] deliveries = createDeliveries(message, 3);
+
+        for (String kind : new String[]{"json", "bson"}) {
+            ObjectMapper mapper = createObjectMapper(kind.equals("bson") ? new BsonFactory() : new JsonFactory());
+            ObjectNode request = mapper.createObjectNode();
+            request.put("jsonrpc", "2.0");
+            request.put("id", "17");
+            request.put("method", "outDeliveryRequest");
+            request.put("params", mapper.valueToTree(new Object[]{message, deliveries}));
+            byte[] input = mapper.writeValueAsBytes(request);
+
+            byte[] treeOutput = call(mapper, server, handler, input, false);
+            byte[] streamingOutput = call(mapper, server, handler, input, true);
+            System.out.println(String.format("%s: request %d bytes, response %d bytes, identical output: %b",
+                    kind, input.length, treeOutput.length, Arrays.equals(treeOutput, streamingOutput)));
+
+            // the earlier rounds warm up, only the last one is reported
+            for (int round = 0; round < ROUNDS; round++) {
+                for (boolean streaming : new boolean[]{false, true}) {
+                    long allocatedBefore = allocatedBytes();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < callCount; i++) {
+                        call(mapper, server, handler, input, streaming);
+                    }
+                    long done = System.nanoTime();
+                    long allocated = allocatedBytes() - allocatedBefore;
+                    if (round == ROUNDS - 1) {
+                        System.out.println(String.format("%s %-9s %8d bytes/call %8.1f us/call",
+                                kind, streaming ? "streaming" : "tree",
+                                allocated / callCount, (done - start) / 1e3 / callCount));
+                    }
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    private static byte[] call(ObjectMapper mapper, JsonRpcServer server, Object handler,
+                               byte[] input, boolean streaming) throws Throwable {
+        ObjectNode request;
+        if (streaming) {
+            JsonParser parser = mapper.getFactory().createJsonParser(input);
+            try {
+                request = JsonRpcMessageReader.readMessage(parser, mapper, server);
+            } finally {
+                parser.close();
+            }
+        } else {
+            request = (ObjectNode) mapper.readTree(input);
+        }
+        CapturingConnection connection = new CapturingConnection(mapper, streaming);
+        server.handleRequest(handler, request, connection);
+        return mapper.writeValueAsBytes(connection.mResponse);
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Same settings as the mappers of TalkServer */
+    private static ObjectMapper createObjectMapper(JsonFactory factory) {
+        ObjectMapper result = new ObjectMapper(factory);
+        result.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        result.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        return result;
+    }
+
+    private static TalkMessage createMessage() {
+        TalkMessage message = new TalkMessage();
+        message.setMessageId("4b1f0c0e-7d1e-4a55-9a57-0f1b2f3c4d5e");
+        message.setMessageTag("tag-123456");
+        message.setSenderId("a3c9e5d2-1111-2222-3333-444455556666");
+        message.setBody(repeat('x', 700));
+        message.setSalt("c2FsdHNhbHRzYWx0c2FsdA==");
+        message.setTimeSent(new Date());
+        message.setAttachment(repeat('y', 200));
+        return message;
+    }
+
+    private static TalkDelivery[] createDeliveries(TalkMessage message, int count) {
+        TalkDelivery[] deliveries = new TalkDelivery[count];
+        for (int i = 0; i < count; i++) {
+            TalkDelivery delivery = new TalkDelivery();
+            delivery.setMessageId(message.getMessageId());
+            delivery.setMessageTag(message.getMessageTag());
+            delivery.setSenderId(message.getSenderId());
+            delivery.setReceiverId("receiver-" + i + "-aaaa-bbbb-cccc-dddd");
+            delivery.setKeyId("key-" + i);
+            delivery.setKeyCiphertext(repeat('k', 344));
+            delivery.setState(TalkDelivery.STATE_NEW);
+            delivery.setTimeAccepted(new Date());
+            deliveries[i] = delivery;
+        }
+        return deliveries;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static class CapturingConnection extends JsonRpcConnection {
+        private final boolean mStreaming;
+        private ObjectNode mResponse;
+
+        CapturingConnection(ObjectMapper mapper, boolean streaming) {
+            super(mapper);
+            mStreaming = streaming;
+        }
+
+        @Override
+        public boolean isStreamingCodec() {
+            return mStreaming;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean disconnect() {
+            return false;
+        }
+
+        @Override
+        public void sendRequest(ObjectNode request) {
+        }
+
+        @Override
+        public void sendResponse(ObjectNode response) {
+            mResponse = response;
+        }
+
+        @Override
+        public void sendNotification(ObjectNode notification) {
+        }
+    }
+}
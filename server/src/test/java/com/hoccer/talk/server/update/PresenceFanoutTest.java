@@ -0,0 +1,110 @@
+package com.hoccer.talk.server.update;
+
+import com.codahale.metrics.MetricRegistry;
+import com.hoccer.talk.model.TalkGroupMembership;
+import com.hoccer.talk.model.TalkPresence;
+import com.hoccer.talk.model.TalkRelationship;
+import com.hoccer.talk.server.database.InMemoryDatabase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class PresenceFanoutTest {
+
+    private ScheduledExecutorService mExecutor;
+    private InMemoryDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newScheduledThreadPool(4);
+        mDatabase = new InMemoryDatabase();
+
+        TalkPresence presence = new TalkPresence();
+        presence.setClientId("self");
+        presence.setClientName("name");
+        mDatabase.savePresence(presence);
+
+        saveRelationship("friend", "self", TalkRelationship.STATE_FRIEND);
+        saveRelationship("stranger", "self", TalkRelationship.STATE_NONE);
+        saveMembership("group", "self", TalkGroupMembership.STATE_JOINED);
+        saveMembership("group", "member", TalkGroupMembership.STATE_INVITED);
+        saveMembership("group", "former", TalkGroupMembership.STATE_GROUP_REMOVED);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void saveRelationship(String clientId, String otherClientId, String state) {
+        TalkRelationship relationship = new TalkRelationship();
+        relationship.setClientId(clientId);
+        relationship.setOtherClientId(otherClientId);
+        relationship.setState(state);
+        mDatabase.saveRelationship(relationship);
+    }
+
+    private void saveMembership(String groupId, String clientId, String state) {
+        TalkGroupMembership membership = new TalkGroupMembership();
+        membership.setGroupId(groupId);
+        membership.setClientId(clientId);
+        membership.setState(state);
+        mDatabase.saveGroupMembership(membership);
+    }
+
+    @Test
+    public void testAudience() {
+        PresenceFanout fanout = new PresenceFanout(mExecutor, mDatabase, 0, new MetricRegistry()) {
+            @Override
+            protected TalkPresence loadPresence(String clientId, Set<String> fields) {
+                return null;
+            }
+
+            @Override
+            protected void send(String receiverId, TalkPresence presence, boolean modified) {
+            }
+        };
+        assertEquals(new HashSet<String>(Arrays.asList("friend", "member")), fanout.findAudience("self"));
+    }
+
+    @Test
+    public void testBurstIsCoalesced() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(2);
+        final List<String> receivers = Collections.synchronizedList(new ArrayList<String>());
+        final List<Boolean> modifications = Collections.synchronizedList(new ArrayList<Boolean>());
+        PresenceFanout fanout = new PresenceFanout(mExecutor, mDatabase, 200, new MetricRegistry()) {
+            @Override
+            protected TalkPresence loadPresence(String clientId, Set<String> fields) {
+                return mDatabase.findPresenceForClient(clientId);
+            }
+
+            @Override
+            protected void send(String receiverId, TalkPresence presence, boolean modified) {
+                receivers.add(receiverId);
+                modifications.add(modified);
+                sent.countDown();
+            }
+        };
+
+        fanout.request("self", Collections.singleton(TalkPresence.FIELD_CLIENT_NAME));
+        fanout.request("self", Collections.singleton(TalkPresence.FIELD_CLIENT_STATUS));
+        fanout.request("self", null);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        Thread.sleep(400);
+
+        // one full update per receiver
+        assertEquals(2, receivers.size());
+        assertEquals(Arrays.asList(false, false), modifications);
+    }
+}